@@ -0,0 +1,141 @@
+package ch.usz.c3pro.benchmark;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonValue;
+
+/**
+ * Compares the JSON results of a JMH run with a stored baseline and fails if a benchmark got slower
+ * or allocates more than the tolerance allows. Used by the jmhCheck task of the Gradle build:
+ *
+ * <pre>
+ * BaselineCheck results.json baseline.json [timeTolerance] [allocationTolerance]
+ * </pre>
+ *
+ * Tolerances are fractions, the defaults allow 25% more time and 10% more allocated bytes per
+ * operation. A score beyond the tolerance is only a regression if it is also outside the error
+ * margins (scoreError) of both runs, so noisy benchmarks do not fail the check. Allocations are
+ * only compared if both runs used the gc profiler.
+ */
+public class BaselineCheck {
+    private static final String ALLOCATION_METRIC = "\u00b7gc.alloc.rate.norm";
+
+    private BaselineCheck() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: BaselineCheck results.json baseline.json [timeTolerance] [allocationTolerance]");
+            System.exit(2);
+        }
+        double timeTolerance = args.length > 2 ? Double.parseDouble(args[2]) : 0.25;
+        double allocationTolerance = args.length > 3 ? Double.parseDouble(args[3]) : 0.10;
+
+        Map<String, JsonObject> results = read(args[0]);
+        Map<String, JsonObject> baseline = read(args[1]);
+        List<String> regressions = new ArrayList<>();
+        for (Map.Entry<String, JsonObject> entry : results.entrySet()) {
+            JsonObject base = baseline.get(entry.getKey());
+            if (base == null) {
+                System.out.println("new     " + entry.getKey());
+                continue;
+            }
+            JsonObject primary = entry.getValue().getJsonObject("primaryMetric");
+            JsonObject basePrimary = base.getJsonObject("primaryMetric");
+            double time = score(primary);
+            double baseTime = score(basePrimary);
+            String line = String.format("%-80s %10.3f \u00b1 %.3f %s (baseline %.3f \u00b1 %.3f, %+.1f%%)", entry.getKey(),
+                    time, error(primary), primary.getString("scoreUnit"), baseTime, error(basePrimary),
+                    100 * (time / baseTime - 1));
+            if (regressed(primary, basePrimary, timeTolerance, 0)) {
+                regressions.add("time " + line);
+            }
+
+            JsonObject allocation = secondary(entry.getValue());
+            JsonObject baseAllocation = secondary(base);
+            if (allocation != null && baseAllocation != null) {
+                line += String.format(", %.0f B/op (baseline %.0f)", score(allocation), score(baseAllocation));
+                // a few bytes of noise on small benchmarks are not a regression
+                if (regressed(allocation, baseAllocation, allocationTolerance, 16)) {
+                    regressions.add("alloc " + line);
+                }
+            }
+            System.out.println("checked " + line);
+        }
+
+        if (!regressions.isEmpty()) {
+            System.err.println(regressions.size() + " regressions against the baseline:");
+            for (String regression : regressions) {
+                System.err.println("  " + regression);
+            }
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Reads the JMH results, keyed by benchmark name and parameters.
+     */
+    private static Map<String, JsonObject> read(String file) throws IOException {
+        Map<String, JsonObject> runs = new LinkedHashMap<>();
+        InputStream in = new FileInputStream(file);
+        try {
+            JsonReader reader = Json.createReader(in);
+            JsonArray array = reader.readArray();
+            for (int i = 0; i < array.size(); i++) {
+                JsonObject run = array.getJsonObject(i);
+                String key = run.getString("benchmark");
+                JsonObject params = run.getJsonObject("params");
+                if (params != null) {
+                    key += params.toString();
+                }
+                runs.put(key, run);
+            }
+        } finally {
+            in.close();
+        }
+        return runs;
+    }
+
+    private static JsonObject secondary(JsonObject run) {
+        JsonObject metrics = run.getJsonObject("secondaryMetrics");
+        return metrics != null ? metrics.getJsonObject(ALLOCATION_METRIC) : null;
+    }
+
+    /**
+     * Returns true if the score is more than the tolerance and the slack above the baseline, and
+     * the error margins of the two scores do not overlap.
+     */
+    private static boolean regressed(JsonObject metric, JsonObject baseMetric, double tolerance, double slack) {
+        double score = score(metric);
+        double baseScore = score(baseMetric);
+        return score > baseScore * (1 + tolerance) + slack
+                && score - error(metric) > baseScore + error(baseMetric);
+    }
+
+    private static double score(JsonObject metric) {
+        return metric.getJsonNumber("score").doubleValue();
+    }
+
+    /**
+     * Returns the scoreError of the metric, or 0 if JMH could not compute it, e.g. for a single
+     * iteration, where it writes "NaN".
+     */
+    private static double error(JsonObject metric) {
+        JsonValue error = metric.get("scoreError");
+        if (error instanceof JsonNumber) {
+            return ((JsonNumber) error).doubleValue();
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,94 @@
+package ch.usz.c3pro.benchmark;
+
+import org.hl7.fhir.dstu3.model.BooleanType;
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.hl7.fhir.dstu3.model.StringType;
+import org.researchstack.backbone.answerformat.AnswerFormat;
+import org.researchstack.backbone.answerformat.BooleanAnswerFormat;
+import org.researchstack.backbone.answerformat.ChoiceAnswerFormat;
+import org.researchstack.backbone.answerformat.IntegerAnswerFormat;
+import org.researchstack.backbone.result.StepResult;
+import org.researchstack.backbone.result.TaskResult;
+import org.researchstack.backbone.step.QuestionStep;
+import org.researchstack.backbone.step.Step;
+
+import java.util.List;
+
+/**
+ * Questionnaires and answers used as input of the benchmarks.
+ */
+public class BenchmarkQuestionnaires {
+    public static final int ITEMS_PER_GROUP = 10;
+
+    private BenchmarkQuestionnaires() {
+    }
+
+    /**
+     * Creates a questionnaire with the given number of question items in groups of
+     * {@link #ITEMS_PER_GROUP}. The types boolean, string, integer and choice take turns, every string
+     * question is enabled by a "yes" to the boolean question before it.
+     */
+    public static Questionnaire createQuestionnaire(String id, int items) {
+        Questionnaire questionnaire = new Questionnaire();
+        questionnaire.setId(id);
+        Questionnaire.QuestionnaireItemComponent group = null;
+        for (int i = 0; i < items; i++) {
+            if (i % ITEMS_PER_GROUP == 0) {
+                group = questionnaire.addItem();
+                group.setLinkId(id + ".g" + i / ITEMS_PER_GROUP);
+                group.setType(Questionnaire.QuestionnaireItemType.GROUP);
+            }
+            Questionnaire.QuestionnaireItemComponent item = group.addItem();
+            item.setLinkId(id + "." + i);
+            item.setText("Question " + i);
+            switch (i % 4) {
+                case 0:
+                    item.setType(Questionnaire.QuestionnaireItemType.BOOLEAN);
+                    break;
+                case 1:
+                    item.setType(Questionnaire.QuestionnaireItemType.STRING);
+                    item.addEnableWhen().setQuestion(id + "." + (i - 1)).setAnswer(new BooleanType(true));
+                    break;
+                case 2:
+                    item.setType(Questionnaire.QuestionnaireItemType.INTEGER);
+                    break;
+                default:
+                    item.setType(Questionnaire.QuestionnaireItemType.CHOICE);
+                    for (int o = 0; o < 5; o++) {
+                        item.addOption().setValue(new StringType("option " + o));
+                    }
+            }
+        }
+        return questionnaire;
+    }
+
+    /**
+     * Creates a TaskResult that answers every question step: booleans with true, choices with their
+     * first option, integers with their index and text with a short string.
+     */
+    @SuppressWarnings("unchecked")
+    public static TaskResult createTaskResult(String id, List<Step> steps) {
+        TaskResult taskResult = new TaskResult(id);
+        int index = 0;
+        for (Step step : steps) {
+            if (step instanceof QuestionStep) {
+                StepResult stepResult = new StepResult(step);
+                stepResult.setResult(answerFor(((QuestionStep) step).getAnswerFormat(), index));
+                taskResult.setStepResultForStepIdentifier(step.getIdentifier(), stepResult);
+            }
+            index++;
+        }
+        return taskResult;
+    }
+
+    private static Object answerFor(AnswerFormat format, int index) {
+        if (format instanceof BooleanAnswerFormat) {
+            return Boolean.TRUE;
+        } else if (format instanceof ChoiceAnswerFormat) {
+            return ((ChoiceAnswerFormat) format).getChoices()[0].getValue();
+        } else if (format instanceof IntegerAnswerFormat) {
+            return index;
+        }
+        return "answer " + index;
+    }
+}
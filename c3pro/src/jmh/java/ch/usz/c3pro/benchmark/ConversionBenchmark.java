@@ -0,0 +1,65 @@
+package ch.usz.c3pro.benchmark;
+
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.hl7.fhir.dstu3.model.QuestionnaireResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.researchstack.backbone.result.TaskResult;
+import org.researchstack.backbone.step.Step;
+import org.researchstack.backbone.task.Task;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import ch.usz.c3pro.questionnaire.logic.Items2Steps;
+import ch.usz.c3pro.questionnaire.logic.Questionnaire2Task;
+import ch.usz.c3pro.questionnaire.logic.TaskResult2QuestionnaireResponse;
+
+/**
+ * Measures the conversion of Questionnaires to Tasks and of TaskResults to QuestionnaireResponses
+ * for questionnaires of different sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ConversionBenchmark {
+    @Param({"10", "100", "1000"})
+    public int items;
+
+    private Questionnaire questionnaire;
+    private TaskResult taskResult;
+
+    @Setup
+    public void setUp() {
+        questionnaire = BenchmarkQuestionnaires.createQuestionnaire("benchmark", items);
+        List<Step> steps = Items2Steps.items2Steps(questionnaire.getItem());
+        taskResult = BenchmarkQuestionnaires.createTaskResult("benchmark", steps);
+    }
+
+    @Benchmark
+    public Task questionnaire2Task() {
+        return Questionnaire2Task.questionnaire2Task(questionnaire);
+    }
+
+    @Benchmark
+    public List<Step> items2Steps() {
+        return Items2Steps.items2Steps(questionnaire.getItem());
+    }
+
+    @Benchmark
+    public QuestionnaireResponse taskResult2QuestionnaireResponse() {
+        return TaskResult2QuestionnaireResponse.taskResult2QuestionnaireResponse(taskResult);
+    }
+}
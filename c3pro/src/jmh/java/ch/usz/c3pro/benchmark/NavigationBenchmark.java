@@ -0,0 +1,95 @@
+package ch.usz.c3pro.benchmark;
+
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.researchstack.backbone.result.TaskResult;
+import org.researchstack.backbone.step.Step;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import ch.usz.c3pro.questionnaire.logic.ConditionalOrderedTask;
+import ch.usz.c3pro.questionnaire.logic.ConditionalStep;
+import ch.usz.c3pro.questionnaire.logic.Items2Steps;
+import ch.usz.c3pro.questionnaire.logic.ResultRequirement;
+
+/**
+ * Measures the evaluation of enableWhen conditions and the navigation through a
+ * {@link ConditionalOrderedTask} for questionnaires of different sizes. All questions are answered,
+ * so every conditional step is shown.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class NavigationBenchmark {
+    @Param({"10", "100", "1000"})
+    public int items;
+
+    private ConditionalOrderedTask task;
+    private TaskResult taskResult;
+    private List<ResultRequirement> requirements;
+
+    @Setup
+    public void setUp() {
+        Questionnaire questionnaire = BenchmarkQuestionnaires.createQuestionnaire("benchmark", items);
+        List<Step> steps = Items2Steps.items2Steps(questionnaire.getItem());
+        task = new ConditionalOrderedTask("benchmark", steps);
+        taskResult = BenchmarkQuestionnaires.createTaskResult("benchmark", steps);
+        requirements = new ArrayList<>();
+        for (Step step : steps) {
+            if (step instanceof ConditionalStep) {
+                requirements.addAll(((ConditionalStep) step).getRequirements());
+            }
+        }
+    }
+
+    @Benchmark
+    public void isSatisfiedBy(Blackhole blackhole) {
+        for (ResultRequirement requirement : requirements) {
+            blackhole.consume(requirement.isSatisfiedBy(taskResult));
+        }
+    }
+
+    @Benchmark
+    public int forward() {
+        int count = 0;
+        Step step = task.getStepAfterStep(null, taskResult);
+        while (step != null) {
+            count++;
+            step = task.getStepAfterStep(step, taskResult);
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int forwardAndBack() {
+        int count = 0;
+        Step step = task.getStepAfterStep(null, taskResult);
+        Step last = step;
+        while (step != null) {
+            last = step;
+            step = task.getStepAfterStep(step, taskResult);
+        }
+        step = last;
+        while (step != null) {
+            count++;
+            step = task.getStepBeforeStep(step, taskResult);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,89 @@
+package ch.usz.c3pro.benchmark;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.researchstack.backbone.step.Step;
+import org.researchstack.backbone.task.Task;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import ch.usz.c3pro.questionnaire.QuestionnaireGenerator;
+import ch.usz.c3pro.questionnaire.logic.Items2Steps;
+import ch.usz.c3pro.questionnaire.logic.ParallelConversion;
+import ch.usz.c3pro.questionnaire.logic.Questionnaire2Task;
+
+/**
+ * Measures the {@link ParallelConversion} of a large questionnaire and of a Bundle of
+ * questionnaires with different numbers of threads, compared with the serial conversion, which
+ * does not depend on the threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ParallelConversionBenchmark {
+    private static final int QUESTIONS = 10000;
+    private static final int BUNDLE_SIZE = 32;
+
+    @Param({"1", "2", "4"})
+    public int threads;
+
+    private Questionnaire questionnaire;
+    private Bundle bundle;
+    private ExecutorService executor;
+
+    @Setup
+    public void setUp() {
+        questionnaire = new QuestionnaireGenerator(1).valueSets(0, 0).generate("large", QUESTIONS);
+        bundle = new Bundle();
+        for (int i = 0; i < BUNDLE_SIZE; i++) {
+            bundle.addEntry().setResource(new QuestionnaireGenerator(i).valueSets(0, 0).generate("q" + i, QUESTIONS / 4));
+        }
+        executor = Executors.newFixedThreadPool(threads);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public List<Step> items2Steps() {
+        return Items2Steps.items2Steps(questionnaire.getItem());
+    }
+
+    @Benchmark
+    public List<Step> parallelItems2Steps() {
+        return ParallelConversion.items2Steps(questionnaire.getItem(), executor);
+    }
+
+    @Benchmark
+    public void bundle2Tasks(Blackhole blackhole) {
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            blackhole.consume(Questionnaire2Task.questionnaire2Task((Questionnaire) entry.getResource()));
+        }
+    }
+
+    @Benchmark
+    public List<Task> parallelBundle2Tasks() {
+        return ParallelConversion.bundle2Tasks(bundle, executor);
+    }
+}
@@ -0,0 +1,93 @@
+package ch.usz.c3pro.benchmark;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ch.usz.c3pro.dataqueue.FhirStandInServer;
+import ch.usz.c3pro.dataqueue.ResourceSummary;
+import ch.usz.c3pro.dataqueue.SearchQuery;
+import ch.usz.c3pro.questionnaire.QuestionnaireGenerator;
+
+/**
+ * Measures parsing a search for questionnaires read in full and read with the elements needed for
+ * {@link ResourceSummary}s. The responses are downloaded once from a {@link FhirStandInServer}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ReadProjectionBenchmark {
+    private static final int QUESTIONNAIRES = 50;
+    private static final int ITEMS = 100;
+
+    private IParser parser;
+    private String full;
+    private String projected;
+
+    @Setup
+    public void setUp() throws IOException {
+        FhirStandInServer server = new FhirStandInServer();
+        for (int i = 0; i < QUESTIONNAIRES; i++) {
+            Questionnaire questionnaire = new QuestionnaireGenerator(i).generate("q" + i, ITEMS);
+            questionnaire.setTitle("Questionnaire " + i);
+            questionnaire.setVersion("1");
+            server.addResource(questionnaire);
+        }
+        server.start();
+        try {
+            full = download(server, new SearchQuery("Questionnaire"));
+            projected = download(server, new SearchQuery("Questionnaire").elements(ResourceSummary.ELEMENTS));
+        } finally {
+            server.stop();
+        }
+        parser = FhirContext.forDstu3().newJsonParser();
+    }
+
+    @Benchmark
+    public Bundle parseFull() {
+        return parser.parseResource(Bundle.class, full);
+    }
+
+    @Benchmark
+    public Bundle parseProjected() {
+        return parser.parseResource(Bundle.class, projected);
+    }
+
+    private static String download(FhirStandInServer server, SearchQuery query) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(server.getBaseURL() + query.toURL()).openConnection();
+        try {
+            InputStream in = connection.getInputStream();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+            in.close();
+            return out.toString("UTF-8");
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
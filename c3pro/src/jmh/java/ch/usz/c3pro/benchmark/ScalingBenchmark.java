@@ -0,0 +1,71 @@
+package ch.usz.c3pro.benchmark;
+
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.hl7.fhir.dstu3.model.QuestionnaireResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.researchstack.backbone.result.TaskResult;
+import org.researchstack.backbone.step.Step;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import ch.usz.c3pro.questionnaire.QuestionnaireGenerator;
+import ch.usz.c3pro.questionnaire.logic.ConditionalOrderedTask;
+import ch.usz.c3pro.questionnaire.logic.Items2Steps;
+import ch.usz.c3pro.questionnaire.logic.TaskResult2QuestionnaireResponse;
+import ch.usz.c3pro.questionnaire.logic.ValueSetResolver;
+
+/**
+ * Measures the conversions of questionnaires of the {@link QuestionnaireGenerator} with nested
+ * groups, conditions and contained ValueSets, at a size and eight times that size. The scores of
+ * the two sizes should differ by about eight, a quadratic conversion differs by 64.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ScalingBenchmark {
+    private static final long SEED = 20161018L;
+
+    @Param({"1000", "8000"})
+    public int questions;
+
+    private Questionnaire questionnaire;
+    private TaskResult taskResult;
+
+    @Setup
+    public void setUp() {
+        questionnaire = new QuestionnaireGenerator(SEED).generate("scaling", questions);
+        ValueSetResolver.resolveValueSets(questionnaire);
+        List<Step> steps = Items2Steps.items2Steps(questionnaire.getItem());
+        taskResult = new QuestionnaireGenerator(SEED).answer(new ConditionalOrderedTask("scaling", steps));
+    }
+
+    @Benchmark
+    public List<Step> items2Steps() {
+        return Items2Steps.items2Steps(questionnaire.getItem());
+    }
+
+    @Benchmark
+    public void resolveValueSets() {
+        ValueSetResolver.clearCache();
+        ValueSetResolver.resolveValueSets(questionnaire);
+    }
+
+    @Benchmark
+    public QuestionnaireResponse taskResult2QuestionnaireResponse() {
+        return TaskResult2QuestionnaireResponse.taskResult2QuestionnaireResponse(taskResult);
+    }
+}
@@ -1,5 +1,6 @@
 package ch.usz.c3pro;
 
+import android.app.ActivityManager;
 import android.content.Context;
 import android.util.Log;
 
@@ -8,7 +9,14 @@ import com.birbit.android.jobqueue.config.Configuration;
 import com.birbit.android.jobqueue.log.CustomLogger;
 
 import ca.uhn.fhir.context.FhirContext;
+import ch.usz.c3pro.dataqueue.AndroidNetworkStateProvider;
 import ch.usz.c3pro.dataqueue.DataQueue;
+import ch.usz.c3pro.memory.AndroidMemoryCallbacks;
+import ch.usz.c3pro.memory.MemoryGovernor;
+import ch.usz.c3pro.questionnaire.TaskCache;
+import ch.usz.c3pro.questionnaire.TaskPreparer;
+import ch.usz.c3pro.questionnaire.TaskRegistry;
+import ch.usz.c3pro.questionnaire.logic.ValueSetResolver;
 
 /**
  * C3PRO
@@ -39,6 +47,10 @@ public class C3PRO {
     private static FhirContext fhirContext;
     private static JobManager jobManager;
     private static DataQueue dataQueue;
+    private static TaskRegistry taskRegistry;
+    private static TaskCache taskCache;
+    private static TaskPreparer taskPreparer;
+    private static MemoryGovernor memoryGovernor;
 
 
     private C3PRO() {
@@ -47,12 +59,21 @@ public class C3PRO {
     public static void init(Context context, String FHIRServerURL) {
         initFhirContext();
         initJobManager(context);
+        initTaskRegistry(context);
+        initTaskCache();
+        initMemoryGovernor(context);
+        initTaskPreparer();
         initDataQueue(FHIRServerURL);
+        dataQueue.setNetworkStateProvider(new AndroidNetworkStateProvider(context));
     }
 
     public static void init(Context context) {
         initFhirContext();
         initJobManager(context);
+        initTaskRegistry(context);
+        initTaskCache();
+        initMemoryGovernor(context);
+        initTaskPreparer();
     }
 
     public static void initFhirContext() {
@@ -67,12 +88,65 @@ public class C3PRO {
         }
     }
 
+    public static void initTaskRegistry(Context context) {
+        if (taskRegistry == null) {
+            taskRegistry = new TaskRegistry(context.getApplicationContext());
+        }
+    }
+
+    public static void initTaskCache() {
+        if (taskCache == null) {
+            taskCache = new TaskCache();
+        }
+    }
+
+    /**
+     * Sets up the MemoryGovernor with a budget of an eighth of the memory class of the app, registers
+     * the caches with it and passes the memory signals of the system on to it.
+     */
+    public static void initMemoryGovernor(Context context) {
+        if (memoryGovernor == null) {
+            ActivityManager activityManager = (ActivityManager) context.getApplicationContext().getSystemService(Context.ACTIVITY_SERVICE);
+            memoryGovernor = new MemoryGovernor(MemoryGovernor.defaultBudget(activityManager.getMemoryClass()));
+            if (taskCache != null) {
+                taskCache.setMemoryGovernor(memoryGovernor);
+            }
+            ValueSetResolver.setMemoryGovernor(memoryGovernor);
+            context.getApplicationContext().registerComponentCallbacks(new AndroidMemoryCallbacks(memoryGovernor));
+        }
+    }
+
+    public static void initTaskPreparer() {
+        if (taskPreparer == null) {
+            taskPreparer = new TaskPreparer(getJobManager(), getTaskCache());
+        }
+    }
+
     public static void initDataQueue(String FHIRServerURL){
         if (dataQueue == null){
             dataQueue = new DataQueue(FHIRServerURL, getJobManager());
         }
     }
 
+    /**
+     * Replaces the DataQueue, e.g. with one whose jobs are run by a test harness.
+     */
+    public static void setDataQueue(DataQueue queue) {
+        dataQueue = queue;
+    }
+
+    /**
+     * Replaces the MemoryGovernor, e.g. with one whose trim signals are simulated by a test. The
+     * caches are registered with the new governor and unregistered from the previous one.
+     */
+    public static void setMemoryGovernor(MemoryGovernor governor) {
+        memoryGovernor = governor;
+        if (taskCache != null) {
+            taskCache.setMemoryGovernor(governor);
+        }
+        ValueSetResolver.setMemoryGovernor(governor);
+    }
+
     public static FhirContext getFhirContext() {
         return fhirContext;
     }
@@ -85,6 +159,22 @@ public class C3PRO {
         return dataQueue;
     }
 
+    public static TaskRegistry getTaskRegistry() {
+        return taskRegistry;
+    }
+
+    public static TaskCache getTaskCache() {
+        return taskCache;
+    }
+
+    public static TaskPreparer getTaskPreparer() {
+        return taskPreparer;
+    }
+
+    public static MemoryGovernor getMemoryGovernor() {
+        return memoryGovernor;
+    }
+
     private static Configuration.Builder getDefaultBuilder(Context context) {
         Configuration.Builder builder = new Configuration.Builder(context)
                 .customLogger(new CustomLogger() {
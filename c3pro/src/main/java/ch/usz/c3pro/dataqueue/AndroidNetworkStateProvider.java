@@ -0,0 +1,70 @@
+package ch.usz.c3pro.dataqueue;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.telephony.TelephonyManager;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Provides the network conditions of the device to the {@link NetworkScheduler}. Wi-Fi and ethernet
+ * connections, as well as mobile connections of 3.5G and faster, are considered fast. Whether a
+ * connection is metered is decided by the system.
+ */
+public class AndroidNetworkStateProvider implements NetworkScheduler.NetworkStateProvider {
+    private ConnectivityManager connectivityManager;
+
+    public AndroidNetworkStateProvider(Context context) {
+        connectivityManager = (ConnectivityManager) context.getApplicationContext().getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    @Override
+    public NetworkScheduler.NetworkState getNetworkState() {
+        NetworkInfo info = connectivityManager.getActiveNetworkInfo();
+        if (info == null || !info.isConnected()) {
+            return NetworkScheduler.NetworkState.DISCONNECTED;
+        }
+        return new NetworkScheduler.NetworkState(true, connectivityManager.isActiveNetworkMetered(), isFast(info));
+    }
+
+    private static boolean isFast(NetworkInfo info) {
+        switch (info.getType()) {
+            case ConnectivityManager.TYPE_WIFI:
+            case ConnectivityManager.TYPE_ETHERNET:
+                return true;
+            case ConnectivityManager.TYPE_MOBILE:
+                switch (info.getSubtype()) {
+                    case TelephonyManager.NETWORK_TYPE_LTE:
+                    case TelephonyManager.NETWORK_TYPE_HSPAP:
+                    case TelephonyManager.NETWORK_TYPE_HSPA:
+                    case TelephonyManager.NETWORK_TYPE_HSDPA:
+                    case TelephonyManager.NETWORK_TYPE_HSUPA:
+                    case TelephonyManager.NETWORK_TYPE_EVDO_B:
+                    case TelephonyManager.NETWORK_TYPE_EHRPD:
+                        return true;
+                    default:
+                        return false;
+                }
+            default:
+                return false;
+        }
+    }
+}
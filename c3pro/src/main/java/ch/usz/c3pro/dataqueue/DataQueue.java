@@ -1,15 +1,35 @@
 package ch.usz.c3pro.dataqueue;
 
+import android.net.Uri;
+import android.util.Log;
+
 import com.birbit.android.jobqueue.Job;
 import com.birbit.android.jobqueue.JobManager;
+import com.birbit.android.jobqueue.TagConstraint;
+import com.birbit.android.jobqueue.callback.JobManagerCallbackAdapter;
 
 import org.hl7.fhir.dstu3.model.QuestionnaireResponse;
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.researchstack.backbone.result.TaskResult;
 import org.researchstack.backbone.task.Task;
 
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
 import ca.uhn.fhir.rest.client.IGenericClient;
+import ch.usz.c3pro.C3PRO;
 import ch.usz.c3pro.dataqueue.jobs.CreateResourceJob;
+import ch.usz.c3pro.dataqueue.jobs.JobReceivers;
+import ch.usz.c3pro.dataqueue.jobs.PipelineJob;
 import ch.usz.c3pro.dataqueue.jobs.ReadResourceJob;
+import ch.usz.c3pro.dataqueue.jobs.UploadBinaryJob;
+import ch.usz.c3pro.questionnaire.TaskCache;
+import ch.usz.c3pro.questionnaire.jobs.PrefetchQuestionnairesJob;
+import ch.usz.c3pro.questionnaire.jobs.UploadQuestionnaireResponseJob;
+import ch.usz.c3pro.questionnaire.logic.ConversionStages;
+import ch.usz.c3pro.questionnaire.logic.QuestionnaireResponseValidator;
 
 /**
  * C3PRO
@@ -41,6 +61,9 @@ public class DataQueue {
 
     private JobManager jobManager;
     private String server;
+    private final UploadCoalescer uploadCoalescer = new UploadCoalescer();
+    private volatile TrafficRecorder trafficRecorder;
+    private NetworkScheduler networkScheduler;
 
     /**
      * The BundleReceiver interface is used to pass back downloaded resources in a FHIR Bundle.
@@ -49,6 +72,29 @@ public class DataQueue {
         public void receiveBundle(String requestID, org.hl7.fhir.dstu3.model.Bundle resource);
     }
 
+    /**
+     * The SpillableBundleReceiver interface is used to pass back the result of a search that may not
+     * fit into memory. The receiver has to close the SpillableBundle when it is done with it.
+     * */
+    public interface SpillableBundleReceiver {
+        public void receiveBundle(String requestID, SpillableBundle bundle);
+    }
+
+    /**
+     * The SummaryReceiver interface is used to pass back the lightweight summaries of resources.
+     * */
+    public interface SummaryReceiver {
+        public void receiveSummaries(String requestID, List<ResourceSummary> summaries);
+    }
+
+    /**
+     * A SummaryReceiver that is also told when no summaries will be passed back, because the search
+     * failed or its job was cancelled.
+     * */
+    public interface SummaryFailureReceiver extends SummaryReceiver {
+        public void summariesFailed(String requestID, Throwable throwable);
+    }
+
     /**
      * The TaskReceiver interface is used to pass back Tasks that were created from Questionnaires.
      * */
@@ -56,6 +102,14 @@ public class DataQueue {
         public void receiveTask(Task task);
     }
 
+    /**
+     * A TaskReceiver that is also told when no Task will be passed back, because the conversion
+     * failed or its job was cancelled.
+     * */
+    public interface TaskFailureReceiver extends TaskReceiver {
+        public void taskFailed(Throwable throwable);
+    }
+
     /**
      * The TaskReceiver interface is used to pass back Tasks that were created from Questionnaires.
      * */
@@ -63,6 +117,21 @@ public class DataQueue {
         public void receiveResponse(QuestionnaireResponse questionnaireResponse);
     }
 
+    /**
+     * The LocationReceiver interface is used to pass back the location of an uploaded resource.
+     * */
+    public interface LocationReceiver {
+        public void receiveLocation(String location);
+    }
+
+    /**
+     * A LocationReceiver that is also told when no location will be passed back, because the
+     * upload has been given up.
+     * */
+    public interface LocationFailureReceiver extends LocationReceiver {
+        public void locationFailed(Throwable throwable);
+    }
+
     /**
      * Interface needed for a HAPIQueryJob. Implement the runQuery method and run a HAPI Query on the
      * provided client.
@@ -71,21 +140,192 @@ public class DataQueue {
         public void runQuery(IGenericClient client);
     }
 
+    /**
+     * A Stage is one step of a {@link Pipeline}. It is run on a worker thread and its output is
+     * passed to the next stage.
+     * */
+    public interface Stage<I, O> extends Serializable {
+        public O run(I input) throws Exception;
+    }
+
+    /**
+     * The PipelineReceiver interface is used to pass back the output of the last stage of a Pipeline.
+     * */
+    public interface PipelineReceiver<T> {
+        public void receiveResult(T result);
+    }
+
+    /**
+     * A PipelineReceiver that is also told when no result will be passed back, because a stage
+     * failed or the job was cancelled.
+     * */
+    public interface PipelineFailureReceiver<T> extends PipelineReceiver<T> {
+        public void resultFailed(Throwable throwable);
+    }
+
     /**
      * The DataQueue needs the URL to a FHIR Server and a JobManager to run. A DataQueue is provided
      * as a singleton by the C3PRO class, no need to have another instance of it around!
+     * The manager can only be null in subclasses that run the jobs themselves, e.g. in load tests,
+     * by overriding submit() and cancelJobs() and calling jobFinished().
      * */
     public DataQueue(String FHIRServerURL, JobManager manager) {
         jobManager = manager;
         server = FHIRServerURL;
+        if (jobManager != null) {
+            jobManager.addCallback(new JobManagerCallbackAdapter() {
+                @Override
+                public void onDone(Job job) {
+                    jobFinished(job);
+                }
+
+                @Override
+                public void onJobCancelled(Job job, boolean byCancelRequest, Throwable throwable) {
+                    jobFinished(job);
+                }
+            });
+        }
     }
 
     /**
-     * Creates the FHIR resource on the server provided at the setup of C3PRO.
+     * Called when a job of the DataQueue is done or has been cancelled.
+     * */
+    protected void jobFinished(Job job) {
+        if (job instanceof CreateResourceJob) {
+            uploadCoalescer.finished(job.getId(), ((CreateResourceJob) job).getCoalescingKey());
+        } else if (job instanceof UploadQuestionnaireResponseJob) {
+            uploadCoalescer.finished(job.getId(), ((UploadQuestionnaireResponseJob) job).getCoalescingKey());
+        }
+    }
+
+    /**
+     * Creates the FHIR resource on the server provided at the setup of C3PRO. Uploads are coalesced
+     * while they wait for the network: if an older version of the same resource (same type and id)
+     * is waiting, only this newer one is uploaded, and if an identical resource has been uploaded
+     * while this one was waiting, it is dropped. The resource is encoded in the background job, not
+     * on the calling thread, unless a TrafficRecorder is set.
      * */
     public void create(IBaseResource resource) {
-        CreateResourceJob job = new CreateResourceJob(resource, server);
-        jobManager.addJobInBackground(job);
+        String key = UploadCoalescer.keyFor(resource);
+        TrafficRecorder recorder = trafficRecorder;
+        if (recorder != null) {
+            byte[] payload = UploadCoalescer.encode(resource);
+            recorder.recordCreate(resource.getClass().getSimpleName(), payload.length, key, UploadCoalescer.hashOf(payload));
+        }
+        CreateResourceJob job = new CreateResourceJob(resource, server, key);
+        if (uploadCoalescer.offer(job.getId(), key) == UploadCoalescer.Decision.REPLACE) {
+            cancelJobs(UploadCoalescer.tagFor(key));
+        }
+        submit(job);
+    }
+
+    /**
+     * Checks the QuestionnaireResponse against the Task it was answered with and only creates it
+     * on the server provided at the setup of C3PRO if no problems are found, so invalid responses
+     * do not use upload bandwidth and retries. Returns the problems found, an empty List if the
+     * response has been enqueued. The upload is coalesced like the ones of
+     * {@link #create(IBaseResource)}, the JSON is streamed to the server.
+     * */
+    public List<QuestionnaireResponseValidator.Issue> create(QuestionnaireResponse questionnaireResponse, Task task) {
+        List<QuestionnaireResponseValidator.Issue> issues = QuestionnaireResponseValidator.validate(questionnaireResponse, task);
+        if (issues.isEmpty()) {
+            upload(new UploadQuestionnaireResponseJob(questionnaireResponse, server, UploadCoalescer.keyFor(questionnaireResponse)));
+        } else {
+            Log.e("SENDJOBS", "QuestionnaireResponse not uploaded: " + issues);
+        }
+        return issues;
+    }
+
+    /**
+     * Uploads the answers of the TaskResult as a FHIR QuestionnaireResponse to the server provided
+     * at the setup of C3PRO. The JSON is written directly from the TaskResult, without creating a
+     * HAPI QuestionnaireResponse first.
+     * */
+    public void createQuestionnaireResponse(TaskResult taskResult) {
+        createQuestionnaireResponse(taskResult, null, null);
+    }
+
+    /**
+     * Uploads the answers of the TaskResult as a FHIR QuestionnaireResponse to the server provided
+     * at the setup of C3PRO in one persistent job. The location of the created
+     * QuestionnaireResponse, with the id assigned by the server, is passed back to the
+     * locationReceiver, unless the app has been restarted in between. It is null if an identical
+     * response has been uploaded while the job was waiting.
+     * */
+    public void createQuestionnaireResponse(TaskResult taskResult, LocationReceiver locationReceiver) {
+        createQuestionnaireResponse(taskResult, null, locationReceiver);
+    }
+
+    /**
+     * Uploads the answers of the TaskResult as a FHIR QuestionnaireResponse, like
+     * {@link #createQuestionnaireResponse(TaskResult, LocationReceiver)}, after checking them
+     * against the Task they were answered with, if not null. Returns the problems found, an empty
+     * List if the response has been enqueued. The locationReceiver can be null.
+     * All QuestionnaireResponses are uploaded the same way: the JSON is streamed to the server by
+     * an {@link UploadQuestionnaireResponseJob} and the upload is coalesced by the
+     * {@link UploadCoalescer}.
+     * */
+    public List<QuestionnaireResponseValidator.Issue> createQuestionnaireResponse(TaskResult taskResult, Task task, LocationReceiver locationReceiver) {
+        List<QuestionnaireResponseValidator.Issue> issues = task != null ?
+                QuestionnaireResponseValidator.validate(taskResult, task) : new ArrayList<QuestionnaireResponseValidator.Issue>();
+        if (issues.isEmpty()) {
+            upload(new UploadQuestionnaireResponseJob(taskResult, server, locationReceiver));
+        } else {
+            Log.e("SENDJOBS", "QuestionnaireResponse not uploaded: " + issues);
+        }
+        return issues;
+    }
+
+    /**
+     * Registers the upload with the UploadCoalescer and submits it, like {@link #create(IBaseResource)}.
+     * */
+    private void upload(UploadQuestionnaireResponseJob job) {
+        String key = job.getCoalescingKey();
+        TrafficRecorder recorder = trafficRecorder;
+        if (recorder != null) {
+            UploadCoalescer.HashingOutputStream payload = new UploadCoalescer.HashingOutputStream();
+            try {
+                job.writeTo(payload);
+                recorder.recordCreate("QuestionnaireResponse", payload.getCount(), key, payload.getHash());
+            } catch (IOException e) {
+                // does not happen, nothing is written anywhere
+                throw new IllegalStateException(e);
+            }
+        }
+        if (uploadCoalescer.offer(job.getId(), key) == UploadCoalescer.Decision.REPLACE) {
+            cancelJobs(UploadCoalescer.tagFor(key));
+        }
+        submit(job);
+    }
+
+    /**
+     * Uploads the content of the file or content URI as a FHIR Binary to the server provided at the
+     * setup of C3PRO, e.g. to be referenced by an Attachment. The content is streamed in chunks and
+     * never held in memory. If the server supports resumable uploads, an interrupted upload
+     * continues where it stopped. The location of the Binary is passed back to the
+     * locationReceiver, which can be null. A {@link LocationFailureReceiver} is told when the upload
+     * is given up.
+     * */
+    public void createBinary(Uri content, String contentType, boolean resumable, LocationReceiver locationReceiver) {
+        UploadBinaryJob job = new UploadBinaryJob(content, contentType, resumable, server, locationReceiver);
+        addJob(job);
+    }
+
+    /**
+     * Runs all stages of the pipeline in one background job, the output of each stage is handed
+     * to the next one without going through the main thread.
+     * */
+    public void run(Pipeline<?> pipeline) {
+        addJob(new PipelineJob<>(pipeline, null));
+    }
+
+    /**
+     * Runs all stages of the pipeline in one background job and passes the output of the last stage
+     * back to the pipelineReceiver on the main thread. A {@link PipelineFailureReceiver} is told
+     * when the pipeline fails instead.
+     * */
+    public <T> void run(Pipeline<T> pipeline, PipelineReceiver<T> pipelineReceiver) {
+        addJob(new PipelineJob<>(pipeline, pipelineReceiver));
     }
 
     /**
@@ -94,17 +334,186 @@ public class DataQueue {
      * identification with the result to the resourceReceiver.
      * */
     public void read(String requestID, String searchURL, BundleReceiver resourceReceiver) {
-        ReadResourceJob job = new ReadResourceJob(requestID, searchURL, resourceReceiver);
-        jobManager.addJobInBackground(job);
+        ReadResourceJob job = new ReadResourceJob(requestID, searchURL, resourceReceiver, server);
+        addJob(job);
+    }
+
+    /**
+     * Each searchURL, absolute or relative to the FHIRServerURL defined in the C3PRO, defines a
+     * search for questionnaires that are expected to be used soon, e.g. the ones of the pending
+     * study schedule or the recently used ones. They are downloaded and converted to Tasks while
+     * the device is idle and on an unmetered network, and put into the TaskCache of the C3PRO.
+     * */
+    public void prefetchQuestionnaires(List<String> searchURLs) {
+        PrefetchQuestionnairesJob job = new PrefetchQuestionnairesJob(searchURLs, server, PrefetchQuestionnairesJob.IDLE_AND_UNMETERED);
+        addJob(job);
+    }
+
+    /**
+     * Runs the search defined by the query on the FHIRServerURL defined in the C3PRO. Projections
+     * of the query (_elements, _summary, _count, _include) are applied by the server, so only what
+     * is needed is downloaded and parsed. requestID will be passed back for identification with the
+     * result to the resourceReceiver.
+     * */
+    public void read(String requestID, SearchQuery query, BundleReceiver resourceReceiver) {
+        read(requestID, query.toURL(), resourceReceiver);
+    }
+
+    /**
+     * Runs a search whose result can be too large for the heap, e.g. $everything or _history, in a
+     * background job. Responses of more than memoryBudget bytes are written to a temporary file and
+     * their resources are parsed one at a time while iterating over the SpillableBundle. Iterating
+     * reads from disk, so it should be done off the main thread.
+     * */
+    public void readSpillable(final String requestID, String searchURL, long memoryBudget, final SpillableBundleReceiver bundleReceiver) {
+        Pipeline<SpillableBundle> pipeline = Pipeline.from(searchURL)
+                .then(Stages.searchSpillable(server, memoryBudget, null))
+                .requireNetwork();
+        run(pipeline, new PipelineReceiver<SpillableBundle>() {
+            @Override
+            public void receiveResult(SpillableBundle result) {
+                bundleReceiver.receiveBundle(requestID, result);
+            }
+        });
+    }
+
+    /**
+     * Runs the search defined by the query and passes back a {@link ResourceSummary} for every
+     * resource found, e.g. to show a list of questionnaires. If the query has no projection, only
+     * the elements needed for the summaries are requested, the query itself is not changed. A
+     * {@link SummaryFailureReceiver} is told when the search fails.
+     * */
+    public void readSummaries(final String requestID, SearchQuery query, final SummaryReceiver summaryReceiver) {
+        SearchQuery summaryQuery = query.copy();
+        if (!summaryQuery.hasProjection()) {
+            summaryQuery.elements(ResourceSummary.ELEMENTS);
+        }
+        Pipeline<ArrayList<ResourceSummary>> pipeline = Pipeline.from(summaryQuery.toURL())
+                .then(Stages.search(server))
+                .then(Stages.summaries())
+                .requireNetwork();
+        run(pipeline, new PipelineFailureReceiver<ArrayList<ResourceSummary>>() {
+            @Override
+            public void receiveResult(ArrayList<ResourceSummary> result) {
+                summaryReceiver.receiveSummaries(requestID, result);
+            }
+
+            @Override
+            public void resultFailed(Throwable throwable) {
+                if (summaryReceiver instanceof SummaryFailureReceiver) {
+                    ((SummaryFailureReceiver) summaryReceiver).summariesFailed(requestID, throwable);
+                }
+            }
+        });
+    }
+
+    /**
+     * Downloads the first Questionnaire found by the search and converts it to a Task in one
+     * background job. Only the Task is passed back to the taskReceiver on the main thread.
+     * The Task is localized to the active language of the
+     * {@link ch.usz.c3pro.questionnaire.logic.Translations}, and taken from or put into the
+     * TaskCache of the C3PRO, see {@link ConversionStages#questionnaire2Task()}. If the search is
+     * for the canonical URL of a questionnaire whose Task is cached, e.g. because it has been
+     * prefetched, nothing is downloaded and the cached Task is passed back on the main thread
+     * without running a job. A {@link TaskFailureReceiver} is told when the download or the
+     * conversion fails.
+     * */
+    public void readTask(String searchURL, final TaskReceiver taskReceiver) {
+        TaskCache cache = C3PRO.getTaskCache();
+        String key = TaskCache.keyForSearch(searchURL);
+        final Task cached = cache != null && key != null ? cache.getTask(key) : null;
+        if (cached != null) {
+            // posted like the result of a job, so the receiver is never called during readTask
+            JobReceivers.deliver(new Runnable() {
+                @Override
+                public void run() {
+                    taskReceiver.receiveTask(cached);
+                }
+            });
+            return;
+        }
+        Pipeline<Task> pipeline = Pipeline.from(searchURL)
+                .then(Stages.search(server))
+                .then(ConversionStages.firstQuestionnaire())
+                .then(ConversionStages.questionnaire2Task())
+                .requireNetwork();
+        run(pipeline, new PipelineFailureReceiver<Task>() {
+            @Override
+            public void receiveResult(Task result) {
+                taskReceiver.receiveTask(result);
+            }
+
+            @Override
+            public void resultFailed(Throwable throwable) {
+                if (taskReceiver instanceof TaskFailureReceiver) {
+                    ((TaskFailureReceiver) taskReceiver).taskFailed(throwable);
+                }
+            }
+        });
     }
 
     /**
      * The class Job can be subclassed to run custom jobs asynchronously through the DataQueue
      * */
     public void addJob(Job job) {
+        TrafficRecorder recorder = trafficRecorder;
+        if (recorder != null) {
+            recorder.record(job);
+        }
+        submit(job);
+    }
+
+    /**
+     * Hands the job to the JobManager.
+     * */
+    protected void submit(Job job) {
         jobManager.addJobInBackground(job);
     }
 
+    /**
+     * Cancels the jobs of the DataQueue that have the tag.
+     * */
+    protected void cancelJobs(String tag) {
+        jobManager.cancelJobsInBackground(null, TagConstraint.ANY, tag);
+    }
+
+    /**
+     * While a TrafficRecorder is set, every job submitted to the DataQueue is recorded, see
+     * {@link TrafficRecorder}. Set null to stop recording, closing the recorder is up to the caller.
+     * */
+    public void setTrafficRecorder(TrafficRecorder recorder) {
+        trafficRecorder = recorder;
+    }
+
+    /**
+     * With a NetworkStateProvider, network jobs of the DataQueue are scheduled according to the
+     * network conditions, see {@link NetworkScheduler}. Without one, they only wait for a network
+     * connection. C3PRO sets up an {@link AndroidNetworkStateProvider}.
+     * */
+    public void setNetworkStateProvider(NetworkScheduler.NetworkStateProvider provider) {
+        if (provider == null) {
+            networkScheduler = null;
+        } else if (networkScheduler == null) {
+            networkScheduler = new NetworkScheduler(provider);
+        } else {
+            networkScheduler.setNetworkStateProvider(provider);
+        }
+    }
+
+    /**
+     * Returns the NetworkScheduler, or null if no NetworkStateProvider has been set.
+     * */
+    public NetworkScheduler getNetworkScheduler() {
+        return networkScheduler;
+    }
+
+    /**
+     * Returns the UploadCoalescer that the upload jobs of the DataQueue ask before they upload.
+     * */
+    public UploadCoalescer getUploadCoalescer() {
+        return uploadCoalescer;
+    }
+
     /**
      * returns the URL which is setup with the C3PRO
      * */
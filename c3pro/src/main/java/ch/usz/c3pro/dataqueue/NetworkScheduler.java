@@ -0,0 +1,284 @@
+package ch.usz.c3pro.dataqueue;
+
+import com.birbit.android.jobqueue.RetryConstraint;
+
+import java.io.Serializable;
+
+import ch.usz.c3pro.C3PRO;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * The NetworkScheduler decides if a network job of the DataQueue may transfer its payload under
+ * the current network conditions, which are provided by a pluggable {@link NetworkStateProvider}.
+ * <p/>
+ * Jobs declare the {@link PayloadSize} of their transfer. Large payloads are held until the
+ * connection is unmetered or fast. Background transfers, like uploads, are batched on metered
+ * connections: they only run in a radio window, which is opened by any other transfer or, if there
+ * is none, once every {@link #BATCH_INTERVAL_MS}, so the radio does not have to be woken up for every
+ * single upload.
+ * <p/>
+ * A job that may not transfer throws a {@link ConditionsNotMetException} from its onRun method and
+ * returns {@link #retryConstraintFor(Throwable, int)} from shouldReRunOnThrowable, so the JobManager
+ * runs it again when the conditions might have changed. Persistent jobs that may be held for a long
+ * time count their held and failed runs separately with a {@link RunCounter}; only failed runs are
+ * limited.
+ */
+public class NetworkScheduler {
+    public static final long SMALL_PAYLOAD_LIMIT = 64 * 1024;
+    public static final long LARGE_PAYLOAD_LIMIT = 1024 * 1024;
+    /** How long the radio stays active after a transfer, background transfers can join it. */
+    public static final long RADIO_WINDOW_MS = 15 * 1000;
+    /** The longest time background transfers are held on metered connections. */
+    public static final long BATCH_INTERVAL_MS = 15 * 60 * 1000;
+    /** The delay before a job held for its payload size is tried again. */
+    public static final long RETRY_DELAY_MS = 60 * 1000;
+    /** Failed runs after which a job is cancelled, the default retry limit of the JobManager. */
+    public static final int MAX_FAILED_RUNS = 20;
+    /** The delay before a failed job is run again, doubled with every failed run up to {@link #MAX_FAILURE_DELAY_MS}. */
+    public static final long FAILURE_DELAY_MS = 1000;
+    public static final long MAX_FAILURE_DELAY_MS = 60 * 60 * 1000;
+
+    private NetworkStateProvider provider;
+    /** The end of the current radio window and the time the last batch of background transfers started. */
+    private long windowEnd = Long.MIN_VALUE / 2;
+    private long lastBatch = Long.MIN_VALUE / 2;
+
+    /**
+     * The size class of the payload a job transfers.
+     */
+    public enum PayloadSize {
+        SMALL, MEDIUM, LARGE;
+
+        /**
+         * Returns the size class for a payload of the number of bytes.
+         */
+        public static PayloadSize of(long bytes) {
+            if (bytes < SMALL_PAYLOAD_LIMIT) {
+                return SMALL;
+            } else if (bytes < LARGE_PAYLOAD_LIMIT) {
+                return MEDIUM;
+            }
+            return LARGE;
+        }
+    }
+
+    /**
+     * A snapshot of the network conditions.
+     */
+    public static class NetworkState {
+        public static final NetworkState DISCONNECTED = new NetworkState(false, true, false);
+
+        private final boolean connected;
+        private final boolean metered;
+        private final boolean fast;
+
+        public NetworkState(boolean connected, boolean metered, boolean fast) {
+            this.connected = connected;
+            this.metered = metered;
+            this.fast = fast;
+        }
+
+        public boolean isConnected() {
+            return connected;
+        }
+
+        public boolean isMetered() {
+            return metered;
+        }
+
+        public boolean isFast() {
+            return fast;
+        }
+    }
+
+    /**
+     * Provides the current network conditions. The {@link AndroidNetworkStateProvider} asks the
+     * system, tests can provide simulated conditions.
+     */
+    public interface NetworkStateProvider {
+        public NetworkState getNetworkState();
+    }
+
+    /**
+     * Thrown by a job that may not transfer its payload at the moment.
+     */
+    public static class ConditionsNotMetException extends Exception {
+        private final long retryDelay;
+
+        public ConditionsNotMetException(String message, long retryDelayMs) {
+            super(message);
+            retryDelay = retryDelayMs;
+        }
+
+        public long getRetryDelay() {
+            return retryDelay;
+        }
+    }
+
+    public NetworkScheduler(NetworkStateProvider networkStateProvider) {
+        provider = networkStateProvider;
+    }
+
+    /**
+     * Returns true if a transfer of the size may run now. If it may, the transfer is expected to
+     * follow and opens or extends the radio window.
+     *
+     * @param size       the size class of the payload
+     * @param background true for transfers the user is not waiting for, e.g. uploads
+     */
+    public synchronized boolean mayTransfer(PayloadSize size, boolean background) {
+        return getRetryDelay(size, background) == 0;
+    }
+
+    /**
+     * Throws a ConditionsNotMetException if the transfer may not run now.
+     */
+    public synchronized void checkTransfer(PayloadSize size, boolean background) throws ConditionsNotMetException {
+        long delay = getRetryDelay(size, background);
+        if (delay > 0) {
+            throw new ConditionsNotMetException(size + (background ? " background" : "") + " transfer held", delay);
+        }
+    }
+
+    /**
+     * Returns 0 and opens the radio window if the transfer may run now, the time after which it
+     * should be tried again otherwise.
+     */
+    private long getRetryDelay(PayloadSize size, boolean background) {
+        NetworkState state = provider.getNetworkState();
+        if (!state.isConnected()) {
+            return RETRY_DELAY_MS;
+        }
+        if (size == PayloadSize.LARGE && state.isMetered() && !state.isFast()) {
+            return RETRY_DELAY_MS;
+        }
+        long now = now();
+        if (background && state.isMetered() && now >= windowEnd) {
+            long nextBatch = lastBatch + BATCH_INTERVAL_MS;
+            if (now < nextBatch) {
+                return nextBatch - now;
+            }
+            lastBatch = now;
+        }
+        windowEnd = now + RADIO_WINDOW_MS;
+        return 0;
+    }
+
+    /**
+     * Tells the scheduler that the radio is used by a transfer outside the DataQueue, held
+     * background transfers may join it.
+     */
+    public synchronized void onTransfer() {
+        windowEnd = now() + RADIO_WINDOW_MS;
+    }
+
+    /**
+     * Returns true if held background transfers may currently join the radio window.
+     */
+    public synchronized boolean isWindowOpen() {
+        return now() < windowEnd;
+    }
+
+    public synchronized void setNetworkStateProvider(NetworkStateProvider networkStateProvider) {
+        provider = networkStateProvider;
+    }
+
+    /**
+     * Returns the current time in milliseconds, can be overridden to simulate time in tests.
+     */
+    protected long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Checks the transfer with the NetworkScheduler of the DataQueue of the C3PRO, if it has one.
+     */
+    public static void checkConditions(PayloadSize size, boolean background) throws ConditionsNotMetException {
+        DataQueue dataQueue = C3PRO.getDataQueue();
+        NetworkScheduler scheduler = dataQueue != null ? dataQueue.getNetworkScheduler() : null;
+        if (scheduler != null) {
+            scheduler.checkTransfer(size, background);
+        }
+    }
+
+    /**
+     * Returns a RetryConstraint that runs a held job again after the delay of its
+     * ConditionsNotMetException, and a failed job after a delay that grows with the number of runs.
+     * The JobManager stops the job at its retry limit.
+     */
+    public static RetryConstraint retryConstraintFor(Throwable throwable, int runCount) {
+        if (throwable instanceof ConditionsNotMetException) {
+            return delayed(((ConditionsNotMetException) throwable).getRetryDelay());
+        }
+        return delayed(failureDelay(runCount));
+    }
+
+    /**
+     * Returns the delay before a job is run again after the number of failed runs.
+     */
+    public static long failureDelay(int failedRuns) {
+        int doublings = Math.min(Math.max(failedRuns - 1, 0), 30);
+        return Math.min(FAILURE_DELAY_MS << doublings, MAX_FAILURE_DELAY_MS);
+    }
+
+    private static RetryConstraint delayed(long delayMs) {
+        RetryConstraint constraint = new RetryConstraint(true);
+        constraint.setNewDelayInMs(delayMs);
+        return constraint;
+    }
+
+    /**
+     * Counts the held and the failed runs of a job that may be held for a long time, like a
+     * persistent upload. The counter is a field of the job, so it is persisted with it. The job
+     * returns {@link #UNLIMITED_RUNS} from getRetryLimit, so the JobManager does not count held runs
+     * as retries, and the counter cancels it after {@link #MAX_FAILED_RUNS} failed runs.
+     */
+    public static class RunCounter implements Serializable {
+        /** Retry limit of jobs with a RunCounter. */
+        public static final int UNLIMITED_RUNS = Integer.MAX_VALUE;
+
+        private int heldRuns;
+        private int failedRuns;
+
+        /**
+         * Counts the run that threw the throwable and returns whether and when the job is run again.
+         */
+        public synchronized RetryConstraint retryConstraintFor(Throwable throwable) {
+            if (throwable instanceof ConditionsNotMetException) {
+                heldRuns++;
+                return delayed(((ConditionsNotMetException) throwable).getRetryDelay());
+            }
+            failedRuns++;
+            if (failedRuns >= MAX_FAILED_RUNS) {
+                return RetryConstraint.CANCEL;
+            }
+            return delayed(failureDelay(failedRuns));
+        }
+
+        public synchronized int getHeldRuns() {
+            return heldRuns;
+        }
+
+        public synchronized int getFailedRuns() {
+            return failedRuns;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package ch.usz.c3pro.dataqueue;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A Pipeline describes a chain of {@link DataQueue.Stage}s, like read, convert and display, that is
+ * run by the DataQueue in one job on a worker thread. The output of each stage is handed to the next
+ * stage in memory, only the output of the last stage is passed to the main thread if a
+ * {@link DataQueue.PipelineReceiver} is provided. A Pipeline is started with an input and extended
+ * with then():
+ *
+ * <pre>
+ * Pipeline.from(searchURL).then(Stages.search(server)).then(ConversionStages.firstQuestionnaire())
+ * </pre>
+ *
+ * Pipelines are immutable, then() and requireNetwork() return new Pipelines.
+ *
+ * @param <T> type of the output of the last stage
+ */
+public class Pipeline<T> implements Serializable {
+    private final Serializable input;
+    private final List<DataQueue.Stage<?, ?>> stages;
+    private final boolean network;
+
+    private Pipeline(Serializable input, List<DataQueue.Stage<?, ?>> stages, boolean network) {
+        this.input = input;
+        this.stages = stages;
+        this.network = network;
+    }
+
+    /**
+     * Returns a Pipeline without stages, whose output is the input.
+     */
+    public static <T extends Serializable> Pipeline<T> from(T input) {
+        return new Pipeline<>(input, Collections.<DataQueue.Stage<?, ?>>emptyList(), false);
+    }
+
+    /**
+     * Returns a Pipeline that passes the output of this Pipeline to the stage.
+     */
+    public <O> Pipeline<O> then(DataQueue.Stage<? super T, ? extends O> stage) {
+        List<DataQueue.Stage<?, ?>> newStages = new ArrayList<>(stages);
+        newStages.add(stage);
+        return new Pipeline<>(input, Collections.unmodifiableList(newStages), network);
+    }
+
+    /**
+     * Returns a Pipeline that is only run when a network is available.
+     */
+    public Pipeline<T> requireNetwork() {
+        return new Pipeline<>(input, stages, true);
+    }
+
+    public Serializable getInput() {
+        return input;
+    }
+
+    public List<DataQueue.Stage<?, ?>> getStages() {
+        return stages;
+    }
+
+    public boolean requiresNetwork() {
+        return network;
+    }
+}
@@ -0,0 +1,121 @@
+package ch.usz.c3pro.dataqueue;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.hl7.fhir.dstu3.model.Resource;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A ResourceSummary is a lightweight view of a resource for list screens. It only keeps the id,
+ * type, title, version, status and date of the resource, so a list of them is cheap to keep around
+ * and to pass to the main thread. Search with {@link #ELEMENTS} as _elements to only download what
+ * the summary needs.
+ */
+public class ResourceSummary implements Serializable {
+    /**
+     * The elements of a Questionnaire a ResourceSummary is created from.
+     */
+    public static final String[] ELEMENTS = {"url", "title", "version", "status", "date"};
+
+    private final String resourceType;
+    private final String id;
+    private final String url;
+    private final String title;
+    private final String version;
+    private final String status;
+    private final Date date;
+
+    public ResourceSummary(String resourceType, String id, String url, String title, String version, String status, Date date) {
+        this.resourceType = resourceType;
+        this.id = id;
+        this.url = url;
+        this.title = title;
+        this.version = version;
+        this.status = status;
+        this.date = date;
+    }
+
+    /**
+     * Returns the summary of the resource. Title, version, status and date are only set for
+     * Questionnaires, for other resources the date is the time of the last update.
+     */
+    public static ResourceSummary of(Resource resource) {
+        String id = resource.getIdElement().getIdPart();
+        String type = resource.getResourceType().name();
+        if (resource instanceof Questionnaire) {
+            Questionnaire questionnaire = (Questionnaire) resource;
+            return new ResourceSummary(type, id, questionnaire.getUrl(), questionnaire.getTitle(), questionnaire.getVersion(),
+                    questionnaire.hasStatus() ? questionnaire.getStatus().toCode() : null, questionnaire.getDate());
+        }
+        return new ResourceSummary(type, id, null, null, null, null, resource.getMeta().getLastUpdated());
+    }
+
+    /**
+     * Returns the summaries of the resources in the Bundle, included resources are left out.
+     */
+    public static List<ResourceSummary> of(Bundle bundle) {
+        List<ResourceSummary> summaries = new ArrayList<>(bundle.getEntry().size());
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            if (entry.hasResource() && (!entry.hasSearch() || entry.getSearch().getMode() != Bundle.SearchEntryMode.INCLUDE)) {
+                summaries.add(of(entry.getResource()));
+            }
+        }
+        return summaries;
+    }
+
+    public String getResourceType() {
+        return resourceType;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public Date getDate() {
+        return date;
+    }
+
+    @Override
+    public String toString() {
+        return title != null ? title : resourceType + "/" + id;
+    }
+}
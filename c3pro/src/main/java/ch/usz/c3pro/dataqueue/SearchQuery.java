@@ -0,0 +1,169 @@
+package ch.usz.c3pro.dataqueue;
+
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+
+import ca.uhn.fhir.rest.api.SummaryEnum;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A SearchQuery describes a FHIR search for the DataQueue, instead of an opaque search URL. Besides
+ * search parameters, it supports the projections _elements, _summary, _count and _include, so the
+ * server only sends what the caller needs and less has to be downloaded and parsed:
+ *
+ * <pre>
+ * new SearchQuery("Questionnaire").where("status", "published").elements("title", "version").count(50)
+ * </pre>
+ */
+public class SearchQuery implements Serializable {
+    private final String resourceType;
+    private final List<String[]> parameters = new ArrayList<>();
+    private final List<String> elements = new ArrayList<>();
+    private final List<String> includes = new ArrayList<>();
+    private SummaryEnum summary;
+    private int count = -1;
+
+    /**
+     * Returns a SearchQuery for all resources of the type, e.g. "Questionnaire".
+     */
+    public SearchQuery(String resourceType) {
+        this.resourceType = resourceType;
+    }
+
+    /**
+     * Adds a search parameter, e.g. where("identifier", "http://example.org|123").
+     */
+    public SearchQuery where(String name, String value) {
+        parameters.add(new String[]{name, value});
+        return this;
+    }
+
+    /**
+     * Only the listed top level elements, plus id and meta, are returned (_elements).
+     */
+    public SearchQuery elements(String... names) {
+        for (String name : names) {
+            elements.add(name);
+        }
+        return this;
+    }
+
+    /**
+     * Only the summary of the resources is returned (_summary), e.g. SummaryEnum.COUNT to only get
+     * the number of matches.
+     */
+    public SearchQuery summary(SummaryEnum mode) {
+        summary = mode;
+        return this;
+    }
+
+    /**
+     * At most the number of resources is returned per page (_count).
+     */
+    public SearchQuery count(int resourcesPerPage) {
+        count = resourcesPerPage;
+        return this;
+    }
+
+    /**
+     * Resources referenced by the search parameter are included (_include), e.g.
+     * "QuestionnaireResponse:questionnaire".
+     */
+    public SearchQuery include(String include) {
+        includes.add(include);
+        return this;
+    }
+
+    /**
+     * Returns a new SearchQuery with the same parameters and projections, which can be extended
+     * without changing this one.
+     */
+    public SearchQuery copy() {
+        SearchQuery copy = new SearchQuery(resourceType);
+        copy.parameters.addAll(parameters);
+        copy.elements.addAll(elements);
+        copy.includes.addAll(includes);
+        copy.summary = summary;
+        copy.count = count;
+        return copy;
+    }
+
+    public String getResourceType() {
+        return resourceType;
+    }
+
+    public boolean hasProjection() {
+        return !elements.isEmpty() || summary != null;
+    }
+
+    /**
+     * Returns the search URL relative to the FHIRServerURL.
+     */
+    public String toURL() {
+        StringBuilder url = new StringBuilder(resourceType);
+        char separator = '?';
+        for (String[] parameter : parameters) {
+            appendParameter(url, separator, parameter[0], parameter[1]);
+            separator = '&';
+        }
+        if (!elements.isEmpty()) {
+            StringBuilder names = new StringBuilder();
+            for (String name : elements) {
+                if (names.length() > 0) {
+                    names.append(',');
+                }
+                names.append(name);
+            }
+            appendParameter(url, separator, "_elements", names.toString());
+            separator = '&';
+        }
+        if (summary != null) {
+            appendParameter(url, separator, "_summary", summary.getCode());
+            separator = '&';
+        }
+        if (count >= 0) {
+            appendParameter(url, separator, "_count", String.valueOf(count));
+            separator = '&';
+        }
+        for (String include : includes) {
+            appendParameter(url, separator, "_include", include);
+            separator = '&';
+        }
+        return url.toString();
+    }
+
+    private static void appendParameter(StringBuilder url, char separator, String name, String value) {
+        try {
+            url.append(separator).append(name).append('=').append(URLEncoder.encode(value, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            // every Java platform has to support UTF-8
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return toURL();
+    }
+}
@@ -0,0 +1,454 @@
+package ch.usz.c3pro.dataqueue;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Resource;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonParser;
+
+import ca.uhn.fhir.parser.IParser;
+import ch.usz.c3pro.C3PRO;
+import ch.usz.c3pro.memory.MemoryGovernor;
+import ch.usz.c3pro.memory.MemorySizes;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A SpillableBundle holds the result of a search whose size is not known beforehand, e.g. an
+ * $everything or history query, within a memory budget. A response smaller than the budget is
+ * parsed into a Bundle as usual. A larger response is streamed to a temporary file, and its entries
+ * are parsed one at a time while iterating, so the heap used does not grow with the size of the
+ * result.
+ * Iterating over a spilled Bundle reads from disk and parses, it should not be done on the main
+ * thread. The SpillableBundle has to be closed to delete the temporary file.
+ * <p/>
+ * If C3PRO has a {@link MemoryGovernor}, the memory budget is limited to what the governor can
+ * still provide, and the parsed Bundle or the parser of a spilled one is reserved with the governor
+ * until the SpillableBundle is closed.
+ */
+public class SpillableBundle implements Iterable<Resource>, Closeable {
+    public static final long DEFAULT_MEMORY_BUDGET = 1024 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final Bundle bundle;
+    private final File file;
+    private final int total;
+    private final MemoryGovernor governor;
+    private long reserved;
+
+    private SpillableBundle(Bundle bundle, File file, int total, MemoryGovernor governor, long reserved) {
+        this.bundle = bundle;
+        this.file = file;
+        this.total = total;
+        this.governor = governor;
+        this.reserved = reserved;
+    }
+
+    /**
+     * Reads the JSON of a Bundle from the stream. If it is larger than the memoryBudget in bytes, it
+     * is written to a temporary file in the directory, or the default temporary directory if it is
+     * null. The stream is not closed.
+     */
+    public static SpillableBundle read(InputStream in, long memoryBudget, File directory) throws IOException {
+        MemoryGovernor governor = C3PRO.getMemoryGovernor();
+        if (governor != null) {
+            memoryBudget = Math.min(memoryBudget, governor.getHeadroom() / MemorySizes.PARSED_JSON_FACTOR);
+        }
+        ByteArrayOutputStream memory = new ByteArrayOutputStream(BUFFER_SIZE);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            if (memory.size() + read > memoryBudget) {
+                return spill(memory, buffer, read, in, directory, governor);
+            }
+            memory.write(buffer, 0, read);
+        }
+        long reserved = reserve(governor, MemorySizes.parsedJson(memory.size()));
+        try {
+            Bundle bundle = C3PRO.getFhirContext().newJsonParser().parseResource(Bundle.class, new String(memory.toByteArray(), UTF8));
+            return new SpillableBundle(bundle, null, bundle.hasTotal() ? bundle.getTotal() : -1, governor, reserved);
+        } catch (RuntimeException e) {
+            release(governor, reserved);
+            throw e;
+        }
+    }
+
+    private static long reserve(MemoryGovernor governor, long bytes) {
+        if (governor == null) {
+            return 0;
+        }
+        governor.reserve(bytes);
+        return bytes;
+    }
+
+    private static void release(MemoryGovernor governor, long bytes) {
+        if (governor != null && bytes > 0) {
+            governor.release(bytes);
+        }
+    }
+
+    private static SpillableBundle spill(ByteArrayOutputStream memory, byte[] buffer, int read, InputStream in, File directory, MemoryGovernor governor) throws IOException {
+        File file = File.createTempFile("c3pro_bundle", ".json", directory);
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                memory.writeTo(out);
+                out.write(buffer, 0, read);
+                while ((read = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+            return new SpillableBundle(null, file, readTotal(file), governor, reserve(governor, MemorySizes.PARSER));
+        } catch (IOException | RuntimeException e) {
+            file.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns true if the Bundle has been written to a temporary file.
+     */
+    public boolean isSpilled() {
+        return file != null;
+    }
+
+    /**
+     * Returns the total number of matches of the search, or -1 if the server did not send it before
+     * the entries.
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    /**
+     * Returns the Bundle if it has not been spilled to disk, null otherwise.
+     */
+    public Bundle getBundle() {
+        return bundle;
+    }
+
+    /**
+     * Returns an iterator over the resources of the entries. For a spilled Bundle, every iterator
+     * reads the file from the start and parses one entry at a time.
+     */
+    @Override
+    public Iterator<Resource> iterator() {
+        if (bundle != null) {
+            return new MemoryIterator(bundle.getEntry().iterator());
+        }
+        try {
+            return new FileIterator(file);
+        } catch (IOException e) {
+            throw new IllegalStateException("could not read spilled Bundle", e);
+        }
+    }
+
+    /**
+     * Deletes the temporary file and releases the memory reserved with the MemoryGovernor.
+     */
+    @Override
+    public void close() {
+        if (file != null) {
+            file.delete();
+        }
+        synchronized (this) {
+            release(governor, reserved);
+            reserved = 0;
+        }
+    }
+
+    private static JsonParser openParser(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        return Json.createParser(new InputStreamReader(in, UTF8));
+    }
+
+    /**
+     * Reads the top level elements up to the entries and returns the total, -1 if there is none.
+     */
+    private static int readTotal(File file) throws IOException {
+        JsonParser parser = openParser(file);
+        try {
+            if (parser.next() != JsonParser.Event.START_OBJECT) {
+                throw new IOException("not a JSON Bundle");
+            }
+            while (parser.hasNext()) {
+                JsonParser.Event event = parser.next();
+                if (event == JsonParser.Event.END_OBJECT) {
+                    break;
+                }
+                String key = parser.getString();
+                event = parser.next();
+                if ("total".equals(key) && event == JsonParser.Event.VALUE_NUMBER) {
+                    return parser.getInt();
+                } else if ("entry".equals(key)) {
+                    break;
+                }
+                skipValue(parser, event);
+            }
+            return -1;
+        } finally {
+            parser.close();
+        }
+    }
+
+    /**
+     * Skips the value that started with the event.
+     */
+    private static void skipValue(JsonParser parser, JsonParser.Event event) {
+        if (event != JsonParser.Event.START_OBJECT && event != JsonParser.Event.START_ARRAY) {
+            return;
+        }
+        int depth = 1;
+        while (depth > 0) {
+            switch (parser.next()) {
+                case START_OBJECT:
+                case START_ARRAY:
+                    depth++;
+                    break;
+                case END_OBJECT:
+                case END_ARRAY:
+                    depth--;
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Writes the object the parser is in, after its START_OBJECT, to the generator.
+     */
+    private static void copyObject(JsonParser parser, JsonGenerator generator) {
+        generator.writeStartObject();
+        int depth = 1;
+        String name = null;
+        while (depth > 0) {
+            JsonParser.Event event = parser.next();
+            switch (event) {
+                case KEY_NAME:
+                    name = parser.getString();
+                    continue;
+                case START_OBJECT:
+                    if (name != null) {
+                        generator.writeStartObject(name);
+                    } else {
+                        generator.writeStartObject();
+                    }
+                    depth++;
+                    break;
+                case START_ARRAY:
+                    if (name != null) {
+                        generator.writeStartArray(name);
+                    } else {
+                        generator.writeStartArray();
+                    }
+                    depth++;
+                    break;
+                case END_OBJECT:
+                case END_ARRAY:
+                    generator.writeEnd();
+                    depth--;
+                    break;
+                case VALUE_STRING:
+                    if (name != null) {
+                        generator.write(name, parser.getString());
+                    } else {
+                        generator.write(parser.getString());
+                    }
+                    break;
+                case VALUE_NUMBER:
+                    // keeps the precision of FHIR decimals
+                    BigDecimal number = new BigDecimal(parser.getString());
+                    if (name != null) {
+                        generator.write(name, number);
+                    } else {
+                        generator.write(number);
+                    }
+                    break;
+                case VALUE_TRUE:
+                case VALUE_FALSE:
+                    if (name != null) {
+                        generator.write(name, event == JsonParser.Event.VALUE_TRUE);
+                    } else {
+                        generator.write(event == JsonParser.Event.VALUE_TRUE);
+                    }
+                    break;
+                case VALUE_NULL:
+                    if (name != null) {
+                        generator.writeNull(name);
+                    } else {
+                        generator.writeNull();
+                    }
+                    break;
+            }
+            name = null;
+        }
+    }
+
+    private static class MemoryIterator implements Iterator<Resource> {
+        private final Iterator<Bundle.BundleEntryComponent> entries;
+        private Resource next;
+
+        private MemoryIterator(Iterator<Bundle.BundleEntryComponent> entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && entries.hasNext()) {
+                next = entries.next().getResource();
+            }
+            return next != null;
+        }
+
+        @Override
+        public Resource next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Resource resource = next;
+            next = null;
+            return resource;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Streams through the entries of a spilled Bundle and parses the resource of one entry at a time.
+     */
+    private static class FileIterator implements Iterator<Resource> {
+        private final JsonParser parser;
+        private final IParser resourceParser;
+        private boolean done;
+        private Resource next;
+
+        private FileIterator(File file) throws IOException {
+            parser = openParser(file);
+            resourceParser = C3PRO.getFhirContext().newJsonParser();
+            if (!moveToEntries()) {
+                finish();
+            }
+        }
+
+        /**
+         * Moves the parser into the entry array, returns false if there is none.
+         */
+        private boolean moveToEntries() {
+            if (parser.next() != JsonParser.Event.START_OBJECT) {
+                return false;
+            }
+            while (parser.hasNext()) {
+                JsonParser.Event event = parser.next();
+                if (event == JsonParser.Event.END_OBJECT) {
+                    return false;
+                }
+                String key = parser.getString();
+                event = parser.next();
+                if ("entry".equals(key) && event == JsonParser.Event.START_ARRAY) {
+                    return true;
+                }
+                skipValue(parser, event);
+            }
+            return false;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && !done) {
+                JsonParser.Event event = parser.next();
+                if (event != JsonParser.Event.START_OBJECT) {
+                    // end of the entries
+                    finish();
+                    break;
+                }
+                next = readEntry();
+            }
+            return next != null;
+        }
+
+        /**
+         * Reads an entry, after its START_OBJECT, and returns its resource or null.
+         */
+        private Resource readEntry() {
+            Resource resource = null;
+            while (true) {
+                JsonParser.Event event = parser.next();
+                if (event == JsonParser.Event.END_OBJECT) {
+                    return resource;
+                }
+                String key = parser.getString();
+                event = parser.next();
+                if ("resource".equals(key) && event == JsonParser.Event.START_OBJECT) {
+                    StringWriter json = new StringWriter();
+                    JsonGenerator generator = Json.createGenerator(json);
+                    copyObject(parser, generator);
+                    generator.close();
+                    resource = (Resource) resourceParser.parseResource(json.toString());
+                } else {
+                    skipValue(parser, event);
+                }
+            }
+        }
+
+        private void finish() {
+            done = true;
+            parser.close();
+        }
+
+        @Override
+        public Resource next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Resource resource = next;
+            next = null;
+            return resource;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
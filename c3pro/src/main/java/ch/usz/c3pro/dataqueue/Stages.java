@@ -0,0 +1,135 @@
+package ch.usz.c3pro.dataqueue;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+
+import ch.usz.c3pro.C3PRO;
+import ch.usz.c3pro.tracing.Span;
+import ch.usz.c3pro.tracing.Tracing;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Stages for a {@link Pipeline} that download FHIR resources. The HAPI client is created
+ * from the FhirContext of the C3PRO when the stage is run.
+ */
+public class Stages {
+
+    private Stages() {
+    }
+
+    /**
+     * Returns a stage that runs the search defined by its input, a searchURL that can be absolute or
+     * relative to the FHIRServerURL, and outputs the resulting Bundle.
+     */
+    public static DataQueue.Stage<String, Bundle> search(String FHIRServerURL) {
+        return new SearchStage(FHIRServerURL);
+    }
+
+    /**
+     * Returns a stage that runs the search defined by its input, like {@link #search(String)}, but
+     * outputs a {@link SpillableBundle} that keeps at most memoryBudget bytes of the response in
+     * memory and writes larger responses to a temporary file in the directory, or the default
+     * temporary directory if it is null.
+     */
+    public static DataQueue.Stage<String, SpillableBundle> searchSpillable(String FHIRServerURL, long memoryBudget, File directory) {
+        return new SpillableSearchStage(FHIRServerURL, memoryBudget, directory);
+    }
+
+    /**
+     * Returns a stage that reduces a Bundle to the {@link ResourceSummary}s of its resources.
+     */
+    public static DataQueue.Stage<Bundle, ArrayList<ResourceSummary>> summaries() {
+        return new SummariesStage();
+    }
+
+    private static class SummariesStage implements DataQueue.Stage<Bundle, ArrayList<ResourceSummary>> {
+        @Override
+        public ArrayList<ResourceSummary> run(Bundle bundle) throws Exception {
+            return new ArrayList<>(ResourceSummary.of(bundle));
+        }
+    }
+
+    private static class SearchStage implements DataQueue.Stage<String, Bundle> {
+        private final String serverURL;
+
+        private SearchStage(String serverURL) {
+            this.serverURL = serverURL;
+        }
+
+        @Override
+        public Bundle run(String searchURL) throws Exception {
+            Bundle bundle = Tracing.trace(C3PRO.getFhirContext().newRestfulGenericClient(serverURL)).search()
+                    .byUrl(searchURL)
+                    .returnBundle(Bundle.class)
+                    .execute();
+            Tracing.responseParsed("Bundle");
+            return bundle;
+        }
+    }
+
+    private static class SpillableSearchStage implements DataQueue.Stage<String, SpillableBundle> {
+        private final String serverURL;
+        private final long memoryBudget;
+        private final File directory;
+
+        private SpillableSearchStage(String serverURL, long memoryBudget, File directory) {
+            this.serverURL = serverURL;
+            this.memoryBudget = memoryBudget;
+            this.directory = directory;
+        }
+
+        @Override
+        public SpillableBundle run(String searchURL) throws Exception {
+            String url = searchURL.startsWith("http") ? searchURL : serverURL + (searchURL.startsWith("/") ? "" : "/") + searchURL;
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            try {
+                connection.setRequestProperty("Accept", "application/json+fhir");
+                Tracing.setHeader(connection);
+                Span request = Tracing.start("request", Tracing.CATEGORY_HTTP);
+                int status;
+                try {
+                    status = connection.getResponseCode();
+                } finally {
+                    request.end();
+                }
+                if (status != HttpURLConnection.HTTP_OK) {
+                    throw new IOException("search failed with HTTP " + status + ": " + url);
+                }
+                InputStream in = connection.getInputStream();
+                Span parse = Tracing.start("SpillableBundle", Tracing.CATEGORY_PARSE);
+                try {
+                    return SpillableBundle.read(in, memoryBudget, directory);
+                } finally {
+                    parse.end();
+                    in.close();
+                }
+            } finally {
+                connection.disconnect();
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package ch.usz.c3pro.dataqueue;
+
+import android.util.Log;
+
+import com.birbit.android.jobqueue.Job;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import ch.usz.c3pro.dataqueue.jobs.ReadResourceJob;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A TrafficRecorder writes a compact trace of the jobs submitted to the DataQueue, so traffic
+ * shapes seen in the field, like upload storms after a reconnect, can be replayed against a test
+ * server. Set it with {@link DataQueue#setTrafficRecorder(TrafficRecorder)}, e.g. to a file in the
+ * app's cache directory that is pulled from the device afterwards.
+ *
+ * Every submission is one tab-separated line: the time since the start of the recording in
+ * milliseconds, the kind of job, the target (the resource type of a create, the search URL of a
+ * read), the payload size in bytes and, for creates, short hashes of the logical resource and of
+ * the content, so a replay coalesces uploads the same way. Payloads themselves are not recorded,
+ * but search URLs are, as they were submitted.
+ */
+public class TrafficRecorder implements Closeable {
+    public static final String KIND_CREATE = "create";
+    public static final String KIND_READ = "read";
+    private static final String HEADER = "#c3pro-trace\t1";
+    private static final String NONE = "-";
+    private static final int TOKEN_LENGTH = 8;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final BufferedWriter writer;
+    private final long start = System.nanoTime();
+    private boolean failed;
+
+    /**
+     * One submission in a trace.
+     */
+    public static class Entry {
+        private final long time;
+        private final String kind;
+        private final String target;
+        private final long payloadBytes;
+        private final String key;
+        private final String content;
+
+        public Entry(long time, String kind, String target, long payloadBytes, String key, String content) {
+            this.time = time;
+            this.kind = kind;
+            this.target = target;
+            this.payloadBytes = payloadBytes;
+            this.key = key;
+            this.content = content;
+        }
+
+        /**
+         * Milliseconds since the start of the recording.
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * {@link #KIND_CREATE}, {@link #KIND_READ} or the class name of another job.
+         */
+        public String getKind() {
+            return kind;
+        }
+
+        /**
+         * The resource type of a create, the search URL of a read or null.
+         */
+        public String getTarget() {
+            return target;
+        }
+
+        /**
+         * The size of the payload in bytes, or -1 if unknown.
+         */
+        public long getPayloadBytes() {
+            return payloadBytes;
+        }
+
+        /**
+         * A short hash of the logical resource of a create, or null if it has no id.
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * A short hash of the content of a create, or null.
+         */
+        public String getContent() {
+            return content;
+        }
+    }
+
+    /**
+     * The trace is written to the writer, which is closed with the TrafficRecorder.
+     */
+    public TrafficRecorder(Writer traceWriter) throws IOException {
+        writer = new BufferedWriter(traceWriter);
+        writer.write(HEADER);
+        writer.newLine();
+    }
+
+    /**
+     * Records a job submitted to the DataQueue.
+     */
+    public void record(Job job) {
+        if (job instanceof ReadResourceJob) {
+            write(new Entry(elapsed(), KIND_READ, ((ReadResourceJob) job).getSearchURL(), -1, null, null));
+        } else {
+            write(new Entry(elapsed(), job.getClass().getSimpleName(), null, -1, null, null));
+        }
+    }
+
+    /**
+     * Records a resource passed to {@link DataQueue#create(org.hl7.fhir.instance.model.api.IBaseResource)},
+     * before it is coalesced.
+     *
+     * @param key         the coalescing key of the resource, or null
+     * @param payloadHash the hash of its JSON
+     */
+    public void recordCreate(String resourceType, long payloadBytes, String key, String payloadHash) {
+        String keyToken = key == null ? null : token(UploadCoalescer.hashOf(key.getBytes(UTF8)));
+        write(new Entry(elapsed(), KIND_CREATE, resourceType, payloadBytes, keyToken, token(payloadHash)));
+    }
+
+    private long elapsed() {
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    private static String token(String hash) {
+        return hash.length() > TOKEN_LENGTH ? hash.substring(0, TOKEN_LENGTH) : hash;
+    }
+
+    private synchronized void write(Entry entry) {
+        if (failed) {
+            return;
+        }
+        try {
+            writer.write(entry.time + "\t" + entry.kind + "\t" + field(entry.target) + "\t" + entry.payloadBytes
+                    + "\t" + field(entry.key) + "\t" + field(entry.content));
+            writer.newLine();
+        } catch (IOException e) {
+            // recording must never disturb the DataQueue, it just stops
+            failed = true;
+            Log.e("C3PRO", "traffic recording stopped", e);
+        }
+    }
+
+    private static String field(String value) {
+        // tabs and line breaks would break the line format, they are not expected in URLs
+        return value == null ? NONE : value.replace('\t', ' ').replace('\n', ' ');
+    }
+
+    public synchronized void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+
+    /**
+     * Reads a trace written by a TrafficRecorder.
+     */
+    public static List<Entry> readTrace(Reader traceReader) throws IOException {
+        BufferedReader reader = new BufferedReader(traceReader);
+        String line = reader.readLine();
+        if (line == null || !line.startsWith(HEADER)) {
+            throw new IOException("not a C3PRO traffic trace");
+        }
+        List<Entry> entries = new ArrayList<>();
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] fields = line.split("\t", -1);
+            if (fields.length < 6) {
+                throw new IOException("malformed trace line: " + line);
+            }
+            try {
+                entries.add(new Entry(Long.parseLong(fields[0]), fields[1], value(fields[2]), Long.parseLong(fields[3]), value(fields[4]), value(fields[5])));
+            } catch (NumberFormatException e) {
+                throw new IOException("malformed trace line: " + line, e);
+            }
+        }
+        return entries;
+    }
+
+    private static String value(String field) {
+        return NONE.equals(field) ? null : field;
+    }
+}
@@ -0,0 +1,253 @@
+package ch.usz.c3pro.dataqueue;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import ch.usz.c3pro.C3PRO;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * The UploadCoalescer keeps track of the uploads waiting in the DataQueue, so the backlog of
+ * uploads shrinks before it reaches the network. If a new version of a logical resource, identified
+ * by its resource type and id, is enqueued while an older version is still waiting, only the latest
+ * version is uploaded (last write wins). A payload that is identical to one uploaded while it was
+ * waiting, detected by the hash of its JSON, is dropped.
+ * <p/>
+ * Uploads are tracked by the id of their job, so the decision does not depend on what other
+ * uploads had the same content before. Enqueueing only looks at the key of the resource; the
+ * payload is encoded and hashed by the job when it runs, off the thread that enqueued it, and the
+ * job asks {@link #shouldUpload(String, String, String)} before it uploads and reports
+ * {@link #uploaded(String)} after. A job that hashes its payload while uploading it only needs the
+ * hash before if {@link #uploadedSince(String)} returns true.
+ * The state is kept in memory, uploads restored by the JobManager after a restart are not coalesced
+ * with new ones.
+ */
+public class UploadCoalescer {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String TAG_PREFIX = "C3PRO_UPLOAD_";
+
+    private long sequence;
+    /** sequence number of every waiting job when it was enqueued, by job id */
+    private final Map<String, Long> enqueued = new HashMap<>();
+    /** id of the latest job, by key of the logical resource */
+    private final Map<String, String> latestJobs = new HashMap<>();
+    /** sequence number of the last upload, by payload hash, as long as jobs enqueued before wait */
+    private final Map<String, Long> uploaded = new HashMap<>();
+
+    /**
+     * The outcome of {@link #offer(String, String)}.
+     */
+    public enum Decision {
+        /** The upload is new and should be enqueued. */
+        ENQUEUE,
+        /** The upload should be enqueued and the waiting upload of the same resource cancelled. */
+        REPLACE
+    }
+
+    /**
+     * Returns the key of the logical resource, "ResourceType/id", or null if the resource has no
+     * id.
+     */
+    public static String keyFor(IBaseResource resource) {
+        IIdType id = resource.getIdElement();
+        if (id == null || id.getIdPart() == null) {
+            return null;
+        }
+        return C3PRO.getFhirContext().getResourceDefinition(resource).getName() + "/" + id.getIdPart();
+    }
+
+    /**
+     * Returns the hash of the JSON the resource is encoded to.
+     */
+    public static String hashOf(IBaseResource resource) {
+        return hashOf(encode(resource));
+    }
+
+    /**
+     * Returns the JSON the resource is encoded to as UTF-8 bytes.
+     */
+    public static byte[] encode(IBaseResource resource) {
+        return C3PRO.getFhirContext().newJsonParser().encodeResourceToString(resource).getBytes(UTF8);
+    }
+
+    /**
+     * Returns the SHA-1 of the payload as a hex String.
+     */
+    public static String hashOf(byte[] payload) {
+        return toHex(newDigest().digest(payload));
+    }
+
+    /**
+     * An OutputStream that only hashes and counts what is written to it, so a payload that is
+     * streamed to the server can be hashed without holding it in memory.
+     */
+    public static class HashingOutputStream extends OutputStream {
+        private final MessageDigest digest = newDigest();
+        private long count;
+
+        @Override
+        public void write(int b) {
+            digest.update((byte) b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            digest.update(b, off, len);
+            count += len;
+        }
+
+        /**
+         * Returns the hash of the bytes written, like {@link #hashOf(byte[])}. Can only be called
+         * once.
+         */
+        public String getHash() {
+            return toHex(digest.digest());
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has to support SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] digest) {
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Returns the tag the upload jobs of the logical resource are tagged with, so waiting ones can
+     * be cancelled when a newer version is enqueued.
+     */
+    public static String tagFor(String key) {
+        return TAG_PREFIX + key;
+    }
+
+    /**
+     * Registers the upload job with the id as waiting. The key of the logical resource may be null.
+     * Returns {@link Decision#REPLACE} if an older version of the resource is still waiting.
+     */
+    public synchronized Decision offer(String jobId, String key) {
+        enqueued.put(jobId, ++sequence);
+        if (key == null) {
+            return Decision.ENQUEUE;
+        }
+        String previous = latestJobs.put(key, jobId);
+        return previous != null && enqueued.containsKey(previous) ? Decision.REPLACE : Decision.ENQUEUE;
+    }
+
+    /**
+     * Returns true if a payload has been uploaded since the upload job with the id was enqueued, so
+     * its own payload may be identical and has to be hashed before it asks
+     * {@link #shouldUpload(String, String, String)}.
+     */
+    public synchronized boolean uploadedSince(String jobId) {
+        Long enqueuedAt = enqueued.get(jobId);
+        if (enqueuedAt == null) {
+            return false;
+        }
+        for (Long uploadedAt : uploaded.values()) {
+            if (uploadedAt > enqueuedAt) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Called by the upload job with the id right before it uploads the payload with the hash.
+     * Returns false if a newer version of the resource has been enqueued since, or if an identical
+     * payload was uploaded while the job was waiting. The hash can be null if nothing has been
+     * uploaded since the job was enqueued, see {@link #uploadedSince(String)}.
+     */
+    public synchronized boolean shouldUpload(String jobId, String key, String hash) {
+        Long enqueuedAt = enqueued.get(jobId);
+        if (enqueuedAt == null) {
+            // restored after a restart, or not enqueued through the DataQueue
+            return true;
+        }
+        if (key != null && !jobId.equals(latestJobs.get(key))) {
+            return false;
+        }
+        Long uploadedAt = uploaded.get(hash);
+        return uploadedAt == null || uploadedAt < enqueuedAt;
+    }
+
+    /**
+     * Called by an upload job when the payload with the hash has been uploaded, so identical ones
+     * waiting behind it are dropped.
+     */
+    public synchronized void uploaded(String hash) {
+        if (!enqueued.isEmpty()) {
+            uploaded.put(hash, ++sequence);
+        }
+    }
+
+    /**
+     * Has to be called when the upload job with the id is done or cancelled.
+     */
+    public synchronized void finished(String jobId, String key) {
+        if (enqueued.remove(jobId) == null) {
+            return;
+        }
+        if (key != null && jobId.equals(latestJobs.get(key))) {
+            latestJobs.remove(key);
+        }
+        // uploads only matter to jobs that were enqueued before them and still wait
+        long oldest = Long.MAX_VALUE;
+        for (Long enqueuedAt : enqueued.values()) {
+            oldest = Math.min(oldest, enqueuedAt);
+        }
+        Iterator<Long> uploads = uploaded.values().iterator();
+        while (uploads.hasNext()) {
+            if (uploads.next() < oldest) {
+                uploads.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of waiting uploads, for tests.
+     */
+    synchronized int size() {
+        return enqueued.size();
+    }
+}
@@ -10,10 +10,16 @@ import com.birbit.android.jobqueue.RetryConstraint;
 
 import org.hl7.fhir.instance.model.api.IBaseResource;
 
+import java.nio.charset.Charset;
+
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.client.IGenericClient;
 import ch.usz.c3pro.C3PRO;
 import ch.usz.c3pro.dataqueue.DataQueue;
+import ch.usz.c3pro.dataqueue.NetworkScheduler;
+import ch.usz.c3pro.dataqueue.UploadCoalescer;
+import ch.usz.c3pro.tracing.OperationTrace;
+import ch.usz.c3pro.tracing.Tracing;
 
 /**
  * C3PRO
@@ -41,20 +47,44 @@ import ch.usz.c3pro.dataqueue.DataQueue;
  * FIFO. If no FHIRServerURL is provided, the serverURL from the C3PRO will be used.
  */
 public class CreateResourceJob extends Job {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
     private IBaseResource uploadResource;
     private String serverURL;
     /**localID is needed for persistence*/
     private long localID;
+    private String key;
+    /** the JSON of the resource, encoded on the first run */
+    private transient String payload;
+    private final NetworkScheduler.RunCounter runs = new NetworkScheduler.RunCounter();
+    private final OperationTrace trace = new OperationTrace();
 
     /**
      * Enqueues the resource to be uploaded to the provided FHIRServer. The job will persist even
      * when app state changes.
      * */
     public CreateResourceJob(IBaseResource FHIRResource, String FHIRServerURL){
-        super(new Params(Priority.MID).requireNetwork().persist().groupBy(DataQueue.UPLOAD_GROUP_TAG));
+        this(FHIRResource, FHIRServerURL, null);
+    }
+
+    /**
+     * Enqueues the resource to be uploaded to the provided FHIRServer. The coalescingKey is used by
+     * the {@link UploadCoalescer} of the DataQueue, the job is tagged with it so it can be cancelled
+     * when a newer version of the resource is enqueued. The resource is encoded when the job runs,
+     * the size of its JSON is used by the {@link NetworkScheduler} to hold large uploads until the
+     * network conditions are good.
+     * */
+    public CreateResourceJob(IBaseResource FHIRResource, String FHIRServerURL, String coalescingKey){
+        super(createParams(coalescingKey));
         uploadResource = FHIRResource;
         serverURL = FHIRServerURL;
         localID = -System.currentTimeMillis();
+        key = coalescingKey;
+    }
+
+    private static Params createParams(String coalescingKey) {
+        Params params = new Params(Priority.MID).requireNetwork().persist().groupBy(DataQueue.UPLOAD_GROUP_TAG);
+        return coalescingKey == null ? params : params.addTags(UploadCoalescer.tagFor(coalescingKey));
     }
 
     /**
@@ -65,6 +95,10 @@ public class CreateResourceJob extends Job {
         this(resource, C3PRO.getDataQueue().getFHIRServerURL());
     }
 
+    public String getCoalescingKey() {
+        return key;
+    }
+
     @Override
     public void onAdded() {
 
@@ -72,10 +106,30 @@ public class CreateResourceJob extends Job {
 
     @Override
     public void onRun() throws Throwable {
-        IGenericClient client = C3PRO.getFhirContext().newRestfulGenericClient(serverURL);
-        MethodOutcome outcome = client.create().resource(uploadResource).prettyPrint().encodedJson().execute();
-        //TODO decide what to do when upload does not return anything
-        Log.d("SENDJOBS", "created resource with id "+outcome.getId().getValue());
+        trace.begin("CreateResourceJob");
+        try {
+            if (payload == null) {
+                payload = C3PRO.getFhirContext().newJsonParser().encodeResourceToString(uploadResource);
+            }
+            byte[] bytes = payload.getBytes(UTF8);
+            NetworkScheduler.checkConditions(NetworkScheduler.PayloadSize.of(bytes.length), true);
+            String hash = UploadCoalescer.hashOf(bytes);
+            UploadCoalescer coalescer = C3PRO.getDataQueue() != null ? C3PRO.getDataQueue().getUploadCoalescer() : null;
+            if (coalescer != null && !coalescer.shouldUpload(getId(), key, hash)) {
+                Log.d("SENDJOBS", "upload superseded or already done, dropped " + (key != null ? key : hash));
+                return;
+            }
+            IGenericClient client = Tracing.trace(C3PRO.getFhirContext().newRestfulGenericClient(serverURL));
+            MethodOutcome outcome = client.create().resource(payload).encodedJson().execute();
+            Tracing.responseParsed("MethodOutcome");
+            if (coalescer != null) {
+                coalescer.uploaded(hash);
+            }
+            //TODO decide what to do when upload does not return anything
+            Log.d("SENDJOBS", "created resource with id "+outcome.getId().getValue());
+        } finally {
+            trace.end();
+        }
     }
 
     @Override
@@ -85,6 +139,11 @@ public class CreateResourceJob extends Job {
 
     @Override
     protected RetryConstraint shouldReRunOnThrowable(@NonNull Throwable throwable, int runCount, int maxRunCount) {
-        return null;
+        return runs.retryConstraintFor(throwable);
+    }
+
+    @Override
+    protected int getRetryLimit() {
+        return NetworkScheduler.RunCounter.UNLIMITED_RUNS;
     }
 }
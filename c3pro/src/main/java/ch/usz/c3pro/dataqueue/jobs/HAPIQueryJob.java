@@ -9,6 +9,8 @@ import com.birbit.android.jobqueue.RetryConstraint;
 
 import ch.usz.c3pro.C3PRO;
 import ch.usz.c3pro.dataqueue.DataQueue;
+import ch.usz.c3pro.tracing.OperationTrace;
+import ch.usz.c3pro.tracing.Tracing;
 
 /**
  * C3PRO
@@ -55,6 +57,7 @@ import ch.usz.c3pro.dataqueue.DataQueue;
 public class HAPIQueryJob extends Job {
     private DataQueue.QueryPoster queryPoster;
     private String url;
+    private final OperationTrace trace = new OperationTrace();
 
     /**
      * The QueryPoster will get a generic HAPI client for the specified URL on which it can run its
@@ -82,7 +85,12 @@ public class HAPIQueryJob extends Job {
 
     @Override
     public void onRun() throws Throwable {
-        queryPoster.runQuery(C3PRO.getFhirContext().newRestfulGenericClient(url));
+        trace.begin("HAPIQueryJob");
+        try {
+            queryPoster.runQuery(Tracing.trace(C3PRO.getFhirContext().newRestfulGenericClient(url)));
+        } finally {
+            trace.end();
+        }
     }
 
     @Override
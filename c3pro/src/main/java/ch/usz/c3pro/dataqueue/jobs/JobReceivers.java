@@ -0,0 +1,99 @@
+package ch.usz.c3pro.dataqueue.jobs;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Holds the receivers of persistent jobs. The JobManager stores a persistent job when it is added
+ * and runs a deserialized copy, so the job cannot keep its receiver, or a Handler for it, in a
+ * field. Instead, the receiver is registered here under a key the job keeps in a serialized field,
+ * and the copy that runs looks it up when it is done. The receivers only live as long as the app,
+ * after a restart the job runs without one.
+ * <p/>
+ * Results are passed to the receivers on the main thread by deliver(), which other jobs use for
+ * their receivers as well.
+ */
+public class JobReceivers {
+    private static final Map<String, Object> receivers = new ConcurrentHashMap<>();
+    private static Executor deliveryExecutor;
+
+    /**
+     * Registers the receiver and returns the key the job has to keep, or null if the receiver is
+     * null.
+     */
+    public static String register(Object receiver) {
+        if (receiver == null) {
+            return null;
+        }
+        String key = UUID.randomUUID().toString();
+        receivers.put(key, receiver);
+        return key;
+    }
+
+    /**
+     * Removes the receiver registered under the key and returns it, or null if there is none, e.g.
+     * because the app has been restarted since the job was added.
+     */
+    public static Object take(String key) {
+        return key == null ? null : receivers.remove(key);
+    }
+
+    /**
+     * Returns the number of registered receivers, for tests.
+     */
+    public static int size() {
+        return receivers.size();
+    }
+
+    /**
+     * Runs the delivery to a receiver on the main thread.
+     */
+    public static void deliver(Runnable delivery) {
+        getDeliveryExecutor().execute(delivery);
+    }
+
+    /**
+     * Replaces the main thread for deliveries, so they can be run in tests without Android. Pass
+     * null to deliver on the main thread again.
+     */
+    public static synchronized void setDeliveryExecutor(Executor executor) {
+        deliveryExecutor = executor;
+    }
+
+    private static synchronized Executor getDeliveryExecutor() {
+        if (deliveryExecutor == null) {
+            final Handler mainHandler = new Handler(Looper.getMainLooper());
+            deliveryExecutor = new Executor() {
+                @Override
+                public void execute(Runnable runnable) {
+                    mainHandler.post(runnable);
+                }
+            };
+        }
+        return deliveryExecutor;
+    }
+}
@@ -0,0 +1,145 @@
+package ch.usz.c3pro.dataqueue.jobs;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.birbit.android.jobqueue.Job;
+import com.birbit.android.jobqueue.Params;
+import com.birbit.android.jobqueue.RetryConstraint;
+
+import java.util.List;
+
+import ch.usz.c3pro.dataqueue.DataQueue;
+import ch.usz.c3pro.dataqueue.NetworkScheduler;
+import ch.usz.c3pro.dataqueue.Pipeline;
+import ch.usz.c3pro.tracing.OperationTrace;
+import ch.usz.c3pro.tracing.Span;
+import ch.usz.c3pro.tracing.Tracing;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * This job is used by the DataQueue to run all stages of a {@link Pipeline} in one background
+ * thread. The output of a stage is passed to the next one directly. If a stage fails and the job is
+ * run again, it continues with the failed stage instead of starting over. The output of the last
+ * stage is passed to the receiver on the main (UI) thread, if a receiver is provided.
+ */
+public class PipelineJob<T> extends Job {
+    private List<DataQueue.Stage<?, ?>> stages;
+    private boolean requiresNetwork;
+    /**
+     * The output of the last completed stage and the index of the next stage to run.
+     */
+    private Object value;
+    private int nextStage;
+    private transient DataQueue.PipelineReceiver<T> receiver;
+    private final OperationTrace trace = new OperationTrace();
+
+    /**
+     * Runs the stages of the pipeline and passes the output of the last stage back to the
+     * pipelineReceiver, if it is not null.
+     */
+    public PipelineJob(Pipeline<T> pipeline, DataQueue.PipelineReceiver<T> pipelineReceiver) {
+        super(createParams(pipeline));
+        stages = pipeline.getStages();
+        requiresNetwork = pipeline.requiresNetwork();
+        value = pipeline.getInput();
+        receiver = pipelineReceiver;
+    }
+
+    private static Params createParams(Pipeline<?> pipeline) {
+        Params params = new Params(Priority.HIGH);
+        return pipeline.requiresNetwork() ? params.requireNetwork() : params;
+    }
+
+    @Override
+    public void onAdded() {
+
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void onRun() throws Throwable {
+        trace.begin("PipelineJob");
+        try {
+            if (requiresNetwork) {
+                // requests are small, stages that upload a payload check its size themselves
+                NetworkScheduler.checkConditions(NetworkScheduler.PayloadSize.SMALL, false);
+            }
+            while (nextStage < stages.size()) {
+                if (isCancelled()) {
+                    return;
+                }
+                DataQueue.Stage<Object, Object> stage = (DataQueue.Stage<Object, Object>) stages.get(nextStage);
+                Span span = Tracing.start(nameOf(stage), Tracing.CATEGORY_STAGE);
+                try {
+                    value = stage.run(value);
+                } finally {
+                    span.end();
+                }
+                nextStage++;
+            }
+            if (receiver != null) {
+                final DataQueue.PipelineReceiver<T> pipelineReceiver = receiver;
+                final T result = (T) value;
+                trace.posting();
+                JobReceivers.deliver(new Runnable() {
+                    @Override
+                    public void run() {
+                        pipelineReceiver.receiveResult(result);
+                        trace.delivered("receiveResult");
+                    }
+                });
+            }
+        } finally {
+            trace.end();
+        }
+    }
+
+    private static String nameOf(DataQueue.Stage<?, ?> stage) {
+        String name = stage.getClass().getSimpleName();
+        return name.isEmpty() ? stage.getClass().getName() : name;
+    }
+
+    /**
+     * The receiver is told if it is a {@link DataQueue.PipelineFailureReceiver}, otherwise the
+     * failure is only logged and no result is passed back.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void onCancel(int cancelReason, @Nullable final Throwable throwable) {
+        Log.e("C3PRO", "pipeline stopped before stage " + nextStage + " of " + stages.size(), throwable);
+        if (receiver instanceof DataQueue.PipelineFailureReceiver) {
+            final DataQueue.PipelineFailureReceiver<T> failureReceiver = (DataQueue.PipelineFailureReceiver<T>) receiver;
+            JobReceivers.deliver(new Runnable() {
+                @Override
+                public void run() {
+                    failureReceiver.resultFailed(throwable);
+                }
+            });
+        }
+    }
+
+    @Override
+    protected RetryConstraint shouldReRunOnThrowable(@NonNull Throwable throwable, int runCount, int maxRunCount) {
+        return NetworkScheduler.retryConstraintFor(throwable, runCount);
+    }
+}
@@ -1,8 +1,5 @@
 package ch.usz.c3pro.dataqueue.jobs;
 
-import android.os.Handler;
-import android.os.Looper;
-import android.os.Message;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
@@ -12,6 +9,9 @@ import com.birbit.android.jobqueue.RetryConstraint;
 
 import ch.usz.c3pro.C3PRO;
 import ch.usz.c3pro.dataqueue.DataQueue;
+import ch.usz.c3pro.dataqueue.NetworkScheduler;
+import ch.usz.c3pro.tracing.OperationTrace;
+import ch.usz.c3pro.tracing.Tracing;
 
 /**
  * C3PRO
@@ -34,15 +34,15 @@ import ch.usz.c3pro.dataqueue.DataQueue;
 
 /**
  * This job is used by the DataQueue to asynchronously read a resource from the FHIRServer.
- * The Handler is used to transfer the resource to the main (UI) thread, so it could be used to
- * update UI elements.
+ * The resource is passed to the receiver on the main (UI) thread by {@link JobReceivers#deliver},
+ * so it could be used to update UI elements.
  */
 public class ReadResourceJob extends Job {
-    private static int HANDLER_MESSAGE_BUNDLE = 0;
+    private final String requestID;
     private String search;
     private String url;
     private DataQueue.BundleReceiver receiver;
-    private Handler dataHandler;
+    private final OperationTrace trace = new OperationTrace();
 
     /**
      * searchURL defines the search, can be absolute or relative to the FHIRServerURL, where the resource is
@@ -50,20 +50,10 @@ public class ReadResourceJob extends Job {
      * */
     public ReadResourceJob(final String requestID, String searchURL, DataQueue.BundleReceiver resourceReceiver, String FHIRServerURL){
         super(new Params(Priority.HIGH).requireNetwork().singleInstanceBy(requestID));
+        this.requestID = requestID;
         search = searchURL;
         url = FHIRServerURL;
         receiver = resourceReceiver;
-        dataHandler = new Handler(Looper.getMainLooper()) {
-            @Override
-            public void handleMessage(Message msg) {
-                if (msg.what == HANDLER_MESSAGE_BUNDLE) {
-                    org.hl7.fhir.dstu3.model.Bundle bundle = (org.hl7.fhir.dstu3.model.Bundle)msg.obj;
-                    receiver.receiveBundle(requestID, bundle);
-                } else {
-                    //TODO error handling
-                }
-            }
-        };
     }
 
     /**
@@ -75,6 +65,10 @@ public class ReadResourceJob extends Job {
         this(requestID, searchURL, resourceReceiver, C3PRO.getDataQueue().getFHIRServerURL());
     }
 
+    public String getSearchURL() {
+        return search;
+    }
+
 
     @Override
     public void onAdded() {
@@ -83,14 +77,25 @@ public class ReadResourceJob extends Job {
 
     @Override
     public void onRun() throws Throwable {
-        org.hl7.fhir.dstu3.model.Bundle response = C3PRO.getFhirContext().newRestfulGenericClient(url).search()
-                .byUrl(search)
-                .returnBundle(org.hl7.fhir.dstu3.model.Bundle.class)
-                .execute();
-        Message msg = new Message();
-        msg.what = HANDLER_MESSAGE_BUNDLE;
-        msg.obj = response;
-        dataHandler.sendMessage(msg);
+        trace.begin("ReadResourceJob");
+        try {
+            NetworkScheduler.checkConditions(NetworkScheduler.PayloadSize.SMALL, false);
+            final org.hl7.fhir.dstu3.model.Bundle response = Tracing.trace(C3PRO.getFhirContext().newRestfulGenericClient(url)).search()
+                    .byUrl(search)
+                    .returnBundle(org.hl7.fhir.dstu3.model.Bundle.class)
+                    .execute();
+            Tracing.responseParsed("Bundle");
+            trace.posting();
+            JobReceivers.deliver(new Runnable() {
+                @Override
+                public void run() {
+                    receiver.receiveBundle(requestID, response);
+                    trace.delivered("receiveBundle");
+                }
+            });
+        } finally {
+            trace.end();
+        }
     }
 
     @Override
@@ -100,6 +105,6 @@ public class ReadResourceJob extends Job {
 
     @Override
     protected RetryConstraint shouldReRunOnThrowable(@NonNull Throwable throwable, int runCount, int maxRunCount) {
-        return null;
+        return NetworkScheduler.retryConstraintFor(throwable, runCount);
     }
 }
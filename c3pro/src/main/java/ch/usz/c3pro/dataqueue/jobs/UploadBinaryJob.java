@@ -0,0 +1,509 @@
+package ch.usz.c3pro.dataqueue.jobs;
+
+import android.content.ContentResolver;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.birbit.android.jobqueue.Job;
+import com.birbit.android.jobqueue.Params;
+import com.birbit.android.jobqueue.RetryConstraint;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.util.Properties;
+import java.util.UUID;
+
+import ch.usz.c3pro.C3PRO;
+import ch.usz.c3pro.dataqueue.DataQueue;
+import ch.usz.c3pro.dataqueue.NetworkScheduler;
+import ch.usz.c3pro.tracing.OperationTrace;
+import ch.usz.c3pro.tracing.Tracing;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * This job uploads the content of a file or content URI as a FHIR Binary to the server at the
+ * FHIRServerURL, e.g. a photo or audio recording that is referenced by an Attachment. The content is
+ * streamed from the source through a small buffer and is never held in memory as a whole.
+ * <p/>
+ * If the server supports resumable uploads, the content is sent in chunks of {@link #CHUNK_SIZE}
+ * bytes, and after a failure, also after a restart of the app, the upload continues at the last
+ * offset acknowledged by the server. The protocol is the one of resumable uploads to Google Cloud
+ * Storage: the upload session is started by a POST to [base]/Binary?uploadType=resumable with
+ * X-Upload-Content-Type and X-Upload-Content-Length headers, which returns the session URL in the
+ * Location header. Chunks are PUT to the session URL with a Content-Range header, the server
+ * acknowledges them with 308 and a Range header, and answers 200 or 201 when the upload is
+ * complete. Otherwise, the content is uploaded in one streamed POST, which starts over after a
+ * failure.
+ * <p/>
+ * Like the {@link CreateResourceJob}, the job persists and stays in the upload group of the
+ * dataqueue until the content is uploaded. The location of the created Binary is passed back to the
+ * receiver, which is kept in the {@link JobReceivers}, unless the app has been restarted in between.
+ */
+public class UploadBinaryJob extends Job {
+    public static final int BUFFER_SIZE = 16 * 1024;
+    public static final int CHUNK_SIZE = 256 * 1024;
+    private static final int HTTP_RESUME_INCOMPLETE = 308;
+    private static final String SESSION_DIRECTORY = "c3pro_uploads";
+    private static final String KEY_SESSION_URL = "sessionURL";
+    private static final String KEY_OFFSET = "offset";
+
+    private String source;
+    private String contentType;
+    private String serverURL;
+    private boolean resumable;
+    /** identifies the stored upload session */
+    private String uploadID;
+    /** where the upload session is stored, the files directory of the app if null */
+    private String sessionDirectory;
+    private long length = -1;
+    private String sessionURL;
+    private long acknowledged;
+    /** key of the receiver in the JobReceivers */
+    private String receiverKey;
+    private final NetworkScheduler.RunCounter runs = new NetworkScheduler.RunCounter();
+    private final OperationTrace trace = new OperationTrace();
+
+    /**
+     * Enqueues the content at the sourceURI, a file or content URI, to be uploaded as Binary to the
+     * provided FHIRServer. The job will persist even when app state changes.
+     *
+     * @param resumable true if the server supports resumable uploads
+     * @param locationReceiver receives the location of the Binary on the main thread, can be null
+     * */
+    public UploadBinaryJob(Uri sourceURI, String contentType, boolean resumable, String FHIRServerURL, final DataQueue.LocationReceiver locationReceiver) {
+        this(sourceURI.toString(), contentType, resumable, FHIRServerURL, null, locationReceiver);
+    }
+
+    /**
+     * Enqueues the file to be uploaded as Binary to the provided FHIRServer, like
+     * {@link #UploadBinaryJob(Uri, String, boolean, String, DataQueue.LocationReceiver)}. The upload
+     * session is stored in the sessionDirectory instead of the files directory of the app, so the
+     * job does not need a Context, e.g. when it is run by a test harness.
+     * */
+    public UploadBinaryJob(File content, String contentType, boolean resumable, String FHIRServerURL, File sessionDirectory, final DataQueue.LocationReceiver locationReceiver) {
+        this(content.toURI().toString(), contentType, resumable, FHIRServerURL, sessionDirectory.getPath(), locationReceiver);
+    }
+
+    private UploadBinaryJob(String sourceURI, String contentType, boolean resumable, String FHIRServerURL, String sessionDirectory, final DataQueue.LocationReceiver locationReceiver) {
+        super(new Params(Priority.MID).requireNetwork().persist().groupBy(DataQueue.UPLOAD_GROUP_TAG));
+        source = sourceURI;
+        this.contentType = contentType;
+        this.resumable = resumable;
+        serverURL = FHIRServerURL;
+        this.sessionDirectory = sessionDirectory;
+        uploadID = UUID.randomUUID().toString();
+        receiverKey = JobReceivers.register(locationReceiver);
+    }
+
+    @Override
+    public void onAdded() {
+
+    }
+
+    @Override
+    public void onRun() throws Throwable {
+        trace.begin("UploadBinaryJob");
+        try {
+            upload();
+        } finally {
+            trace.end();
+        }
+    }
+
+    private void upload() throws Throwable {
+        if (length < 0) {
+            length = getContentLength();
+        }
+        NetworkScheduler.checkConditions(length < 0 ? NetworkScheduler.PayloadSize.LARGE : NetworkScheduler.PayloadSize.of(length), true);
+
+        String location;
+        if (resumable && length >= 0) {
+            location = uploadResumable();
+        } else {
+            location = uploadStreaming();
+        }
+        Log.d("SENDJOBS", "created Binary at " + location);
+
+        deliver(location);
+    }
+
+    private void deliver(final String location) {
+        final DataQueue.LocationReceiver receiver = (DataQueue.LocationReceiver) JobReceivers.take(receiverKey);
+        if (receiver != null) {
+            JobReceivers.deliver(new Runnable() {
+                @Override
+                public void run() {
+                    receiver.receiveLocation(location);
+                }
+            });
+        }
+    }
+
+    /**
+     * Uploads the content in one POST, streamed with a fixed length if it is known.
+     */
+    private String uploadStreaming() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(getBinaryURL()).openConnection();
+        Tracing.setHeader(connection);
+        try {
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", contentType);
+            if (length >= 0 && length <= Integer.MAX_VALUE) {
+                connection.setFixedLengthStreamingMode((int) length);
+            } else {
+                connection.setChunkedStreamingMode(BUFFER_SIZE);
+            }
+
+            InputStream in = openContent();
+            try {
+                OutputStream out = connection.getOutputStream();
+                try {
+                    copy(in, out, Long.MAX_VALUE);
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+
+            checkStatus(connection.getResponseCode());
+            return connection.getHeaderField("Location");
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Uploads the content in chunks, continuing at the offset acknowledged by the server.
+     */
+    private String uploadResumable() throws IOException {
+        if (sessionURL == null) {
+            restoreSession();
+        }
+        if (sessionURL == null) {
+            sessionURL = startSession();
+            acknowledged = 0;
+            storeSession();
+        } else {
+            String location = queryOffset();
+            if (location != null) {
+                return finishSession(location);
+            }
+        }
+
+        InputStream in = openContent();
+        try {
+            skipFully(in, acknowledged);
+            long position = acknowledged;
+            while (true) {
+                long end = Math.min(position + CHUNK_SIZE, length);
+                HttpURLConnection connection = (HttpURLConnection) new URL(sessionURL).openConnection();
+                Tracing.setHeader(connection);
+                try {
+                    connection.setDoOutput(true);
+                    connection.setRequestMethod("PUT");
+                    connection.setRequestProperty("Content-Range", length == 0 ? "bytes */0" : "bytes " + position + "-" + (end - 1) + "/" + length);
+                    connection.setFixedLengthStreamingMode((int) (end - position));
+                    OutputStream out = connection.getOutputStream();
+                    try {
+                        copy(in, out, end - position);
+                    } finally {
+                        out.close();
+                    }
+                    position = end;
+
+                    int status = connection.getResponseCode();
+                    if (status == HTTP_RESUME_INCOMPLETE) {
+                        acknowledged = parseRange(connection.getHeaderField("Range"));
+                        storeSession();
+                    } else if (status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_GONE) {
+                        // the session has expired, start over on the next run
+                        sessionURL = null;
+                        deleteSession();
+                        throw new IOException("upload session expired");
+                    } else {
+                        checkStatus(status);
+                        String location = connection.getHeaderField("Location");
+                        return finishSession(location != null ? location : sessionURL);
+                    }
+                } finally {
+                    connection.disconnect();
+                }
+
+                if (acknowledged >= length) {
+                    String location = queryOffset();
+                    if (location == null) {
+                        throw new IOException("server acknowledged the whole content but did not finish the upload");
+                    }
+                    return finishSession(location);
+                } else if (acknowledged != position) {
+                    // the server did not keep everything, continue where it stopped
+                    in.close();
+                    in = openContent();
+                    skipFully(in, acknowledged);
+                    position = acknowledged;
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private String startSession() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(getBinaryURL() + "?uploadType=resumable").openConnection();
+        Tracing.setHeader(connection);
+        try {
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("X-Upload-Content-Type", contentType);
+            connection.setRequestProperty("X-Upload-Content-Length", String.valueOf(length));
+            connection.setFixedLengthStreamingMode(0);
+            connection.getOutputStream().close();
+            checkStatus(connection.getResponseCode());
+            String location = connection.getHeaderField("Location");
+            if (location == null) {
+                throw new IOException("server did not start an upload session");
+            }
+            return location;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Asks the server for the acknowledged offset of the session. Returns the location of the
+     * Binary if the upload has already been completed, null otherwise.
+     */
+    private String queryOffset() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(sessionURL).openConnection();
+        Tracing.setHeader(connection);
+        try {
+            connection.setDoOutput(true);
+            connection.setRequestMethod("PUT");
+            connection.setRequestProperty("Content-Range", "bytes */" + length);
+            connection.setFixedLengthStreamingMode(0);
+            connection.getOutputStream().close();
+            int status = connection.getResponseCode();
+            if (status == HTTP_RESUME_INCOMPLETE) {
+                acknowledged = parseRange(connection.getHeaderField("Range"));
+                return null;
+            } else if (status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_GONE) {
+                sessionURL = null;
+                deleteSession();
+                throw new IOException("upload session expired");
+            }
+            checkStatus(status);
+            String location = connection.getHeaderField("Location");
+            return location != null ? location : sessionURL;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private String finishSession(String location) {
+        deleteSession();
+        return location;
+    }
+
+    /**
+     * Returns the offset after the last byte in a Range header like "bytes=0-1234", 0 if there is
+     * none.
+     */
+    static long parseRange(String range) {
+        if (range == null) {
+            return 0;
+        }
+        int dash = range.lastIndexOf('-');
+        return Long.parseLong(range.substring(dash + 1).trim()) + 1;
+    }
+
+    private static void checkStatus(int status) throws IOException {
+        if (status < 200 || status >= 300) {
+            throw new IOException("upload of Binary failed with HTTP " + status);
+        }
+    }
+
+    private String getBinaryURL() {
+        return (serverURL.endsWith("/") ? serverURL : serverURL + "/") + "Binary";
+    }
+
+    /**
+     * Copies up to max bytes through a buffer of BUFFER_SIZE bytes.
+     */
+    private static void copy(InputStream in, OutputStream out, long max) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long remaining = max;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                break;
+            }
+            out.write(buffer, 0, read);
+            remaining -= read;
+        }
+    }
+
+    private static void skipFully(InputStream in, long bytes) throws IOException {
+        long remaining = bytes;
+        while (remaining > 0) {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new IOException("content is shorter than the acknowledged offset");
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+
+    private InputStream openContent() throws IOException {
+        File file = getSourceFile();
+        if (file != null) {
+            return new FileInputStream(file);
+        }
+        return getApplicationContext().getContentResolver().openInputStream(Uri.parse(source));
+    }
+
+    /**
+     * Returns the file of a file URI, null for other URIs.
+     */
+    private File getSourceFile() {
+        if (!source.startsWith(ContentResolver.SCHEME_FILE + ":")) {
+            return null;
+        }
+        try {
+            return new File(URI.create(source));
+        } catch (IllegalArgumentException e) {
+            // not encoded, e.g. a path with spaces
+            return new File(Uri.parse(source).getPath());
+        }
+    }
+
+    /**
+     * Returns the length of the content, -1 if it is unknown.
+     */
+    private long getContentLength() throws IOException {
+        File file = getSourceFile();
+        if (file != null) {
+            return file.length();
+        }
+        Uri uri = Uri.parse(source);
+        AssetFileDescriptor descriptor = getApplicationContext().getContentResolver().openAssetFileDescriptor(uri, "r");
+        if (descriptor == null) {
+            return -1;
+        }
+        try {
+            return descriptor.getLength();
+        } finally {
+            descriptor.close();
+        }
+    }
+
+    /**
+     * The session URL and acknowledged offset are stored in a small file, so the upload can
+     * continue after the app has been restarted.
+     */
+    private File getSessionFile() {
+        File directory = sessionDirectory != null ? new File(sessionDirectory) : new File(getApplicationContext().getFilesDir(), SESSION_DIRECTORY);
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+        return new File(directory, uploadID + ".session");
+    }
+
+    private void storeSession() {
+        Properties properties = new Properties();
+        properties.setProperty(KEY_SESSION_URL, sessionURL);
+        properties.setProperty(KEY_OFFSET, String.valueOf(acknowledged));
+        try {
+            FileOutputStream out = new FileOutputStream(getSessionFile());
+            try {
+                properties.store(out, null);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.e("SENDJOBS", "could not store upload session", e);
+        }
+    }
+
+    private void restoreSession() {
+        File file = getSessionFile();
+        if (!file.exists()) {
+            return;
+        }
+        Properties properties = new Properties();
+        try {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+            sessionURL = properties.getProperty(KEY_SESSION_URL);
+            acknowledged = Long.parseLong(properties.getProperty(KEY_OFFSET, "0"));
+        } catch (IOException | NumberFormatException e) {
+            Log.e("SENDJOBS", "could not restore upload session", e);
+            sessionURL = null;
+        }
+    }
+
+    private void deleteSession() {
+        getSessionFile().delete();
+    }
+
+    @Override
+    protected int getRetryLimit() {
+        return NetworkScheduler.RunCounter.UNLIMITED_RUNS;
+    }
+
+    @Override
+    protected void onCancel(int cancelReason, @Nullable final Throwable throwable) {
+        deleteSession();
+        Log.e("SENDJOBS", "upload of Binary " + source + " given up", throwable);
+        final Object receiver = JobReceivers.take(receiverKey);
+        if (receiver instanceof DataQueue.LocationFailureReceiver) {
+            JobReceivers.deliver(new Runnable() {
+                @Override
+                public void run() {
+                    ((DataQueue.LocationFailureReceiver) receiver).locationFailed(throwable);
+                }
+            });
+        }
+    }
+
+    @Override
+    protected RetryConstraint shouldReRunOnThrowable(@NonNull Throwable throwable, int runCount, int maxRunCount) {
+        return runs.retryConstraintFor(throwable);
+    }
+}
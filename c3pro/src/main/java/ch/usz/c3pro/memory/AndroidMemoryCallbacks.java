@@ -0,0 +1,52 @@
+package ch.usz.c3pro.memory;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+
+/**
+ * Passes the memory signals of Android on to a {@link MemoryTrimListener}. C3PRO registers one
+ * with the application context for its {@link MemoryGovernor}.
+ */
+public class AndroidMemoryCallbacks implements ComponentCallbacks2 {
+    private final MemoryTrimListener listener;
+
+    public AndroidMemoryCallbacks(MemoryTrimListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        listener.onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        listener.onLowMemory();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+
+    }
+}
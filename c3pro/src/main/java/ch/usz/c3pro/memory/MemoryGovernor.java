@@ -0,0 +1,234 @@
+package ch.usz.c3pro.memory;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+
+/**
+ * The MemoryGovernor keeps the caches and buffers of C3PRO within one memory budget. Caches register
+ * as {@link Consumer}s with a priority and report the approximate size they retain, see
+ * {@link MemorySizes}. Memory that can not be released while it is in use, like the Bundle of an
+ * open {@link ch.usz.c3pro.dataqueue.SpillableBundle}, is reserved. When the total exceeds the
+ * budget, the consumers are trimmed in the order of their priority, the ones that are cheapest to
+ * rebuild first. Trim signals of the system shrink the caches further, down to nothing for
+ * {@link #TRIM_MEMORY_COMPLETE} or {@link #onLowMemory()}.
+ * The MemoryGovernor is provided as a singleton by the C3PRO class.
+ */
+public class MemoryGovernor implements MemoryTrimListener {
+    public static final String LTAG = "C3PRO";
+
+    /**
+     * Data that can be rebuilt from other data in memory, e.g. the Choices of contained ValueSets.
+     */
+    public static final int PRIORITY_REBUILDABLE = 0;
+    /**
+     * Data that is converted from downloaded data, e.g. cached Tasks.
+     */
+    public static final int PRIORITY_CONVERTED = 10;
+    /**
+     * Data that has to be downloaded again, e.g. ValueSets expanded by the server.
+     */
+    public static final int PRIORITY_DOWNLOADED = 20;
+
+    /**
+     * Default share of the memory class of the app that C3PRO may use for caches and buffers.
+     */
+    public static final int DEFAULT_BUDGET_DIVISOR = 8;
+
+    /**
+     * A cache or buffer whose memory is accounted by the MemoryGovernor.
+     */
+    public interface Consumer {
+        /**
+         * Returns the approximate number of bytes retained by the consumer.
+         */
+        public long getRetainedSize();
+
+        /**
+         * Releases at least the given number of bytes if possible, the least valuable data first.
+         */
+        public void trim(long bytes);
+    }
+
+    private static class Registration {
+        private final Consumer consumer;
+        private final int priority;
+
+        private Registration(Consumer consumer, int priority) {
+            this.consumer = consumer;
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * Registrations ordered by priority, in the order of registration within a priority.
+     */
+    private final List<Registration> registrations = new ArrayList<>();
+    private long budget;
+    private long reserved;
+
+    /**
+     * Returns a MemoryGovernor that keeps the registered consumers within the budget in bytes.
+     */
+    public MemoryGovernor(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Returns the default budget for an app with the memory class in megabytes, as returned by
+     * {@link android.app.ActivityManager#getMemoryClass()}.
+     */
+    public static long defaultBudget(int memoryClass) {
+        return (long) memoryClass * 1024 * 1024 / DEFAULT_BUDGET_DIVISOR;
+    }
+
+    /**
+     * Registers the consumer with the priority, lower priorities are trimmed first.
+     */
+    public synchronized void register(Consumer consumer, int priority) {
+        unregister(consumer);
+        int index = 0;
+        while (index < registrations.size() && registrations.get(index).priority <= priority) {
+            index++;
+        }
+        registrations.add(index, new Registration(consumer, priority));
+        enforce();
+    }
+
+    public synchronized void unregister(Consumer consumer) {
+        for (int i = 0; i < registrations.size(); i++) {
+            if (registrations.get(i).consumer == consumer) {
+                registrations.remove(i);
+                return;
+            }
+        }
+    }
+
+    public synchronized long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Sets the budget in bytes and trims the consumers if they retain more.
+     */
+    public synchronized void setBudget(long bytes) {
+        budget = bytes;
+        enforce();
+    }
+
+    /**
+     * Returns the bytes retained by all consumers plus the reserved bytes.
+     */
+    public synchronized long getRetainedSize() {
+        long size = reserved;
+        for (Registration registration : registrations) {
+            size += registration.consumer.getRetainedSize();
+        }
+        return size;
+    }
+
+    public synchronized long getReserved() {
+        return reserved;
+    }
+
+    /**
+     * Returns the number of bytes that can still be reserved if all consumers are trimmed, e.g. to
+     * decide whether a response is kept in memory.
+     */
+    public synchronized long getHeadroom() {
+        return Math.max(0, budget - reserved);
+    }
+
+    /**
+     * Accounts bytes that are in use and can not be trimmed, and trims the consumers to make room
+     * for them. The bytes have to be released with {@link #release(long)}.
+     */
+    public synchronized void reserve(long bytes) {
+        reserved += bytes;
+        enforce();
+    }
+
+    public synchronized void release(long bytes) {
+        reserved = Math.max(0, reserved - bytes);
+    }
+
+    /**
+     * Trims the consumers until they fit into the budget. Consumers should call this after they
+     * have grown, without holding their own lock. Returns the number of bytes released.
+     */
+    public synchronized long enforce() {
+        return trimTo(budget);
+    }
+
+    @Override
+    public synchronized void onTrimMemory(int level) {
+        long released = trimTo(targetFor(level, budget));
+        Log.d(LTAG, "trim memory level " + level + ", released " + released + " bytes");
+    }
+
+    @Override
+    public synchronized void onLowMemory() {
+        long released = trimTo(0);
+        Log.d(LTAG, "low memory, released " + released + " bytes");
+    }
+
+    /**
+     * Returns the size the consumers are trimmed to for the trim level. While the app is in the
+     * foreground the caches are shrunk step by step, in the background they are halved first,
+     * because a process that uses less memory is less likely to be killed.
+     */
+    static long targetFor(int level, long budget) {
+        if (level >= TRIM_MEMORY_COMPLETE) {
+            return 0;
+        } else if (level >= TRIM_MEMORY_MODERATE) {
+            return budget / 4;
+        } else if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            return budget / 2;
+        } else if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+            return budget / 4;
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            return budget / 2;
+        } else if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+            return budget * 3 / 4;
+        }
+        return budget;
+    }
+
+    private long trimTo(long target) {
+        long size = getRetainedSize();
+        long released = 0;
+        for (Registration registration : registrations) {
+            if (size <= target) {
+                break;
+            }
+            long before = registration.consumer.getRetainedSize();
+            registration.consumer.trim(size - target);
+            long freed = before - registration.consumer.getRetainedSize();
+            size -= freed;
+            released += freed;
+        }
+        return released;
+    }
+}
@@ -0,0 +1,169 @@
+package ch.usz.c3pro.memory;
+
+import org.hl7.fhir.dstu3.model.Coding;
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.dstu3.model.ValueSet;
+import org.researchstack.backbone.answerformat.ChoiceAnswerFormat;
+import org.researchstack.backbone.model.Choice;
+import org.researchstack.backbone.step.QuestionStep;
+import org.researchstack.backbone.step.Step;
+import org.researchstack.backbone.task.OrderedTask;
+import org.researchstack.backbone.task.Task;
+
+import java.util.List;
+
+import ch.usz.c3pro.questionnaire.logic.LargeChoiceAnswerFormat;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+
+/**
+ * Rough estimates of the heap retained by the objects C3PRO caches, used by the
+ * {@link MemoryGovernor}. They count the objects that are typically created for a FHIR element or a
+ * ResearchStack step and the characters of the strings, not the exact layout of a particular VM.
+ * Strings that are shared between a Questionnaire and its Task are only counted for the
+ * Questionnaire.
+ */
+public class MemorySizes {
+    public static final int OBJECT = 16;
+    public static final int REFERENCE = 4;
+    public static final int ARRAY = 16;
+
+    /**
+     * A HAPI element, with its lists of extensions and child elements.
+     */
+    public static final int ELEMENT = 160;
+    /**
+     * A questionnaire item, with the primitive types wrapping its fields.
+     */
+    public static final int ITEM = 600;
+    /**
+     * A ResearchStack step with its answer format.
+     */
+    public static final int STEP = 200;
+    /**
+     * A HAPI JSON parser with its buffers.
+     */
+    public static final int PARSER = 16 * 1024;
+    /**
+     * Parsed FHIR resources take several times the bytes of their JSON.
+     */
+    public static final int PARSED_JSON_FACTOR = 4;
+
+    private MemorySizes() {
+    }
+
+    public static long string(String string) {
+        return string == null ? 0 : OBJECT + ARRAY + 2L * string.length();
+    }
+
+    /**
+     * Returns the estimated size of the questionnaire with its items and contained ValueSets.
+     */
+    public static long questionnaire(Questionnaire questionnaire) {
+        long size = ELEMENT + string(questionnaire.getId()) + string(questionnaire.getUrl()) + string(questionnaire.getTitle());
+        for (Resource resource : questionnaire.getContained()) {
+            if (resource instanceof ValueSet) {
+                size += valueSet((ValueSet) resource);
+            } else {
+                size += ELEMENT;
+            }
+        }
+        return size + items(questionnaire.getItem());
+    }
+
+    private static long items(List<Questionnaire.QuestionnaireItemComponent> items) {
+        long size = 0;
+        for (Questionnaire.QuestionnaireItemComponent item : items) {
+            size += ITEM + string(item.getLinkId()) + string(item.getText());
+            size += item.getEnableWhen().size() * 2L * ELEMENT;
+            for (Questionnaire.QuestionnaireItemOptionComponent option : item.getOption()) {
+                size += 2L * ELEMENT;
+                if (option.getValue() instanceof Coding) {
+                    Coding coding = (Coding) option.getValue();
+                    size += string(coding.getSystem()) + string(coding.getCode()) + string(coding.getDisplay());
+                }
+            }
+            size += items(item.getItem());
+        }
+        return size;
+    }
+
+    /**
+     * Returns the estimated size of the composed and expanded concepts of the ValueSet.
+     */
+    public static long valueSet(ValueSet valueSet) {
+        long size = ELEMENT + string(valueSet.getUrl());
+        for (ValueSet.ConceptSetComponent include : valueSet.getCompose().getInclude()) {
+            size += ELEMENT + string(include.getSystem());
+            for (ValueSet.ConceptReferenceComponent concept : include.getConcept()) {
+                size += 2L * ELEMENT + string(concept.getCode()) + string(concept.getDisplay());
+            }
+        }
+        for (ValueSet.ValueSetExpansionContainsComponent contains : valueSet.getExpansion().getContains()) {
+            size += 3L * ELEMENT + string(contains.getSystem()) + string(contains.getCode()) + string(contains.getDisplay());
+        }
+        return size;
+    }
+
+    /**
+     * Returns the estimated size of the steps of the Task, without the strings it shares with its
+     * questionnaire. Tasks that do not expose their steps are counted as one object.
+     */
+    public static long task(Task task) {
+        long size = OBJECT;
+        if (task instanceof OrderedTask) {
+            List<Step> steps = ((OrderedTask) task).getSteps();
+            size += ARRAY + REFERENCE * (long) steps.size();
+            for (Step step : steps) {
+                size += STEP;
+                if (step instanceof QuestionStep && ((QuestionStep) step).getAnswerFormat() instanceof LargeChoiceAnswerFormat) {
+                    // the Choices are kept in an index shared with other Tasks
+                    size += OBJECT;
+                } else if (step instanceof QuestionStep && ((QuestionStep) step).getAnswerFormat() instanceof ChoiceAnswerFormat) {
+                    size += ARRAY + REFERENCE * (long) ((ChoiceAnswerFormat) ((QuestionStep) step).getAnswerFormat()).getChoices().length;
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns the estimated size of the Choices, including their texts and values.
+     */
+    public static long choices(Choice[] choices) {
+        long size = ARRAY + REFERENCE * (long) choices.length;
+        for (Choice choice : choices) {
+            size += OBJECT + string(choice.getText());
+            Object value = choice.getValue();
+            size += value instanceof String ? string((String) value) : OBJECT;
+        }
+        return size;
+    }
+
+    /**
+     * Returns the estimated size of a resource parsed from the number of bytes of JSON.
+     */
+    public static long parsedJson(long bytes) {
+        return bytes * PARSED_JSON_FACTOR;
+    }
+}
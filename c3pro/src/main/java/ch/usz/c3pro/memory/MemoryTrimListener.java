@@ -0,0 +1,48 @@
+package ch.usz.c3pro.memory;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+
+/**
+ * A MemoryTrimListener is told when the system asks the app to release memory. The levels are the
+ * ones of {@link android.content.ComponentCallbacks2}, so the signals of Android can be passed on
+ * unchanged by {@link AndroidMemoryCallbacks} and simulated in tests without Android.
+ */
+public interface MemoryTrimListener {
+    public static final int TRIM_MEMORY_RUNNING_MODERATE = 5;
+    public static final int TRIM_MEMORY_RUNNING_LOW = 10;
+    public static final int TRIM_MEMORY_RUNNING_CRITICAL = 15;
+    public static final int TRIM_MEMORY_UI_HIDDEN = 20;
+    public static final int TRIM_MEMORY_BACKGROUND = 40;
+    public static final int TRIM_MEMORY_MODERATE = 60;
+    public static final int TRIM_MEMORY_COMPLETE = 80;
+
+    /**
+     * Called with one of the TRIM_MEMORY levels, higher levels ask for more memory to be released.
+     */
+    public void onTrimMemory(int level);
+
+    /**
+     * Called when the whole system is running low on memory, everything that can be rebuilt should
+     * be released.
+     */
+    public void onLowMemory();
+}
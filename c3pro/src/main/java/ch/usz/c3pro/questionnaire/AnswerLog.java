@@ -0,0 +1,595 @@
+package ch.usz.c3pro.questionnaire;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.researchstack.backbone.result.StepResult;
+import org.researchstack.backbone.result.TaskResult;
+import org.researchstack.backbone.step.Step;
+import org.researchstack.backbone.task.Task;
+import org.researchstack.backbone.ui.callbacks.StepCallbacks;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * The AnswerLog saves the answers of a questionnaire session while the user is filling it out, so
+ * they are not lost when the app crashes or the process is killed. Every answer is appended to a
+ * log file as a small record with a checksum; a record that was only partly written is ignored
+ * when the log is read. When the log holds a lot more records than answers, it is compacted to
+ * the latest answer of every step.
+ * <p/>
+ * A log is identified by the identifier of its Task, so a new session of the same questionnaire
+ * can be resumed with {@link #restoreResult(Task)} and {@link #restoreStep(Task, TaskResult)}.
+ * Logs are read in the background by {@link #preload(File, String)}, e.g. as soon as the Task has
+ * been prepared. Answers are kept in memory right away and written to the file by one background
+ * thread in the order they were appended. They are passed to the operating system, but not synced
+ * to the storage device, except on compaction.
+ */
+public class AnswerLog {
+    public static final String LTAG = "C3PRO";
+    private static final String DIRECTORY = "c3pro_answer_logs";
+    private static final String SUFFIX = ".answers";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int COMPACT_MIN_RECORDS = 32;
+    // length before and checksum after the bytes of a record
+    private static final int RECORD_OVERHEAD = 4 + 8;
+
+    private static final byte VALUE_NULL = 0;
+    private static final byte VALUE_BOOLEAN = 1;
+    private static final byte VALUE_INTEGER = 2;
+    private static final byte VALUE_LONG = 3;
+    private static final byte VALUE_DOUBLE = 4;
+    private static final byte VALUE_STRING = 5;
+    private static final byte VALUE_ARRAY = 6;
+    private static final byte VALUE_SERIALIZED = 7;
+    private static final byte VALUE_TYPED_ARRAY = 8;
+
+    private static final ExecutorService writer = Executors.newSingleThreadExecutor();
+    private static final Map<String, Future<AnswerLog>> preloaded = new ConcurrentHashMap<>();
+
+    private final File file;
+    private final Map<String, Record> latest = new LinkedHashMap<>();
+    private Record last;
+    private int recordCount;
+    /**
+     * Only used on the writer thread.
+     */
+    private DataOutputStream out;
+
+    /**
+     * One answer as it is stored in the log.
+     */
+    private static class Record {
+        String stepIdentifier;
+        int action;
+        long startDate;
+        long endDate;
+        Map<String, Object> results;
+        byte[] bytes;
+    }
+
+    /**
+     * Returns the directory the logs are kept in by default. It is in the files directory, so the
+     * logs are not removed when the system needs space.
+     */
+    public static File getDefaultDirectory(Context context) {
+        return new File(context.getFilesDir(), DIRECTORY);
+    }
+
+    /**
+     * Starts reading the log of the task with the passed identifier in the background, so
+     * {@link #open(File, String)} does not have to read it on the calling thread.
+     */
+    public static void preload(final File directory, final String taskIdentifier) {
+        String path = fileOf(directory, taskIdentifier).getPath();
+        if (preloaded.containsKey(path)) {
+            return;
+        }
+        preloaded.put(path, writer.submit(new Callable<AnswerLog>() {
+            @Override
+            public AnswerLog call() {
+                return new AnswerLog(directory, taskIdentifier);
+            }
+        }));
+    }
+
+    /**
+     * Returns the log of the task with the passed identifier in the directory. If it has been
+     * preloaded, the log that was read in the background is returned, otherwise, or if it is still
+     * being read, the calling thread waits for it.
+     */
+    public static AnswerLog open(File directory, String taskIdentifier) {
+        Future<AnswerLog> log = preloaded.remove(fileOf(directory, taskIdentifier).getPath());
+        if (log != null) {
+            try {
+                return log.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                Log.e(LTAG, "could not preload the answers of " + taskIdentifier, e.getCause());
+            }
+        }
+        return new AnswerLog(directory, taskIdentifier);
+    }
+
+    /**
+     * Opens the log of the task with the passed identifier in the directory and reads the records
+     * that were saved before on the calling thread.
+     */
+    public AnswerLog(File directory, String taskIdentifier) {
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.e(LTAG, "could not create " + directory);
+        }
+        file = fileOf(directory, taskIdentifier);
+        readRecords();
+    }
+
+    private static File fileOf(File directory, String taskIdentifier) {
+        return new File(directory, sanitize(taskIdentifier) + SUFFIX);
+    }
+
+    /**
+     * Returns true if answers of a previous session have been found.
+     */
+    public synchronized boolean hasAnswers() {
+        return !latest.isEmpty();
+    }
+
+    /**
+     * Appends the answer of the step. The action is the {@link StepCallbacks} action that was
+     * taken, it is used to find the step to resume at.
+     */
+    public synchronized void append(int action, Step step, StepResult<?> result) {
+        if (step == null || result == null) {
+            return;
+        }
+        Record record = new Record();
+        record.stepIdentifier = step.getIdentifier();
+        record.action = action;
+        record.startDate = result.getStartDate() != null ? result.getStartDate().getTime() : 0;
+        record.endDate = result.getEndDate() != null ? result.getEndDate().getTime() : 0;
+        record.results = new LinkedHashMap<String, Object>(result.getResults());
+
+        try {
+            record.bytes = encode(record);
+        } catch (IOException e) {
+            Log.e(LTAG, "could not encode answer for " + file, e);
+            return;
+        }
+        final byte[] bytes = record.bytes;
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (out == null) {
+                        out = new DataOutputStream(new FileOutputStream(file, true));
+                    }
+                    writeRecord(out, bytes);
+                    out.flush();
+                } catch (IOException e) {
+                    Log.e(LTAG, "could not append answer to " + file, e);
+                }
+            }
+        });
+
+        latest.remove(record.stepIdentifier);
+        latest.put(record.stepIdentifier, record);
+        last = record;
+        recordCount++;
+
+        if (recordCount >= COMPACT_MIN_RECORDS && recordCount > 2 * latest.size()) {
+            compact();
+        }
+    }
+
+    /**
+     * Returns a TaskResult with the saved answers for all the steps of the task that can be found.
+     */
+    public synchronized TaskResult restoreResult(Task task) {
+        TaskResult taskResult = new TaskResult(task.getIdentifier());
+        for (Record record : latest.values()) {
+            Step step = task.getStepWithIdentifier(record.stepIdentifier);
+            if (step != null) {
+                StepResult<Object> stepResult = new StepResult<>(step);
+                for (Map.Entry<String, Object> entry : record.results.entrySet()) {
+                    stepResult.setResultForIdentifier(entry.getKey(), entry.getValue());
+                }
+                stepResult.setStartDate(new Date(record.startDate));
+                stepResult.setEndDate(new Date(record.endDate));
+                taskResult.setStepResultForStepIdentifier(record.stepIdentifier, stepResult);
+            }
+        }
+        return taskResult;
+    }
+
+    /**
+     * Returns the step the user would have seen next when the session was interrupted, or the
+     * first step if there is none.
+     */
+    public synchronized Step restoreStep(Task task, TaskResult taskResult) {
+        Step resume = null;
+        if (last != null) {
+            Step step = task.getStepWithIdentifier(last.stepIdentifier);
+            if (step != null) {
+                if (last.action == StepCallbacks.ACTION_PREV) {
+                    resume = task.getStepBeforeStep(step, taskResult);
+                } else {
+                    resume = task.getStepAfterStep(step, taskResult);
+                }
+                if (resume == null) {
+                    resume = step;
+                }
+            }
+        }
+        return resume != null ? resume : task.getStepAfterStep(null, taskResult);
+    }
+
+    /**
+     * Rewrites the log in the background with only the latest answer of every step.
+     */
+    public synchronized void compact() {
+        final List<byte[]> records = new ArrayList<>();
+        for (Record record : latest.values()) {
+            if (record != last) {
+                records.add(record.bytes);
+            }
+        }
+        // the last answer stays last, so the step to resume at can be found
+        if (last != null) {
+            records.add(last.bytes);
+        }
+        // answers appended from now on are written after the compacted ones
+        recordCount = records.size();
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                rewrite(records);
+            }
+        });
+    }
+
+    private void rewrite(List<byte[]> records) {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOut = null;
+        try {
+            closeOut();
+            fileOut = new FileOutputStream(tmp);
+            DataOutputStream tmpOut = new DataOutputStream(fileOut);
+            for (byte[] record : records) {
+                writeRecord(tmpOut, record);
+            }
+            tmpOut.flush();
+            fileOut.getFD().sync();
+            tmpOut.close();
+            fileOut = null;
+            if (!tmp.renameTo(file)) {
+                Log.e(LTAG, "could not compact " + file);
+            }
+        } catch (IOException e) {
+            Log.e(LTAG, "could not compact " + file, e);
+        } finally {
+            if (fileOut != null) {
+                try {
+                    fileOut.close();
+                } catch (IOException e) {
+                    // nothing left to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the log and deletes its file in the background, e.g. when the questionnaire has been
+     * completed or cancelled by the user.
+     */
+    public synchronized void delete() {
+        latest.clear();
+        last = null;
+        recordCount = 0;
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeOut();
+                if (file.exists() && !file.delete()) {
+                    Log.e(LTAG, "could not delete " + file);
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits until the answers appended so far are written and closes the log file, it is opened
+     * again on the next append.
+     */
+    public void close() {
+        Future<?> closed = writer.submit(new Runnable() {
+            @Override
+            public void run() {
+                closeOut();
+            }
+        });
+        try {
+            closed.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(LTAG, "could not close " + file, e.getCause());
+        }
+    }
+
+    private void closeOut() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                Log.e(LTAG, "could not close " + file, e);
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * Reads all complete records. Reading stops at the first record that is incomplete, has a
+     * wrong checksum or cannot be decoded, which can only be the last one written before a crash.
+     * The file is cut off after the last complete record, so the answers appended later are not
+     * lost behind it.
+     */
+    private void readRecords() {
+        if (!file.exists()) {
+            return;
+        }
+        long fileLength = file.length();
+        long goodLength = 0;
+        boolean torn = false;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            while (goodLength < fileLength) {
+                int length = in.readInt();
+                if (length <= 0 || length > fileLength - goodLength) {
+                    torn = true;
+                    break;
+                }
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                long checksum = in.readLong();
+                CRC32 crc = new CRC32();
+                crc.update(bytes);
+                if (crc.getValue() != checksum) {
+                    torn = true;
+                    break;
+                }
+                Record record;
+                try {
+                    record = decode(bytes);
+                } catch (IOException | ClassNotFoundException e) {
+                    // the checksum matches, but the answer cannot be read back
+                    Log.e(LTAG, "could not decode an answer in " + file, e);
+                    torn = true;
+                    break;
+                }
+                latest.remove(record.stepIdentifier);
+                latest.put(record.stepIdentifier, record);
+                last = record;
+                recordCount++;
+                goodLength += RECORD_OVERHEAD + length;
+            }
+        } catch (EOFException e) {
+            // a record that was not written completely
+            torn = true;
+        } catch (IOException e) {
+            Log.e(LTAG, "could not read " + file, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing left to do
+                }
+            }
+        }
+        if (torn) {
+            truncate(goodLength);
+        }
+    }
+
+    private void truncate(long length) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(length);
+            Log.w(LTAG, "dropped an incomplete answer at the end of " + file);
+        } catch (IOException e) {
+            Log.e(LTAG, "could not truncate " + file, e);
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    // nothing left to do
+                }
+            }
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, byte[] bytes) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.writeLong(crc.getValue());
+    }
+
+    private static byte[] encode(Record record) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeUTF(record.stepIdentifier);
+        data.writeInt(record.action);
+        data.writeLong(record.startDate);
+        data.writeLong(record.endDate);
+        data.writeInt(record.results.size());
+        for (Map.Entry<String, Object> entry : record.results.entrySet()) {
+            data.writeUTF(entry.getKey());
+            writeValue(data, entry.getValue());
+        }
+        data.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Record decode(byte[] bytes) throws IOException, ClassNotFoundException {
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(bytes));
+        Record record = new Record();
+        record.bytes = bytes;
+        record.stepIdentifier = data.readUTF();
+        record.action = data.readInt();
+        record.startDate = data.readLong();
+        record.endDate = data.readLong();
+        int count = data.readInt();
+        record.results = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            String key = data.readUTF();
+            record.results.put(key, readValue(data));
+        }
+        return record;
+    }
+
+    /**
+     * Writes the answer types used by the ResearchStack step bodies compactly, anything else is
+     * written with Java serialization.
+     */
+    private static void writeValue(DataOutputStream data, Object value) throws IOException {
+        if (value == null) {
+            data.writeByte(VALUE_NULL);
+        } else if (value instanceof Boolean) {
+            data.writeByte(VALUE_BOOLEAN);
+            data.writeBoolean((Boolean) value);
+        } else if (value instanceof Integer) {
+            data.writeByte(VALUE_INTEGER);
+            data.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            data.writeByte(VALUE_LONG);
+            data.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            data.writeByte(VALUE_DOUBLE);
+            data.writeDouble((Double) value);
+        } else if (value instanceof String) {
+            // writeUTF() is limited to 64k, text answers can be longer
+            byte[] bytes = ((String) value).getBytes(UTF8);
+            data.writeByte(VALUE_STRING);
+            data.writeInt(bytes.length);
+            data.write(bytes);
+        } else if (value instanceof Object[]) {
+            // the element type is kept, a String[] answer has to be restored as a String[]
+            Object[] array = (Object[]) value;
+            data.writeByte(VALUE_TYPED_ARRAY);
+            data.writeUTF(array.getClass().getComponentType().getName());
+            data.writeInt(array.length);
+            for (Object element : array) {
+                writeValue(data, element);
+            }
+        } else {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream objectOut = new ObjectOutputStream(bytes);
+            objectOut.writeObject((Serializable) value);
+            objectOut.close();
+            data.writeByte(VALUE_SERIALIZED);
+            data.writeInt(bytes.size());
+            data.write(bytes.toByteArray());
+        }
+    }
+
+    private static Object readValue(DataInputStream data) throws IOException, ClassNotFoundException {
+        byte type = data.readByte();
+        switch (type) {
+            case VALUE_NULL:
+                return null;
+            case VALUE_BOOLEAN:
+                return data.readBoolean();
+            case VALUE_INTEGER:
+                return data.readInt();
+            case VALUE_LONG:
+                return data.readLong();
+            case VALUE_DOUBLE:
+                return data.readDouble();
+            case VALUE_STRING:
+                byte[] string = new byte[data.readInt()];
+                data.readFully(string);
+                return new String(string, UTF8);
+            case VALUE_ARRAY:
+                return readArray(data, Object.class);
+            case VALUE_TYPED_ARRAY:
+                return readArray(data, Class.forName(data.readUTF()));
+            case VALUE_SERIALIZED:
+                byte[] bytes = new byte[data.readInt()];
+                data.readFully(bytes);
+                ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(bytes));
+                try {
+                    return objectIn.readObject();
+                } finally {
+                    objectIn.close();
+                }
+            default:
+                throw new IOException("unknown value type " + type);
+        }
+    }
+
+    private static Object[] readArray(DataInputStream data, Class<?> componentType) throws IOException, ClassNotFoundException {
+        int length = data.readInt();
+        Object[] array = (Object[]) Array.newInstance(componentType, length);
+        for (int i = 0; i < length; i++) {
+            array[i] = readValue(data);
+        }
+        return array;
+    }
+
+    private static String sanitize(String identifier) {
+        String name = identifier != null ? identifier : "task";
+        return name.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+}
@@ -0,0 +1,205 @@
+package ch.usz.c3pro.questionnaire;
+
+import android.content.Context;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.Button;
+import android.widget.CheckBox;
+import android.widget.CompoundButton;
+import android.widget.EditText;
+import android.widget.LinearLayout;
+import android.widget.RadioButton;
+
+import org.researchstack.backbone.answerformat.AnswerFormat;
+import org.researchstack.backbone.model.Choice;
+import org.researchstack.backbone.result.StepResult;
+import org.researchstack.backbone.step.QuestionStep;
+import org.researchstack.backbone.step.Step;
+import org.researchstack.backbone.ui.step.body.BodyAnswer;
+import org.researchstack.backbone.ui.step.body.StepBody;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ch.usz.c3pro.R;
+import ch.usz.c3pro.questionnaire.logic.LargeChoiceAnswerFormat;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+
+/**
+ * The StepBody of a {@link LargeChoiceAnswerFormat}. It shows a search field above the Choices and
+ * only creates the rows of the first page of Choices, more pages are added when the user asks for
+ * them. Typing into the search field filters the Choices with the index of the format, so the body
+ * stays responsive with thousands of options.
+ * <p/>
+ * The result is the value of the selected Choice, or an array of the values for multiple choice,
+ * like the StepBodies of ResearchStack return them.
+ */
+public class LargeChoiceQuestionBody implements StepBody {
+    public static final AnswerFormat.QuestionType TYPE = new AnswerFormat.QuestionType() {
+        @Override
+        public Class<?> getStepBodyClass() {
+            return LargeChoiceQuestionBody.class;
+        }
+    };
+
+    private final StepResult<Object> result;
+    private final LargeChoiceAnswerFormat format;
+    private final boolean multipleChoice;
+    private final List<Object> selected = new ArrayList<>();
+    private String query = "";
+
+    private transient int[] positions;
+    private transient int shownPages;
+    private transient LinearLayout rows;
+    private transient Button more;
+
+    @SuppressWarnings("unchecked")
+    public LargeChoiceQuestionBody(Step step, StepResult result) {
+        this.result = result == null ? new StepResult<>(step) : (StepResult<Object>) result;
+        format = (LargeChoiceAnswerFormat) ((QuestionStep) step).getAnswerFormat();
+        multipleChoice = format.getAnswerStyle() == AnswerFormat.ChoiceAnswerStyle.MultipleChoice;
+
+        Object answer = this.result.getResult();
+        if (answer instanceof Object[]) {
+            selected.addAll(Arrays.asList((Object[]) answer));
+        } else if (answer != null) {
+            selected.add(answer);
+        }
+    }
+
+    @Override
+    public View getBodyView(int viewType, LayoutInflater inflater, ViewGroup parent) {
+        Context context = inflater.getContext();
+        LinearLayout body = new LinearLayout(context);
+        body.setOrientation(LinearLayout.VERTICAL);
+
+        EditText search = new EditText(context);
+        search.setSingleLine(true);
+        search.setHint(R.string.c3pro_large_choice_search);
+        search.setText(query);
+        search.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                showMatches(s.toString());
+            }
+        });
+        body.addView(search);
+
+        rows = new LinearLayout(context);
+        rows.setOrientation(LinearLayout.VERTICAL);
+        body.addView(rows);
+
+        more = new Button(context);
+        more.setText(R.string.c3pro_large_choice_more);
+        more.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                showNextPage();
+            }
+        });
+        body.addView(more);
+
+        showMatches(query);
+        return body;
+    }
+
+    /**
+     * Shows the first page of the Choices that match the query.
+     */
+    private void showMatches(String newQuery) {
+        query = newQuery;
+        positions = format.filter(query);
+        shownPages = 0;
+        rows.removeAllViews();
+        showNextPage();
+    }
+
+    private void showNextPage() {
+        for (Choice choice : format.getPage(positions, shownPages)) {
+            rows.addView(createRow(choice));
+        }
+        shownPages++;
+        more.setVisibility(shownPages * LargeChoiceAnswerFormat.PAGE_SIZE < positions.length ? View.VISIBLE : View.GONE);
+    }
+
+    private CompoundButton createRow(final Choice choice) {
+        Context context = rows.getContext();
+        CompoundButton row = multipleChoice ? new CheckBox(context) : new RadioButton(context);
+        row.setText(choice.getText());
+        row.setChecked(selected.contains(choice.getValue()));
+        row.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton button, boolean isChecked) {
+                select(button, choice.getValue(), isChecked);
+            }
+        });
+        return row;
+    }
+
+    private void select(CompoundButton button, Object value, boolean isChecked) {
+        if (!isChecked) {
+            selected.remove(value);
+            return;
+        }
+        if (!multipleChoice) {
+            selected.clear();
+            // the rows are not in a RadioGroup, uncheck the previous choice
+            for (int i = 0; i < rows.getChildCount(); i++) {
+                CompoundButton row = (CompoundButton) rows.getChildAt(i);
+                if (row != button && row.isChecked()) {
+                    row.setChecked(false);
+                }
+            }
+        }
+        selected.add(value);
+    }
+
+    @Override
+    public StepResult getStepResult(boolean skipped) {
+        if (skipped || selected.isEmpty()) {
+            result.setResult(null);
+        } else if (multipleChoice) {
+            result.setResult(selected.toArray());
+        } else {
+            result.setResult(selected.get(0));
+        }
+        return result;
+    }
+
+    @Override
+    public BodyAnswer getBodyAnswerState() {
+        return selected.isEmpty() ? BodyAnswer.INVALID : BodyAnswer.VALID;
+    }
+}
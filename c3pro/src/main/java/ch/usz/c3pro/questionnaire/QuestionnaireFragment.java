@@ -19,7 +19,6 @@ import java.io.Serializable;
 
 import ch.usz.c3pro.C3PRO;
 import ch.usz.c3pro.dataqueue.DataQueue;
-import ch.usz.c3pro.questionnaire.jobs.PrepareTaskJob;
 import ch.usz.c3pro.questionnaire.jobs.QuestionnaireResponseJob;
 
 /**
@@ -53,6 +52,8 @@ public class QuestionnaireFragment extends Fragment {
 
     private Questionnaire questionnaire;
     private Task mTask;
+    private TaskPreparer.Request preparation;
+    private int firstSteps;
     private QuestionnaireFragmentListener mCallback;
 
 
@@ -79,18 +80,44 @@ public class QuestionnaireFragment extends Fragment {
         mCallback = listener;
     }
 
+    /**
+     * If set to a number greater than 0, whenTaskReady() is called as soon as that many steps are
+     * converted. The rest of the Questionnaire is converted in the background or when the user
+     * reaches it.
+     */
+    public void setFirstSteps(int steps) {
+        firstSteps = steps;
+    }
+
+    /**
+     * Prepares the Task for the Questionnaire and calls whenTaskReady() on the listener. The Task is
+     * taken from the TaskCache of the C3PRO if the Questionnaire has been prefetched or used before.
+     * Otherwise it is converted in the background by the TaskPreparer, which attaches repeated
+     * calls and other fragments with the same Questionnaire to the conversion in progress.
+     */
     public void prepareTaskViewActivity() {
-        if (mTask == null) {
-            PrepareTaskJob job = new PrepareTaskJob(questionnaire, new DataQueue.TaskReceiver() {
+        if (mTask != null) {
+            mCallback.whenTaskReady();
+        } else if (preparation == null) {
+            preparation = C3PRO.getTaskPreparer().prepare(questionnaire, firstSteps, new DataQueue.TaskFailureReceiver() {
                 @Override
                 public void receiveTask(Task task) {
+                    preparation = null;
                     mTask = task;
+                    if (C3PRO.getTaskRegistry() != null && getActivity() != null) {
+                        // read before the session starts, so the activity does not wait for it
+                        AnswerLog.preload(AnswerLog.getDefaultDirectory(getActivity()), task.getIdentifier());
+                    }
                     mCallback.whenTaskReady();
                 }
+
+                @Override
+                public void taskFailed(Throwable throwable) {
+                    preparation = null;
+                    Log.e(LTAG, "could not prepare the Task", throwable);
+                    mCallback.whenCancelledOrFailed();
+                }
             });
-            C3PRO.getJobManager().addJobInBackground(job);
-        } else {
-            mCallback.whenTaskReady();
         }
     }
 
@@ -103,7 +130,13 @@ public class QuestionnaireFragment extends Fragment {
             mCallback.whenCancelledOrFailed();
             Log.d(LTAG, "no Task prepared yet");
         } else {
-            Intent intent = ViewTaskActivity.newIntent(getContext(), mTask);
+            Intent intent;
+            if (C3PRO.getTaskRegistry() != null) {
+                String handle = C3PRO.getTaskRegistry().register(mTask);
+                intent = QuestionnaireViewTaskActivity.newIntent(getContext(), handle);
+            } else {
+                intent = ViewTaskActivity.newIntent(getContext(), mTask);
+            }
             startActivityForResult(intent, TASKVIEW_REQUEST_ID);
         }
     }
@@ -114,7 +147,14 @@ public class QuestionnaireFragment extends Fragment {
         if (requestCode == TASKVIEW_REQUEST_ID) {
             switch (resultCode) {
                 case AppCompatActivity.RESULT_OK:
-                    TaskResult taskResult = (TaskResult) data.getExtras().get(ViewTaskActivity.EXTRA_TASK_RESULT);
+                    TaskResult taskResult;
+                    String handle = data.getStringExtra(QuestionnaireViewTaskActivity.EXTRA_TASK_HANDLE);
+                    if (handle != null) {
+                        taskResult = C3PRO.getTaskRegistry().getResult(handle);
+                        C3PRO.getTaskRegistry().release(handle);
+                    } else {
+                        taskResult = (TaskResult) data.getExtras().get(ViewTaskActivity.EXTRA_TASK_RESULT);
+                    }
                     QuestionnaireResponseJob job = new QuestionnaireResponseJob(taskResult, new DataQueue.QuestionnaireResponseReceiver() {
                         @Override
                         public void receiveResponse(QuestionnaireResponse questionnaireResponse) {
@@ -124,6 +164,9 @@ public class QuestionnaireFragment extends Fragment {
                     C3PRO.getJobManager().addJobInBackground(job);
                     break;
                 case AppCompatActivity.RESULT_CANCELED:
+                    if (data != null && data.hasExtra(QuestionnaireViewTaskActivity.EXTRA_TASK_HANDLE)) {
+                        C3PRO.getTaskRegistry().release(data.getStringExtra(QuestionnaireViewTaskActivity.EXTRA_TASK_HANDLE));
+                    }
                     mCallback.whenCancelledOrFailed();
             }
         }
@@ -136,6 +179,18 @@ public class QuestionnaireFragment extends Fragment {
         setRetainInstance(true);
     }
 
+    /**
+     * A preparation still in progress is not needed anymore.
+     */
+    @Override
+    public void onDestroy() {
+        if (preparation != null) {
+            preparation.cancel();
+            preparation = null;
+        }
+        super.onDestroy();
+    }
+
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
                              Bundle savedInstanceState) {
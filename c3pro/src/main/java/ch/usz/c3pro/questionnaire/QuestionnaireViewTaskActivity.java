@@ -0,0 +1,177 @@
+package ch.usz.c3pro.questionnaire;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.support.v7.app.AppCompatActivity;
+import android.util.Log;
+
+import org.researchstack.backbone.result.StepResult;
+import org.researchstack.backbone.result.TaskResult;
+import org.researchstack.backbone.step.Step;
+import org.researchstack.backbone.task.OrderedTask;
+import org.researchstack.backbone.task.Task;
+import org.researchstack.backbone.ui.ViewTaskActivity;
+import org.researchstack.backbone.ui.callbacks.StepCallbacks;
+
+import java.util.ArrayList;
+import java.util.Date;
+
+import ch.usz.c3pro.C3PRO;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * This ViewTaskActivity gets its Task from the {@link TaskRegistry} by a handle passed in the
+ * Intent, instead of a serialized copy of the Task. When the Task is completed, the result Intent
+ * only contains the handle, the TaskResult itself can be taken from the TaskRegistry.
+ * The saved instance state also only contains the handle, the TaskResult is persisted by the
+ * TaskRegistry in case the process gets killed.
+ * Every answer is also appended to an {@link AnswerLog}. If the app crashed during a session, the
+ * next session of the same questionnaire resumes with the saved answers at the step the user
+ * was at. The log is written in the background and read ahead by the {@link QuestionnaireFragment}.
+ * If the Task of the handle cannot be found anymore, the activity finishes with RESULT_CANCELED.
+ * It is declared in the library's AndroidManifest and used by the {@link QuestionnaireFragment}.
+ */
+public class QuestionnaireViewTaskActivity extends ViewTaskActivity {
+    public static final String LTAG = "C3PRO";
+    public static final String EXTRA_TASK_HANDLE = "QuestionnaireViewTaskActivity.ExtraTaskHandle";
+
+    private String handle;
+    private Task task;
+    private TaskResult taskResult;
+    private AnswerLog answerLog;
+    private boolean completed;
+
+    /**
+     * Returns an Intent to start the QuestionnaireViewTaskActivity for the Task registered with the
+     * handle in the {@link TaskRegistry} of the C3PRO.
+     */
+    public static Intent newIntent(Context context, String taskHandle) {
+        Intent intent = new Intent(context, QuestionnaireViewTaskActivity.class);
+        intent.putExtra(EXTRA_TASK_HANDLE, taskHandle);
+        return intent;
+    }
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        TaskRegistry registry = C3PRO.getTaskRegistry();
+        if (savedInstanceState == null) {
+            handle = getIntent().getStringExtra(EXTRA_TASK_HANDLE);
+        } else {
+            handle = savedInstanceState.getString(EXTRA_TASK_HANDLE);
+        }
+        task = registry.getTask(handle);
+        if (task == null) {
+            finishWithoutTask();
+            return;
+        }
+        // usually preloaded by the QuestionnaireFragment when the Task was prepared
+        answerLog = AnswerLog.open(AnswerLog.getDefaultDirectory(this), task.getIdentifier());
+        if (savedInstanceState == null) {
+            // the extras are not parceled within the process, so this does not copy the Task
+            getIntent().putExtra(EXTRA_TASK, task);
+            if (answerLog.hasAnswers()) {
+                // a previous session was interrupted, resume it as if the state had been saved
+                taskResult = answerLog.restoreResult(task);
+                savedInstanceState = new Bundle();
+                savedInstanceState.putSerializable(EXTRA_TASK, task);
+                savedInstanceState.putSerializable(EXTRA_TASK_RESULT, taskResult);
+                savedInstanceState.putSerializable(EXTRA_STEP, answerLog.restoreStep(task, taskResult));
+            } else {
+                taskResult = new TaskResult(task.getIdentifier());
+            }
+            registry.putResult(handle, taskResult);
+        } else {
+            taskResult = registry.getResult(handle);
+            if (taskResult == null) {
+                taskResult = new TaskResult(task.getIdentifier());
+                registry.putResult(handle, taskResult);
+            }
+            savedInstanceState.putSerializable(EXTRA_TASK, task);
+            savedInstanceState.putSerializable(EXTRA_TASK_RESULT, taskResult);
+        }
+        super.onCreate(savedInstanceState);
+    }
+
+    /**
+     * The Task of the handle is gone, e.g. because it has expired in the TaskRegistry while the app
+     * was in the background. The ViewTaskActivity needs a Task to be created, so it gets an empty
+     * one and the activity finishes right away with RESULT_CANCELED.
+     */
+    private void finishWithoutTask() {
+        Log.e(LTAG, "no Task registered for handle " + handle);
+        String identifier = handle != null ? handle : "unknown";
+        task = new OrderedTask(identifier, new ArrayList<Step>());
+        taskResult = new TaskResult(identifier);
+        getIntent().putExtra(EXTRA_TASK, task);
+        super.onCreate(null);
+        finish();
+    }
+
+    /**
+     * Keeps a copy of the answers in the TaskResult of the TaskRegistry and checks if the Task
+     * has been completed.
+     */
+    @Override
+    public void onSaveStep(int action, Step step, StepResult result) {
+        if (result != null) {
+            taskResult.setStepResultForStepIdentifier(step.getIdentifier(), result);
+            answerLog.append(action, step, result);
+        }
+        if (action == StepCallbacks.ACTION_NEXT && task.getStepAfterStep(step, taskResult) == null) {
+            completed = true;
+        }
+        super.onSaveStep(action, step, result);
+    }
+
+    /**
+     * Only the handle is saved, the TaskResult is persisted by the TaskRegistry.
+     */
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.remove(EXTRA_TASK);
+        outState.remove(EXTRA_TASK_RESULT);
+        outState.putString(EXTRA_TASK_HANDLE, handle);
+        C3PRO.getTaskRegistry().persistResult(handle);
+    }
+
+    /**
+     * Replaces the result Intent containing the serialized TaskResult by one containing the handle,
+     * so the caller can take the TaskResult from the TaskRegistry and release it.
+     */
+    @Override
+    public void finish() {
+        Intent resultIntent = new Intent();
+        resultIntent.putExtra(EXTRA_TASK_HANDLE, handle);
+        if (completed) {
+            taskResult.setEndDate(new Date());
+            setResult(AppCompatActivity.RESULT_OK, resultIntent);
+        } else {
+            setResult(AppCompatActivity.RESULT_CANCELED, resultIntent);
+        }
+        // the session has ended, there is nothing left to resume
+        if (answerLog != null) {
+            answerLog.delete();
+        }
+        super.finish();
+    }
+}
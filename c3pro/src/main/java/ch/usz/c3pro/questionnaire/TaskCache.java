@@ -0,0 +1,334 @@
+package ch.usz.c3pro.questionnaire;
+
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.researchstack.backbone.task.Task;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ch.usz.c3pro.memory.MemoryGovernor;
+import ch.usz.c3pro.memory.MemorySizes;
+import ch.usz.c3pro.questionnaire.logic.Translations;
+import ch.usz.c3pro.utils.StringUtil;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * The TaskCache keeps FHIR {@link org.hl7.fhir.dstu3.model.Questionnaire}s together with the
+ * ResearchStack {@link org.researchstack.backbone.task.Task}s converted from them, so a
+ * questionnaire that has been prefetched or used recently can be opened without network access
+ * and without converting it again. Questionnaires are identified by their canonical URL and version,
+ * or by their id if they have no URL. The least recently used entries are removed when the cache
+ * is full, or when the {@link MemoryGovernor} it is registered with needs memory.
+ * Entries expire after {@link #DEFAULT_MAX_AGE_MS}, so a questionnaire that has been changed on the
+ * server is downloaded again. A questionnaire with a different meta.versionId than the cached one
+ * does not find the cached Task either.
+ * Tasks are localized to the active language of the {@link Translations} when they are converted;
+ * a Task converted for another language is not returned.
+ * The TaskCache is provided as a singleton by the C3PRO class.
+ */
+public class TaskCache implements MemoryGovernor.Consumer {
+    public static final int DEFAULT_MAX_ENTRIES = 20;
+    public static final long DEFAULT_MAX_AGE_MS = 24L * 60 * 60 * 1000;
+
+    private final Map<String, Entry> entries;
+    private long retainedSize;
+    private long maxAgeMs = DEFAULT_MAX_AGE_MS;
+    private long nextSequence;
+    private MemoryGovernor governor;
+
+    /**
+     * A cached Questionnaire and its Task.
+     */
+    public static class Entry {
+        private final Questionnaire questionnaire;
+        private final Task task;
+        private final String language;
+        private final long size;
+        private final long cachedAt;
+        /**
+         * Orders the entries by the time they were put into the cache.
+         */
+        private long sequence;
+
+        private Entry(Questionnaire questionnaire, Task task) {
+            this.questionnaire = questionnaire;
+            this.task = task;
+            language = Translations.getLanguageTag();
+            size = MemorySizes.questionnaire(questionnaire) + MemorySizes.task(task);
+            cachedAt = System.currentTimeMillis();
+        }
+
+        public Questionnaire getQuestionnaire() {
+            return questionnaire;
+        }
+
+        public Task getTask() {
+            return task;
+        }
+
+        /**
+         * Returns the language tag that was active when the Task was cached.
+         */
+        public String getLanguage() {
+            return language;
+        }
+
+        /**
+         * Returns the time the entry was put into the cache, in milliseconds since the epoch.
+         */
+        public long getCachedAt() {
+            return cachedAt;
+        }
+    }
+
+    public TaskCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Returns a TaskCache that keeps at most maxEntries Tasks.
+     */
+    public TaskCache(final int maxEntries) {
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > maxEntries) {
+                    retainedSize -= eldest.getValue().size;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Sets the time after which entries expire, in milliseconds.
+     */
+    public synchronized void setMaxAge(long maxAgeMs) {
+        this.maxAgeMs = maxAgeMs;
+    }
+
+    /**
+     * Registers the cache with the governor, which is then told when Tasks are added. The cache is
+     * unregistered from the previous governor, null only unregisters it.
+     */
+    public void setMemoryGovernor(MemoryGovernor memoryGovernor) {
+        MemoryGovernor previous;
+        synchronized (this) {
+            previous = governor;
+            governor = memoryGovernor;
+        }
+        if (previous != null && previous != memoryGovernor) {
+            previous.unregister(this);
+        }
+        if (memoryGovernor != null) {
+            memoryGovernor.register(this, MemoryGovernor.PRIORITY_CONVERTED);
+        }
+    }
+
+    /**
+     * Returns the key the questionnaire is cached with: URL|version, URL or the id of the
+     * questionnaire.
+     */
+    public static String keyFor(Questionnaire questionnaire) {
+        if (questionnaire.hasUrl()) {
+            String version = questionnaire.getVersion();
+            return StringUtil.isNotNullOrEmpty(version) ? questionnaire.getUrl() + "|" + version : questionnaire.getUrl();
+        }
+        return questionnaire.getIdElement().getIdPart();
+    }
+
+    /**
+     * Returns the key of the questionnaire a search for its canonical URL finds, e.g.
+     * Questionnaire?url=http://example.org/q&version=2, so its Task can be looked up before the
+     * search is sent. Returns null for other searches.
+     */
+    public static String keyForSearch(String searchURL) {
+        int query = searchURL.indexOf('?');
+        String path = query < 0 ? searchURL : searchURL.substring(0, query);
+        if (query < 0 || !(path.equals("Questionnaire") || path.endsWith("/Questionnaire"))) {
+            return null;
+        }
+        String url = null;
+        String version = null;
+        try {
+            for (String parameter : searchURL.substring(query + 1).split("&")) {
+                int separator = parameter.indexOf('=');
+                if (separator < 0) {
+                    continue;
+                }
+                String name = parameter.substring(0, separator);
+                String value = URLDecoder.decode(parameter.substring(separator + 1), "UTF-8");
+                if (name.equals("url")) {
+                    url = value;
+                } else if (name.equals("version")) {
+                    version = value;
+                } else if (name.equals("_elements") || name.equals("_summary")) {
+                    // projected questionnaires are not converted
+                    return null;
+                }
+            }
+        } catch (UnsupportedEncodingException e) {
+            // every Java platform has to support UTF-8
+            throw new IllegalStateException(e);
+        }
+        if (!StringUtil.isNotNullOrEmpty(url)) {
+            return null;
+        }
+        return StringUtil.isNotNullOrEmpty(version) ? url + "|" + version : url;
+    }
+
+    /**
+     * Caches the Task converted from the questionnaire.
+     */
+    public void put(Questionnaire questionnaire, Task task) {
+        String key = keyFor(questionnaire);
+        if (key == null) {
+            return;
+        }
+        Entry entry = new Entry(questionnaire, task);
+        MemoryGovernor memoryGovernor;
+        synchronized (this) {
+            entry.sequence = nextSequence++;
+            retainedSize += entry.size;
+            Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                retainedSize -= previous.size;
+            }
+            memoryGovernor = governor;
+        }
+        if (memoryGovernor != null) {
+            memoryGovernor.enforce();
+        }
+    }
+
+    /**
+     * Returns the cached Task of the questionnaire for the active language, or null. If both the
+     * questionnaire and the cached one have a meta.versionId, they have to be the same.
+     */
+    public synchronized Task getTask(Questionnaire questionnaire) {
+        String key = keyFor(questionnaire);
+        Entry entry = key != null ? getFresh(key) : null;
+        if (entry == null || !sameVersionId(entry.getQuestionnaire(), questionnaire)) {
+            return null;
+        }
+        return entry.getLanguage().equals(Translations.getLanguageTag()) ? entry.getTask() : null;
+    }
+
+    /**
+     * Returns the cached Task for the key and the active language, or null. The key is the
+     * URL|version, URL or id of a questionnaire, see {@link #keyFor(Questionnaire)} and
+     * {@link #keyForSearch(String)}. A URL without version also finds the version of the
+     * questionnaire that was cached last, which is the newest one the server had at that time.
+     */
+    public synchronized Task getTask(String key) {
+        Entry entry = getFresh(key);
+        if (entry == null && key.indexOf('|') < 0) {
+            String newest = null;
+            for (String cached : getKeys()) {
+                Entry versioned = cached.startsWith(key + "|") ? getFresh(cached) : null;
+                if (versioned != null && (newest == null || versioned.sequence > entries.get(newest).sequence)) {
+                    newest = cached;
+                }
+            }
+            entry = newest != null ? entries.get(newest) : null;
+        }
+        return entry != null && entry.getLanguage().equals(Translations.getLanguageTag()) ? entry.getTask() : null;
+    }
+
+    /**
+     * Returns the entry for the key, or null if there is none or it has expired, in which case it
+     * is removed.
+     */
+    private Entry getFresh(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && System.currentTimeMillis() - entry.cachedAt >= maxAgeMs) {
+            remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    private static boolean sameVersionId(Questionnaire cached, Questionnaire questionnaire) {
+        String cachedVersionId = cached.hasMeta() ? cached.getMeta().getVersionId() : null;
+        String versionId = questionnaire.hasMeta() ? questionnaire.getMeta().getVersionId() : null;
+        return cachedVersionId == null || versionId == null || cachedVersionId.equals(versionId);
+    }
+
+    /**
+     * Returns the cached entry for the key, or null. The key is the URL|version, URL or id of a
+     * questionnaire.
+     */
+    public synchronized Entry get(String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Returns true if there is an entry for the key.
+     */
+    public synchronized boolean contains(String key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * Returns the keys of the cached questionnaires, the most recently used last.
+     */
+    public synchronized List<String> getKeys() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    public synchronized void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            retainedSize -= entry.size;
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        retainedSize = 0;
+    }
+
+    @Override
+    public synchronized long getRetainedSize() {
+        return retainedSize;
+    }
+
+    /**
+     * Removes the least recently used entries until the bytes are released or the cache is empty.
+     */
+    @Override
+    public synchronized void trim(long bytes) {
+        long released = 0;
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (released < bytes && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            iterator.remove();
+            retainedSize -= entry.size;
+            released += entry.size;
+        }
+    }
+}
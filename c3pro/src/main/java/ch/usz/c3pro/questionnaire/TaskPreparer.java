@@ -0,0 +1,246 @@
+package ch.usz.c3pro.questionnaire;
+
+import com.birbit.android.jobqueue.Job;
+import com.birbit.android.jobqueue.JobManager;
+import com.birbit.android.jobqueue.TagConstraint;
+
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.researchstack.backbone.task.Task;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ch.usz.c3pro.dataqueue.DataQueue;
+import ch.usz.c3pro.questionnaire.jobs.PrepareTaskJob;
+import ch.usz.c3pro.questionnaire.logic.ProgressiveOrderedTask;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * The TaskPreparer makes sure a questionnaire is only converted once at a time. Concurrent requests
+ * for the same questionnaire, e.g. from repeated taps or several fragments, are attached to the
+ * {@link PrepareTaskJob} already running for it, and each of them receives the Task when it is
+ * ready. Tasks are put into the {@link TaskCache}, if there is one, once they are complete. A
+ * {@link ProgressiveOrderedTask} is passed to later requests directly while the rest of it is
+ * converted.
+ * Every request can be cancelled, e.g. when its fragment is destroyed. When all requests for a
+ * questionnaire are cancelled, the job is cancelled as well so it does not keep a worker busy. If the
+ * conversion fails or its job is cancelled by the JobManager, the waiting requests are told, if
+ * their receiver is a {@link DataQueue.TaskFailureReceiver}, and the next request starts over.
+ * Questionnaires without url and id are never shared.
+ * Receivers are called on the main thread. The TaskPreparer is provided as a singleton by the
+ * C3PRO class.
+ */
+public class TaskPreparer {
+    private static final String TAG_PREFIX = "C3PRO_PREPARE_TASK_";
+
+    private final JobManager jobManager;
+    private final TaskCache taskCache;
+    private final Map<String, Preparation> preparations = new HashMap<>();
+    private int nextTag;
+
+    /**
+     * A request for a Task, returned by {@link #prepare(Questionnaire, int, DataQueue.TaskReceiver)}.
+     */
+    public class Request {
+        private final Preparation preparation;
+        private final DataQueue.TaskReceiver receiver;
+
+        private Request(Preparation preparation, DataQueue.TaskReceiver receiver) {
+            this.preparation = preparation;
+            this.receiver = receiver;
+        }
+
+        /**
+         * The receiver of this request will not be called. If no other request is waiting for the
+         * same questionnaire, its conversion is cancelled.
+         */
+        public void cancel() {
+            TaskPreparer.this.cancel(this);
+        }
+    }
+
+    /**
+     * An in-progress conversion and the requests waiting for it.
+     */
+    private class Preparation {
+        private final String key;
+        private final String tag;
+        private final List<Request> requests = new ArrayList<>();
+        /**
+         * The Task that has been passed back while the rest of it is converted, or null.
+         */
+        private Task task;
+
+        private Preparation(String key, String tag) {
+            this.key = key;
+            this.tag = tag;
+        }
+    }
+
+    /**
+     * Receives the result of the PrepareTaskJob of a preparation.
+     */
+    private class PreparationReceiver implements PrepareTaskJob.ConversionListener, DataQueue.TaskFailureReceiver {
+        private final Preparation preparation;
+        private final Questionnaire questionnaire;
+
+        private PreparationReceiver(Preparation preparation, Questionnaire questionnaire) {
+            this.preparation = preparation;
+            this.questionnaire = questionnaire;
+        }
+
+        @Override
+        public void receiveTask(Task task) {
+            for (Request request : passBack(preparation, task)) {
+                request.receiver.receiveTask(task);
+            }
+        }
+
+        @Override
+        public void conversionFinished(Task task) {
+            synchronized (TaskPreparer.this) {
+                remove(preparation);
+                if (taskCache != null && isComplete(task)) {
+                    taskCache.put(questionnaire, task);
+                }
+            }
+        }
+
+        @Override
+        public void taskFailed(Throwable throwable) {
+            for (Request request : finish(preparation)) {
+                if (request.receiver instanceof DataQueue.TaskFailureReceiver) {
+                    ((DataQueue.TaskFailureReceiver) request.receiver).taskFailed(throwable);
+                }
+            }
+        }
+    }
+
+    /**
+     * The manager can only be null in subclasses that run the jobs themselves, e.g. in tests, by
+     * overriding submit() and cancelJobs().
+     */
+    public TaskPreparer(JobManager manager, TaskCache cache) {
+        jobManager = manager;
+        taskCache = cache;
+    }
+
+    /**
+     * Passes the Task for the questionnaire to the taskReceiver. If the Task is in the TaskCache, or
+     * has been passed back and is still being converted, the taskReceiver is called right away and
+     * null is returned. Otherwise, the request is attached
+     * to the conversion of the questionnaire in progress, or a new conversion is started.
+     *
+     * @param firstSteps see {@link PrepareTaskJob#PrepareTaskJob(Questionnaire, int, DataQueue.TaskReceiver)},
+     *                   only used if a new conversion is started
+     * @return the Request that can be cancelled, or null if the Task was cached
+     */
+    public synchronized Request prepare(Questionnaire questionnaire, int firstSteps, DataQueue.TaskReceiver taskReceiver) {
+        if (taskCache != null) {
+            Task task = taskCache.getTask(questionnaire);
+            if (task != null) {
+                taskReceiver.receiveTask(task);
+                return null;
+            }
+        }
+
+        // questionnaires without url or id can not be told apart, they are not shared
+        String key = TaskCache.keyFor(questionnaire);
+        Preparation preparation = key != null ? preparations.get(key) : null;
+        if (preparation != null && preparation.task != null) {
+            taskReceiver.receiveTask(preparation.task);
+            return null;
+        }
+        if (preparation == null) {
+            preparation = startPreparation(key, questionnaire, firstSteps);
+        }
+        Request request = new Request(preparation, taskReceiver);
+        preparation.requests.add(request);
+        return request;
+    }
+
+    private Preparation startPreparation(String key, Questionnaire questionnaire, int firstSteps) {
+        Preparation preparation = new Preparation(key, TAG_PREFIX + nextTag++);
+        if (key != null) {
+            preparations.put(key, preparation);
+        }
+        submit(new PrepareTaskJob(questionnaire, firstSteps, preparation.tag, new PreparationReceiver(preparation, questionnaire)));
+        return preparation;
+    }
+
+    /**
+     * Adds the job to the JobManager.
+     */
+    protected void submit(Job job) {
+        jobManager.addJobInBackground(job);
+    }
+
+    /**
+     * Cancels the jobs with the tag in the JobManager.
+     */
+    protected void cancelJobs(String tag) {
+        jobManager.cancelJobsInBackground(null, TagConstraint.ANY, tag);
+    }
+
+    private static boolean isComplete(Task task) {
+        return !(task instanceof ProgressiveOrderedTask) || ((ProgressiveOrderedTask) task).isComplete();
+    }
+
+    /**
+     * Returns the requests that were waiting for the Task. Until the conversion is finished, later
+     * requests get the Task right away.
+     */
+    private synchronized List<Request> passBack(Preparation preparation, Task task) {
+        if (preparations.get(preparation.key) == preparation) {
+            preparation.task = task;
+        }
+        List<Request> requests = new ArrayList<>(preparation.requests);
+        preparation.requests.clear();
+        return requests;
+    }
+
+    /**
+     * Removes the preparation, later requests start a new one, and returns the requests that were
+     * waiting for it.
+     */
+    private synchronized List<Request> finish(Preparation preparation) {
+        remove(preparation);
+        List<Request> requests = new ArrayList<>(preparation.requests);
+        preparation.requests.clear();
+        return requests;
+    }
+
+    private void remove(Preparation preparation) {
+        if (preparation.key != null && preparations.get(preparation.key) == preparation) {
+            preparations.remove(preparation.key);
+        }
+    }
+
+    private synchronized void cancel(Request request) {
+        Preparation preparation = request.preparation;
+        if (preparation.requests.remove(request) && preparation.requests.isEmpty()) {
+            remove(preparation);
+            cancelJobs(preparation.tag);
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package ch.usz.c3pro.questionnaire;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.researchstack.backbone.result.TaskResult;
+import org.researchstack.backbone.task.Task;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import ch.usz.c3pro.questionnaire.logic.ProgressiveOrderedTask;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * The TaskRegistry keeps Tasks and TaskResults in memory and hands out lightweight String handles
+ * for them, so the {@link QuestionnaireFragment} and the {@link QuestionnaireViewTaskActivity} only
+ * have to pass the handle in their Intents instead of serializing the whole object graph.
+ * <p/>
+ * A Task is written to the cache directory in a compressed form when it is registered. When
+ * {@link #persistResult(String)} is called, i.e. when the app may be killed in the background, a
+ * snapshot of the TaskResult is written as well. All files are written by one background thread,
+ * in the order they were requested. If the process was killed, they are read back from there. Sessions that were
+ * abandoned without being released are deleted on startup once they have not been touched for
+ * {@link #MAX_AGE_MS}.
+ * The TaskRegistry is provided as a singleton by the C3PRO class.
+ */
+public class TaskRegistry {
+    public static final String LTAG = "C3PRO";
+    private static final String DIRECTORY = "c3pro_task_registry";
+    private static final String TASK_SUFFIX = ".task";
+    private static final String RESULT_SUFFIX = ".result";
+    private static final String TMP_SUFFIX = ".tmp";
+    public static final long MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+
+    private final File directory;
+    private final Map<String, Task> tasks = new ConcurrentHashMap<>();
+    private final Map<String, TaskResult> results = new ConcurrentHashMap<>();
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+
+    /**
+     * The TaskRegistry persists its content in the cache directory of the context. It is provided
+     * as a singleton by the C3PRO class, no need to have another instance of it around!
+     */
+    public TaskRegistry(Context context) {
+        this(new File(context.getCacheDir(), DIRECTORY));
+    }
+
+    TaskRegistry(File directory) {
+        this.directory = directory;
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                deleteExpired(System.currentTimeMillis() - MAX_AGE_MS);
+            }
+        });
+    }
+
+    /**
+     * Registers the task and returns its handle. The task is written to disk in the background.
+     */
+    public String register(final Task task) {
+        final String handle = UUID.randomUUID().toString();
+        tasks.put(handle, task);
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (task instanceof ProgressiveOrderedTask) {
+                    // converts the rest without holding the Task, so its navigation is not blocked
+                    ((ProgressiveOrderedTask) task).materializeAll();
+                }
+                byte[] serialized = serialize(task);
+                if (serialized != null) {
+                    write(handle + TASK_SUFFIX, serialized);
+                }
+            }
+        });
+        return handle;
+    }
+
+    /**
+     * Returns the task for the handle, from memory or, if the process has been killed in the
+     * meantime, from the persisted copy. Returns null for unknown handles.
+     */
+    public Task getTask(String handle) {
+        if (handle == null) {
+            return null;
+        }
+        Task task = tasks.get(handle);
+        if (task == null) {
+            task = (Task) read(handle + TASK_SUFFIX);
+            if (task != null) {
+                tasks.put(handle, task);
+            }
+        }
+        return task;
+    }
+
+    /**
+     * Sets the TaskResult for the handle. It is only kept in memory until {@link #persistResult(String)}
+     * is called.
+     */
+    public void putResult(String handle, TaskResult result) {
+        results.put(handle, result);
+    }
+
+    /**
+     * Returns the TaskResult for the handle, from memory or the persisted copy, or null if there
+     * is none.
+     */
+    public TaskResult getResult(String handle) {
+        if (handle == null) {
+            return null;
+        }
+        TaskResult result = results.get(handle);
+        if (result == null) {
+            result = (TaskResult) read(handle + RESULT_SUFFIX);
+            if (result != null) {
+                results.put(handle, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes the current TaskResult of the handle to disk, so it survives the process being killed.
+     * Only a snapshot of the TaskResult is taken on the calling thread, it is written in the
+     * background. Call when the app goes to the background.
+     */
+    public void persistResult(final String handle) {
+        TaskResult result = results.get(handle);
+        if (result == null) {
+            return;
+        }
+        final byte[] snapshot = serialize(result);
+        if (snapshot != null) {
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    write(handle + RESULT_SUFFIX, snapshot);
+                }
+            });
+        }
+    }
+
+    /**
+     * Waits until the files requested so far are written, for tests.
+     */
+    void awaitWrites() throws InterruptedException {
+        try {
+            writer.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Removes the Task and TaskResult of the handle from memory and disk.
+     */
+    public void release(final String handle) {
+        tasks.remove(handle);
+        results.remove(handle);
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                new File(directory, handle + TASK_SUFFIX).delete();
+                new File(directory, handle + RESULT_SUFFIX).delete();
+            }
+        });
+    }
+
+    /**
+     * Deletes the files of all sessions that have not been written since the passed time, and
+     * leftovers of interrupted writes.
+     */
+    synchronized void deleteExpired(long before) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Map<String, Long> lastModified = new HashMap<>();
+        for (File file : files) {
+            String handle = handleOf(file.getName());
+            if (handle == null) {
+                if (!file.delete()) {
+                    Log.e(LTAG, "could not delete " + file);
+                }
+            } else {
+                Long modified = lastModified.get(handle);
+                if (modified == null || modified < file.lastModified()) {
+                    lastModified.put(handle, file.lastModified());
+                }
+            }
+        }
+        for (Map.Entry<String, Long> entry : lastModified.entrySet()) {
+            String handle = entry.getKey();
+            if (entry.getValue() < before && !tasks.containsKey(handle)) {
+                new File(directory, handle + TASK_SUFFIX).delete();
+                new File(directory, handle + RESULT_SUFFIX).delete();
+                Log.d(LTAG, "deleted expired session " + handle);
+            }
+        }
+    }
+
+    private static String handleOf(String fileName) {
+        if (fileName.endsWith(TASK_SUFFIX)) {
+            return fileName.substring(0, fileName.length() - TASK_SUFFIX.length());
+        } else if (fileName.endsWith(RESULT_SUFFIX)) {
+            return fileName.substring(0, fileName.length() - RESULT_SUFFIX.length());
+        }
+        return null;
+    }
+
+    /**
+     * Returns the serialized object, or null if it can not be serialized.
+     */
+    private static byte[] serialize(Serializable object) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(object);
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            Log.e(LTAG, "could not serialize " + object, e);
+            return null;
+        }
+    }
+
+    /**
+     * Compresses the serialized object into the file, only called on the writer thread.
+     */
+    private void write(String fileName, byte[] serialized) {
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.e(LTAG, "could not create " + directory);
+            return;
+        }
+        File file = new File(directory, fileName);
+        File tmp = new File(directory, fileName + TMP_SUFFIX);
+        GZIPOutputStream out = null;
+        try {
+            out = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.write(serialized);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                Log.e(LTAG, "could not write " + file);
+            }
+        } catch (IOException e) {
+            Log.e(LTAG, "could not write " + file, e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private Object read(String fileName) {
+        File file = new File(directory, fileName);
+        if (!file.exists()) {
+            return null;
+        }
+        ObjectInputStream in = null;
+        try {
+            in = new ObjectInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(file))));
+            return in.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            Log.e(LTAG, "could not read " + file, e);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // nothing left to do
+            }
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package ch.usz.c3pro.questionnaire.jobs;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.birbit.android.jobqueue.Job;
+import com.birbit.android.jobqueue.Params;
+import com.birbit.android.jobqueue.RetryConstraint;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.researchstack.backbone.task.Task;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import ch.usz.c3pro.C3PRO;
+import ch.usz.c3pro.dataqueue.NetworkScheduler;
+import ch.usz.c3pro.dataqueue.jobs.Priority;
+import ch.usz.c3pro.questionnaire.TaskCache;
+import ch.usz.c3pro.questionnaire.logic.Questionnaire2Task;
+import ch.usz.c3pro.questionnaire.logic.ValueSetResolver;
+import ch.usz.c3pro.tracing.OperationTrace;
+import ch.usz.c3pro.tracing.Tracing;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * This job downloads questionnaires that are expected to be used soon, e.g. the ones of the pending
+ * study schedule or the recently used ones, and converts them to ResearchStack Tasks ahead of time.
+ * The results are put into the {@link TaskCache} of the C3PRO, so the
+ * {@link ch.usz.c3pro.questionnaire.QuestionnaireFragment} can open them without network access
+ * and without converting them.
+ * The job only does its work while the device is idle and on an unmetered network. Otherwise it is
+ * postponed and tried again later. Questionnaires that are already in the cache are not converted
+ * again, unless they have expired or the server has a new meta.versionId of them, and searches for
+ * the canonical URL of a cached questionnaire are not sent. Failed runs are tried again after a
+ * growing delay. The Tasks are
+ * found by {@link ch.usz.c3pro.dataqueue.DataQueue#readTask(String, ch.usz.c3pro.dataqueue.DataQueue.TaskReceiver)}
+ * before it downloads anything.
+ */
+public class PrefetchQuestionnairesJob extends Job {
+    private static final String LTAG = "C3PRO";
+    public static final long RETRY_DELAY_MS = 15 * 60 * 1000;
+    /**
+     * Postponed runs count as retries, this allows the job to wait for about a day.
+     */
+    public static final int MAX_RUNS = 96;
+
+    private final List<String> searchURLs;
+    private final Set<String> doneURLs = new HashSet<>();
+    private final String url;
+    private final Conditions conditions;
+    private final OperationTrace trace = new OperationTrace();
+
+    /**
+     * The Conditions decide if the device is in a state where prefetching is welcome.
+     */
+    public interface Conditions {
+        public boolean allowPrefetch(Context context);
+    }
+
+    /**
+     * Allows prefetching when the device is connected to an unmetered network and is charging or
+     * not interactive, i.e. has its screen turned off.
+     */
+    public static final Conditions IDLE_AND_UNMETERED = new Conditions() {
+        @Override
+        public boolean allowPrefetch(Context context) {
+            ConnectivityManager connectivity = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+            NetworkInfo network = connectivity.getActiveNetworkInfo();
+            if (network == null || !network.isConnected() || connectivity.isActiveNetworkMetered()) {
+                return false;
+            }
+            Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            if (battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0) {
+                return true;
+            }
+            PowerManager power = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT_WATCH) {
+                return !power.isInteractive();
+            }
+            return !isScreenOn(power);
+        }
+    };
+
+    @SuppressWarnings("deprecation")
+    private static boolean isScreenOn(PowerManager power) {
+        return power.isScreenOn();
+    }
+
+    /**
+     * Thrown by onRun when the conditions do not allow prefetching at the moment.
+     */
+    private static class PostponedException extends Exception {
+    }
+
+    /**
+     * Each searchURL, absolute or relative to the FHIRServerURL, defines a search for questionnaires
+     * that will be downloaded and converted when the conditions allow it.
+     */
+    public PrefetchQuestionnairesJob(List<String> searchURLs, String FHIRServerURL, Conditions prefetchConditions) {
+        super(new Params(Priority.LOW).requireNetwork());
+        this.searchURLs = new ArrayList<>(searchURLs);
+        url = FHIRServerURL;
+        conditions = prefetchConditions;
+    }
+
+    /**
+     * Each searchURL, absolute or relative to the FHIRServerURL defined in the C3PRO, defines a
+     * search for questionnaires that will be downloaded and converted while the device is idle and
+     * on an unmetered network.
+     */
+    public PrefetchQuestionnairesJob(List<String> searchURLs) {
+        this(searchURLs, C3PRO.getDataQueue().getFHIRServerURL(), IDLE_AND_UNMETERED);
+    }
+
+    @Override
+    public void onAdded() {
+
+    }
+
+    @Override
+    public void onRun() throws Throwable {
+        trace.begin("PrefetchQuestionnairesJob");
+        try {
+            prefetch();
+        } finally {
+            trace.end();
+        }
+    }
+
+    private void prefetch() throws Throwable {
+        TaskCache cache = C3PRO.getTaskCache();
+        for (String search : searchURLs) {
+            if (doneURLs.contains(search)) {
+                continue;
+            }
+            if (isCancelled()) {
+                return;
+            }
+            String key = TaskCache.keyForSearch(search);
+            if (key != null && cache.getTask(key) != null) {
+                // the questionnaire of the canonical URL is cached already
+                doneURLs.add(search);
+                continue;
+            }
+            if (!conditions.allowPrefetch(getApplicationContext())) {
+                throw new PostponedException();
+            }
+            Bundle bundle = Tracing.trace(C3PRO.getFhirContext().newRestfulGenericClient(url)).search()
+                    .byUrl(search)
+                    .returnBundle(Bundle.class)
+                    .execute();
+            Tracing.responseParsed("Bundle");
+            for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+                if (entry.getResource() instanceof Questionnaire) {
+                    Questionnaire questionnaire = (Questionnaire) entry.getResource();
+                    if (cache.getTask(questionnaire) == null) {
+                        ValueSetResolver.resolveValueSets(questionnaire);
+                        Task task = Questionnaire2Task.questionnaire2Task(questionnaire);
+                        cache.put(questionnaire, task);
+                    }
+                }
+            }
+            doneURLs.add(search);
+        }
+        Log.d(LTAG, "prefetched " + doneURLs.size() + " questionnaire searches");
+    }
+
+    @Override
+    protected int getRetryLimit() {
+        return MAX_RUNS;
+    }
+
+    @Override
+    protected void onCancel(int cancelReason, @Nullable Throwable throwable) {
+
+    }
+
+    @Override
+    protected RetryConstraint shouldReRunOnThrowable(@NonNull Throwable throwable, int runCount, int maxRunCount) {
+        if (throwable instanceof PostponedException) {
+            RetryConstraint constraint = new RetryConstraint(true);
+            constraint.setNewDelayInMs(RETRY_DELAY_MS);
+            return constraint;
+        }
+        // e.g. the server is not reachable, the searches that are done are not sent again
+        return NetworkScheduler.retryConstraintFor(throwable, runCount);
+    }
+}
@@ -1,10 +1,8 @@
 package ch.usz.c3pro.questionnaire.jobs;
 
-import android.os.Handler;
-import android.os.Looper;
-import android.os.Message;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.util.Log;
 
 import com.birbit.android.jobqueue.Job;
 import com.birbit.android.jobqueue.Params;
@@ -14,8 +12,12 @@ import org.hl7.fhir.dstu3.model.Questionnaire;
 import org.researchstack.backbone.task.Task;
 
 import ch.usz.c3pro.dataqueue.DataQueue;
+import ch.usz.c3pro.dataqueue.jobs.JobReceivers;
 import ch.usz.c3pro.dataqueue.jobs.Priority;
+import ch.usz.c3pro.questionnaire.logic.ProgressiveOrderedTask;
 import ch.usz.c3pro.questionnaire.logic.Questionnaire2Task;
+import ch.usz.c3pro.questionnaire.logic.ValueSetResolver;
+import ch.usz.c3pro.tracing.OperationTrace;
 
 /**
  * C3PRO
@@ -38,32 +40,68 @@ import ch.usz.c3pro.questionnaire.logic.Questionnaire2Task;
 
 /**
  * This job is used by the DataQueue to convert a FHIR questionnaire to a ResearchStack Task in a
- * background thread. The handler will move the result to the main (UI) thread, so it can be used
- * to update the UI.
+ * background thread. All ValueSets referenced by the questionnaire are resolved in one pass by the
+ * {@link ValueSetResolver} before the conversion, also if only the first steps are converted up
+ * front, so the Task never makes network calls on the main thread. The result is passed to
+ * the receiver on the main (UI) thread, so it can be used to update the UI.
  */
 public class PrepareTaskJob extends Job {
-    private static int HANDLER_MESSAGE_TASK_READY = 0;
     private Questionnaire questionnaire;
-    private Handler dataHandler;
+    private int firstSteps;
+    private DataQueue.TaskReceiver receiver;
+    private volatile boolean sent;
+    private final OperationTrace trace = new OperationTrace();
 
     /**
      * The FHIR questionnaire provided will be converted to a ResearchStack Task in a background
      * thread and passed back to the taskReceiver when done.
      * */
     public PrepareTaskJob(Questionnaire FHIRQuestionnaire, final DataQueue.TaskReceiver taskReceiver) {
-        super(new Params(Priority.HIGH));
+        this(FHIRQuestionnaire, 0, taskReceiver);
+    }
+
+    /**
+     * If firstSteps is greater than 0, a {@link ProgressiveOrderedTask} is passed back to the
+     * taskReceiver as soon as the first steps are converted. The rest of the questionnaire is
+     * converted afterwards in the same background thread, the navigation waits for it.
+     * */
+    public PrepareTaskJob(Questionnaire FHIRQuestionnaire, int firstSteps, final DataQueue.TaskReceiver taskReceiver) {
+        this(FHIRQuestionnaire, firstSteps, null, taskReceiver);
+    }
+
+    /**
+     * The job is tagged with the tag, if not null, so it can be cancelled through the JobManager.
+     * If the questionnaire references ValueSets that are not cached, the job waits for the network
+     * to expand them. A cancelled job stops converting as soon as possible and does not pass back a
+     * Task. Once a Task has been passed back, its conversion is finished even if the job is
+     * cancelled. If the taskReceiver is a {@link DataQueue.TaskFailureReceiver}, it is told when the job fails or is
+     * cancelled before the Task is passed back. If it is a {@link ConversionListener}, it is also
+     * told when the conversion is finished.
+     * */
+    public PrepareTaskJob(Questionnaire FHIRQuestionnaire, int firstSteps, String tag, final DataQueue.TaskReceiver taskReceiver) {
+        super(createParams(FHIRQuestionnaire, tag));
         questionnaire = FHIRQuestionnaire;
-        dataHandler = new Handler(Looper.getMainLooper()) {
-            @Override
-            public void handleMessage(Message msg) {
-                if (msg.what == HANDLER_MESSAGE_TASK_READY) {
-                    Task task = (Task) msg.obj;
-                    taskReceiver.receiveTask(task);
-                } else {
-                    //TODO error handling
-                }
-            }
-        };
+        this.firstSteps = firstSteps;
+        receiver = taskReceiver;
+    }
+
+    /**
+     * A TaskReceiver that is also told when the conversion of the Task passed back is finished.
+     * For a {@link ProgressiveOrderedTask}, this is after the rest of the questionnaire has been
+     * converted, or has failed to convert, so the Task is not complete if the navigation has not
+     * converted it in the meantime. conversionFinished is called on the worker thread, it can be
+     * called before the Task is passed back on the main thread.
+     */
+    public interface ConversionListener extends DataQueue.TaskReceiver {
+        public void conversionFinished(Task task);
+    }
+
+    private static Params createParams(Questionnaire questionnaire, String tag) {
+        Params params = new Params(Priority.HIGH);
+        if (ValueSetResolver.needsExpansion(questionnaire)) {
+            params.requireNetwork();
+        }
+        return tag == null ? params : params.addTags(tag);
     }
 
     @Override
@@ -73,20 +111,79 @@ public class PrepareTaskJob extends Job {
 
     @Override
     public void onRun() throws Throwable {
-        Task task = Questionnaire2Task.questionnaire2Task(questionnaire);
-        Message msg = new Message();
-        msg.what = HANDLER_MESSAGE_TASK_READY;
-        msg.obj = task;
-        dataHandler.sendMessage(msg);
+        trace.begin("PrepareTaskJob");
+        try {
+            prepare();
+        } finally {
+            trace.end();
+        }
     }
 
-    @Override
-    protected void onCancel(int cancelReason, @Nullable Throwable throwable) {
+    private void prepare() {
+        ValueSetResolver.resolveValueSets(questionnaire);
+        if (isCancelled()) {
+            return;
+        }
+        if (firstSteps > 0) {
+            ProgressiveOrderedTask task = Questionnaire2Task.questionnaire2Task(questionnaire, firstSteps);
+            if (isCancelled()) {
+                return;
+            }
+            sendTask(task);
+            try {
+                // the navigation waits for this thread, so the rest is converted even if cancelled
+                task.materializeAll();
+            } finally {
+                conversionFinished(task);
+            }
+        } else {
+            Task task = Questionnaire2Task.questionnaire2Task(questionnaire);
+            if (!isCancelled()) {
+                sendTask(task);
+                conversionFinished(task);
+            }
+        }
+    }
+
+    private void sendTask(final Task task) {
+        sent = true;
+        trace.posting();
+        JobReceivers.deliver(new Runnable() {
+            @Override
+            public void run() {
+                receiver.receiveTask(task);
+                trace.delivered("receiveTask");
+            }
+        });
+    }
 
+    private void conversionFinished(Task task) {
+        if (receiver instanceof ConversionListener) {
+            ((ConversionListener) receiver).conversionFinished(task);
+        }
+    }
+
+    @Override
+    protected void onCancel(int cancelReason, @Nullable final Throwable throwable) {
+        if (sent) {
+            // the Task has been passed back, the navigation converts what is left if this failed
+            Log.w("C3PRO", "conversion of " + questionnaire.getId() + " failed after the first steps", throwable);
+            return;
+        }
+        if (receiver instanceof DataQueue.TaskFailureReceiver) {
+            final DataQueue.TaskFailureReceiver failureReceiver = (DataQueue.TaskFailureReceiver) receiver;
+            JobReceivers.deliver(new Runnable() {
+                @Override
+                public void run() {
+                    failureReceiver.taskFailed(throwable);
+                }
+            });
+        }
     }
 
     @Override
     protected RetryConstraint shouldReRunOnThrowable(@NonNull Throwable throwable, int runCount, int maxRunCount) {
-        return null;
+        // converting the same questionnaire again fails again, the receiver is told right away
+        return RetryConstraint.CANCEL;
     }
 }
@@ -0,0 +1,323 @@
+package ch.usz.c3pro.questionnaire.jobs;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.birbit.android.jobqueue.Job;
+import com.birbit.android.jobqueue.Params;
+import com.birbit.android.jobqueue.RetryConstraint;
+
+import org.hl7.fhir.dstu3.model.QuestionnaireResponse;
+import org.researchstack.backbone.result.TaskResult;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import ch.usz.c3pro.C3PRO;
+import ch.usz.c3pro.dataqueue.DataQueue;
+import ch.usz.c3pro.dataqueue.NetworkScheduler;
+import ch.usz.c3pro.dataqueue.UploadCoalescer;
+import ch.usz.c3pro.dataqueue.jobs.JobReceivers;
+import ch.usz.c3pro.dataqueue.jobs.Priority;
+import ch.usz.c3pro.questionnaire.logic.QuestionnaireResponseJsonEncoder;
+import ch.usz.c3pro.tracing.OperationTrace;
+import ch.usz.c3pro.tracing.Tracing;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * This job uploads the answers of a ResearchStack TaskResult as a FHIR QuestionnaireResponse to the
+ * server at the FHIRServerURL. The JSON is written by the {@link QuestionnaireResponseJsonEncoder}
+ * straight into the request body, no HAPI QuestionnaireResponse is created in between. A HAPI
+ * QuestionnaireResponse can be uploaded as well, it is streamed by the HAPI parser.
+ * Like the {@link ch.usz.c3pro.dataqueue.jobs.CreateResourceJob}, it will persist and stay in the
+ * upload group of the dataqueue until a network is available and the response is uploaded, and it
+ * asks the {@link UploadCoalescer} of the DataQueue before it uploads. The payload is encoded once
+ * per upload, it is hashed and counted while it is streamed to the server and never held in memory.
+ * It is only hashed in a pass before, if another payload has been uploaded while the job was
+ * waiting, so it may be identical. The size class of the payload is checked with the
+ * {@link NetworkScheduler} again when it grows beyond the one checked before the upload. The
+ * location of the created resource is passed back, the receiver is kept in the
+ * {@link JobReceivers}, because the job that runs is a deserialized copy.
+ */
+public class UploadQuestionnaireResponseJob extends Job {
+    private static final String CONTENT_TYPE = "application/json+fhir;charset=utf-8";
+    private TaskResult result;
+    private QuestionnaireResponse response;
+    private String serverURL;
+    private String key;
+    /** key of the receiver in the JobReceivers */
+    private String receiverKey;
+    /** hash of the payload, once it has been written completely */
+    private String payloadHash;
+    /** size class of the payload checked before the upload, raised when a larger one was held */
+    private NetworkScheduler.PayloadSize payloadSize = NetworkScheduler.PayloadSize.SMALL;
+    private final NetworkScheduler.RunCounter runs = new NetworkScheduler.RunCounter();
+    private final OperationTrace trace = new OperationTrace();
+
+    /**
+     * Enqueues the TaskResult to be uploaded as QuestionnaireResponse to the provided FHIRServer.
+     * The job will persist even when app state changes.
+     * */
+    public UploadQuestionnaireResponseJob(TaskResult taskResult, String FHIRServerURL) {
+        this(taskResult, FHIRServerURL, null);
+    }
+
+    /**
+     * Enqueues the TaskResult to be uploaded as QuestionnaireResponse to the FHIRServer defined in
+     * the C3PRO. The job will persist even when app state changes.
+     * */
+    public UploadQuestionnaireResponseJob(TaskResult taskResult) {
+        this(taskResult, C3PRO.getDataQueue().getFHIRServerURL());
+    }
+
+    /**
+     * Enqueues the TaskResult to be uploaded as QuestionnaireResponse to the provided FHIRServer.
+     * The location of the created QuestionnaireResponse, with the id assigned by the server, is
+     * passed back to the locationReceiver, if not null, unless the app has been restarted in
+     * between. If an identical response has been uploaded while the job was waiting, null is passed
+     * back. A {@link DataQueue.LocationFailureReceiver} is told when the upload is given up.
+     * */
+    public UploadQuestionnaireResponseJob(TaskResult taskResult, String FHIRServerURL, DataQueue.LocationReceiver locationReceiver) {
+        super(createParams(null));
+        result = taskResult;
+        serverURL = FHIRServerURL;
+        receiverKey = JobReceivers.register(locationReceiver);
+    }
+
+    /**
+     * Enqueues the QuestionnaireResponse to be uploaded to the provided FHIRServer. The
+     * coalescingKey is used by the {@link UploadCoalescer} of the DataQueue, like the one of a
+     * {@link ch.usz.c3pro.dataqueue.jobs.CreateResourceJob}.
+     * */
+    public UploadQuestionnaireResponseJob(QuestionnaireResponse questionnaireResponse, String FHIRServerURL, String coalescingKey) {
+        super(createParams(coalescingKey));
+        response = questionnaireResponse;
+        serverURL = FHIRServerURL;
+        key = coalescingKey;
+    }
+
+    private static Params createParams(String coalescingKey) {
+        Params params = new Params(Priority.MID).requireNetwork().persist().groupBy(DataQueue.UPLOAD_GROUP_TAG);
+        return coalescingKey == null ? params : params.addTags(UploadCoalescer.tagFor(coalescingKey));
+    }
+
+    public String getCoalescingKey() {
+        return key;
+    }
+
+    /**
+     * Writes the JSON of the QuestionnaireResponse to the stream, which is flushed but not closed.
+     * */
+    public void writeTo(OutputStream out) throws IOException {
+        if (result != null) {
+            QuestionnaireResponseJsonEncoder.write(result, out);
+        } else {
+            Writer writer = new OutputStreamWriter(out, "UTF-8");
+            C3PRO.getFhirContext().newJsonParser().encodeResourceToWriter(response, writer);
+            writer.flush();
+        }
+    }
+
+    @Override
+    public void onAdded() {
+
+    }
+
+    @Override
+    public void onRun() throws Throwable {
+        trace.begin("UploadQuestionnaireResponseJob");
+        try {
+            upload();
+        } finally {
+            trace.end();
+        }
+    }
+
+    private void upload() throws Throwable {
+        NetworkScheduler.checkConditions(payloadSize, true);
+        UploadCoalescer coalescer = C3PRO.getDataQueue() != null ? C3PRO.getDataQueue().getUploadCoalescer() : null;
+        if (coalescer != null) {
+            if (payloadHash == null && coalescer.uploadedSince(getId())) {
+                UploadCoalescer.HashingOutputStream hashing = new UploadCoalescer.HashingOutputStream();
+                writeTo(hashing);
+                payloadHash = hashing.getHash();
+            }
+            if (!coalescer.shouldUpload(getId(), key, payloadHash)) {
+                Log.d("SENDJOBS", "upload superseded or already done, dropped " + (key != null ? key : payloadHash));
+                // an identical response has been uploaded, its location is not known here
+                deliver(null);
+                return;
+            }
+        }
+
+        String base = serverURL.endsWith("/") ? serverURL : serverURL + "/";
+        HttpURLConnection connection = (HttpURLConnection) new URL(base + "QuestionnaireResponse").openConnection();
+        String location;
+        try {
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", CONTENT_TYPE);
+            connection.setRequestProperty("Accept", "application/json+fhir");
+            connection.setChunkedStreamingMode(0);
+            Tracing.setHeader(connection);
+
+            UploadStream out = new UploadStream(connection.getOutputStream(), payloadSize);
+            try {
+                writeTo(out);
+            } catch (IOException | RuntimeException e) {
+                // the encoder may wrap the exception, the request is not completed either way
+                if (out.held != null) {
+                    payloadSize = out.held.size;
+                    throw out.held.getCause();
+                }
+                throw e;
+            }
+            payloadHash = out.getHash();
+            out.close();
+
+            int status = connection.getResponseCode();
+            if (status < 200 || status >= 300) {
+                throw new IOException("upload of QuestionnaireResponse failed with HTTP " + status);
+            }
+            location = connection.getHeaderField("Location");
+            Log.d("SENDJOBS", "created QuestionnaireResponse at " + location);
+        } finally {
+            connection.disconnect();
+        }
+        if (coalescer != null) {
+            coalescer.uploaded(payloadHash);
+        }
+        deliver(location);
+    }
+
+    /**
+     * Passes the location of the created QuestionnaireResponse back to the receiver, null if it is
+     * not known.
+     */
+    private void deliver(final String location) {
+        final DataQueue.LocationReceiver receiver = (DataQueue.LocationReceiver) JobReceivers.take(receiverKey);
+        if (receiver == null) {
+            return;
+        }
+        JobReceivers.deliver(new Runnable() {
+            @Override
+            public void run() {
+                receiver.receiveLocation(location);
+            }
+        });
+    }
+
+    @Override
+    protected void onCancel(int cancelReason, @Nullable final Throwable throwable) {
+        final Object receiver = JobReceivers.take(receiverKey);
+        if (receiver != null) {
+            Log.e("SENDJOBS", "upload of QuestionnaireResponse given up", throwable);
+        }
+        if (receiver instanceof DataQueue.LocationFailureReceiver) {
+            JobReceivers.deliver(new Runnable() {
+                @Override
+                public void run() {
+                    ((DataQueue.LocationFailureReceiver) receiver).locationFailed(throwable);
+                }
+            });
+        }
+    }
+
+    @Override
+    protected RetryConstraint shouldReRunOnThrowable(@NonNull Throwable throwable, int runCount, int maxRunCount) {
+        return runs.retryConstraintFor(throwable);
+    }
+
+    @Override
+    protected int getRetryLimit() {
+        return NetworkScheduler.RunCounter.UNLIMITED_RUNS;
+    }
+
+    /**
+     * Thrown by the {@link UploadStream} when the payload grows into a size class that may not be
+     * uploaded now, the server never gets the complete request. The cause is the
+     * ConditionsNotMetException of the NetworkScheduler.
+     */
+    private static class HeldUploadException extends IOException {
+        private final NetworkScheduler.PayloadSize size;
+
+        private HeldUploadException(NetworkScheduler.PayloadSize size, NetworkScheduler.ConditionsNotMetException cause) {
+            super(cause);
+            this.size = size;
+        }
+    }
+
+    /**
+     * Hashes and counts the request body while it is written to the server, and checks the network
+     * conditions again before the payload grows beyond the size class checked so far.
+     */
+    private static class UploadStream extends FilterOutputStream {
+        private final UploadCoalescer.HashingOutputStream hashing = new UploadCoalescer.HashingOutputStream();
+        private NetworkScheduler.PayloadSize checked;
+        /** set when the payload may not be uploaded now */
+        private HeldUploadException held;
+
+        private UploadStream(OutputStream out, NetworkScheduler.PayloadSize checked) {
+            super(out);
+            this.checked = checked;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            checkSize(hashing.getCount() + 1);
+            hashing.write(b);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            checkSize(hashing.getCount() + len);
+            hashing.write(b, off, len);
+            out.write(b, off, len);
+        }
+
+        private void checkSize(long count) throws HeldUploadException {
+            NetworkScheduler.PayloadSize size = NetworkScheduler.PayloadSize.of(count);
+            if (size.compareTo(checked) > 0) {
+                try {
+                    NetworkScheduler.checkConditions(size, true);
+                } catch (NetworkScheduler.ConditionsNotMetException e) {
+                    held = new HeldUploadException(size, e);
+                    throw held;
+                }
+                checked = size;
+            }
+        }
+
+        /**
+         * Returns the hash of the bytes written, can only be called once.
+         */
+        private String getHash() {
+            return hashing.getHash();
+        }
+    }
+}
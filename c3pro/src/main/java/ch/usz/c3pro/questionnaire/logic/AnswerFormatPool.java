@@ -0,0 +1,305 @@
+package ch.usz.c3pro.questionnaire.logic;
+
+import org.hl7.fhir.dstu3.model.Coding;
+import org.hl7.fhir.dstu3.model.PrimitiveType;
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.hl7.fhir.dstu3.model.Type;
+import org.researchstack.backbone.answerformat.AnswerFormat;
+import org.researchstack.backbone.answerformat.BooleanAnswerFormat;
+import org.researchstack.backbone.answerformat.ChoiceAnswerFormat;
+import org.researchstack.backbone.answerformat.DateAnswerFormat;
+import org.researchstack.backbone.answerformat.IntegerAnswerFormat;
+import org.researchstack.backbone.answerformat.TextAnswerFormat;
+import org.researchstack.backbone.model.Choice;
+
+import java.util.AbstractList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * The AnswerFormatPool shares {@link AnswerFormat}s and {@link Choice}s between equal items, within
+ * a questionnaire and across questionnaires, so a large set of instruments does not keep thousands
+ * of identical objects alive and a Task passed in an Intent serializes each of them only once.
+ * <p/>
+ * Formats without parameters are kept for the lifetime of the app. Integer ranges, Choices and
+ * ChoiceAnswerFormats are kept in maps that drop the least recently used entries when they are full;
+ * a format that is dropped stays valid for the Tasks that use it, it is just not shared with new
+ * ones anymore. Choice arrays from the {@link ValueSetResolver} are already shared, formats for them
+ * are looked up by the identity of the array. The same holds for {@link LargeChoiceAnswerFormat}s,
+ * which are looked up by the identity of their Choice array or option list.
+ * <p/>
+ * The returned instances are shared and must not be modified.
+ */
+public class AnswerFormatPool {
+    public static final int MAX_RANGES = 64;
+    public static final int MAX_CHOICES = 4096;
+    public static final int MAX_CHOICE_FORMATS = 1024;
+
+    private static final BooleanAnswerFormat yesNo = new BooleanAnswerFormat("Yes", "No");
+    private static final TextAnswerFormat text = new TextAnswerFormat();
+    private static final Map<AnswerFormat.DateAnswerStyle, DateAnswerFormat> dates = new EnumMap<>(AnswerFormat.DateAnswerStyle.class);
+    private static final Map<Integer, TextAnswerFormat> texts = lru(MAX_RANGES);
+    private static final Map<String, IntegerAnswerFormat> integers = lru(MAX_RANGES);
+    private static final Map<String, Choice> choices = lru(MAX_CHOICES);
+    private static final Map<Object, ChoiceAnswerFormat> choiceFormats = lru(MAX_CHOICE_FORMATS);
+
+    private AnswerFormatPool() {
+    }
+
+    private static <K, V> Map<K, V> lru(final int maxEntries) {
+        return new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public static BooleanAnswerFormat yesNo() {
+        return yesNo;
+    }
+
+    /**
+     * Returns a TextAnswerFormat without maximum length.
+     */
+    public static TextAnswerFormat text() {
+        return text;
+    }
+
+    public static synchronized TextAnswerFormat text(int maximumLength) {
+        TextAnswerFormat format = texts.get(maximumLength);
+        if (format == null) {
+            format = new TextAnswerFormat(maximumLength);
+            texts.put(maximumLength, format);
+        }
+        return format;
+    }
+
+    public static synchronized IntegerAnswerFormat integer(int minValue, int maxValue) {
+        String key = minValue + ".." + maxValue;
+        IntegerAnswerFormat format = integers.get(key);
+        if (format == null) {
+            format = new IntegerAnswerFormat(minValue, maxValue);
+            integers.put(key, format);
+        }
+        return format;
+    }
+
+    public static synchronized DateAnswerFormat date(AnswerFormat.DateAnswerStyle style) {
+        DateAnswerFormat format = dates.get(style);
+        if (format == null) {
+            format = new DateAnswerFormat(style);
+            dates.put(style, format);
+        }
+        return format;
+    }
+
+    /**
+     * Returns a ChoiceAnswerFormat for a Choice array that is shared already, e.g. one returned by
+     * the {@link ValueSetResolver}.
+     */
+    public static synchronized ChoiceAnswerFormat choice(AnswerFormat.ChoiceAnswerStyle style, Choice[] sharedChoices) {
+        Object key = new IdentityKey(style, sharedChoices);
+        ChoiceAnswerFormat format = choiceFormats.get(key);
+        if (format == null) {
+            format = new ChoiceAnswerFormat(style, sharedChoices);
+            choiceFormats.put(key, format);
+        }
+        return format;
+    }
+
+    /**
+     * Returns a {@link LargeChoiceAnswerFormat} for a Choice array that is shared already, e.g. one
+     * returned by the {@link ValueSetResolver}.
+     *
+     * @param reference canonical reference of the ValueSet, or null if it is contained
+     */
+    public static synchronized LargeChoiceAnswerFormat largeChoice(AnswerFormat.ChoiceAnswerStyle style, Choice[] sharedChoices, String reference) {
+        Object key = new IdentityKey(style, sharedChoices);
+        ChoiceAnswerFormat format = choiceFormats.get(key);
+        if (!(format instanceof LargeChoiceAnswerFormat)) {
+            format = new LargeChoiceAnswerFormat(style, new ChoiceIndex(sharedChoices), reference);
+            choiceFormats.put(key, format);
+        }
+        return (LargeChoiceAnswerFormat) format;
+    }
+
+    /**
+     * Returns a {@link LargeChoiceAnswerFormat} for the options of an item, shared by the Tasks
+     * converted from the same questionnaire. The Choices are only created when they are shown.
+     */
+    public static synchronized LargeChoiceAnswerFormat largeChoice(AnswerFormat.ChoiceAnswerStyle style, final List<Questionnaire.QuestionnaireItemOptionComponent> options) {
+        Object key = new IdentityKey(style, options);
+        ChoiceAnswerFormat format = choiceFormats.get(key);
+        if (!(format instanceof LargeChoiceAnswerFormat)) {
+            List<Type> values = new AbstractList<Type>() {
+                @Override
+                public Type get(int index) {
+                    return options.get(index).getValue();
+                }
+
+                @Override
+                public int size() {
+                    return options.size();
+                }
+            };
+            format = new LargeChoiceAnswerFormat(style, new ChoiceIndex(values), null);
+            choiceFormats.put(key, format);
+        }
+        return (LargeChoiceAnswerFormat) format;
+    }
+
+    /**
+     * Returns the text of the Choice for an option value: the display of a coding, or its code if
+     * it has none, and the primitive value of other types.
+     */
+    public static String textOf(Type value) {
+        if (value instanceof Coding) {
+            Coding coding = (Coding) value;
+            return coding.hasDisplay() ? coding.getDisplay() : coding.getCode();
+        }
+        return value.primitiveValue();
+    }
+
+    /**
+     * Returns a ChoiceAnswerFormat with a Choice for every value, with the text of {@link #textOf(Type)}.
+     * Equal lists of codings and primitive values share one format.
+     */
+    public static synchronized ChoiceAnswerFormat choice(AnswerFormat.ChoiceAnswerStyle style, List<Type> values) {
+        StringBuilder key = new StringBuilder(style.name());
+        Choice[] valueChoices = new Choice[values.size()];
+        for (int i = 0; i < valueChoices.length; i++) {
+            Type value = values.get(i);
+            String valueKey = keyOf(value);
+            if (valueKey == null) {
+                // not comparable by value, the format can not be shared
+                return new ChoiceAnswerFormat(style, choices(values));
+            }
+            valueChoices[i] = choiceFor(valueKey, value);
+            key.append('\u0000').append(valueKey);
+        }
+        String formatKey = key.toString();
+        ChoiceAnswerFormat format = choiceFormats.get(formatKey);
+        if (format == null) {
+            format = new ChoiceAnswerFormat(style, valueChoices);
+            choiceFormats.put(formatKey, format);
+        }
+        return format;
+    }
+
+    /**
+     * Returns Choices for the values, shared with equal values of other items where possible.
+     */
+    public static synchronized Choice[] choices(List<Type> values) {
+        Choice[] valueChoices = new Choice[values.size()];
+        for (int i = 0; i < valueChoices.length; i++) {
+            Type value = values.get(i);
+            String valueKey = keyOf(value);
+            valueChoices[i] = valueKey != null ? choiceFor(valueKey, value) : new Choice<Type>(textOf(value), value);
+        }
+        return valueChoices;
+    }
+
+    /**
+     * Returns a Choice with a String value, e.g. the code of a ValueSet concept, shared with equal
+     * Choices of other ValueSets.
+     */
+    public static synchronized Choice<String> choice(String text, String value) {
+        String key = "String:" + value + "\u0000" + text;
+        @SuppressWarnings("unchecked")
+        Choice<String> choice = choices.get(key);
+        if (choice == null) {
+            choice = new Choice<>(text, value);
+            choices.put(key, choice);
+        }
+        return choice;
+    }
+
+    private static Choice choiceFor(String valueKey, Type value) {
+        Choice choice = choices.get(valueKey);
+        if (choice == null) {
+            choice = new Choice<Type>(textOf(value), value);
+            choices.put(valueKey, choice);
+        }
+        return choice;
+    }
+
+    /**
+     * Returns a key that is equal for equal values, or null if the type is not supported.
+     */
+    private static String keyOf(Type value) {
+        if (value instanceof PrimitiveType) {
+            return value.fhirType() + ":" + ((PrimitiveType) value).getValueAsString();
+        } else if (value instanceof Coding) {
+            Coding coding = (Coding) value;
+            return "Coding:" + coding.getSystem() + "|" + coding.getVersion() + "|" + coding.getCode() + "|" + coding.getDisplay();
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of shared Choices and parameterized formats, for tests.
+     */
+    public static synchronized int size() {
+        return dates.size() + texts.size() + integers.size() + choices.size() + choiceFormats.size();
+    }
+
+    /**
+     * Removes the shared instances, new items get new ones.
+     */
+    public static synchronized void clear() {
+        dates.clear();
+        texts.clear();
+        integers.clear();
+        choices.clear();
+        choiceFormats.clear();
+    }
+
+    /**
+     * Key of a format for a Choice array or a list of options that compares them by identity.
+     */
+    private static class IdentityKey {
+        private final AnswerFormat.ChoiceAnswerStyle style;
+        private final Object choices;
+
+        private IdentityKey(AnswerFormat.ChoiceAnswerStyle style, Object choices) {
+            this.style = style;
+            this.choices = choices;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof IdentityKey)) {
+                return false;
+            }
+            IdentityKey other = (IdentityKey) o;
+            return style == other.style && choices == other.choices;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * style.hashCode() + System.identityHashCode(choices);
+        }
+    }
+}
@@ -0,0 +1,453 @@
+package ch.usz.c3pro.questionnaire.logic;
+
+import org.hl7.fhir.dstu3.model.Coding;
+import org.hl7.fhir.dstu3.model.DateType;
+import org.hl7.fhir.dstu3.model.IntegerType;
+import org.hl7.fhir.dstu3.model.PrimitiveType;
+import org.hl7.fhir.dstu3.model.StringType;
+import org.hl7.fhir.dstu3.model.TimeType;
+import org.hl7.fhir.dstu3.model.Type;
+import org.researchstack.backbone.model.Choice;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * The ChoiceIndex is a compact prefix index over the texts of a large list of
+ * {@link org.researchstack.backbone.model.Choice}s, e.g. a ValueSet of medications or diagnoses. It
+ * is used by the {@link LargeChoiceAnswerFormat} to show the Choices in pages and to filter them
+ * while the user is typing.
+ * <p/>
+ * Texts are folded to lower case without diacritics, so "Zurich" matches "zür". Every word of a
+ * text is indexed by its start, a query matches a Choice if every word of the query is the prefix of
+ * a word of its text. The index only holds two int arrays sorted by the indexed words, lookups are a
+ * binary search for the first word of the query. The index is built on the first access, so
+ * creating it costs nothing until the Choices are shown.
+ */
+public class ChoiceIndex {
+    private static final byte VALUE_STRING = 0;
+    private static final byte VALUE_CODING = 1;
+    private static final byte VALUE_FHIR_STRING = 2;
+    private static final byte VALUE_FHIR_INTEGER = 3;
+    private static final byte VALUE_FHIR_DATE = 4;
+    private static final byte VALUE_FHIR_TIME = 5;
+    private static final byte VALUE_SERIALIZED = 6;
+
+    private final List<Type> values;
+    private Choice[] choices;
+    private String[] folded;
+    /**
+     * Position of the Choice and offset of the word in its folded text of every entry, sorted by
+     * the rest of the text from that offset.
+     */
+    private int[] entryChoices;
+    private int[] entryOffsets;
+
+    /**
+     * Creates an index over the Choices, which must not be modified afterwards.
+     */
+    public ChoiceIndex(Choice[] choices) {
+        this.choices = choices;
+        values = null;
+    }
+
+    /**
+     * Creates an index over Choices for the values, e.g. the options of an item. The Choices are
+     * only created on the first access, with the texts of {@link AnswerFormatPool#textOf(Type)}.
+     */
+    public ChoiceIndex(List<Type> values) {
+        this.values = values;
+    }
+
+    /**
+     * Returns the number of Choices.
+     */
+    public int size() {
+        return values != null ? values.size() : choices.length;
+    }
+
+    /**
+     * Returns the Choice at the position in the original order.
+     */
+    public Choice get(int position) {
+        return choices()[position];
+    }
+
+    /**
+     * Returns a copy of all Choices in their original order.
+     */
+    public Choice[] getChoices() {
+        return choices().clone();
+    }
+
+    /**
+     * Returns the Choices of the page in their original order, an empty array if the page is behind
+     * the last Choice.
+     *
+     * @param page     number of the page, starting at 0
+     * @param pageSize number of Choices per page
+     */
+    public Choice[] getPage(int page, int pageSize) {
+        Choice[] choices = choices();
+        int from = Math.min(choices.length, page * pageSize);
+        int to = Math.min(choices.length, from + pageSize);
+        Choice[] result = new Choice[to - from];
+        System.arraycopy(choices, from, result, 0, result.length);
+        return result;
+    }
+
+    /**
+     * Returns the positions of the Choices whose text matches the query, in the original order of
+     * the Choices. An empty query matches all Choices.
+     */
+    public int[] filter(String query) {
+        String[] words = words(fold(query));
+        if (words.length == 0) {
+            int[] all = new int[size()];
+            for (int i = 0; i < all.length; i++) {
+                all[i] = i;
+            }
+            return all;
+        }
+        ensureBuilt();
+
+        // look up the longest word, it has the fewest entries
+        String longest = words[0];
+        for (String word : words) {
+            if (word.length() > longest.length()) {
+                longest = word;
+            }
+        }
+        BitSet matches = new BitSet(folded.length);
+        for (int entry = lowerBound(longest); entry < entryChoices.length && startsWith(entry, longest); entry++) {
+            int position = entryChoices[entry];
+            if (!matches.get(position) && containsWordPrefixes(folded[position], words)) {
+                matches.set(position);
+            }
+        }
+
+        int[] result = new int[matches.cardinality()];
+        int i = 0;
+        for (int position = matches.nextSetBit(0); position >= 0; position = matches.nextSetBit(position + 1)) {
+            result[i++] = position;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the Choices at the positions, e.g. a page of the positions returned by
+     * {@link #filter(String)}.
+     */
+    public Choice[] get(int[] positions, int from, int count) {
+        Choice[] choices = choices();
+        int to = Math.min(positions.length, from + count);
+        Choice[] result = new Choice[Math.max(0, to - from)];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = choices[positions[from + i]];
+        }
+        return result;
+    }
+
+    /**
+     * Writes the values or Choices of the index compactly, the index itself is built again when it
+     * is needed.
+     */
+    void writeTo(ObjectOutputStream out) throws IOException {
+        if (values != null) {
+            out.writeBoolean(true);
+            out.writeInt(values.size());
+            for (Type value : values) {
+                writeValue(out, value);
+            }
+        } else {
+            out.writeBoolean(false);
+            out.writeInt(choices.length);
+            for (Choice choice : choices) {
+                writeString(out, choice.getText());
+                writeValue(out, choice.getValue());
+            }
+        }
+    }
+
+    /**
+     * Reads an index written by {@link #writeTo(ObjectOutputStream)}.
+     */
+    static ChoiceIndex readFrom(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        boolean hasValues = in.readBoolean();
+        int count = in.readInt();
+        if (hasValues) {
+            List<Type> values = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                values.add((Type) readValue(in));
+            }
+            return new ChoiceIndex(values);
+        }
+        Choice[] choices = new Choice[count];
+        for (int i = 0; i < count; i++) {
+            String text = readString(in);
+            choices[i] = new Choice<>(text, readValue(in));
+        }
+        return new ChoiceIndex(choices);
+    }
+
+    /**
+     * Writes the value types of options and ValueSet codes as Strings, anything else with Java
+     * serialization.
+     */
+    private static void writeValue(ObjectOutputStream out, Object value) throws IOException {
+        if (value instanceof String) {
+            out.writeByte(VALUE_STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Coding) {
+            Coding coding = (Coding) value;
+            out.writeByte(VALUE_CODING);
+            writeString(out, coding.getSystem());
+            writeString(out, coding.getVersion());
+            writeString(out, coding.getCode());
+            writeString(out, coding.getDisplay());
+        } else if (value instanceof StringType || value instanceof IntegerType || value instanceof DateType || value instanceof TimeType) {
+            out.writeByte(value instanceof StringType ? VALUE_FHIR_STRING
+                    : value instanceof IntegerType ? VALUE_FHIR_INTEGER
+                    : value instanceof DateType ? VALUE_FHIR_DATE : VALUE_FHIR_TIME);
+            writeString(out, ((PrimitiveType) value).getValueAsString());
+        } else {
+            out.writeByte(VALUE_SERIALIZED);
+            out.writeObject(value);
+        }
+    }
+
+    private static Object readValue(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        byte type = in.readByte();
+        PrimitiveType primitive;
+        switch (type) {
+            case VALUE_STRING:
+                return readString(in);
+            case VALUE_CODING:
+                Coding coding = new Coding();
+                coding.setSystem(readString(in));
+                coding.setVersion(readString(in));
+                coding.setCode(readString(in));
+                coding.setDisplay(readString(in));
+                return coding;
+            case VALUE_FHIR_STRING:
+                primitive = new StringType();
+                break;
+            case VALUE_FHIR_INTEGER:
+                primitive = new IntegerType();
+                break;
+            case VALUE_FHIR_DATE:
+                primitive = new DateType();
+                break;
+            case VALUE_FHIR_TIME:
+                primitive = new TimeType();
+                break;
+            case VALUE_SERIALIZED:
+                return in.readObject();
+            default:
+                throw new IOException("unknown value type " + type);
+        }
+        String string = readString(in);
+        if (string != null) {
+            primitive.setValueAsString(string);
+        }
+        return primitive;
+    }
+
+    private static void writeString(ObjectOutputStream out, String string) throws IOException {
+        out.writeBoolean(string != null);
+        if (string != null) {
+            out.writeUTF(string);
+        }
+    }
+
+    private static String readString(ObjectInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private synchronized Choice[] choices() {
+        if (choices == null) {
+            Choice[] created = new Choice[values.size()];
+            for (int i = 0; i < created.length; i++) {
+                Type value = values.get(i);
+                created[i] = new Choice<>(AnswerFormatPool.textOf(value), value);
+            }
+            choices = created;
+        }
+        return choices;
+    }
+
+    private synchronized void ensureBuilt() {
+        if (entryChoices != null) {
+            return;
+        }
+        Choice[] choices = choices();
+        String[] texts = new String[choices.length];
+        int count = 0;
+        for (int i = 0; i < choices.length; i++) {
+            texts[i] = fold(choices[i].getText());
+            count += wordCount(texts[i]);
+        }
+        int[] positions = new int[count];
+        int[] offsets = new int[count];
+        int entry = 0;
+        for (int i = 0; i < texts.length; i++) {
+            String text = texts[i];
+            for (int offset = 0; offset < text.length(); offset++) {
+                if (isWordStart(text, offset)) {
+                    positions[entry] = i;
+                    offsets[entry] = offset;
+                    entry++;
+                }
+            }
+        }
+        folded = texts;
+        sort(positions, offsets, new int[count], new int[count], 0, count);
+        entryOffsets = offsets;
+        entryChoices = positions;
+    }
+
+    /**
+     * Sorts the entries by their words with a merge sort, using the tmp arrays.
+     */
+    private void sort(int[] positions, int[] offsets, int[] tmpPositions, int[] tmpOffsets, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        sort(positions, offsets, tmpPositions, tmpOffsets, from, middle);
+        sort(positions, offsets, tmpPositions, tmpOffsets, middle, to);
+        if (compare(positions[middle - 1], offsets[middle - 1], positions[middle], offsets[middle]) <= 0) {
+            return;
+        }
+        System.arraycopy(positions, from, tmpPositions, from, to - from);
+        System.arraycopy(offsets, from, tmpOffsets, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < middle && compare(tmpPositions[left], tmpOffsets[left], tmpPositions[right], tmpOffsets[right]) <= 0)) {
+                positions[i] = tmpPositions[left];
+                offsets[i] = tmpOffsets[left++];
+            } else {
+                positions[i] = tmpPositions[right];
+                offsets[i] = tmpOffsets[right++];
+            }
+        }
+    }
+
+    private int compare(int position1, int offset1, int position2, int offset2) {
+        String text1 = folded[position1];
+        String text2 = folded[position2];
+        int length = Math.min(text1.length() - offset1, text2.length() - offset2);
+        for (int i = 0; i < length; i++) {
+            int diff = text1.charAt(offset1 + i) - text2.charAt(offset2 + i);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return (text1.length() - offset1) - (text2.length() - offset2);
+    }
+
+    /**
+     * Returns the first entry whose word is not smaller than the prefix.
+     */
+    private int lowerBound(String prefix) {
+        int low = 0;
+        int high = entryChoices.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            String text = folded[entryChoices[middle]];
+            int offset = entryOffsets[middle];
+            int length = Math.min(text.length() - offset, prefix.length());
+            int diff = 0;
+            for (int i = 0; i < length && diff == 0; i++) {
+                diff = text.charAt(offset + i) - prefix.charAt(i);
+            }
+            if (diff == 0) {
+                diff = (text.length() - offset) - prefix.length();
+            }
+            if (diff < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private boolean startsWith(int entry, String prefix) {
+        return folded[entryChoices[entry]].startsWith(prefix, entryOffsets[entry]);
+    }
+
+    private static boolean containsWordPrefixes(String text, String[] words) {
+        for (String word : words) {
+            boolean found = false;
+            for (int offset = text.indexOf(word); offset >= 0 && !found; offset = text.indexOf(word, offset + 1)) {
+                found = isWordStart(text, offset);
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isWordStart(String text, int offset) {
+        return Character.isLetterOrDigit(text.charAt(offset)) && (offset == 0 || !Character.isLetterOrDigit(text.charAt(offset - 1)));
+    }
+
+    private static int wordCount(String text) {
+        int count = 0;
+        for (int offset = 0; offset < text.length(); offset++) {
+            if (isWordStart(text, offset)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static String[] words(String text) {
+        List<String> words = new ArrayList<>();
+        for (String word : text.split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty()) {
+                words.add(word);
+            }
+        }
+        return words.toArray(new String[words.size()]);
+    }
+
+    /**
+     * Returns the text in lower case without diacritics.
+     */
+    private static String fold(String text) {
+        if (text == null) {
+            return "";
+        }
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        return decomposed.replaceAll("\\p{M}+", "").toLowerCase(Locale.ROOT);
+    }
+}
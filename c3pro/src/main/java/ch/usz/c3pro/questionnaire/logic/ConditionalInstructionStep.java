@@ -5,6 +5,7 @@ import org.researchstack.backbone.step.InstructionStep;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -96,4 +97,16 @@ public class ConditionalInstructionStep extends InstructionStep implements Condi
         }
         return true;
     }
+
+    /**
+     * Returns the {@link ResultRequirement}s of the {@link ConditionalStep}, an empty List if there
+     * are none.
+     * */
+    @Override
+    public List<ResultRequirement> getRequirements() {
+        if (requirements == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(requirements);
+    }
 }
@@ -6,7 +6,9 @@ import org.researchstack.backbone.step.Step;
 import org.researchstack.backbone.task.OrderedTask;
 
 import java.io.Serializable;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * C3PRO
@@ -36,6 +38,13 @@ import java.util.List;
  */
 public class ConditionalOrderedTask extends OrderedTask implements Serializable {
 
+    /**
+     * Positions of the steps, so navigating does not search the list of steps for every step.
+     * Steps are only ever appended, the index is extended when an unknown step is looked up.
+     */
+    private transient Map<Step, Integer> stepIndexes;
+    private transient int indexedSteps;
+
     /**
      * The parent class {@link org.researchstack.backbone.task.OrderedTask} has no default constructor, so we have to provide one.
      * This constructor should not be used.
@@ -68,26 +77,16 @@ public class ConditionalOrderedTask extends OrderedTask implements Serializable
      */
     @Override
     public Step getStepAfterStep(Step step, TaskResult result) {
-        Step checkStep = null;
-        if (step == null) {
-            checkStep = steps.get(0);
-        } else {
-            int nextIndex = steps.indexOf(step) + 1;
-
-            if (nextIndex < steps.size()) {
-                checkStep = steps.get(nextIndex);
-            }
-        }
-
-        if (checkStep instanceof ConditionalStep) {
-            if (((ConditionalStep) checkStep).requirementsAreSatisfiedBy(result)) {
+        int nextIndex = (step == null) ? 0 : indexOf(step) + 1;
+        // hidden steps are skipped in a loop, long runs of them must not grow the stack
+        while (hasStep(nextIndex)) {
+            Step checkStep = steps.get(nextIndex);
+            if (!(checkStep instanceof ConditionalStep) || ((ConditionalStep) checkStep).requirementsAreSatisfiedBy(result)) {
                 return checkStep;
-            } else {
-                return getStepAfterStep(checkStep, result);
             }
-        } else {
-            return checkStep;
+            nextIndex++;
         }
+        return null;
     }
 
     /**
@@ -101,22 +100,47 @@ public class ConditionalOrderedTask extends OrderedTask implements Serializable
      */
     @Override
     public Step getStepBeforeStep(Step step, TaskResult result) {
-        Step checkStep = null;
+        int nextIndex = indexOf(step) - 1;
+        while (nextIndex >= 0) {
+            Step checkStep = steps.get(nextIndex);
+            if (!(checkStep instanceof ConditionalStep) || ((ConditionalStep) checkStep).requirementsAreSatisfiedBy(result)) {
+                return checkStep;
+            }
+            nextIndex--;
+        }
+        return null;
+    }
 
-        int nextIndex = steps.indexOf(step) - 1;
+    /**
+     * Returns true if there is a step at the index. Subclasses that add steps on demand can add them
+     * here.
+     */
+    protected boolean hasStep(int index) {
+        return index < steps.size();
+    }
 
-        if (nextIndex >= 0) {
-            checkStep = steps.get(nextIndex);
+    /**
+     * Returns the position of the step in <code>steps</code>, or -1 if it is not part of the task.
+     */
+    protected int indexOf(Step step) {
+        if (stepIndexes == null) {
+            stepIndexes = new IdentityHashMap<>();
+            indexedSteps = 0;
         }
-
-        if (checkStep instanceof ConditionalStep) {
-            if (((ConditionalStep) checkStep).requirementsAreSatisfiedBy(result)) {
-                return checkStep;
-            } else {
-                return getStepBeforeStep(checkStep, result);
+        Integer index = stepIndexes.get(step);
+        if (index == null && indexedSteps < steps.size()) {
+            for (; indexedSteps < steps.size(); indexedSteps++) {
+                Step indexed = steps.get(indexedSteps);
+                if (!stepIndexes.containsKey(indexed)) {
+                    stepIndexes.put(indexed, indexedSteps);
+                }
             }
-        } else {
-            return checkStep;
+            index = stepIndexes.get(step);
+        }
+        if (index == null) {
+            // steps that are equal but not the same instance, e.g. after serialization
+            return steps.indexOf(step);
         }
+        return index;
     }
 }
\ No newline at end of file
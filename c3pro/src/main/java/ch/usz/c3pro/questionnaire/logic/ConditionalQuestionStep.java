@@ -6,6 +6,7 @@ import org.researchstack.backbone.step.QuestionStep;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -98,4 +99,16 @@ public class ConditionalQuestionStep extends QuestionStep implements Conditional
         }
         return true;
     }
+
+    /**
+     * Returns the {@link ResultRequirement}s of the {@link ConditionalStep}, an empty List if there
+     * are none.
+     * */
+    @Override
+    public List<ResultRequirement> getRequirements() {
+        if (requirements == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(requirements);
+    }
 }
\ No newline at end of file
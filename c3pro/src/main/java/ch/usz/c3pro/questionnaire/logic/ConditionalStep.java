@@ -48,4 +48,9 @@ public interface ConditionalStep {
      * given by the user up to the point of the check.
      * */
     boolean requirementsAreSatisfiedBy(TaskResult result);
+
+    /**
+     * Returns the {@link ResultRequirement}s of the ConditionalStep, an empty List if there are none.
+     * */
+    List<ResultRequirement> getRequirements();
 }
@@ -0,0 +1,38 @@
+package ch.usz.c3pro.questionnaire.logic;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A ConversionInstrument receives the {@link ConversionProfile}s of the conversions between FHIR
+ * and ResearchStack, see {@link ConversionInstrumentation#setInstrument(ConversionInstrument)}.
+ * It is called on the conversion threads, so implementations have to be thread safe.
+ */
+public interface ConversionInstrument {
+    /**
+     * Returns a counter of the allocations of the current thread, e.g. objects or bytes allocated
+     * so far. Only differences are used. Return 0 if allocations should not be counted.
+     */
+    public long allocations();
+
+    /**
+     * Called when the conversion of a questionnaire or response is finished.
+     */
+    public void report(ConversionProfile profile);
+}
@@ -0,0 +1,209 @@
+package ch.usz.c3pro.questionnaire.logic;
+
+import ch.usz.c3pro.BuildConfig;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * ConversionInstrumentation measures the stages of the conversions between FHIR and ResearchStack
+ * and reports a {@link ConversionProfile} per questionnaire or response to the
+ * {@link ConversionInstrument} that is set. The calls in the conversion code are guarded by
+ * {@link #ENABLED}, a compile-time constant of the build type, so they are removed by the compiler
+ * when instrumentation is disabled:
+ *
+ * <pre>
+ * int mark = ConversionInstrumentation.ENABLED ? ConversionInstrumentation.enter() : 0;
+ * ...
+ * if (ConversionInstrumentation.ENABLED) {
+ *     ConversionInstrumentation.exit(ConversionInstrumentation.Stage.CHOICES, null, mark);
+ * }
+ * </pre>
+ *
+ * When it is enabled but no instrument is set, every call only reads a volatile field. Stages are
+ * measured on the thread of the conversion; {@link ParallelConversion} attaches its workers to the
+ * profile of the questionnaire. Steps converted later by a {@link ProgressiveOrderedTask} are not
+ * profiled.
+ */
+public class ConversionInstrumentation {
+    /**
+     * Set by the INSTRUMENT_CONVERSION field of the build type in build.gradle.
+     */
+    public static final boolean ENABLED = BuildConfig.INSTRUMENT_CONVERSION;
+
+    /**
+     * The measured stages of the conversions.
+     */
+    public enum Stage {
+        /** Converting the items of a group to steps, reported by the linkId of the group. */
+        ITEMS2STEPS_GROUP,
+        /** Creating the AnswerFormat of a question, including its choices. */
+        ANSWER_FORMAT,
+        /** Resolving the choices of a choice question from its options or ValueSet. */
+        CHOICES,
+        /** Creating the ResultRequirements of an item with enableWhen conditions. */
+        REQUIREMENTS,
+        /** Encoding a TaskResult as QuestionnaireResponse. */
+        RESPONSE_ENCODING
+    }
+
+    private static volatile ConversionInstrument instrument;
+    private static final ThreadLocal<Frame> frames = new ThreadLocal<Frame>() {
+        @Override
+        protected Frame initialValue() {
+            return new Frame();
+        }
+    };
+
+    /**
+     * The profile the current thread reports to and the starts of the stages in progress, kept in
+     * arrays so measuring does not allocate.
+     */
+    private static class Frame {
+        private ConversionProfile profile;
+        private ConversionInstrument instrument;
+        private long[] starts = new long[16];
+        private long[] startAllocations = new long[16];
+        private int depth;
+    }
+
+    private ConversionInstrumentation() {
+    }
+
+    /**
+     * Sets the instrument the profiles are reported to, null to stop profiling.
+     */
+    public static void setInstrument(ConversionInstrument conversionInstrument) {
+        instrument = conversionInstrument;
+    }
+
+    public static ConversionInstrument getInstrument() {
+        return instrument;
+    }
+
+    /**
+     * Starts the profile of the conversion of the subject on this thread. Returns null if no
+     * instrument is set or a profile is already running on this thread, the stages are then counted
+     * for the outer one. The result has to be passed to {@link #end(ConversionProfile)}.
+     */
+    public static ConversionProfile begin(String subject) {
+        ConversionInstrument current = instrument;
+        if (current == null) {
+            return null;
+        }
+        Frame frame = frames.get();
+        if (frame.profile != null) {
+            return null;
+        }
+        frame.instrument = current;
+        frame.profile = new ConversionProfile(subject, System.nanoTime(), current.allocations());
+        frame.depth = 0;
+        return frame.profile;
+    }
+
+    /**
+     * Ends the profile on this thread and reports it. Does nothing if the profile is null.
+     */
+    public static void end(ConversionProfile profile) {
+        if (profile == null) {
+            return;
+        }
+        Frame frame = frames.get();
+        profile.finish(System.nanoTime(), frame.instrument.allocations());
+        ConversionInstrument current = frame.instrument;
+        frame.profile = null;
+        frame.instrument = null;
+        frame.depth = 0;
+        current.report(profile);
+    }
+
+    /**
+     * Returns the profile running on this thread, or null.
+     */
+    public static ConversionProfile current() {
+        return instrument == null ? null : frames.get().profile;
+    }
+
+    /**
+     * Makes this thread report its stages to the profile of another thread, e.g. in a worker of a
+     * parallel conversion. Returns the previous profile of the thread, which has to be passed to
+     * {@link #detach(ConversionProfile)}.
+     */
+    public static ConversionProfile attach(ConversionProfile profile) {
+        Frame frame = frames.get();
+        ConversionProfile previous = frame.profile;
+        frame.profile = profile;
+        frame.instrument = instrument;
+        frame.depth = 0;
+        return previous;
+    }
+
+    public static void detach(ConversionProfile previous) {
+        Frame frame = frames.get();
+        frame.profile = previous;
+        frame.instrument = previous != null ? instrument : null;
+        frame.depth = 0;
+    }
+
+    /**
+     * Starts measuring a stage on this thread and returns the mark to pass to
+     * {@link #exit(Stage, String, int)}, -1 if there is no profile running.
+     */
+    public static int enter() {
+        if (instrument == null) {
+            return -1;
+        }
+        Frame frame = frames.get();
+        if (frame.profile == null || frame.instrument == null) {
+            return -1;
+        }
+        if (frame.depth == frame.starts.length) {
+            frame.starts = grow(frame.starts);
+            frame.startAllocations = grow(frame.startAllocations);
+        }
+        int mark = frame.depth++;
+        frame.startAllocations[mark] = frame.instrument.allocations();
+        frame.starts[mark] = System.nanoTime();
+        return mark;
+    }
+
+    /**
+     * Ends the stage started with the mark and adds it to the profile, for the group with the
+     * linkId if it is not null. Stages entered after the mark that have not been exited, e.g.
+     * because of an exception, are dropped.
+     */
+    public static void exit(Stage stage, String group, int mark) {
+        if (mark < 0) {
+            return;
+        }
+        long end = System.nanoTime();
+        Frame frame = frames.get();
+        if (frame.profile == null || mark >= frame.depth) {
+            return;
+        }
+        frame.depth = mark;
+        frame.profile.add(stage, group, end - frame.starts[mark], frame.instrument.allocations() - frame.startAllocations[mark]);
+    }
+
+    private static long[] grow(long[] array) {
+        long[] grown = new long[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+}
@@ -0,0 +1,174 @@
+package ch.usz.c3pro.questionnaire.logic;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A ConversionProfile holds the timings and allocation counts of the conversion of one
+ * questionnaire or response, by {@link ConversionInstrumentation.Stage} and by group item. Times
+ * of nested stages are included in the enclosing ones, e.g. resolving the choices of an item is part
+ * of resolving its answer format, which is part of converting its group. If the items are converted
+ * on several threads, the times of the threads are added up.
+ */
+public class ConversionProfile {
+    private final String subject;
+    private final long start;
+    private final long startAllocations;
+    private final Map<ConversionInstrumentation.Stage, Measurement> stages = new EnumMap<>(ConversionInstrumentation.Stage.class);
+    private final Map<String, Measurement> groups = new LinkedHashMap<>();
+    private long nanos;
+    private long allocations;
+
+    /**
+     * The number of times a stage has run with the time and allocations it took in total.
+     */
+    public static class Measurement {
+        private int count;
+        private long nanos;
+        private long allocations;
+
+        private void add(long stageNanos, long stageAllocations) {
+            count++;
+            nanos += stageNanos;
+            allocations += stageAllocations;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        public long getAllocations() {
+            return allocations;
+        }
+
+        @Override
+        public String toString() {
+            return count + "x " + (nanos / 1000) + " us " + allocations + " alloc";
+        }
+    }
+
+    ConversionProfile(String subject, long start, long startAllocations) {
+        this.subject = subject;
+        this.start = start;
+        this.startAllocations = startAllocations;
+    }
+
+    synchronized void add(ConversionInstrumentation.Stage stage, String group, long stageNanos, long stageAllocations) {
+        Measurement measurement = stages.get(stage);
+        if (measurement == null) {
+            measurement = new Measurement();
+            stages.put(stage, measurement);
+        }
+        measurement.add(stageNanos, stageAllocations);
+        if (group != null) {
+            Measurement groupMeasurement = groups.get(group);
+            if (groupMeasurement == null) {
+                groupMeasurement = new Measurement();
+                groups.put(group, groupMeasurement);
+            }
+            groupMeasurement.add(stageNanos, stageAllocations);
+        }
+    }
+
+    synchronized void finish(long end, long endAllocations) {
+        nanos = end - start;
+        allocations = endAllocations - startAllocations;
+    }
+
+    /**
+     * The id of the questionnaire or of the TaskResult that was converted.
+     */
+    public String getSubject() {
+        return subject;
+    }
+
+    /**
+     * The time of the whole conversion.
+     */
+    public synchronized long getNanos() {
+        return nanos;
+    }
+
+    public synchronized long getAllocations() {
+        return allocations;
+    }
+
+    /**
+     * Returns the Measurement of the stage, with a count of 0 if the stage did not run.
+     */
+    public synchronized Measurement getStage(ConversionInstrumentation.Stage stage) {
+        Measurement measurement = stages.get(stage);
+        return measurement != null ? measurement : new Measurement();
+    }
+
+    /**
+     * Returns the Measurements of the group items by their linkId, in the order of conversion.
+     */
+    public synchronized Map<String, Measurement> getGroups() {
+        return new LinkedHashMap<>(groups);
+    }
+
+    /**
+     * Returns the linkIds of the groups that took the longest, at most count of them.
+     */
+    public synchronized List<String> getSlowestGroups(int count) {
+        List<Map.Entry<String, Measurement>> entries = new ArrayList<>(groups.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Measurement>>() {
+            @Override
+            public int compare(Map.Entry<String, Measurement> a, Map.Entry<String, Measurement> b) {
+                long difference = b.getValue().nanos - a.getValue().nanos;
+                return difference > 0 ? 1 : (difference < 0 ? -1 : 0);
+            }
+        });
+        List<String> slowest = new ArrayList<>();
+        for (int i = 0; i < Math.min(count, entries.size()); i++) {
+            slowest.add(entries.get(i).getKey());
+        }
+        return slowest;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder text = new StringBuilder();
+        text.append(subject).append(": ").append(nanos / 1000).append(" us ").append(allocations).append(" alloc");
+        for (Map.Entry<ConversionInstrumentation.Stage, Measurement> stage : stages.entrySet()) {
+            text.append(", ").append(stage.getKey()).append(' ').append(stage.getValue());
+        }
+        List<String> slowest = getSlowestGroups(3);
+        if (!slowest.isEmpty()) {
+            text.append(", slowest groups");
+            for (String group : slowest) {
+                text.append(' ').append(group).append(" (").append(groups.get(group).nanos / 1000).append(" us)");
+            }
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,82 @@
+package ch.usz.c3pro.questionnaire.logic;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.researchstack.backbone.task.Task;
+
+import ch.usz.c3pro.C3PRO;
+import ch.usz.c3pro.dataqueue.DataQueue;
+import ch.usz.c3pro.questionnaire.TaskCache;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Stages for a {@link ch.usz.c3pro.dataqueue.Pipeline} that convert between HAPI FHIR and
+ * ResearchStack, e.g. to read, convert and display a questionnaire in one job.
+ */
+public class ConversionStages {
+
+    private ConversionStages() {
+    }
+
+    /**
+     * Returns a stage that outputs the first Questionnaire found in the Bundle.
+     */
+    public static DataQueue.Stage<Bundle, Questionnaire> firstQuestionnaire() {
+        return new FirstQuestionnaireStage();
+    }
+
+    /**
+     * Returns a stage that converts a Questionnaire to a Task, after resolving its ValueSets. If
+     * the {@link TaskCache} of the C3PRO has a Task of the questionnaire for the active language,
+     * it is returned instead, otherwise the new Task is cached.
+     */
+    public static DataQueue.Stage<Questionnaire, Task> questionnaire2Task() {
+        return new Questionnaire2TaskStage();
+    }
+
+    private static class FirstQuestionnaireStage implements DataQueue.Stage<Bundle, Questionnaire> {
+        @Override
+        public Questionnaire run(Bundle bundle) throws Exception {
+            for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+                if (entry.getResource() instanceof Questionnaire) {
+                    return (Questionnaire) entry.getResource();
+                }
+            }
+            throw new IllegalArgumentException("no Questionnaire found in the Bundle");
+        }
+    }
+
+    private static class Questionnaire2TaskStage implements DataQueue.Stage<Questionnaire, Task> {
+        @Override
+        public Task run(Questionnaire questionnaire) throws Exception {
+            TaskCache cache = C3PRO.getTaskCache();
+            Task task = cache != null ? cache.getTask(questionnaire) : null;
+            if (task == null) {
+                ValueSetResolver.resolveValueSets(questionnaire);
+                task = Questionnaire2Task.questionnaire2Task(questionnaire);
+                if (cache != null) {
+                    cache.put(questionnaire, task);
+                }
+            }
+            return task;
+        }
+    }
+}
@@ -4,13 +4,8 @@ import org.hl7.fhir.dstu3.model.Extension;
 import org.hl7.fhir.dstu3.model.Questionnaire;
 import org.hl7.fhir.dstu3.model.Reference;
 import org.hl7.fhir.dstu3.model.Type;
-import org.hl7.fhir.dstu3.model.ValueSet;
 import org.researchstack.backbone.answerformat.AnswerFormat;
-import org.researchstack.backbone.answerformat.BooleanAnswerFormat;
 import org.researchstack.backbone.answerformat.ChoiceAnswerFormat;
-import org.researchstack.backbone.answerformat.DateAnswerFormat;
-import org.researchstack.backbone.answerformat.IntegerAnswerFormat;
-import org.researchstack.backbone.answerformat.TextAnswerFormat;
 import org.researchstack.backbone.model.Choice;
 import org.researchstack.backbone.step.InstructionStep;
 import org.researchstack.backbone.step.QuestionStep;
@@ -46,7 +41,8 @@ import ch.usz.c3pro.utils.StringUtil;
  * {@link org.hl7.fhir.dstu3.model.Questionnaire.QuestionnaireItemComponent}s.
  * <p/>
  * Referenced ValueSets in getOptions() of ChoiceQuestions can only be resolved if included in the
- * FHIR {@link org.hl7.fhir.dstu3.model.Questionnaire} file.
+ * FHIR {@link org.hl7.fhir.dstu3.model.Questionnaire} file or resolved by the {@link ValueSetResolver}
+ * beforehand.
  */
 public class Items2Steps {
 
@@ -66,6 +62,7 @@ public class Items2Steps {
         for (Questionnaire.QuestionnaireItemComponent item : items) {
 
             if (item.getType() == Questionnaire.QuestionnaireItemType.GROUP) {
+                int mark = ConversionInstrumentation.ENABLED ? ConversionInstrumentation.enter() : 0;
                 List<Step> newSteps = items2Steps(item.getItem());
                 if (item.hasEnableWhen()) {
                     List<ResultRequirement> reqs = getRequirementsFor(item);
@@ -83,6 +80,9 @@ public class Items2Steps {
                 } else {
                     steps.addAll(newSteps);
                 }
+                if (ConversionInstrumentation.ENABLED) {
+                    ConversionInstrumentation.exit(ConversionInstrumentation.Stage.ITEMS2STEPS_GROUP, item.getLinkId(), mark);
+                }
             } else {
                 Step newStep = Items2Steps.item2Step(item);
 
@@ -129,7 +129,11 @@ public class Items2Steps {
             }
         } else {
 
+            int mark = ConversionInstrumentation.ENABLED ? ConversionInstrumentation.enter() : 0;
             AnswerFormat fmt = getAnswerformat(item);
+            if (ConversionInstrumentation.ENABLED) {
+                ConversionInstrumentation.exit(ConversionInstrumentation.Stage.ANSWER_FORMAT, null, mark);
+            }
 
             if (item.hasEnableWhen()) {
                 ConditionalQuestionStep step = new ConditionalQuestionStep(id, text, fmt);
@@ -190,10 +194,10 @@ public class Items2Steps {
 
         switch (item.getType()) {
             case BOOLEAN:
-                return new BooleanAnswerFormat("Yes", "No");
+                return AnswerFormatPool.yesNo();
             case DECIMAL:
                 // for decimal, there is no implementedStepBody.class, have to use integer for now
-                return new IntegerAnswerFormat(0, 1000);
+                return AnswerFormatPool.integer(0, 1000);
             case INTEGER:
                 List<Extension> minVals = item.getExtensionsByUrl("http://hl7.org/fhir/StructureDefinition/minValue");
                 List<Extension> maxVals = item.getExtensionsByUrl("http://hl7.org/fhir/StructureDefinition/maxValue");
@@ -218,37 +222,35 @@ public class Items2Steps {
 
                     // scale answer format not yet available, so have to use Integer
                     //return new IntegerAnswerFormat(AnswerFormat. some scale answer style)
-                    return new IntegerAnswerFormat(minVal, maxVal);
+                    return AnswerFormatPool.integer(minVal, maxVal);
                 } else {
-                    return new IntegerAnswerFormat(0, 1000);
+                    return AnswerFormatPool.integer(0, 1000);
                 }
             case DATE:
-                return new DateAnswerFormat(AnswerFormat.DateAnswerStyle.Date);
+                return AnswerFormatPool.date(AnswerFormat.DateAnswerStyle.Date);
             case DATETIME:
                 //not implementedStepBody
                 //return new DateAnswerFormat(AnswerFormat.DateAnswerStyle.DateAndTime);
-                return new DateAnswerFormat(AnswerFormat.DateAnswerStyle.Date);
+                return AnswerFormatPool.date(AnswerFormat.DateAnswerStyle.Date);
             //case "instant": return new DateAnswerFormat();
             //case "time":
             case TIME:
                 //not implemented yet
-                return new TextAnswerFormat(5);
+                return AnswerFormatPool.text(5);
             case STRING:
-                return new TextAnswerFormat(300);
+                return AnswerFormatPool.text(300);
             case TEXT:
-                return new TextAnswerFormat();
+                return AnswerFormatPool.text();
             case CHOICE:
-                return new ChoiceAnswerFormat(AnswerFormat.ChoiceAnswerStyle.SingleChoice,
-                        resolveAnswerChoices(item));
+                return resolveChoiceFormat(AnswerFormat.ChoiceAnswerStyle.SingleChoice, item);
             case OPENCHOICE:
-                return new ChoiceAnswerFormat(AnswerFormat.ChoiceAnswerStyle.MultipleChoice,
-                        resolveAnswerChoices(item));
+                return resolveChoiceFormat(AnswerFormat.ChoiceAnswerStyle.MultipleChoice, item);
             //case "attachment":
             //case "reference":
             case QUANTITY:
-                return new IntegerAnswerFormat(0, 1000);
+                return AnswerFormatPool.integer(0, 1000);
             default:
-                return new TextAnswerFormat();
+                return AnswerFormatPool.text();
         }
     }
 
@@ -341,11 +343,25 @@ public class Items2Steps {
     }
 
     /**
-     * Returns an Array of {@link org.researchstack.backbone.model.Choice}s created from either the item's getOption() or getOptions().
-     * Referenced ValueSets in getOptions() can only be resolved if included in the FHIR
-     * questionnaire file.
+     * Returns a shared {@link ChoiceAnswerFormat} with the {@link org.researchstack.backbone.model.Choice}s
+     * created from either the item's getOption() or getOptions(), see {@link AnswerFormatPool}.
+     * Items with more than {@link LargeChoiceAnswerFormat#THRESHOLD} options get a
+     * {@link LargeChoiceAnswerFormat} that indexes the Choices instead of holding them.
+     * Referenced ValueSets in getOptions() are taken from the {@link ValueSetResolver}, they can
+     * only be resolved if included in the FHIR questionnaire file or resolved beforehand.
      */
-    private static Choice[] resolveAnswerChoices(Questionnaire.QuestionnaireItemComponent item) {
+    private static ChoiceAnswerFormat resolveChoiceFormat(AnswerFormat.ChoiceAnswerStyle style, Questionnaire.QuestionnaireItemComponent item) {
+        int mark = ConversionInstrumentation.ENABLED ? ConversionInstrumentation.enter() : 0;
+        try {
+            return choiceFormat(style, item);
+        } finally {
+            if (ConversionInstrumentation.ENABLED) {
+                ConversionInstrumentation.exit(ConversionInstrumentation.Stage.CHOICES, null, mark);
+            }
+        }
+    }
+
+    private static ChoiceAnswerFormat choiceFormat(AnswerFormat.ChoiceAnswerStyle style, Questionnaire.QuestionnaireItemComponent item) {
 
         // where we possibly find options
         List<Questionnaire.QuestionnaireItemOptionComponent> option = item.getOption();
@@ -358,76 +374,39 @@ public class Items2Steps {
         * does this happen at all?
         * */
         if (!option.isEmpty()) {
-            List<Choice> choiceList = new ArrayList<>();
+            if (option.size() > LargeChoiceAnswerFormat.THRESHOLD) {
+                return AnswerFormatPool.largeChoice(style, option);
+            }
+            List<Type> values = new ArrayList<>(option.size());
 
             for (Questionnaire.QuestionnaireItemOptionComponent c : option) {
-                String text = c.getValue().primitiveValue();
-                Type value = c.getValue();
-                choiceList.add(new Choice<Type>(text, value));
+                values.add(c.getValue());
             }
-            return choiceList.toArray(new Choice[choiceList.size()]);
+            return AnswerFormatPool.choice(style, values);
         }
 
 
         /*
         * if a reference exists, resolve valueSet
-        * for now assuming that only internal references exist
+        * contained ValueSets are resolved here, others have to be resolved by the
+        * ValueSetResolver beforehand
         * */
-        else if (reference.getResource() != null) {
-            ValueSet vSet = (ValueSet) reference.getResource();
-
-            // this happens with included options // valueset contained
-            List<ValueSet.ConceptSetComponent> includes = vSet.getCompose().getInclude();
-            if (!includes.isEmpty()) {
-                List<Choice> choiceList = new ArrayList<>();
-                for (ValueSet.ConceptSetComponent include : includes) {
-                    String system = include.getSystem();
-                    List<ValueSet.ConceptReferenceComponent> concepts = include.getConcept();
-                    for (ValueSet.ConceptReferenceComponent concept : concepts) {
-                        String text = concept.getDisplay();
-                        String code = concept.getCode();
-                        choiceList.add(new Choice<String>(text, system+"#"+code));
-                    }
-                }
-                return choiceList.toArray(new Choice[choiceList.size()]);
+        else if (item.hasOptions()) {
+            Choice[] choices = ValueSetResolver.getChoices(reference);
+            if (choices != null && choices.length > LargeChoiceAnswerFormat.THRESHOLD) {
+                String canonical = reference.getReference();
+                return AnswerFormatPool.largeChoice(style, choices, canonical != null && !canonical.startsWith("#") ? canonical : null);
+            } else if (choices != null) {
+                return AnswerFormatPool.choice(style, choices);
             }
-
-
-            // does this happen at all?
-            List<ValueSet.ValueSetExpansionContainsComponent> expansion = vSet.getExpansion().getContains();
-            if (!expansion.isEmpty()) {
-                List<Choice> choiceList = new ArrayList<>();
-                for (ValueSet.ValueSetExpansionContainsComponent contain : expansion) {
-                    String text = contain.getDisplay();
-                    String code = contain.getCode();
-                    choiceList.add(new Choice<String>(text, code));
-                }
-                return choiceList.toArray(new Choice[choiceList.size()]);
-            }
-            /* old version:
-            List<ValueSet.ExpansionContains> expansion = vSet.getExpansion().getContains();
-            if (!expansion.isEmpty()) {
-                List<Choice> choiceList = new ArrayList<Choice>();
-                for (ValueSet.ExpansionContains contain : expansion) {
-                    String text = contain.getDisplay();
-                    String code = contain.getCode();
-                    choiceList.add(new Choice(text, code));
-                }
-                return choiceList.toArray(new Choice[choiceList.size()]);
-            }*/
-
         }
 
 
         /*
         * noob error handling, don't try this at home, do it right
         * */
-        else {
-            Choice[] choiceArray = {new Choice<String>("no choices found", "N/A")};
-            return choiceArray;
-        }
         Choice[] choiceArray = {new Choice<String>("no choices found", "N/A")};
-        return choiceArray;
+        return new ChoiceAnswerFormat(style, choiceArray);
     }
 
     /**
@@ -435,6 +414,7 @@ public class Items2Steps {
      * {@link org.hl7.fhir.dstu3.model.Questionnaire.QuestionnaireItemEnableWhenComponent} of the item.
      */
     private static List<ResultRequirement> getRequirementsFor(Questionnaire.QuestionnaireItemComponent item) {
+        int mark = ConversionInstrumentation.ENABLED ? ConversionInstrumentation.enter() : 0;
         List<ResultRequirement> reqs = new ArrayList<>();
         for (Questionnaire.QuestionnaireItemEnableWhenComponent enableWhen : item.getEnableWhen()) {
 
@@ -443,6 +423,9 @@ public class Items2Steps {
 
             reqs.add(new ResultRequirement(question, answer));
         }
+        if (ConversionInstrumentation.ENABLED) {
+            ConversionInstrumentation.exit(ConversionInstrumentation.Stage.REQUIREMENTS, null, mark);
+        }
         return reqs;
     }
 }
@@ -0,0 +1,194 @@
+package ch.usz.c3pro.questionnaire.logic;
+
+import android.util.Log;
+
+import org.hl7.fhir.dstu3.model.Reference;
+import org.researchstack.backbone.answerformat.ChoiceAnswerFormat;
+import org.researchstack.backbone.model.Choice;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import ch.usz.c3pro.questionnaire.LargeChoiceQuestionBody;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A ChoiceAnswerFormat for items with a very long list of options, like a ValueSet of medications
+ * or diagnoses. Items2Steps uses it for items with more than {@link #THRESHOLD} options.
+ * <p/>
+ * The format does not hold the {@link org.researchstack.backbone.model.Choice}s itself, they are
+ * kept in a {@link ChoiceIndex} that is registered by a key, and creating the format does not
+ * depend on the number of options. The {@link LargeChoiceQuestionBody} shows the Choices in pages
+ * of {@link #PAGE_SIZE} and filters them while the user is typing.
+ * <p/>
+ * A Task with a format for a referenced ValueSet only serializes the key and the reference. If the
+ * index is not registered anymore when the deserialized format is shown, e.g. after the app was
+ * restarted, the Choices are taken from the {@link ValueSetResolver} again. Options of the
+ * questionnaire itself and contained ValueSets can not be looked up again, their values are
+ * serialized compactly with the format.
+ */
+public class LargeChoiceAnswerFormat extends ChoiceAnswerFormat {
+    public static final String LTAG = "C3PRO";
+    public static final int THRESHOLD = 200;
+    public static final int PAGE_SIZE = 50;
+    public static final int MAX_INDEXES = 64;
+
+    private static final Map<String, ChoiceIndex> indexes = new LinkedHashMap<String, ChoiceIndex>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ChoiceIndex> eldest) {
+            return size() > MAX_INDEXES;
+        }
+    };
+
+    private final String key;
+    private final String reference;
+    private transient ChoiceIndex index;
+
+    /**
+     * Creates a format for the Choices of the index and registers the index.
+     *
+     * @param style     single or multiple choice
+     * @param index     the Choices
+     * @param reference canonical reference of the ValueSet the Choices are taken from, or null if
+     *                  they are options of the questionnaire
+     */
+    public LargeChoiceAnswerFormat(ChoiceAnswerStyle style, ChoiceIndex index, String reference) {
+        super(style);
+        this.index = index;
+        this.reference = reference;
+        key = UUID.randomUUID().toString();
+        synchronized (indexes) {
+            indexes.put(key, index);
+        }
+    }
+
+    /**
+     * Returns the index of the Choices, restoring it if the format has been deserialized.
+     */
+    public ChoiceIndex getIndex() {
+        if (index == null) {
+            index = restoreIndex();
+        }
+        return index;
+    }
+
+    private ChoiceIndex restoreIndex() {
+        ChoiceIndex restored;
+        synchronized (indexes) {
+            restored = indexes.get(key);
+        }
+        if (restored == null) {
+            Choice[] choices = reference != null ? ValueSetResolver.getChoices(new Reference(reference)) : null;
+            if (choices == null) {
+                Log.w(LTAG, "the choices of " + (reference != null ? reference : "a large choice item") + " are not available anymore");
+                choices = new Choice[0];
+            }
+            restored = new ChoiceIndex(choices);
+            synchronized (indexes) {
+                indexes.put(key, restored);
+            }
+        }
+        return restored;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        if (reference == null) {
+            getIndex().writeTo(out);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (reference == null) {
+            index = ChoiceIndex.readFrom(in);
+        }
+    }
+
+    /**
+     * Removes all registered indexes, as after a restart of the app. For tests.
+     */
+    static void clearIndexes() {
+        synchronized (indexes) {
+            indexes.clear();
+        }
+    }
+
+    /**
+     * Returns the canonical reference of the ValueSet of the Choices, or null if they are options of
+     * the questionnaire.
+     */
+    public String getReference() {
+        return reference;
+    }
+
+    /**
+     * Returns all Choices. Prefer {@link #getPage(int)} and {@link #filter(String)}, this creates
+     * the whole array.
+     */
+    @Override
+    public Choice[] getChoices() {
+        return getIndex().getChoices();
+    }
+
+    /**
+     * Returns the number of Choices.
+     */
+    public int getChoiceCount() {
+        return getIndex().size();
+    }
+
+    /**
+     * Returns the Choices of the page, an empty array if the page is behind the last Choice.
+     *
+     * @param page number of the page, starting at 0
+     */
+    public Choice[] getPage(int page) {
+        return getIndex().getPage(page, PAGE_SIZE);
+    }
+
+    /**
+     * Returns the positions of the Choices whose texts contain words starting with the words of the
+     * query, see {@link ChoiceIndex#filter(String)}.
+     */
+    public int[] filter(String query) {
+        return getIndex().filter(query);
+    }
+
+    /**
+     * Returns the page of the Choices at the positions returned by {@link #filter(String)}.
+     *
+     * @param positions positions of the filtered Choices
+     * @param page      number of the page, starting at 0
+     */
+    public Choice[] getPage(int[] positions, int page) {
+        return getIndex().get(positions, page * PAGE_SIZE, PAGE_SIZE);
+    }
+
+    @Override
+    public QuestionType getQuestionType() {
+        return LargeChoiceQuestionBody.TYPE;
+    }
+}
@@ -0,0 +1,208 @@
+package ch.usz.c3pro.questionnaire.logic;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.researchstack.backbone.step.Step;
+import org.researchstack.backbone.task.Task;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * This class converts FHIR {@link org.hl7.fhir.dstu3.model.Questionnaire}s on several cores. The
+ * top level items of a questionnaire are independent of each other, so they are converted in
+ * parallel by {@link Items2Steps} and joined in their original order. A Bundle of questionnaires
+ * is converted one questionnaire per thread.
+ * <p/>
+ * The calls block until the conversion is done, so they should be made from a background thread.
+ * Tasks are never nested on the executor, so any fixed size executor can be passed in.
+ * ValueSets that are not contained have to be resolved by the {@link ValueSetResolver} beforehand.
+ */
+public class ParallelConversion {
+
+    private static ExecutorService defaultExecutor;
+
+    private ParallelConversion() {
+    }
+
+    /**
+     * Returns the shared executor with one thread per available core.
+     */
+    public static synchronized ExecutorService getDefaultExecutor() {
+        if (defaultExecutor == null) {
+            defaultExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "C3PRO-conversion-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     * Returns the same list of {@link Step}s as {@link Items2Steps#items2Steps(List)}, every top
+     * level item is converted on the passed executor.
+     *
+     * @param items    List of FHIR items that may contain more items
+     * @param executor the executor the items are converted on
+     * @return List containing {@link Step}s and {@link ConditionalStep}s in the order of the items
+     */
+    public static List<Step> items2Steps(List<Questionnaire.QuestionnaireItemComponent> items, ExecutorService executor) {
+        List<Future<List<Step>>> futures = new ArrayList<>(items.size());
+        final ConversionProfile profile = ConversionInstrumentation.ENABLED ? ConversionInstrumentation.current() : null;
+        for (final Questionnaire.QuestionnaireItemComponent item : items) {
+            futures.add(executor.submit(new Callable<List<Step>>() {
+                @Override
+                public List<Step> call() throws Exception {
+                    if (ConversionInstrumentation.ENABLED && profile != null) {
+                        ConversionProfile previous = ConversionInstrumentation.attach(profile);
+                        try {
+                            return Items2Steps.items2Steps(Collections.singletonList(item));
+                        } finally {
+                            ConversionInstrumentation.detach(previous);
+                        }
+                    }
+                    return Items2Steps.items2Steps(Collections.singletonList(item));
+                }
+            }));
+        }
+
+        List<Step> steps = new ArrayList<>();
+        for (List<Step> itemSteps : getAll(futures)) {
+            steps.addAll(itemSteps);
+        }
+        return steps;
+    }
+
+    /**
+     * Returns the same {@link Task} as {@link Questionnaire2Task#questionnaire2Task(Questionnaire)},
+     * the top level items are converted on the default executor.
+     *
+     * @param questionnaire a HAPI FHIR Questionnaire Resource
+     * @return              a ResearchStack Task
+     */
+    public static Task questionnaire2Task(Questionnaire questionnaire) {
+        return questionnaire2Task(questionnaire, getDefaultExecutor());
+    }
+
+    /**
+     * Returns the same {@link Task} as {@link Questionnaire2Task#questionnaire2Task(Questionnaire)},
+     * the top level items are converted on the passed executor.
+     *
+     * @param questionnaire a HAPI FHIR Questionnaire Resource
+     * @param executor      the executor the items are converted on
+     * @return              a ResearchStack Task
+     */
+    public static Task questionnaire2Task(Questionnaire questionnaire, ExecutorService executor) {
+        List<Step> steps;
+        // the workers read the questionnaire while this thread holds its monitor, so it is not
+        // localized by another conversion meanwhile, see Translations
+        synchronized (questionnaire) {
+            Translations.localize(questionnaire);
+            ConversionProfile profile = ConversionInstrumentation.ENABLED ? ConversionInstrumentation.begin(questionnaire.getId()) : null;
+            try {
+                steps = items2Steps(questionnaire.getItem(), executor);
+            } finally {
+                if (ConversionInstrumentation.ENABLED) {
+                    ConversionInstrumentation.end(profile);
+                }
+            }
+        }
+        return new ConditionalOrderedTask(questionnaire.getId(), steps);
+    }
+
+    /**
+     * Converts all the {@link org.hl7.fhir.dstu3.model.Questionnaire}s in the Bundle on the default
+     * executor. Other resources in the Bundle are ignored.
+     *
+     * @param bundle a FHIR Bundle containing Questionnaires, e.g. the result of a search
+     * @return the Tasks in the order of the Questionnaires in the Bundle
+     */
+    public static List<Task> bundle2Tasks(Bundle bundle) {
+        return bundle2Tasks(bundle, getDefaultExecutor());
+    }
+
+    /**
+     * Converts all the {@link org.hl7.fhir.dstu3.model.Questionnaire}s in the Bundle on the passed
+     * executor, one Questionnaire per thread. Other resources in the Bundle are ignored.
+     *
+     * @param bundle   a FHIR Bundle containing Questionnaires, e.g. the result of a search
+     * @param executor the executor the Questionnaires are converted on
+     * @return the Tasks in the order of the Questionnaires in the Bundle
+     */
+    public static List<Task> bundle2Tasks(Bundle bundle, ExecutorService executor) {
+        List<Future<Task>> futures = new ArrayList<>();
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            if (entry.getResource() instanceof Questionnaire) {
+                final Questionnaire questionnaire = (Questionnaire) entry.getResource();
+                futures.add(executor.submit(new Callable<Task>() {
+                    @Override
+                    public Task call() throws Exception {
+                        return Questionnaire2Task.questionnaire2Task(questionnaire);
+                    }
+                }));
+            }
+        }
+        return getAll(futures);
+    }
+
+    /**
+     * Waits for all futures and returns their results in order. Exceptions thrown during the
+     * conversion are rethrown.
+     */
+    private static <T> List<T> getAll(List<Future<T>> futures) {
+        List<T> results = new ArrayList<>(futures.size());
+        try {
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("conversion interrupted", e);
+        } catch (ExecutionException e) {
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException("conversion failed", e.getCause());
+        }
+        return results;
+    }
+}
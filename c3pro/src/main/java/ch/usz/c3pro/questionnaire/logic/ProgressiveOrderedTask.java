@@ -0,0 +1,211 @@
+package ch.usz.c3pro.questionnaire.logic;
+
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.researchstack.backbone.result.TaskResult;
+import org.researchstack.backbone.step.Step;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * This class extends the {@link ConditionalOrderedTask} and only holds the first steps of a FHIR
+ * {@link org.hl7.fhir.dstu3.model.Questionnaire} when it is created. The remaining top level items
+ * are converted to {@link org.researchstack.backbone.step.Step}s later, in the background by
+ * calling {@link #materializeAll()}. This way the first question can be shown without waiting for
+ * the conversion of the whole questionnaire.
+ * <p/>
+ * The ValueSets of the questionnaire have to be resolved with
+ * {@link ValueSetResolver#resolveValueSets(Questionnaire)} before the task is created, so
+ * converting an item never makes a network call.
+ * <p/>
+ * Items are converted without holding the lock of the task, so the navigation on the main thread
+ * only waits while the step it needs is not converted yet. If the navigation reaches a step while
+ * {@link #materializeAll()} is running, it waits for the background thread instead of converting
+ * on its own; only if no thread is converting, the navigation converts the missing items itself.
+ */
+public class ProgressiveOrderedTask extends ConditionalOrderedTask implements Serializable {
+
+    private Questionnaire questionnaire;
+    private int nextItemIndex;
+    /* true while a thread converts the item at nextItemIndex */
+    private transient boolean converting;
+    /* number of threads running materializeAll() */
+    private transient int workers;
+
+    /**
+     * Constructor.
+     * Returns a ProgressiveOrderedTask for the questionnaire that already contains the steps of the
+     * top level items that come before nextItem. The remaining items will be converted on demand.
+     *
+     * @param identifier    The unique identifier for the task. Should be identical to the the LinkId
+     *                      of the corresponding FHIR {@link org.hl7.fhir.dstu3.model.Questionnaire}
+     * @param steps         The {@link org.researchstack.backbone.step.Step}s and
+     *                      {@link ConditionalStep}s already converted
+     * @param FHIRQuestionnaire The questionnaire the steps are converted from, with its ValueSets
+     *                      already resolved
+     * @param nextItem      Index of the first top level item that has not been converted yet
+     */
+    public ProgressiveOrderedTask(String identifier, List<Step> steps, Questionnaire FHIRQuestionnaire, int nextItem) {
+        super(identifier, new ArrayList<>(steps));
+        questionnaire = FHIRQuestionnaire;
+        nextItemIndex = nextItem;
+    }
+
+    /**
+     * Returns true if all items of the questionnaire have been converted to steps.
+     */
+    public synchronized boolean isComplete() {
+        return nextItemIndex >= questionnaire.getItem().size();
+    }
+
+    /**
+     * Converts the next top level item of the questionnaire and appends its steps. If another
+     * thread is converting an item, waits for it first. Returns false if there are no items left.
+     */
+    public boolean materializeNext() {
+        int index;
+        synchronized (this) {
+            while (converting) {
+                awaitProgress();
+            }
+            if (isComplete()) {
+                return false;
+            }
+            converting = true;
+            index = nextItemIndex;
+        }
+        List<Step> converted = null;
+        try {
+            // the questionnaire may be localized by another conversion meanwhile, see Translations
+            synchronized (questionnaire) {
+                List<Questionnaire.QuestionnaireItemComponent> next = Collections.singletonList(questionnaire.getItem().get(index));
+                ValueSetResolver.resolveContainedValueSets(questionnaire, next);
+                converted = Items2Steps.items2Steps(next);
+            }
+        } finally {
+            synchronized (this) {
+                if (converted != null) {
+                    steps.addAll(converted);
+                    nextItemIndex++;
+                }
+                converting = false;
+                notifyAll();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Converts all remaining items of the questionnaire. Should be called on a background thread
+     * after the task has been handed to the UI, the navigation then waits for this thread.
+     */
+    public void materializeAll() {
+        synchronized (this) {
+            workers++;
+        }
+        try {
+            while (materializeNext()) {
+                // every item takes the lock separately, so the UI is not blocked for the whole conversion
+            }
+        } finally {
+            synchronized (this) {
+                workers--;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits until the step at the passed index exists or no items are left. Converts the missing
+     * items on the calling thread only if no other thread is converting.
+     */
+    private synchronized void materializeUpTo(int index) {
+        while (steps.size() <= index && !isComplete()) {
+            if (converting || workers > 0) {
+                awaitProgress();
+            } else {
+                materializeNext();
+            }
+        }
+    }
+
+    /**
+     * Waits for the converting thread to append the next steps, releasing the lock of the task.
+     */
+    private synchronized void awaitProgress() {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for the conversion of " + getIdentifier(), e);
+        }
+    }
+
+    @Override
+    public synchronized Step getStepAfterStep(Step step, TaskResult result) {
+        return super.getStepAfterStep(step, result);
+    }
+
+    @Override
+    protected synchronized boolean hasStep(int index) {
+        materializeUpTo(index);
+        return super.hasStep(index);
+    }
+
+    @Override
+    public synchronized Step getStepBeforeStep(Step step, TaskResult result) {
+        return super.getStepBeforeStep(step, result);
+    }
+
+    @Override
+    public synchronized Step getStepWithIdentifier(String identifier) {
+        Step step = super.getStepWithIdentifier(identifier);
+        while (step == null && !isComplete()) {
+            materializeUpTo(steps.size());
+            step = super.getStepWithIdentifier(identifier);
+        }
+        return step;
+    }
+
+    @Override
+    public synchronized TaskProgress getProgressOfCurrentStep(Step step, TaskResult result) {
+        return super.getProgressOfCurrentStep(step, result);
+    }
+
+    @Override
+    public synchronized void validateParameters() {
+        super.validateParameters();
+    }
+
+    /**
+     * The task is serialized when it is passed to the
+     * {@link org.researchstack.backbone.ui.ViewTaskActivity}. A complete
+     * {@link ConditionalOrderedTask} is serialized instead, so the questionnaire is not part of
+     * the Intent and the activity never converts items. Waits for the background conversion.
+     */
+    protected synchronized Object writeReplace() {
+        materializeUpTo(Integer.MAX_VALUE - 1);
+        return new ConditionalOrderedTask(getIdentifier(), new ArrayList<>(steps));
+    }
+}
@@ -4,8 +4,13 @@ import org.hl7.fhir.dstu3.model.Questionnaire;
 import org.researchstack.backbone.step.Step;
 import org.researchstack.backbone.task.Task;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
+import ch.usz.c3pro.tracing.Span;
+import ch.usz.c3pro.tracing.Tracing;
+
 /**
  * C3PRO
  *
@@ -31,7 +36,11 @@ import java.util.List;
  * {@link org.researchstack.backbone.ui.ViewTaskActivity} to conduct a survey.
  * <p/>
  * Referenced ValueSets in getOptions() of ChoiceQuestions can only be resolved if included in the
- * FHIR questionnaire file.
+ * FHIR questionnaire file or resolved by the {@link ValueSetResolver} beforehand.
+ * <p/>
+ * The questionnaire is localized to the active language of the {@link Translations} before it is
+ * converted, so the Task only contains the strings of that language. The questionnaire is changed in
+ * place for that, the conversion holds its monitor while it localizes and reads it.
  * <p/>
  * Not all QuestionTypes are supported yet.
  * @see org.researchstack.backbone.answerformat.AnswerFormat
@@ -49,12 +58,67 @@ public class Questionnaire2Task {
     */
     public static Task questionnaire2Task (Questionnaire questionnaire){
 
-        List<Questionnaire.QuestionnaireItemComponent> items = questionnaire.getItem();
         String identifier = questionnaire.getId();
+        List<Step> steps;
+        synchronized (questionnaire) {
+            Translations.localize(questionnaire);
+            List<Questionnaire.QuestionnaireItemComponent> items = questionnaire.getItem();
 
-        List<Step> steps = Items2Steps.items2Steps(items);
+            ConversionProfile profile = ConversionInstrumentation.ENABLED ? ConversionInstrumentation.begin(identifier) : null;
+            Span span = Tracing.start("Items2Steps", Tracing.CATEGORY_CONVERSION);
+            try {
+                steps = Items2Steps.items2Steps(items);
+            } finally {
+                span.end();
+                if (ConversionInstrumentation.ENABLED) {
+                    ConversionInstrumentation.end(profile);
+                }
+            }
+        }
 
         return new ConditionalOrderedTask(identifier, steps) {
         };
     }
+
+    /**
+     * Returns a {@link ProgressiveOrderedTask} that only contains the steps of the first top level
+     * items of the FHIR {@link org.hl7.fhir.dstu3.model.Questionnaire}, at least firstSteps steps if
+     * the questionnaire has that many. The remaining items are converted when the navigation reaches
+     * them or when {@link ProgressiveOrderedTask#materializeAll()} is called, so the time until the
+     * Task can be shown does not depend on the size of the questionnaire. The ValueSets have to be
+     * resolved with {@link ValueSetResolver#resolveValueSets(Questionnaire)} before, only contained
+     * ValueSets are linked here, so neither this method nor the Task make network calls.
+     *
+     * @param questionnaire a HAPI FHIR Questionnaire Resource
+     * @param firstSteps    number of steps that should be converted right away
+     * @return              a ResearchStack Task
+     */
+    public static ProgressiveOrderedTask questionnaire2Task (Questionnaire questionnaire, int firstSteps){
+
+        String identifier = questionnaire.getId();
+        List<Step> steps = new ArrayList<>();
+        int nextItem = 0;
+        synchronized (questionnaire) {
+            Translations.localize(questionnaire);
+            List<Questionnaire.QuestionnaireItemComponent> items = questionnaire.getItem();
+
+            ConversionProfile profile = ConversionInstrumentation.ENABLED ? ConversionInstrumentation.begin(identifier) : null;
+            Span span = Tracing.start("Items2Steps", Tracing.CATEGORY_CONVERSION);
+            try {
+                while (nextItem < items.size() && (steps.size() < firstSteps || steps.isEmpty())) {
+                    List<Questionnaire.QuestionnaireItemComponent> item = Collections.singletonList(items.get(nextItem));
+                    ValueSetResolver.resolveContainedValueSets(questionnaire, item);
+                    steps.addAll(Items2Steps.items2Steps(item));
+                    nextItem++;
+                }
+            } finally {
+                span.end();
+                if (ConversionInstrumentation.ENABLED) {
+                    ConversionInstrumentation.end(profile);
+                }
+            }
+        }
+
+        return new ProgressiveOrderedTask(identifier, steps, questionnaire, nextItem);
+    }
 }
@@ -0,0 +1,251 @@
+package ch.usz.c3pro.questionnaire.logic;
+
+import org.hl7.fhir.dstu3.model.BooleanType;
+import org.hl7.fhir.dstu3.model.Coding;
+import org.hl7.fhir.dstu3.model.DecimalType;
+import org.hl7.fhir.dstu3.model.IdType;
+import org.hl7.fhir.dstu3.model.IntegerType;
+import org.hl7.fhir.dstu3.model.PrimitiveType;
+import org.hl7.fhir.dstu3.model.Type;
+import org.researchstack.backbone.answerformat.AnswerFormat;
+import org.researchstack.backbone.answerformat.BooleanAnswerFormat;
+import org.researchstack.backbone.answerformat.ChoiceAnswerFormat;
+import org.researchstack.backbone.answerformat.DateAnswerFormat;
+import org.researchstack.backbone.answerformat.IntegerAnswerFormat;
+import org.researchstack.backbone.answerformat.TextAnswerFormat;
+import org.researchstack.backbone.result.StepResult;
+import org.researchstack.backbone.result.TaskResult;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * This class writes the JSON of a FHIR {@link org.hl7.fhir.dstu3.model.QuestionnaireResponse}
+ * directly from a ResearchStack {@link org.researchstack.backbone.result.TaskResult}, without
+ * building the HAPI object tree first. The output is equivalent to encoding the result of
+ * {@link TaskResult2QuestionnaireResponse#taskResult2QuestionnaireResponse(TaskResult)} with the
+ * HAPI JSON parser, so it can be uploaded to the FHIR Server as it is.
+ */
+public class QuestionnaireResponseJsonEncoder {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private QuestionnaireResponseJsonEncoder() {
+    }
+
+    /**
+     * Returns the JSON of the QuestionnaireResponse for the passed TaskResult as UTF-8 bytes.
+     *
+     * @param taskResult The taskResult of the conducted survey produced by a {@link org.researchstack.backbone.ui.ViewTaskActivity}
+     * @return JSON of a FHIR QuestionnaireResponse containing the answers given by the user
+     */
+    public static byte[] encode(TaskResult taskResult) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            write(taskResult, out);
+        } catch (IOException e) {
+            // does not happen with a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes the JSON of the QuestionnaireResponse for the passed TaskResult as UTF-8 to the
+     * OutputStream. The stream is flushed, but not closed.
+     *
+     * @param taskResult The taskResult of the conducted survey produced by a {@link org.researchstack.backbone.ui.ViewTaskActivity}
+     * @param out        The stream the JSON is written to, e.g. the body of an HTTP request
+     */
+    public static void write(TaskResult taskResult, OutputStream out) throws IOException {
+        ConversionProfile profile = ConversionInstrumentation.ENABLED ? ConversionInstrumentation.begin(taskResult.getIdentifier()) : null;
+        int mark = ConversionInstrumentation.ENABLED ? ConversionInstrumentation.enter() : 0;
+        try {
+            writeResponse(taskResult, out);
+        } finally {
+            if (ConversionInstrumentation.ENABLED) {
+                ConversionInstrumentation.exit(ConversionInstrumentation.Stage.RESPONSE_ENCODING, null, mark);
+                ConversionInstrumentation.end(profile);
+            }
+        }
+    }
+
+    private static void writeResponse(TaskResult taskResult, OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, UTF8));
+
+        writer.write("{\"resourceType\":\"QuestionnaireResponse\"");
+        if (taskResult.getIdentifier() != null) {
+            // the HAPI parser only writes the id part of a resource id
+            writer.write(",\"id\":");
+            writeString(writer, new IdType(taskResult.getIdentifier()).getIdPart());
+        }
+        writer.write(",\"status\":\"completed\"");
+
+        boolean firstItem = true;
+        for (Map.Entry<String, StepResult> entry : taskResult.getResults().entrySet()) {
+            StepResult stepResult = entry.getValue();
+            if ((stepResult != null) && (stepResult.getResult() != null)) {
+                writer.write(firstItem ? ",\"item\":[" : ",");
+                firstItem = false;
+                writeItem(writer, entry.getKey(), stepResult);
+            }
+        }
+        if (!firstItem) {
+            writer.write("]");
+        }
+        writer.write("}");
+        writer.flush();
+    }
+
+    /**
+     * Writes an item with the answer of the StepResult, using the same mapping of AnswerFormats to
+     * value types as {@link TaskResult2QuestionnaireResponse#getFHIRAnswerForStepResult(StepResult)}.
+     * Answers of unsupported formats are empty and left out, like the HAPI parser does.
+     */
+    private static void writeItem(Writer writer, String linkId, StepResult stepResult) throws IOException {
+        writer.write("{\"linkId\":");
+        writeString(writer, linkId);
+
+        AnswerFormat format = stepResult.getAnswerFormat();
+        Object result = stepResult.getResult();
+
+        if (format instanceof ChoiceAnswerFormat) {
+            if (format instanceof BooleanAnswerFormat) {
+                writer.write(",\"answer\":[{\"valueBoolean\":");
+                writer.write(String.valueOf((boolean) (Boolean) result));
+                writer.write("}]");
+            } else if (result instanceof Type) {
+                writeChoiceValue(writer, (Type) result);
+            } else {
+                writer.write(",\"answer\":[{\"valueString\":");
+                writeString(writer, (String) result);
+                writer.write("}]");
+            }
+        } else if (format instanceof IntegerAnswerFormat) {
+            writer.write(",\"answer\":[{\"valueInteger\":");
+            writer.write(String.valueOf((int) result));
+            writer.write("}]");
+        } else if (format instanceof TextAnswerFormat) {
+            writer.write(",\"answer\":[{\"valueString\":");
+            writeString(writer, (String) result);
+            writer.write("}]");
+        } else if (format instanceof DateAnswerFormat) {
+            writer.write(",\"answer\":[{\"valueDate\":");
+            writeString(writer, new SimpleDateFormat("yyyy-MM-dd").format(new Date((long) result)));
+            writer.write("}]");
+        }
+        writer.write("}");
+    }
+
+    /**
+     * Writes the answer of an inline option. Options are Codings or primitive types, other values
+     * are left out. Extensions of the value are not written.
+     */
+    private static void writeChoiceValue(Writer writer, Type value) throws IOException {
+        if (value instanceof Coding) {
+            Coding coding = (Coding) value;
+            writer.write(",\"answer\":[{\"valueCoding\":{");
+            boolean first = writeProperty(writer, "system", coding.getSystem(), true);
+            first = writeProperty(writer, "version", coding.getVersion(), first);
+            first = writeProperty(writer, "code", coding.getCode(), first);
+            first = writeProperty(writer, "display", coding.getDisplay(), first);
+            if (coding.hasUserSelected()) {
+                writer.write(first ? "" : ",");
+                writer.write("\"userSelected\":");
+                writer.write(String.valueOf(coding.getUserSelected()));
+            }
+            writer.write("}}]");
+        } else if (value instanceof PrimitiveType && value.primitiveValue() != null) {
+            String type = value.fhirType();
+            writer.write(",\"answer\":[{\"value");
+            writer.write(Character.toUpperCase(type.charAt(0)) + type.substring(1));
+            writer.write("\":");
+            if (value instanceof IntegerType || value instanceof DecimalType || value instanceof BooleanType) {
+                writer.write(value.primitiveValue());
+            } else {
+                writeString(writer, value.primitiveValue());
+            }
+            writer.write("}]");
+        }
+    }
+
+    /**
+     * Writes the property if it has a value and returns whether no property has been written yet.
+     */
+    private static boolean writeProperty(Writer writer, String name, String value, boolean first) throws IOException {
+        if (value == null) {
+            return first;
+        }
+        writer.write(first ? "\"" : ",\"");
+        writer.write(name);
+        writer.write("\":");
+        writeString(writer, value);
+        return false;
+    }
+
+    /**
+     * Writes the String as a quoted and escaped JSON string.
+     */
+    private static void writeString(Writer writer, String value) throws IOException {
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                case '\b':
+                    writer.write("\\b");
+                    break;
+                case '\f':
+                    writer.write("\\f");
+                    break;
+                default:
+                    if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+                        writer.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        writer.write(c);
+                    }
+            }
+        }
+        writer.write('"');
+    }
+}
@@ -0,0 +1,332 @@
+package ch.usz.c3pro.questionnaire.logic;
+
+import org.hl7.fhir.dstu3.model.BooleanType;
+import org.hl7.fhir.dstu3.model.Coding;
+import org.hl7.fhir.dstu3.model.DateType;
+import org.hl7.fhir.dstu3.model.IntegerType;
+import org.hl7.fhir.dstu3.model.QuestionnaireResponse;
+import org.hl7.fhir.dstu3.model.StringType;
+import org.hl7.fhir.dstu3.model.Type;
+import org.researchstack.backbone.answerformat.AnswerFormat;
+import org.researchstack.backbone.answerformat.BooleanAnswerFormat;
+import org.researchstack.backbone.answerformat.ChoiceAnswerFormat;
+import org.researchstack.backbone.answerformat.DateAnswerFormat;
+import org.researchstack.backbone.answerformat.IntegerAnswerFormat;
+import org.researchstack.backbone.answerformat.TextAnswerFormat;
+import org.researchstack.backbone.model.Choice;
+import org.researchstack.backbone.result.StepResult;
+import org.researchstack.backbone.result.TaskResult;
+import org.researchstack.backbone.step.QuestionStep;
+import org.researchstack.backbone.step.Step;
+import org.researchstack.backbone.task.OrderedTask;
+import org.researchstack.backbone.task.Task;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * This class checks a FHIR {@link QuestionnaireResponse} created by
+ * {@link TaskResult2QuestionnaireResponse} against the {@link ConditionalOrderedTask} it was
+ * answered with, before it is uploaded. It finds answers to unknown or hidden items, answers of the
+ * wrong type and required items that are enabled but not answered.
+ * The structure of the Task and its enableWhen conditions are compiled once into a {@link Schema},
+ * which is cached per Task, so validating a response only takes one pass over its items.
+ */
+public class QuestionnaireResponseValidator {
+    private static final Map<Task, Schema> schemas = Collections.synchronizedMap(new WeakHashMap<Task, Schema>());
+
+    /**
+     * The kinds of problems the validator finds.
+     */
+    public enum IssueType {
+        /** The response contains an item the Task has no question for. */
+        UNKNOWN_ITEM,
+        /** The answer has a different type than the question expects. */
+        WRONG_TYPE,
+        /** The item is answered, although its enableWhen conditions are not met. */
+        ANSWER_TO_HIDDEN_ITEM,
+        /** The item is required and enabled, but not answered. */
+        MISSING_REQUIRED_ITEM
+    }
+
+    /**
+     * A problem with one item of a QuestionnaireResponse.
+     */
+    public static class Issue {
+        private final IssueType type;
+        private final String linkId;
+
+        private Issue(IssueType type, String linkId) {
+            this.type = type;
+            this.linkId = linkId;
+        }
+
+        public IssueType getType() {
+            return type;
+        }
+
+        public String getLinkId() {
+            return linkId;
+        }
+
+        @Override
+        public String toString() {
+            return type + " " + linkId;
+        }
+    }
+
+    /**
+     * The precomputed rules for the items of one Task.
+     */
+    public static class Schema {
+        private final Map<String, Item> items = new LinkedHashMap<>();
+    }
+
+    /**
+     * The rules for one item: the expected type of its answer, whether it is required and the
+     * conditions under which it is enabled.
+     */
+    private static class Item {
+        private final String linkId;
+        /** null if the format has no FHIR mapping, any answer is accepted then */
+        private final Class<? extends Type> answerType;
+        private final boolean answerable;
+        private final boolean required;
+        private final List<ResultRequirement> requirements;
+
+        private Item(String linkId, Class<? extends Type> answerType, boolean answerable, boolean required, List<ResultRequirement> requirements) {
+            this.linkId = linkId;
+            this.answerType = answerType;
+            this.answerable = answerable;
+            this.required = required;
+            this.requirements = requirements;
+        }
+    }
+
+    private QuestionnaireResponseValidator() {
+    }
+
+    /**
+     * Returns the problems found in the response, an empty List if it is valid.
+     *
+     * @param response The QuestionnaireResponse created from the TaskResult of the Task
+     * @param task     The Task created from the Questionnaire by {@link Questionnaire2Task}
+     * @return List of {@link Issue}s, empty if the response can be uploaded
+     */
+    public static List<Issue> validate(QuestionnaireResponse response, Task task) {
+        return validate(response, getSchema(task));
+    }
+
+    /**
+     * Returns the problems found in the response, an empty List if it is valid.
+     */
+    public static List<Issue> validate(QuestionnaireResponse response, Schema schema) {
+        List<String> linkIds = new ArrayList<>();
+        Map<String, Type> answers = new HashMap<>();
+        for (QuestionnaireResponse.QuestionnaireResponseItemComponent responseItem : response.getItem()) {
+            Type value = null;
+            if (responseItem.hasAnswer()) {
+                value = responseItem.getAnswer().get(0).getValue();
+            }
+            linkIds.add(responseItem.getLinkId());
+            if (value != null) {
+                answers.put(responseItem.getLinkId(), value);
+            }
+        }
+        return validate(linkIds, answers, schema);
+    }
+
+    /**
+     * Returns the problems found in the QuestionnaireResponse the TaskResult is converted to, an
+     * empty List if it is valid. The answers are mapped like
+     * {@link TaskResult2QuestionnaireResponse} does, but no QuestionnaireResponse is created, so
+     * responses that are encoded by the {@link QuestionnaireResponseJsonEncoder} can be checked.
+     *
+     * @param taskResult The TaskResult of the Task
+     * @param task       The Task created from the Questionnaire by {@link Questionnaire2Task}
+     * @return List of {@link Issue}s, empty if the response can be uploaded
+     */
+    public static List<Issue> validate(TaskResult taskResult, Task task) {
+        List<String> linkIds = new ArrayList<>();
+        Map<String, Type> answers = new HashMap<>();
+        for (Map.Entry<String, StepResult> entry : taskResult.getResults().entrySet()) {
+            StepResult stepResult = entry.getValue();
+            if ((stepResult != null) && (stepResult.getResult() != null)) {
+                Type value = TaskResult2QuestionnaireResponse.getFHIRAnswerForStepResult(stepResult).getValue();
+                linkIds.add(entry.getKey());
+                if (value != null) {
+                    answers.put(entry.getKey(), value);
+                }
+            }
+        }
+        return validate(linkIds, answers, getSchema(task));
+    }
+
+    /**
+     * Checks the items with the linkIds, in the order of the response, and their answers by linkId.
+     */
+    private static List<Issue> validate(List<String> linkIds, Map<String, Type> answers, Schema schema) {
+        List<Issue> issues = new ArrayList<>();
+        for (String linkId : linkIds) {
+            Item item = schema.items.get(linkId);
+            Type value = answers.get(linkId);
+            if (item == null || (!item.answerable && value != null)) {
+                issues.add(new Issue(IssueType.UNKNOWN_ITEM, linkId));
+            } else if (value != null) {
+                if (item.answerType != null && !item.answerType.isInstance(value)) {
+                    issues.add(new Issue(IssueType.WRONG_TYPE, linkId));
+                }
+                if (!isEnabled(item, answers)) {
+                    issues.add(new Issue(IssueType.ANSWER_TO_HIDDEN_ITEM, linkId));
+                }
+            }
+        }
+
+        for (Item item : schema.items.values()) {
+            if (item.required && !answers.containsKey(item.linkId) && isEnabled(item, answers)) {
+                issues.add(new Issue(IssueType.MISSING_REQUIRED_ITEM, item.linkId));
+            }
+        }
+        return issues;
+    }
+
+    /**
+     * Returns the Schema of the Task, it is compiled on the first call and cached as long as the
+     * Task is in use.
+     */
+    public static Schema getSchema(Task task) {
+        Schema schema = schemas.get(task);
+        if (schema == null) {
+            schema = compile(task);
+            schemas.put(task, schema);
+        }
+        return schema;
+    }
+
+    private static Schema compile(Task task) {
+        if (task instanceof ProgressiveOrderedTask) {
+            ((ProgressiveOrderedTask) task).materializeAll();
+        }
+        Schema schema = new Schema();
+        if (!(task instanceof OrderedTask)) {
+            return schema;
+        }
+        for (Step step : ((OrderedTask) task).getSteps()) {
+            List<ResultRequirement> requirements = step instanceof ConditionalStep ?
+                    ((ConditionalStep) step).getRequirements() : Collections.<ResultRequirement>emptyList();
+            if (step instanceof QuestionStep) {
+                AnswerFormat format = ((QuestionStep) step).getAnswerFormat();
+                schema.items.put(step.getIdentifier(), new Item(step.getIdentifier(), getAnswerType(format), true, !step.isOptional(), requirements));
+            } else {
+                schema.items.put(step.getIdentifier(), new Item(step.getIdentifier(), null, false, false, requirements));
+            }
+        }
+        return schema;
+    }
+
+    /**
+     * Returns the type of the FHIR answer for the AnswerFormat, using the same mapping as
+     * {@link TaskResult2QuestionnaireResponse#getFHIRAnswerForStepResult(org.researchstack.backbone.result.StepResult)}.
+     */
+    private static Class<? extends Type> getAnswerType(AnswerFormat format) {
+        if (format instanceof BooleanAnswerFormat) {
+            return BooleanType.class;
+        } else if (format instanceof ChoiceAnswerFormat) {
+            return getChoiceType((ChoiceAnswerFormat) format);
+        } else if (format instanceof IntegerAnswerFormat) {
+            return IntegerType.class;
+        } else if (format instanceof TextAnswerFormat) {
+            return StringType.class;
+        } else if (format instanceof DateAnswerFormat) {
+            return DateType.class;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the type of the answers to the choices: inline options answer with their value, which
+     * is a Coding or any primitive type, ValueSets with the code as a String. If the options have
+     * values of different types, any of them is accepted.
+     */
+    private static Class<? extends Type> getChoiceType(ChoiceAnswerFormat format) {
+        Class<? extends Type> type = null;
+        if (format instanceof LargeChoiceAnswerFormat) {
+            ChoiceIndex index = ((LargeChoiceAnswerFormat) format).getIndex();
+            for (int i = 0; i < index.size(); i++) {
+                type = commonType(type, index.get(i));
+            }
+        } else {
+            for (Choice choice : format.getChoices()) {
+                type = commonType(type, choice);
+            }
+        }
+        return type != null ? type : StringType.class;
+    }
+
+    /**
+     * Returns the type of the answers to the choices seen so far and the passed one.
+     */
+    private static Class<? extends Type> commonType(Class<? extends Type> type, Choice choice) {
+        Class<? extends Type> choiceType = choice.getValue() instanceof Type ? ((Type) choice.getValue()).getClass() : StringType.class;
+        if (type == null || type == choiceType) {
+            return choiceType;
+        }
+        return Type.class;
+    }
+
+    /**
+     * Checks the requirements of the item against the answers of the response, like
+     * {@link ResultRequirement#isSatisfiedBy(org.researchstack.backbone.result.TaskResult)} does
+     * against a TaskResult.
+     */
+    private static boolean isEnabled(Item item, Map<String, Type> answers) {
+        for (ResultRequirement requirement : item.requirements) {
+            Type answer = answers.get(requirement.getQuestionIdentifier());
+            Type required = requirement.getRequiredAnswer();
+            // a requirement without an answer is met by any answer
+            if (answer == null || (required != null && !matches(required, answer))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matches(Type required, Type answer) {
+        if (required instanceof Coding) {
+            String code = ((Coding) required).getCode();
+            String answered = answer instanceof Coding ? ((Coding) answer).getCode() : answer.primitiveValue();
+            return code != null && code.equals(answered);
+        } else if (answer instanceof Coding) {
+            String requiredValue = required.primitiveValue();
+            return requiredValue != null && requiredValue.equals(((Coding) answer).getCode());
+        } else if (required instanceof DateType && answer instanceof DateType) {
+            return ((DateType) required).getValueAsString().equals(((DateType) answer).getValueAsString());
+        }
+        String requiredValue = required.primitiveValue();
+        return requiredValue != null && requiredValue.equals(answer.primitiveValue());
+    }
+}
@@ -49,13 +49,29 @@ public class ResultRequirement implements Serializable {
      * and the answer to that question for the Requirement to be met
      *
      * @param questionID       LinkId of the question to be checked
-     * @param enableWhenAnswer Required answer to the question for the Requirement to be met.
+     * @param enableWhenAnswer Required answer to the question for the Requirement to be met, null
+     *                         if any answer meets it, like an enableWhen that only sets answered.
      */
     public ResultRequirement(String questionID, Type enableWhenAnswer) {
         questionIdentifier = questionID;
         reqAnswer = enableWhenAnswer;
     }
 
+    /**
+     * Returns the LinkId of the question to be checked.
+     */
+    public String getQuestionIdentifier() {
+        return questionIdentifier;
+    }
+
+    /**
+     * Returns the answer to the question required for the Requirement to be met, null if any
+     * answer meets it.
+     */
+    public Type getRequiredAnswer() {
+        return reqAnswer;
+    }
+
     /**
      * Returns whether or not the ResultRequirement is met by the answers given by the user up to
      * the point of check.
@@ -66,7 +82,20 @@ public class ResultRequirement implements Serializable {
     public boolean isSatisfiedBy(TaskResult result) {
 
         StepResult resultAnswer = result.getStepResult(questionIdentifier);
-        resultAnswer.getResult();
+        if (resultAnswer == null || resultAnswer.getResult() == null) {
+            // questions that were skipped or hidden have no answer that could match
+            return false;
+        }
+
+        if (reqAnswer == null) {
+            // the enableWhen only asks for the question to be answered
+            return true;
+        }
+
+        if (resultAnswer.getResult() instanceof Type) {
+            // choices of inline options are answered with the value of the option
+            return matchesOption((Type) resultAnswer.getResult());
+        }
 
         // TODO all other answertypes
 
@@ -172,4 +201,14 @@ public class ResultRequirement implements Serializable {
         /*Reference not implemeted yet*/
         return false;
     }
+
+    /**
+     * Returns whether the value of the chosen option is the required answer. Codings match by their
+     * code, other values by their primitive value.
+     */
+    private boolean matchesOption(Type answer) {
+        String required = reqAnswer instanceof Coding ? ((Coding) reqAnswer).getCode() : reqAnswer.primitiveValue();
+        String answered = answer instanceof Coding ? ((Coding) answer).getCode() : answer.primitiveValue();
+        return required != null && required.equals(answered);
+    }
 }
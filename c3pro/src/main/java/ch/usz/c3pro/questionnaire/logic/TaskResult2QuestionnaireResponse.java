@@ -7,6 +7,7 @@ import org.hl7.fhir.dstu3.model.DateType;
 import org.hl7.fhir.dstu3.model.IntegerType;
 import org.hl7.fhir.dstu3.model.QuestionnaireResponse;
 import org.hl7.fhir.dstu3.model.StringType;
+import org.hl7.fhir.dstu3.model.Type;
 import org.researchstack.backbone.answerformat.AnswerFormat;
 import org.researchstack.backbone.answerformat.BooleanAnswerFormat;
 import org.researchstack.backbone.answerformat.ChoiceAnswerFormat;
@@ -42,6 +43,10 @@ import java.util.Map;
 /**
  * This class provides the tools to create a FHIR {@link org.hl7.fhir.dstu3.model.QuestionnaireResponse}
  * from a ResearchStack {@link org.researchstack.backbone.result.TaskResult}
+ * <p/>
+ * If the QuestionnaireResponse is only needed for the upload, use the
+ * {@link QuestionnaireResponseJsonEncoder}, which writes the same JSON directly from the TaskResult.
+ * Changes to the mapping of answers have to be made in both classes.
  */
 public class TaskResult2QuestionnaireResponse {
 
@@ -54,6 +59,18 @@ public class TaskResult2QuestionnaireResponse {
      * question IDs with corresponding answers given by the user
      */
     public static QuestionnaireResponse taskResult2QuestionnaireResponse(TaskResult taskResult) {
+        ConversionProfile profile = ConversionInstrumentation.ENABLED ? ConversionInstrumentation.begin(taskResult.getIdentifier()) : null;
+        try {
+            return convert(taskResult);
+        } finally {
+            if (ConversionInstrumentation.ENABLED) {
+                ConversionInstrumentation.end(profile);
+            }
+        }
+    }
+
+    private static QuestionnaireResponse convert(TaskResult taskResult) {
+        int mark = ConversionInstrumentation.ENABLED ? ConversionInstrumentation.enter() : 0;
         QuestionnaireResponse questionnaireResponse = new QuestionnaireResponse();
         Map<String, StepResult> stepResults = taskResult.getResults();
         questionnaireResponse.setId(taskResult.getIdentifier());
@@ -69,6 +86,9 @@ public class TaskResult2QuestionnaireResponse {
         }
 
         questionnaireResponse.setStatus(QuestionnaireResponse.QuestionnaireResponseStatus.COMPLETED);
+        if (ConversionInstrumentation.ENABLED) {
+            ConversionInstrumentation.exit(ConversionInstrumentation.Stage.RESPONSE_ENCODING, null, mark);
+        }
         return questionnaireResponse;
     }
 
@@ -127,8 +147,11 @@ public class TaskResult2QuestionnaireResponse {
 
             if (format instanceof BooleanAnswerFormat) {
                 answerComponent.setValue(new BooleanType((Boolean) stepResult.getResult()));
+            } else if (stepResult.getResult() instanceof Type) {
+                // inline options answer with their value, a Coding or a primitive type
+                answerComponent.setValue(((Type) stepResult.getResult()).copy());
             } else {
-                // TODO ChoiceAnswers
+                // choices of ValueSets answer with their code
                 answerComponent.setValue(new StringType((String) stepResult.getResult()));
             }
 
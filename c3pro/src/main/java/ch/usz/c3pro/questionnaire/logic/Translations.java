@@ -0,0 +1,278 @@
+package ch.usz.c3pro.questionnaire.logic;
+
+import org.hl7.fhir.dstu3.model.CodeType;
+import org.hl7.fhir.dstu3.model.Coding;
+import org.hl7.fhir.dstu3.model.Extension;
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.dstu3.model.StringType;
+import org.hl7.fhir.dstu3.model.Type;
+import org.hl7.fhir.dstu3.model.ValueSet;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+import ch.usz.c3pro.utils.StringUtil;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+
+/**
+ * Translations picks the strings of one language from questionnaires that carry translation
+ * extensions ({@link #EXTENSION_URL}) for several languages. {@link Questionnaire2Task} localizes
+ * every questionnaire to the active language before converting it, so the Task only contains the
+ * strings of that language.
+ * <p/>
+ * The questionnaire is changed in place: every translated text is replaced by its translation and
+ * the questionnaire's language is set to the active one. Questionnaires are shared, e.g. by the
+ * TaskCache, the caller and a {@link ProgressiveOrderedTask}, so localizing and converting hold the
+ * monitor of the questionnaire; code that reads a questionnaire while the active language may be
+ * changed has to synchronize on it as well. By default the other translations are
+ * kept, and the replaced text is added as a translation for the previous language ("und" if it was
+ * not set), so the questionnaire can be localized again later. If other languages are dropped, all
+ * translation extensions are removed and a multilingual questionnaire retains what a
+ * single-language one does.
+ */
+public class Translations {
+    public static final String EXTENSION_URL = "http://hl7.org/fhir/StructureDefinition/translation";
+    public static final String UNDETERMINED = "und";
+    private static final String INSTRUCTION_URL = "http://hl7.org/fhir/StructureDefinition/questionnaire-instruction";
+    private static final String HELP_URL = "http://hl7.org/fhir/StructureDefinition/questionnaire-help";
+
+    private static volatile Locale locale;
+    private static volatile boolean dropOtherLanguages;
+
+    private Translations() {
+    }
+
+    /**
+     * Sets the locale questionnaires are localized to, null for the default locale of the device.
+     */
+    public static void setLocale(Locale activeLocale) {
+        locale = activeLocale;
+    }
+
+    /**
+     * If true, the translations for other languages are removed from the questionnaires when they
+     * are converted.
+     */
+    public static void setDropOtherLanguages(boolean drop) {
+        dropOtherLanguages = drop;
+    }
+
+    public static boolean isDroppingOtherLanguages() {
+        return dropOtherLanguages;
+    }
+
+    /**
+     * Returns the BCP 47 tag of the active locale, e.g. "de-CH".
+     */
+    public static String getLanguageTag() {
+        Locale active = locale;
+        return languageTag(active != null ? active : Locale.getDefault());
+    }
+
+    /**
+     * Returns the BCP 47 tag of the locale, with its language and country only.
+     */
+    public static String languageTag(Locale locale) {
+        String language = locale.getLanguage();
+        if (!StringUtil.isNotNullOrEmpty(language)) {
+            return UNDETERMINED;
+        }
+        String country = locale.getCountry();
+        return StringUtil.isNotNullOrEmpty(country) ? language + "-" + country : language;
+    }
+
+    /**
+     * Localizes the questionnaire to the active language, see {@link #localize(Questionnaire, String, boolean)}.
+     * Holds the monitor of the questionnaire while it is changed.
+     */
+    public static void localize(Questionnaire questionnaire) {
+        synchronized (questionnaire) {
+            localize(questionnaire, getLanguageTag(), dropOtherLanguages);
+        }
+    }
+
+    /**
+     * Replaces the texts of the questionnaire, its items, options and contained ValueSets with their
+     * translation for the language, if there is one. Returns the number of translated texts.
+     *
+     * @param questionnaire a HAPI FHIR Questionnaire Resource, changed in place; synchronize on it
+     *                      if other threads may read it
+     * @param languageTag   the BCP 47 tag of the language, a translation for its primary language
+     *                      is used if there is none for the tag
+     * @param dropOthers    whether the translations for other languages are removed
+     */
+    public static int localize(Questionnaire questionnaire, String languageTag, boolean dropOthers) {
+        if (languageTag.equals(questionnaire.getLanguage()) && !dropOthers) {
+            return 0;
+        }
+        String previous = StringUtil.isNotNullOrEmpty(questionnaire.getLanguage()) ? questionnaire.getLanguage() : UNDETERMINED;
+        Localizer localizer = new Localizer(languageTag, previous, dropOthers);
+
+        localizer.localize(questionnaire.getTitleElement());
+        localizer.localizeItems(questionnaire.getItem());
+        for (Resource resource : questionnaire.getContained()) {
+            if (resource instanceof ValueSet) {
+                ValueSet valueSet = (ValueSet) resource;
+                int before = localizer.count;
+                localizer.localize(valueSet);
+                if (localizer.count > before) {
+                    ValueSetResolver.forget(valueSet);
+                }
+            }
+        }
+        if (localizer.count > 0) {
+            questionnaire.setLanguage(languageTag);
+        }
+        return localizer.count;
+    }
+
+    /**
+     * Returns the translation of the text for the language, or null if there is none.
+     */
+    public static String translation(StringType text, String languageTag) {
+        return find(text, languageTag, false);
+    }
+
+    private static String find(StringType text, String languageTag, boolean exact) {
+        String primary = primaryLanguage(languageTag);
+        String match = null;
+        for (Extension extension : text.getExtension()) {
+            if (!EXTENSION_URL.equals(extension.getUrl())) {
+                continue;
+            }
+            String lang = part(extension, "lang");
+            if (lang == null) {
+                continue;
+            }
+            if (lang.equalsIgnoreCase(languageTag)) {
+                return part(extension, "content");
+            }
+            // without an exact match, the primary language is preferred over a sibling like "de-AT"
+            if (!exact && (lang.equalsIgnoreCase(primary) || (match == null && primaryLanguage(lang).equalsIgnoreCase(primary)))) {
+                match = part(extension, "content");
+            }
+        }
+        return match;
+    }
+
+    private static String primaryLanguage(String languageTag) {
+        int dash = languageTag.indexOf('-');
+        return dash < 0 ? languageTag : languageTag.substring(0, dash);
+    }
+
+    private static String part(Extension translation, String name) {
+        List<Extension> parts = translation.getExtensionsByUrl(name);
+        if (parts.isEmpty() || parts.get(0).getValue() == null) {
+            return null;
+        }
+        return parts.get(0).getValue().primitiveValue();
+    }
+
+    /**
+     * Walks the texts of a questionnaire and counts the translated ones.
+     */
+    private static class Localizer {
+        private final String languageTag;
+        private final String previous;
+        private final boolean dropOthers;
+        private int count;
+
+        private Localizer(String languageTag, String previous, boolean dropOthers) {
+            this.languageTag = languageTag;
+            this.previous = previous;
+            this.dropOthers = dropOthers;
+        }
+
+        private void localizeItems(List<Questionnaire.QuestionnaireItemComponent> items) {
+            for (Questionnaire.QuestionnaireItemComponent item : items) {
+                localize(item.getTextElement());
+                localizeExtensions(item.getExtensionsByUrl(INSTRUCTION_URL));
+                localizeExtensions(item.getExtensionsByUrl(HELP_URL));
+                for (Questionnaire.QuestionnaireItemOptionComponent option : item.getOption()) {
+                    localize(option.getValue());
+                }
+                localizeItems(item.getItem());
+            }
+        }
+
+        private void localizeExtensions(List<Extension> extensions) {
+            for (Extension extension : extensions) {
+                localize(extension.getValue());
+            }
+        }
+
+        private void localize(ValueSet valueSet) {
+            for (ValueSet.ConceptSetComponent include : valueSet.getCompose().getInclude()) {
+                for (ValueSet.ConceptReferenceComponent concept : include.getConcept()) {
+                    localize(concept.getDisplayElement());
+                }
+            }
+            for (ValueSet.ValueSetExpansionContainsComponent contains : valueSet.getExpansion().getContains()) {
+                localize(contains.getDisplayElement());
+            }
+        }
+
+        private void localize(Type value) {
+            if (value instanceof StringType) {
+                localize((StringType) value);
+            } else if (value instanceof Coding && ((Coding) value).hasDisplayElement()) {
+                localize(((Coding) value).getDisplayElement());
+            }
+        }
+
+        private void localize(StringType text) {
+            if (!text.hasExtension()) {
+                return;
+            }
+            String translated = translation(text, languageTag);
+            if (translated == null) {
+                // back to the text of a questionnaire that did not declare its language
+                translated = find(text, UNDETERMINED, true);
+            }
+            if (translated != null && !translated.equals(text.getValue())) {
+                if (!dropOthers && text.hasValue() && find(text, previous, true) == null) {
+                    addTranslation(text, previous, text.getValue());
+                }
+                text.setValue(translated);
+                count++;
+            }
+            if (dropOthers) {
+                Iterator<Extension> iterator = text.getExtension().iterator();
+                while (iterator.hasNext()) {
+                    if (EXTENSION_URL.equals(iterator.next().getUrl())) {
+                        iterator.remove();
+                    }
+                }
+            }
+        }
+
+        private static void addTranslation(StringType text, String lang, String content) {
+            Extension translation = text.addExtension();
+            translation.setUrl(EXTENSION_URL);
+            translation.addExtension().setUrl("lang").setValue(new CodeType(lang));
+            translation.addExtension().setUrl("content").setValue(new StringType(content));
+        }
+    }
+}
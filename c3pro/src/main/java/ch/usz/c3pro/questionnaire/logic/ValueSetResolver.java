@@ -0,0 +1,459 @@
+package ch.usz.c3pro.questionnaire.logic;
+
+import android.util.Log;
+
+import org.hl7.fhir.dstu3.model.CodeType;
+import org.hl7.fhir.dstu3.model.Parameters;
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.dstu3.model.StringType;
+import org.hl7.fhir.dstu3.model.UriType;
+import org.hl7.fhir.dstu3.model.ValueSet;
+import org.researchstack.backbone.model.Choice;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import ca.uhn.fhir.rest.client.IGenericClient;
+import ch.usz.c3pro.C3PRO;
+import ch.usz.c3pro.memory.MemoryGovernor;
+import ch.usz.c3pro.memory.MemorySizes;
+import ch.usz.c3pro.tracing.Span;
+import ch.usz.c3pro.tracing.Tracing;
+import ch.usz.c3pro.utils.StringUtil;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * This class resolves the {@link org.hl7.fhir.dstu3.model.ValueSet}s referenced in getOptions() of
+ * ChoiceQuestions and caches the resulting {@link org.researchstack.backbone.model.Choice} arrays.
+ * ValueSets with a canonical URL are cached by URL, version and the active language of the
+ * {@link Translations} and shared across questionnaires, contained ValueSets without URL are cached
+ * per ValueSet instance, so items pointing at the same ValueSet share one Choice array.
+ * <p/>
+ * ValueSets that are not contained in the questionnaire are expanded with the $expand operation
+ * on the FHIR Server of the DataQueue. This is done for all the ValueSets of a questionnaire in
+ * one pass by {@link #resolveValueSets(Questionnaire)}, or for the ValueSets of some items by
+ * {@link #resolveValueSets(Questionnaire, List)}, which have to run on a background thread. These
+ * are the only methods that make network calls, {@link #getChoices(Reference)} only reads the
+ * cache, so the conversion can run on any thread.
+ * <p/>
+ * The returned Choice arrays are shared and must not be modified.
+ * <p/>
+ * With a {@link MemoryGovernor}, the Choices of contained ValueSets are dropped before the ones of
+ * expanded ValueSets, which are expanded again by the next call of resolveValueSets that needs
+ * them. Expanded ValueSets are dropped least recently used first, so the ones just expanded for a
+ * questionnaire are still there when it is converted.
+ */
+public class ValueSetResolver {
+    public static final String LTAG = "C3PRO";
+
+    /* access ordered, so the governor trims the least recently used Choices first */
+    private static final Map<String, Choice[]> canonicalCache = Collections.synchronizedMap(new LinkedHashMap<String, Choice[]>(16, 0.75f, true));
+    private static final Map<ValueSet, Choice[]> containedCache = Collections.synchronizedMap(new WeakHashMap<ValueSet, Choice[]>());
+    private static volatile MemoryGovernor governor;
+
+    private static final MemoryGovernor.Consumer containedConsumer = new MemoryGovernor.Consumer() {
+        @Override
+        public long getRetainedSize() {
+            synchronized (containedCache) {
+                return retainedSize(containedCache.values());
+            }
+        }
+
+        @Override
+        public void trim(long bytes) {
+            synchronized (containedCache) {
+                trimCache(containedCache.values(), bytes);
+            }
+        }
+    };
+
+    private static final MemoryGovernor.Consumer canonicalConsumer = new MemoryGovernor.Consumer() {
+        @Override
+        public long getRetainedSize() {
+            synchronized (canonicalCache) {
+                return retainedSize(canonicalCache.values());
+            }
+        }
+
+        @Override
+        public void trim(long bytes) {
+            synchronized (canonicalCache) {
+                trimCache(canonicalCache.values(), bytes);
+            }
+        }
+    };
+
+    private ValueSetResolver() {
+    }
+
+    /**
+     * Returns the cached or newly resolved {@link org.researchstack.backbone.model.Choice}s for the
+     * ValueSet referenced by the passed {@link org.hl7.fhir.dstu3.model.Reference}, or null if the
+     * ValueSet can not be resolved. ValueSets that are not in the cache, because they have not been
+     * resolved by {@link #resolveValueSets(Questionnaire)} or have been trimmed since, are not
+     * expanded here, null is returned. Never makes a network call.
+     */
+    public static Choice[] getChoices(Reference reference) {
+        if (reference == null) {
+            return null;
+        }
+        if (reference.getResource() instanceof ValueSet) {
+            return getChoices((ValueSet) reference.getResource());
+        }
+        String ref = reference.getReference();
+        if (StringUtil.isNotNullOrEmpty(ref) && !ref.startsWith("#")) {
+            Choice[] choices = canonicalCache.get(canonicalKey(ref));
+            if (choices == null) {
+                // not resolved before or trimmed by the MemoryGovernor since
+                Log.w(LTAG, "ValueSet " + ref + " has not been resolved before the conversion");
+            }
+            return choices;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the cached or newly created {@link org.researchstack.backbone.model.Choice}s for the
+     * passed {@link org.hl7.fhir.dstu3.model.ValueSet}, or null if the ValueSet has no concepts.
+     */
+    public static Choice[] getChoices(ValueSet valueSet) {
+        if (valueSet.hasUrl()) {
+            String key = canonicalKey(valueSet.getUrl(), valueSet.getVersion());
+            Choice[] choices = canonicalCache.get(key);
+            if (choices == null) {
+                choices = valueSet2Choices(valueSet);
+                if (choices != null) {
+                    canonicalCache.put(key, choices);
+                }
+            }
+            return choices;
+        } else {
+            Choice[] choices = containedCache.get(valueSet);
+            if (choices == null) {
+                choices = valueSet2Choices(valueSet);
+                if (choices != null) {
+                    containedCache.put(valueSet, choices);
+                }
+            }
+            return choices;
+        }
+    }
+
+    /**
+     * Resolves all the ValueSets referenced by the items of the questionnaire in one pass, so they
+     * are cached when the questionnaire is converted. Contained ValueSets are converted directly,
+     * all others are expanded on the FHIR Server of the DataQueue. Makes network calls, do not run
+     * on the main thread.
+     *
+     * @param questionnaire a HAPI FHIR Questionnaire Resource
+     */
+    public static void resolveValueSets(Questionnaire questionnaire) {
+        resolveValueSets(questionnaire, questionnaire.getItem());
+    }
+
+    /**
+     * Resolves the ValueSets referenced by the passed items of the questionnaire and their children
+     * only, e.g. the items of one page of the questionnaire. Makes network calls if ValueSets have
+     * to be expanded, do not run on the main thread.
+     *
+     * @param questionnaire a HAPI FHIR Questionnaire Resource, containing the ValueSets
+     * @param items         items of the questionnaire
+     */
+    public static void resolveValueSets(Questionnaire questionnaire, List<Questionnaire.QuestionnaireItemComponent> items) {
+        Set<String> remote = new LinkedHashSet<>();
+        collectReferences(containedValueSets(questionnaire), items, remote);
+        expandValueSets(remote);
+    }
+
+    /**
+     * Returns true if the questionnaire references ValueSets that are neither contained nor cached,
+     * so resolving its ValueSets makes network calls.
+     */
+    public static boolean needsExpansion(Questionnaire questionnaire) {
+        return needsExpansion(questionnaire.getItem());
+    }
+
+    private static boolean needsExpansion(List<Questionnaire.QuestionnaireItemComponent> items) {
+        for (Questionnaire.QuestionnaireItemComponent item : items) {
+            if (item.hasOptions() && !(item.getOptions().getResource() instanceof ValueSet)) {
+                String ref = item.getOptions().getReference();
+                if (StringUtil.isNotNullOrEmpty(ref) && !ref.startsWith("#") && !canonicalCache.containsKey(canonicalKey(ref))) {
+                    return true;
+                }
+            }
+            if (needsExpansion(item.getItem())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Expands the canonical references on the FHIR Server of the DataQueue and caches the Choices.
+     */
+    private static void expandValueSets(Set<String> remote) {
+        if (!remote.isEmpty()) {
+            if (C3PRO.getDataQueue() == null) {
+                Log.e(LTAG, "no DataQueue set up, can not expand " + remote.size() + " ValueSets");
+                return;
+            }
+            IGenericClient client = Tracing.trace(C3PRO.getFhirContext().newRestfulGenericClient(C3PRO.getDataQueue().getFHIRServerURL()));
+            Span span = Tracing.start("expandValueSets", Tracing.CATEGORY_CONVERSION);
+            for (String canonical : remote) {
+                try {
+                    expandValueSet(client, canonical);
+                } catch (Exception e) {
+                    Log.e(LTAG, "could not expand ValueSet " + canonical, e);
+                }
+            }
+            span.end();
+        }
+        MemoryGovernor memoryGovernor = governor;
+        if (memoryGovernor != null) {
+            memoryGovernor.enforce();
+        }
+    }
+
+    /**
+     * Registers the caches with the governor and unregisters them from the previous one, null only
+     * unregisters them. The governor is told about new Choices after they have been expanded.
+     */
+    public static synchronized void setMemoryGovernor(MemoryGovernor memoryGovernor) {
+        MemoryGovernor previous = governor;
+        governor = memoryGovernor;
+        if (previous != null && previous != memoryGovernor) {
+            previous.unregister(containedConsumer);
+            previous.unregister(canonicalConsumer);
+        }
+        if (memoryGovernor != null) {
+            memoryGovernor.register(containedConsumer, MemoryGovernor.PRIORITY_REBUILDABLE);
+            memoryGovernor.register(canonicalConsumer, MemoryGovernor.PRIORITY_DOWNLOADED);
+        }
+    }
+
+    /**
+     * Returns the estimated size of the Choice arrays, counting arrays cached under several keys
+     * once.
+     */
+    private static long retainedSize(Iterable<Choice[]> cached) {
+        Map<Choice[], Boolean> counted = new IdentityHashMap<>();
+        long size = 0;
+        for (Choice[] choices : cached) {
+            if (counted.put(choices, Boolean.TRUE) == null) {
+                size += MemorySizes.choices(choices);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Removes Choice arrays in the order of the cache until the bytes are released. An array cached
+     * under several keys is counted once and removed under all of them, only then it is released.
+     */
+    private static void trimCache(Collection<Choice[]> cached, long bytes) {
+        Map<Choice[], Boolean> trimmed = new IdentityHashMap<>();
+        long released = 0;
+        for (Choice[] choices : cached) {
+            if (released >= bytes) {
+                break;
+            }
+            if (trimmed.put(choices, Boolean.TRUE) == null) {
+                released += MemorySizes.choices(choices);
+            }
+        }
+        Iterator<Choice[]> iterator = cached.iterator();
+        while (iterator.hasNext()) {
+            if (trimmed.containsKey(iterator.next())) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes the cached Choices of the ValueSet, e.g. after its texts have been translated.
+     */
+    static void forget(ValueSet valueSet) {
+        containedCache.remove(valueSet);
+        if (valueSet.hasUrl()) {
+            canonicalCache.remove(canonicalKey(valueSet.getUrl(), valueSet.getVersion()));
+        }
+    }
+
+    /**
+     * Removes all cached Choices.
+     */
+    public static void clearCache() {
+        canonicalCache.clear();
+        containedCache.clear();
+    }
+
+    /**
+     * Links the references to contained ValueSets of the items to the ValueSets contained in the
+     * questionnaire and resolves them. Needed for items that have been serialized, because the
+     * resolved resource of a {@link org.hl7.fhir.dstu3.model.Reference} is transient.
+     */
+    static void resolveContainedValueSets(Questionnaire questionnaire, List<Questionnaire.QuestionnaireItemComponent> items) {
+        collectReferences(containedValueSets(questionnaire), items, null);
+    }
+
+    /**
+     * Walks the items recursively. Contained ValueSets are resolved right away, references to
+     * ValueSets that are not in the cache yet are added to the remote set, if one is passed.
+     */
+    private static void collectReferences(Map<String, ValueSet> contained, List<Questionnaire.QuestionnaireItemComponent> items, Set<String> remote) {
+        for (Questionnaire.QuestionnaireItemComponent item : items) {
+            if (item.hasOptions()) {
+                Reference reference = item.getOptions();
+                String ref = reference.getReference();
+                if (reference.getResource() instanceof ValueSet) {
+                    getChoices((ValueSet) reference.getResource());
+                } else if (StringUtil.isNotNullOrEmpty(ref) && ref.startsWith("#")) {
+                    ValueSet valueSet = contained.get(ref.substring(1));
+                    if (valueSet != null) {
+                        reference.setResource(valueSet);
+                        getChoices(valueSet);
+                    }
+                } else if (remote != null && StringUtil.isNotNullOrEmpty(ref) && !canonicalCache.containsKey(canonicalKey(ref))) {
+                    remote.add(ref);
+                }
+            }
+            collectReferences(contained, item.getItem(), remote);
+        }
+    }
+
+    /**
+     * Returns the ValueSets contained in the questionnaire by their id, so every reference can be
+     * looked up without searching all contained resources.
+     */
+    private static Map<String, ValueSet> containedValueSets(Questionnaire questionnaire) {
+        Map<String, ValueSet> valueSets = new HashMap<>();
+        for (Resource resource : questionnaire.getContained()) {
+            if (resource instanceof ValueSet) {
+                String id = resource.getIdElement().getIdPart();
+                if (id != null && !valueSets.containsKey(id)) {
+                    valueSets.put(id, (ValueSet) resource);
+                }
+            }
+        }
+        return valueSets;
+    }
+
+    /**
+     * Runs $expand for the canonical reference (url or url|version) and caches the Choices under
+     * the reference as well as under the URL and version of the returned ValueSet. Returns the
+     * Choices, or null if the expansion has none.
+     */
+    private static Choice[] expandValueSet(IGenericClient client, String canonical) {
+        String[] parts = canonical.split("\\|", 2);
+        Parameters inParams = new Parameters();
+        inParams.addParameter().setName("url").setValue(new UriType(parts[0]));
+        if (parts.length > 1) {
+            inParams.addParameter().setName("valueSetVersion").setValue(new StringType(parts[1]));
+        }
+        inParams.addParameter().setName("displayLanguage").setValue(new CodeType(Translations.getLanguageTag()));
+
+        Parameters outParams = client.operation()
+                .onType(ValueSet.class)
+                .named("$expand")
+                .withParameters(inParams)
+                .useHttpGet()
+                .execute();
+
+        for (Parameters.ParametersParameterComponent param : outParams.getParameter()) {
+            if (param.getResource() instanceof ValueSet) {
+                ValueSet expanded = (ValueSet) param.getResource();
+                Choice[] choices = valueSet2Choices(expanded);
+                if (choices != null) {
+                    canonicalCache.put(canonicalKey(canonical), choices);
+                    if (expanded.hasUrl()) {
+                        canonicalCache.put(canonicalKey(expanded.getUrl(), expanded.getVersion()), choices);
+                    }
+                }
+                return choices;
+            }
+        }
+        Log.d(LTAG, "$expand returned no ValueSet for " + canonical);
+        return null;
+    }
+
+    /**
+     * Returns an Array of {@link org.researchstack.backbone.model.Choice}s created from the
+     * composed concepts or the expansion of the ValueSet, or null if it has neither.
+     */
+    private static Choice[] valueSet2Choices(ValueSet vSet) {
+        // this happens with included options // valueset contained
+        List<ValueSet.ConceptSetComponent> includes = vSet.getCompose().getInclude();
+        if (!includes.isEmpty()) {
+            List<Choice> choiceList = new ArrayList<>();
+            for (ValueSet.ConceptSetComponent include : includes) {
+                String system = include.getSystem();
+                List<ValueSet.ConceptReferenceComponent> concepts = include.getConcept();
+                for (ValueSet.ConceptReferenceComponent concept : concepts) {
+                    String text = concept.getDisplay();
+                    String code = concept.getCode();
+                    choiceList.add(AnswerFormatPool.choice(text, system + "#" + code));
+                }
+            }
+            if (!choiceList.isEmpty()) {
+                return choiceList.toArray(new Choice[choiceList.size()]);
+            }
+        }
+
+        // this happens with ValueSets expanded by the server
+        List<ValueSet.ValueSetExpansionContainsComponent> expansion = vSet.getExpansion().getContains();
+        if (!expansion.isEmpty()) {
+            List<Choice> choiceList = new ArrayList<>();
+            for (ValueSet.ValueSetExpansionContainsComponent contain : expansion) {
+                String text = contain.getDisplay();
+                String code = contain.getCode();
+                choiceList.add(AnswerFormatPool.choice(text, code));
+            }
+            return choiceList.toArray(new Choice[choiceList.size()]);
+        }
+        return null;
+    }
+
+    private static String canonicalKey(String canonical) {
+        String[] parts = canonical.split("\\|", 2);
+        return canonicalKey(parts[0], parts.length > 1 ? parts[1] : null);
+    }
+
+    /**
+     * Returns the key of a ValueSet in the canonical cache. The displays depend on the language,
+     * so the active language of the {@link Translations} is part of the key.
+     */
+    private static String canonicalKey(String url, String version) {
+        String canonical = StringUtil.isNotNullOrEmpty(version) ? url + "|" + version : url;
+        return canonical + "@" + Translations.getLanguageTag();
+    }
+}
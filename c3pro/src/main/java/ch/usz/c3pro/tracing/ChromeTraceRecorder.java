@@ -0,0 +1,137 @@
+package ch.usz.c3pro.tracing;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * The ChromeTraceRecorder keeps the spans of a share of the operations in memory and writes them
+ * in the Chrome trace-event JSON format, which can be opened in chrome://tracing or Perfetto. Each
+ * thread is shown as a track, the correlation ID of the operation is in the arguments of its
+ * spans. Whether an operation is sampled depends only on its correlation ID. When the maximum
+ * number of spans is reached, the oldest ones are dropped.
+ */
+public class ChromeTraceRecorder implements SpanRecorder {
+    private static final int SAMPLING_RESOLUTION = 10000;
+
+    private final int sampledBelow;
+    private final int maxSpans;
+    private final ArrayDeque<Span> spans = new ArrayDeque<>();
+    private final long origin = System.nanoTime();
+    private long dropped;
+
+    /**
+     * @param sampleRate share of the operations whose spans are recorded, between 0 and 1
+     * @param maxSpans   number of spans kept in memory
+     */
+    public ChromeTraceRecorder(double sampleRate, int maxSpans) {
+        sampledBelow = (int) Math.round(Math.max(0, Math.min(1, sampleRate)) * SAMPLING_RESOLUTION);
+        this.maxSpans = maxSpans;
+    }
+
+    @Override
+    public boolean isSampled(String correlationID) {
+        int hash = correlationID.hashCode();
+        // spread the hash, as consecutive IDs only differ in the last characters
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        return (hash & 0x7fffffff) % SAMPLING_RESOLUTION < sampledBelow;
+    }
+
+    @Override
+    public synchronized void record(Span span) {
+        if (spans.size() >= maxSpans) {
+            spans.pollFirst();
+            dropped++;
+        }
+        spans.addLast(span);
+    }
+
+    public synchronized List<Span> getSpans() {
+        return new ArrayList<>(spans);
+    }
+
+    /**
+     * Returns the number of spans dropped because the maximum was reached.
+     */
+    public synchronized long getDroppedCount() {
+        return dropped;
+    }
+
+    public synchronized void clear() {
+        spans.clear();
+        dropped = 0;
+    }
+
+    /**
+     * Writes the recorded spans as a Chrome trace-event JSON object. The writer is not closed.
+     */
+    public void writeTo(Writer writer) throws IOException {
+        List<Span> recorded = getSpans();
+        JsonGenerator json = Json.createGenerator(writer);
+        json.writeStartObject();
+        json.write("displayTimeUnit", "ms");
+        json.writeStartArray("traceEvents");
+        Map<Long, String> threads = new HashMap<>();
+        for (Span span : recorded) {
+            threads.put(span.getThreadID(), span.getThreadName());
+            json.writeStartObject()
+                    .write("name", span.getName())
+                    .write("cat", span.getCategory())
+                    .write("ph", "X")
+                    .write("ts", micros(span.getStart() - origin))
+                    .write("dur", micros(span.getEnd() - span.getStart()))
+                    .write("pid", 1)
+                    .write("tid", span.getThreadID())
+                    .writeStartObject("args")
+                    .write("correlationId", span.getCorrelationID())
+                    .writeEnd()
+                    .writeEnd();
+        }
+        for (Map.Entry<Long, String> thread : threads.entrySet()) {
+            json.writeStartObject()
+                    .write("name", "thread_name")
+                    .write("ph", "M")
+                    .write("pid", 1)
+                    .write("tid", thread.getKey())
+                    .writeStartObject("args")
+                    .write("name", thread.getValue())
+                    .writeEnd()
+                    .writeEnd();
+        }
+        json.writeEnd();
+        json.writeEnd();
+        json.flush();
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1000.0;
+    }
+}
@@ -0,0 +1,95 @@
+package ch.usz.c3pro.tracing;
+
+import java.io.Serializable;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * An OperationTrace is kept by a job of the DataQueue to trace the operation it runs. It holds
+ * the correlation ID of the operation and records the time the job waited in the queue before
+ * each run, the runs themselves and the delivery of results on the main thread:
+ *
+ * <pre>
+ * public void onRun() throws Throwable {
+ *     trace.begin("ReadResourceJob");
+ *     try {
+ *         ...
+ *         trace.posting();
+ *         handler.sendMessage(msg);
+ *     } finally {
+ *         trace.end();
+ *     }
+ * }
+ * </pre>
+ *
+ * and trace.delivered() in the Handler after the receiver has been called. A job runs on one
+ * thread at a time, so begin() and end() must be called on the same thread.
+ */
+public class OperationTrace implements Serializable {
+    private final String correlationID = Tracing.newCorrelationID();
+    /**
+     * Restored jobs have no meaningful wait times, transient fields are 0 after deserialization.
+     */
+    private transient long waitingSince = System.nanoTime();
+    private transient volatile long postedAt;
+    private transient Span run;
+    private transient String previousID;
+
+    public String getCorrelationID() {
+        return correlationID;
+    }
+
+    /**
+     * Records the wait in the queue and makes the correlation ID the current one of this thread.
+     */
+    public void begin(String jobName) {
+        Tracing.record(jobName, Tracing.CATEGORY_QUEUE, correlationID, waitingSince);
+        previousID = Tracing.enter(correlationID);
+        run = Tracing.start(jobName, Tracing.CATEGORY_JOB, correlationID);
+    }
+
+    /**
+     * Records the run and restores the previous correlation ID of this thread. If the job is run
+     * again, the wait until then is recorded by the next begin().
+     */
+    public void end() {
+        if (run != null) {
+            run.end();
+            run = null;
+        }
+        Tracing.exit(previousID);
+        previousID = null;
+        waitingSince = System.nanoTime();
+    }
+
+    /**
+     * Called right before a result is sent to the main thread.
+     */
+    public void posting() {
+        postedAt = System.nanoTime();
+    }
+
+    /**
+     * Called on the main thread after the result has been passed to the receiver.
+     */
+    public void delivered(String receiverName) {
+        Tracing.record(receiverName, Tracing.CATEGORY_MAIN, correlationID, postedAt);
+    }
+}
@@ -0,0 +1,98 @@
+package ch.usz.c3pro.tracing;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A Span is a named period of time of an operation of the DataQueue, e.g. the HTTP request of a
+ * job or the conversion of a questionnaire. It is started by {@link Tracing#start(String, String)}
+ * and passed to the {@link SpanRecorder} when it ends. If the operation is not sampled, a Span
+ * that records nothing is returned, so callers do not need to check.
+ */
+public class Span {
+    static final Span NOT_RECORDED = new Span(null, null, null, null, 0);
+
+    private final SpanRecorder recorder;
+    private final String name;
+    private final String category;
+    private final String correlationID;
+    private final long start;
+    private final long threadID;
+    private final String threadName;
+    private long end;
+
+    Span(SpanRecorder recorder, String name, String category, String correlationID, long start) {
+        this.recorder = recorder;
+        this.name = name;
+        this.category = category;
+        this.correlationID = correlationID;
+        this.start = start;
+        Thread thread = Thread.currentThread();
+        threadID = thread.getId();
+        threadName = thread.getName();
+    }
+
+    /**
+     * Ends the Span and records it. Only the first call has an effect.
+     */
+    public void end() {
+        if (recorder == null || end != 0) {
+            return;
+        }
+        end = System.nanoTime();
+        recorder.record(this);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The kind of work, one of the CATEGORY constants of {@link Tracing}.
+     */
+    public String getCategory() {
+        return category;
+    }
+
+    public String getCorrelationID() {
+        return correlationID;
+    }
+
+    /**
+     * Start in System.nanoTime().
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * End in System.nanoTime(), 0 while the Span is running.
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    public long getThreadID() {
+        return threadID;
+    }
+
+    public String getThreadName() {
+        return threadName;
+    }
+}
@@ -0,0 +1,35 @@
+package ch.usz.c3pro.tracing;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A SpanRecorder receives the finished {@link Span}s of the sampled operations, see
+ * {@link Tracing#setRecorder(SpanRecorder)}. Spans are recorded on the threads they end on, so
+ * implementations have to be thread safe and fast.
+ */
+public interface SpanRecorder {
+    /**
+     * Returns whether the spans of the operation with the correlation ID should be recorded. Has to
+     * return the same answer for the same ID, so operations are recorded completely or not at all.
+     */
+    public boolean isSampled(String correlationID);
+
+    public void record(Span span);
+}
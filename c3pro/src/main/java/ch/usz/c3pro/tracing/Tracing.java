@@ -0,0 +1,203 @@
+package ch.usz.c3pro.tracing;
+
+import java.net.HttpURLConnection;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ca.uhn.fhir.rest.client.IClientInterceptor;
+import ca.uhn.fhir.rest.client.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+
+/**
+ * C3PRO
+ *
+ * Created by manny Weber on 10/18/16.
+ * Copyright © 2016 University Hospital Zurich. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Tracing follows an operation of the DataQueue through its job, the HTTP requests and the
+ * conversion steps to the delivery on the main thread. Every operation gets a correlation ID, which
+ * is sent to the FHIR server in the {@link #CORRELATION_HEADER}, so server logs can be matched with
+ * the app. While a {@link SpanRecorder} is set, the {@link Span}s of sampled operations are
+ * recorded, e.g. by a {@link ChromeTraceRecorder}:
+ *
+ * <pre>
+ * ChromeTraceRecorder recorder = new ChromeTraceRecorder(0.1, 10000);
+ * Tracing.setRecorder(recorder);
+ * ...
+ * recorder.writeTo(writer);
+ * </pre>
+ *
+ * Jobs enter their correlation ID on the worker thread with {@link #enter(String)}, so the spans
+ * and HTTP requests made while they run are attributed to the operation. Without a recorder, only
+ * the correlation IDs are maintained.
+ */
+public class Tracing {
+    public static final String CORRELATION_HEADER = "X-Correlation-ID";
+    /** Time a job waited in the queue before it ran. */
+    public static final String CATEGORY_QUEUE = "queue";
+    /** A run of a job. */
+    public static final String CATEGORY_JOB = "job";
+    /** An HTTP request until the response headers arrived. */
+    public static final String CATEGORY_HTTP = "http";
+    /** Reading and parsing a response. */
+    public static final String CATEGORY_PARSE = "parse";
+    /** A stage of a Pipeline. */
+    public static final String CATEGORY_STAGE = "stage";
+    /** Conversion between FHIR and ResearchStack, e.g. Items2Steps. */
+    public static final String CATEGORY_CONVERSION = "conversion";
+    /** Delivery of a result to the main thread, including the wait for the main looper. */
+    public static final String CATEGORY_MAIN = "main";
+
+    private static final IClientInterceptor INTERCEPTOR = new CorrelationInterceptor();
+    private static final String ID_PREFIX = Long.toHexString(new Random().nextLong() & 0xffffffffL);
+    private static final AtomicLong nextID = new AtomicLong();
+    private static final ThreadLocal<String> currentID = new ThreadLocal<>();
+    private static final ThreadLocal<Span> currentRequest = new ThreadLocal<>();
+    private static final ThreadLocal<Long> responseStart = new ThreadLocal<>();
+    private static volatile SpanRecorder recorder;
+
+    private Tracing() {
+    }
+
+    /**
+     * Sets the recorder of the spans, null to stop recording.
+     */
+    public static void setRecorder(SpanRecorder spanRecorder) {
+        recorder = spanRecorder;
+    }
+
+    public static SpanRecorder getRecorder() {
+        return recorder;
+    }
+
+    /**
+     * Returns a new correlation ID, unique within this run of the app and unlikely to collide with
+     * other devices.
+     */
+    public static String newCorrelationID() {
+        return ID_PREFIX + "-" + nextID.incrementAndGet();
+    }
+
+    /**
+     * Makes the correlation ID the current one of this thread and returns the previous one, which
+     * has to be passed to {@link #exit(String)} when the work for the operation is done.
+     */
+    public static String enter(String correlationID) {
+        String previous = currentID.get();
+        currentID.set(correlationID);
+        return previous;
+    }
+
+    public static void exit(String previousCorrelationID) {
+        if (previousCorrelationID == null) {
+            currentID.remove();
+        } else {
+            currentID.set(previousCorrelationID);
+        }
+    }
+
+    /**
+     * Returns the correlation ID of the operation running on this thread, or null.
+     */
+    public static String getCorrelationID() {
+        return currentID.get();
+    }
+
+    /**
+     * Starts a Span of the operation running on this thread.
+     */
+    public static Span start(String name, String category) {
+        return start(name, category, currentID.get());
+    }
+
+    public static Span start(String name, String category, String correlationID) {
+        return startAt(name, category, correlationID, System.nanoTime());
+    }
+
+    /**
+     * Records a Span that started at startNanos, a System.nanoTime(), and ends now. Nothing is
+     * recorded if startNanos is 0, e.g. for jobs restored after a restart of the app.
+     */
+    public static void record(String name, String category, String correlationID, long startNanos) {
+        if (startNanos != 0) {
+            startAt(name, category, correlationID, startNanos).end();
+        }
+    }
+
+    private static Span startAt(String name, String category, String correlationID, long startNanos) {
+        SpanRecorder spanRecorder = recorder;
+        if (spanRecorder == null || correlationID == null || !spanRecorder.isSampled(correlationID)) {
+            return Span.NOT_RECORDED;
+        }
+        return new Span(spanRecorder, name, category, correlationID, startNanos);
+    }
+
+    /**
+     * Registers an interceptor on the client that sends the correlation ID of the current operation
+     * with every request and records the requests as spans. Returns the client.
+     */
+    public static IGenericClient trace(IGenericClient client) {
+        client.registerInterceptor(INTERCEPTOR);
+        return client;
+    }
+
+    /**
+     * Sets the correlation header of the current operation on the connection, which must not be
+     * connected yet.
+     */
+    public static void setHeader(HttpURLConnection connection) {
+        String correlationID = currentID.get();
+        if (correlationID != null) {
+            connection.setRequestProperty(CORRELATION_HEADER, correlationID);
+        }
+    }
+
+    /**
+     * Records the time from the response of the last request of a {@link #trace(IGenericClient)}d
+     * client on this thread until now as parsing, e.g. after execute() has returned a Bundle.
+     */
+    public static void responseParsed(String name) {
+        Long start = responseStart.get();
+        if (start != null) {
+            responseStart.remove();
+            record(name, CATEGORY_PARSE, currentID.get(), start);
+        }
+    }
+
+    private static class CorrelationInterceptor implements IClientInterceptor {
+        @Override
+        public void interceptRequest(IHttpRequest request) {
+            String correlationID = currentID.get();
+            if (correlationID != null) {
+                request.addHeader(CORRELATION_HEADER, correlationID);
+            }
+            responseStart.remove();
+            currentRequest.set(start("request", CATEGORY_HTTP, correlationID));
+        }
+
+        @Override
+        public void interceptResponse(IHttpResponse response) {
+            Span request = currentRequest.get();
+            if (request != null) {
+                currentRequest.remove();
+                request.end();
+            }
+            responseStart.set(System.nanoTime());
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package ch.usz.c3pro.dataqueue;
+
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the {@link LoadHarness} against the {@link FhirStandInServer} and prints the reports, so
+ * changes to the scheduling and uploads of the DataQueue can be compared. The assertions only check
+ * that no upload is lost.
+ */
+public class DataQueueLoadTest {
+    private FhirStandInServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FhirStandInServer();
+        for (int i = 0; i < 20; i++) {
+            Questionnaire questionnaire = new Questionnaire();
+            questionnaire.setId("q" + i);
+            questionnaire.setTitle("Questionnaire " + i);
+            server.addResource(questionnaire);
+        }
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void steadyLoad() throws Exception {
+        server.setLatency(5, 10);
+        LoadHarness.Report report = new LoadHarness(server, new LoadHarness.Config()
+                .createsPerSecond(100).readsPerSecond(20).duration(2000)).run();
+        report.print(System.out);
+
+        assertTrue(report.isDrained());
+        assertEquals(report.getStats("create").getSubmitted(), report.getStats("create").getSucceeded());
+        assertEquals(report.getStats("create").getSucceeded(), server.getResourceCount("Observation"));
+    }
+
+    @Test
+    public void unreliableServer_losesNoUploads() throws Exception {
+        server.setLatency(10, 20);
+        server.setErrorRate(0.1);
+        server.setMaxConcurrentRequests(3);
+        LoadHarness.Report report = new LoadHarness(server, new LoadHarness.Config()
+                .createsPerSecond(100).readsPerSecond(20).duration(2000)).run();
+        report.print(System.out);
+
+        assertTrue(report.isDrained());
+        assertTrue(report.getStats("create").getRetries() > 0);
+        assertEquals(report.getStats("create").getSubmitted(), report.getStats("create").getSucceeded());
+        assertEquals(report.getStats("create").getSucceeded(), server.getResourceCount("Observation"));
+    }
+}
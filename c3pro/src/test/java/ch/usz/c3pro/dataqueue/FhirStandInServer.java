@@ -0,0 +1,517 @@
+package ch.usz.c3pro.dataqueue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.hl7.fhir.dstu3.model.Binary;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Parameters;
+import org.hl7.fhir.dstu3.model.IdType;
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.hl7.fhir.dstu3.model.QuestionnaireResponse;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.dstu3.model.ValueSet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+
+import ca.uhn.fhir.context.FhirContext;
+import ch.usz.c3pro.tracing.Tracing;
+
+/**
+ * A minimal FHIR server on localhost that stands in for a real one in tests and benchmarks. It
+ * answers searches on the resources it has been given and applies the _elements, _summary=count
+ * and _count projections and _include=QuestionnaireResponse:questionnaire, expands its ValueSets by URL with $expand and creates posted resources.
+ * Responses are JSON. Binaries can be posted as raw content or uploaded in resumable sessions, like
+ * {@link ch.usz.c3pro.dataqueue.jobs.UploadBinaryJob} does; the server can be made to keep only a
+ * part of every chunk and to expire its sessions.
+ * For load tests, it can add latency, fail a share of the requests with 500 and throttle with 429
+ * when too many requests are in progress. Random decisions use a fixed seed.
+ */
+public class FhirStandInServer {
+    private static final FhirContext CONTEXT = FhirContext.forDstu3();
+
+    private final HttpServer server;
+    private final Map<String, List<Resource>> resources = new HashMap<>();
+    private final Random random = new Random(1);
+    private long bytesSent;
+    private long latency;
+    private long latencyJitter;
+    private double errorRate;
+    private int maxConcurrentRequests;
+    private int activeRequests;
+    private int requests;
+    private int errors;
+    private int throttled;
+    private int expansions;
+    private int nextId = 1;
+    private final List<String> correlationIDs = new ArrayList<>();
+    /** the content received so far by upload session id */
+    private final Map<String, ByteArrayOutputStream> uploadSessions = new HashMap<>();
+    private final Map<String, Long> uploadLengths = new HashMap<>();
+    private final Map<String, String> uploadContentTypes = new HashMap<>();
+    /** the location of the Binary by the id of the completed upload session */
+    private final Map<String, String> completedUploads = new HashMap<>();
+    private int chunkLimit;
+    private long chunkBytes;
+    /** chunks to accept before the next one fails, -1 for no interruption */
+    private int chunksBeforeInterruption = -1;
+
+    public FhirStandInServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    dispatch(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        // requests are handled concurrently, like by a real server
+        server.setExecutor(Executors.newCachedThreadPool());
+    }
+
+    /**
+     * Every request takes latency plus a random share of jitter milliseconds.
+     */
+    public synchronized void setLatency(long latency, long jitter) {
+        this.latency = latency;
+        latencyJitter = jitter;
+    }
+
+    /**
+     * The share of requests, between 0 and 1, that fail with 500.
+     */
+    public synchronized void setErrorRate(double rate) {
+        errorRate = rate;
+    }
+
+    /**
+     * Requests beyond the maximum that arrive while others are in progress are answered with 429.
+     * 0 for no limit.
+     */
+    public synchronized void setMaxConcurrentRequests(int max) {
+        maxConcurrentRequests = max;
+    }
+
+    /**
+     * Upload sessions keep at most the given number of bytes of every chunk and acknowledge only
+     * those, like a server that did not store everything it received. 0 to keep everything.
+     */
+    public synchronized void setChunkLimit(int bytes) {
+        chunkLimit = bytes;
+    }
+
+    /**
+     * Accepts the given number of chunks of upload sessions and answers the next one with 500, like
+     * a connection that breaks during an upload. Only the next chunk fails.
+     */
+    public synchronized void interruptUploadAfter(int chunks) {
+        chunksBeforeInterruption = chunks;
+    }
+
+    /**
+     * Forgets all open upload sessions, further requests to them are answered with 404.
+     */
+    public synchronized void expireUploadSessions() {
+        uploadSessions.clear();
+        uploadLengths.clear();
+        uploadContentTypes.clear();
+    }
+
+    /**
+     * Returns the number of content bytes received in the chunks of upload sessions, including
+     * the ones that were not kept.
+     */
+    public synchronized long getChunkBytes() {
+        return chunkBytes;
+    }
+
+    /**
+     * Returns the resources of the type, including the created ones.
+     */
+    public synchronized List<Resource> getResources(String type) {
+        return resources.containsKey(type) ? new ArrayList<>(resources.get(type)) : new ArrayList<Resource>();
+    }
+
+    public synchronized void addResource(Resource resource) {
+        String type = resource.getResourceType().name();
+        if (!resources.containsKey(type)) {
+            resources.put(type, new ArrayList<Resource>());
+        }
+        resources.get(type).add(resource);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    /**
+     * Returns the base URL of the server, ending with a slash.
+     */
+    public String getBaseURL() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    public synchronized long getBytesSent() {
+        return bytesSent;
+    }
+
+    public synchronized int getRequestCount() {
+        return requests;
+    }
+
+    public synchronized int getErrorCount() {
+        return errors;
+    }
+
+    public synchronized int getThrottledCount() {
+        return throttled;
+    }
+
+    /**
+     * Returns the number of $expand requests answered with a ValueSet.
+     */
+    public synchronized int getExpansionCount() {
+        return expansions;
+    }
+
+    /**
+     * Returns the correlation IDs the requests were sent with, in the order they arrived.
+     */
+    public synchronized List<String> getCorrelationIDs() {
+        return new ArrayList<>(correlationIDs);
+    }
+
+    /**
+     * Returns the number of resources of the type, including the created ones.
+     */
+    public synchronized int getResourceCount(String type) {
+        return resources.containsKey(type) ? resources.get(type).size() : 0;
+    }
+
+    private void dispatch(HttpExchange exchange) throws IOException {
+        long delay;
+        synchronized (this) {
+            requests++;
+            String correlationID = exchange.getRequestHeaders().getFirst(Tracing.CORRELATION_HEADER);
+            if (correlationID != null) {
+                correlationIDs.add(correlationID);
+            }
+            if (maxConcurrentRequests > 0 && activeRequests >= maxConcurrentRequests) {
+                throttled++;
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                exchange.sendResponseHeaders(429, -1);
+                return;
+            }
+            activeRequests++;
+            delay = latency + (latencyJitter > 0 ? (long) (random.nextDouble() * latencyJitter) : 0);
+        }
+        try {
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            boolean fail;
+            synchronized (this) {
+                fail = random.nextDouble() < errorRate;
+                if (fail) {
+                    errors++;
+                }
+            }
+            String path = exchange.getRequestURI().getPath().substring(1);
+            if (fail) {
+                exchange.sendResponseHeaders(500, -1);
+            } else if ("POST".equals(exchange.getRequestMethod()) && "Binary".equals(path)) {
+                createBinary(exchange);
+            } else if ("POST".equals(exchange.getRequestMethod())) {
+                create(exchange);
+            } else if ("PUT".equals(exchange.getRequestMethod()) && path.startsWith("upload/")) {
+                uploadChunk(exchange, path.substring("upload/".length()));
+            } else {
+                handle(exchange);
+            }
+        } finally {
+            synchronized (this) {
+                activeRequests--;
+            }
+        }
+    }
+
+    /**
+     * Stores the posted resource with a new id and answers with 201 and its location.
+     */
+    private void create(HttpExchange exchange) throws IOException {
+        String type = exchange.getRequestURI().getPath().substring(1);
+        Resource resource = (Resource) CONTEXT.newJsonParser().parseResource(new InputStreamReader(exchange.getRequestBody(), "UTF-8"));
+        String id;
+        synchronized (this) {
+            id = String.valueOf(nextId++);
+        }
+        resource.setId(type + "/" + id);
+        addResource(resource);
+        byte[] body = CONTEXT.newJsonParser().encodeResourceToString(resource).getBytes("UTF-8");
+        synchronized (this) {
+            bytesSent += body.length;
+        }
+        exchange.getResponseHeaders().set("Location", getBaseURL() + type + "/" + id + "/_history/1");
+        exchange.getResponseHeaders().set("Content-Type", "application/json+fhir;charset=utf-8");
+        exchange.sendResponseHeaders(201, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    /**
+     * Starts an upload session for ?uploadType=resumable and answers with its URL in the Location
+     * header, otherwise stores the posted content as Binary.
+     */
+    private void createBinary(HttpExchange exchange) throws IOException {
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        byte[] content = readFully(exchange.getRequestBody());
+        if ("resumable".equals(query.get("uploadType"))) {
+            String session;
+            synchronized (this) {
+                session = String.valueOf(nextId++);
+                uploadSessions.put(session, new ByteArrayOutputStream());
+                uploadLengths.put(session, Long.parseLong(exchange.getRequestHeaders().getFirst("X-Upload-Content-Length")));
+                uploadContentTypes.put(session, exchange.getRequestHeaders().getFirst("X-Upload-Content-Type"));
+            }
+            exchange.getResponseHeaders().set("Location", getBaseURL() + "upload/" + session);
+            exchange.sendResponseHeaders(200, -1);
+        } else {
+            exchange.getResponseHeaders().set("Location", storeBinary(content, exchange.getRequestHeaders().getFirst("Content-Type")));
+            exchange.sendResponseHeaders(201, -1);
+        }
+    }
+
+    /**
+     * Answers a chunk or status query of an upload session with 308 and the Range kept so far, or
+     * 201 and the location of the Binary when the content is complete. Chunks that do not start at
+     * the end of the kept content are ignored.
+     */
+    private void uploadChunk(HttpExchange exchange, String session) throws IOException {
+        String contentRange = exchange.getRequestHeaders().getFirst("Content-Range");
+        byte[] chunk = readFully(exchange.getRequestBody());
+        String location;
+        long kept;
+        synchronized (this) {
+            location = completedUploads.get(session);
+            ByteArrayOutputStream content = uploadSessions.get(session);
+            if (location == null && content == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            kept = content != null ? content.size() : 0;
+            if (content != null && !contentRange.startsWith("bytes */")) {
+                if (chunksBeforeInterruption == 0) {
+                    chunksBeforeInterruption = -1;
+                    exchange.sendResponseHeaders(500, -1);
+                    return;
+                } else if (chunksBeforeInterruption > 0) {
+                    chunksBeforeInterruption--;
+                }
+                chunkBytes += chunk.length;
+                long start = Long.parseLong(contentRange.substring("bytes ".length(), contentRange.indexOf('-')));
+                if (start == kept) {
+                    int length = chunkLimit > 0 ? Math.min(chunkLimit, chunk.length) : chunk.length;
+                    content.write(chunk, 0, length);
+                    kept += length;
+                }
+            }
+            if (content != null && kept == uploadLengths.get(session)) {
+                location = storeBinary(content.toByteArray(), uploadContentTypes.get(session));
+                completedUploads.put(session, location);
+                uploadSessions.remove(session);
+            }
+        }
+        if (location != null) {
+            exchange.getResponseHeaders().set("Location", location);
+            exchange.sendResponseHeaders(201, -1);
+        } else {
+            if (kept > 0) {
+                exchange.getResponseHeaders().set("Range", "bytes=0-" + (kept - 1));
+            }
+            exchange.sendResponseHeaders(308, -1);
+        }
+    }
+
+    /**
+     * Stores the content as Binary and returns its location.
+     */
+    private synchronized String storeBinary(byte[] content, String contentType) {
+        String id = String.valueOf(nextId++);
+        Binary binary = new Binary();
+        binary.setId("Binary/" + id);
+        binary.setContent(content);
+        binary.setContentType(contentType);
+        addResource(binary);
+        return getBaseURL() + "Binary/" + id + "/_history/1";
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Answers GET requests with a search Bundle.
+     */
+    protected void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath().substring(1);
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        Resource result;
+        if ("ValueSet/$expand".equals(path)) {
+            result = expand(query.get("url"));
+            if (result == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+        } else {
+            result = search(path, query);
+        }
+        byte[] body = CONTEXT.newJsonParser().encodeResourceToString(result).getBytes("UTF-8");
+        synchronized (this) {
+            bytesSent += body.length;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json+fhir;charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    private synchronized Bundle search(String type, Map<String, String> query) {
+        List<Resource> matches = resources.containsKey(type) ? resources.get(type) : new ArrayList<Resource>();
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.SEARCHSET);
+        bundle.setTotal(matches.size());
+        if ("count".equals(query.get("_summary"))) {
+            return bundle;
+        }
+        int count = query.containsKey("_count") ? Integer.parseInt(query.get("_count")) : matches.size();
+        List<String> elements = query.containsKey("_elements") ? Arrays.asList(query.get("_elements").split(",")) : null;
+        List<Resource> included = new ArrayList<>();
+        for (Resource resource : matches.subList(0, Math.min(count, matches.size()))) {
+            Resource result = elements != null ? project(resource, elements) : resource;
+            bundle.addEntry().setResource(result).getSearch().setMode(Bundle.SearchEntryMode.MATCH);
+            if ("QuestionnaireResponse:questionnaire".equals(query.get("_include"))) {
+                Resource questionnaire = find(((QuestionnaireResponse) resource).getQuestionnaire().getReference());
+                if (questionnaire != null && !included.contains(questionnaire)) {
+                    included.add(questionnaire);
+                }
+            }
+        }
+        for (Resource resource : included) {
+            bundle.addEntry().setResource(resource).getSearch().setMode(Bundle.SearchEntryMode.INCLUDE);
+        }
+        return bundle;
+    }
+
+    /**
+     * Returns the resource with the relative reference, e.g. Questionnaire/1, or null if there is
+     * none.
+     */
+    private synchronized Resource find(String reference) {
+        if (reference == null) {
+            return null;
+        }
+        IdType id = new IdType(reference);
+        for (Resource resource : getResources(id.getResourceType())) {
+            if (id.getIdPart().equals(resource.getIdElement().getIdPart())) {
+                return resource;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns Parameters with the ValueSet of the URL, or null if there is none. The ValueSet is
+     * returned as it was added, it should contain its expansion.
+     */
+    private synchronized Parameters expand(String url) {
+        List<Resource> valueSets = resources.containsKey("ValueSet") ? resources.get("ValueSet") : new ArrayList<Resource>();
+        for (Resource resource : valueSets) {
+            if (url != null && url.equals(((ValueSet) resource).getUrl())) {
+                expansions++;
+                Parameters parameters = new Parameters();
+                parameters.addParameter().setName("return").setResource(resource);
+                return parameters;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a copy of the resource with only id, meta and the listed elements. Only implemented
+     * for Questionnaires, other resources are returned as they are.
+     */
+    private static Resource project(Resource resource, List<String> elements) {
+        if (!(resource instanceof Questionnaire)) {
+            return resource;
+        }
+        Questionnaire questionnaire = (Questionnaire) resource;
+        Questionnaire projected = new Questionnaire();
+        projected.setId(questionnaire.getIdElement());
+        projected.setMeta(questionnaire.getMeta());
+        if (elements.contains("url")) {
+            projected.setUrlElement(questionnaire.getUrlElement());
+        }
+        if (elements.contains("title")) {
+            projected.setTitleElement(questionnaire.getTitleElement());
+        }
+        if (elements.contains("version")) {
+            projected.setVersionElement(questionnaire.getVersionElement());
+        }
+        if (elements.contains("status")) {
+            projected.setStatusElement(questionnaire.getStatusElement());
+        }
+        if (elements.contains("date")) {
+            projected.setDateElement(questionnaire.getDateElement());
+        }
+        if (elements.contains("item")) {
+            projected.getItem().addAll(questionnaire.getItem());
+        }
+        return projected;
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) throws IOException {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery != null) {
+            for (String parameter : rawQuery.split("&")) {
+                int equals = parameter.indexOf('=');
+                if (equals > 0) {
+                    query.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"), URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+                }
+            }
+        }
+        return query;
+    }
+}
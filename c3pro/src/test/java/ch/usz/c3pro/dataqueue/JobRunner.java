@@ -0,0 +1,385 @@
+package ch.usz.c3pro.dataqueue;
+
+import com.birbit.android.jobqueue.Job;
+import com.birbit.android.jobqueue.RetryConstraint;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Runs jobs on the JVM the way the JobManager does on a device, so the DataQueue and its jobs can
+ * be tested without Android: a number of consumer threads take the job with the highest priority,
+ * jobs of the same run group run one after the other, failed jobs are run again according to their
+ * shouldReRunOnThrowable() and getRetryLimit(), and jobs can be cancelled by tag, which calls their
+ * onCancel(). Like the JobManager, a persistent job is serialized when it is added and a
+ * deserialized copy is run, so transient fields are lost. The listener is told about the job as it
+ * was added. Network constraints are not emulated.
+ */
+public class JobRunner {
+    private static final Method SHOULD_RE_RUN;
+    private static final Method RETRY_LIMIT;
+    private static final Method ON_CANCEL;
+
+    /* the values of the CancelReason of the JobManager */
+    private static final int REACHED_RETRY_LIMIT = 1;
+    private static final int CANCELLED_VIA_SHOULD_RE_RUN = 2;
+    private static final int CANCELLED_WHILE_RUNNING = 3;
+
+    static {
+        try {
+            SHOULD_RE_RUN = Job.class.getDeclaredMethod("shouldReRunOnThrowable", Throwable.class, int.class, int.class);
+            SHOULD_RE_RUN.setAccessible(true);
+            RETRY_LIMIT = Job.class.getDeclaredMethod("getRetryLimit");
+            RETRY_LIMIT.setAccessible(true);
+            ON_CANCEL = Job.class.getDeclaredMethod("onCancel", int.class, Throwable.class);
+            ON_CANCEL.setAccessible(true);
+        } catch (NoSuchMethodException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static final String NO_GROUP = "";
+
+    private final List<Thread> consumers = new ArrayList<>();
+    private final Map<String, PriorityQueue<Entry>> ready = new HashMap<>();
+    private final PriorityQueue<Entry> delayed = new PriorityQueue<>(16, new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return a.readyAt < b.readyAt ? -1 : (a.readyAt > b.readyAt ? 1 : 0);
+        }
+    });
+    private final Set<String> runningGroups = new HashSet<>();
+    private final Set<Entry> runningEntries = new HashSet<>();
+    private final Listener listener;
+    private long nextSequence;
+    private int pending;
+    private int running;
+    private boolean stopped;
+
+    /**
+     * Is told about every job added, run and finished. Called on the consumer threads.
+     */
+    public interface Listener {
+        public void jobAdded(Job job);
+
+        /**
+         * Called after every run of the job, throwable is null if the run succeeded.
+         */
+        public void jobRun(Job job, int runCount, Throwable throwable);
+
+        public void jobFinished(Job job, boolean cancelled);
+    }
+
+    private static class Entry {
+        /** the job as it was added */
+        private final Job job;
+        /** the job that is run, a deserialized copy if the job is persistent */
+        private final Job runJob;
+        private final long sequence;
+        private int runCount;
+        private long readyAt;
+        private boolean cancelled;
+
+        private Entry(Job job, Job runJob, long sequence) {
+            this.job = job;
+            this.runJob = runJob;
+            this.sequence = sequence;
+        }
+
+        private String group() {
+            return job.getRunGroupId() != null ? job.getRunGroupId() : NO_GROUP;
+        }
+    }
+
+    private static final Comparator<Entry> BY_PRIORITY = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            if (a.job.getPriority() != b.job.getPriority()) {
+                return a.job.getPriority() > b.job.getPriority() ? -1 : 1;
+            }
+            return a.sequence < b.sequence ? -1 : (a.sequence > b.sequence ? 1 : 0);
+        }
+    };
+
+    public JobRunner(int consumerCount, Listener jobListener) {
+        listener = jobListener;
+        for (int i = 0; i < consumerCount; i++) {
+            Thread consumer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    consume();
+                }
+            }, "JobRunner-" + i);
+            consumer.setDaemon(true);
+            consumers.add(consumer);
+            consumer.start();
+        }
+    }
+
+    public void add(Job job) {
+        job.onAdded();
+        if (listener != null) {
+            listener.jobAdded(job);
+        }
+        Job runJob = job.isPersistent() ? store(job) : job;
+        synchronized (this) {
+            Entry entry = new Entry(job, runJob, nextSequence++);
+            pending++;
+            enqueue(entry);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Cancels the waiting jobs with the tag. Jobs that are running finish their run, but are not
+     * run again.
+     */
+    public void cancel(String tag) {
+        List<Entry> cancelled = new ArrayList<>();
+        synchronized (this) {
+            for (Entry entry : runningEntries) {
+                if (hasTag(entry.job, tag)) {
+                    entry.cancelled = true;
+                }
+            }
+            for (PriorityQueue<Entry> queue : ready.values()) {
+                collectTagged(queue, tag, cancelled);
+            }
+            collectTagged(delayed, tag, cancelled);
+        }
+        for (Entry entry : cancelled) {
+            finish(entry, CANCELLED_WHILE_RUNNING, null);
+        }
+    }
+
+    private static void collectTagged(PriorityQueue<Entry> queue, String tag, List<Entry> cancelled) {
+        List<Entry> tagged = new ArrayList<>();
+        for (Entry entry : queue) {
+            if (hasTag(entry.job, tag)) {
+                tagged.add(entry);
+            }
+        }
+        queue.removeAll(tagged);
+        cancelled.addAll(tagged);
+    }
+
+    /**
+     * Returns the number of jobs that are waiting or running.
+     */
+    public synchronized int getQueueDepth() {
+        return pending;
+    }
+
+    public synchronized int getRunningCount() {
+        return running;
+    }
+
+    /**
+     * Waits until all jobs are finished or the timeout in milliseconds has passed. Returns true if
+     * all jobs are finished.
+     */
+    public synchronized boolean awaitIdle(long timeout) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeout;
+        while (pending > 0) {
+            long wait = end - System.currentTimeMillis();
+            if (wait <= 0) {
+                return false;
+            }
+            wait(Math.min(wait, 100));
+        }
+        return true;
+    }
+
+    public void stop() {
+        synchronized (this) {
+            stopped = true;
+            notifyAll();
+        }
+        for (Thread consumer : consumers) {
+            consumer.interrupt();
+        }
+    }
+
+    private void enqueue(Entry entry) {
+        PriorityQueue<Entry> queue = ready.get(entry.group());
+        if (queue == null) {
+            queue = new PriorityQueue<>(16, BY_PRIORITY);
+            ready.put(entry.group(), queue);
+        }
+        queue.add(entry);
+    }
+
+    /**
+     * Returns the next job to run, waits if there is none.
+     */
+    private synchronized Entry take() throws InterruptedException {
+        while (!stopped) {
+            long now = System.currentTimeMillis();
+            while (!delayed.isEmpty() && delayed.peek().readyAt <= now) {
+                enqueue(delayed.poll());
+            }
+            Entry best = null;
+            for (Map.Entry<String, PriorityQueue<Entry>> group : ready.entrySet()) {
+                boolean blocked = !NO_GROUP.equals(group.getKey()) && runningGroups.contains(group.getKey());
+                Entry head = group.getValue().peek();
+                if (!blocked && head != null && (best == null || BY_PRIORITY.compare(head, best) < 0)) {
+                    best = head;
+                }
+            }
+            if (best != null) {
+                ready.get(best.group()).poll();
+                if (!NO_GROUP.equals(best.group())) {
+                    runningGroups.add(best.group());
+                }
+                running++;
+                runningEntries.add(best);
+                return best;
+            }
+            long wait = delayed.isEmpty() ? 100 : Math.max(1, delayed.peek().readyAt - now);
+            wait(wait);
+        }
+        return null;
+    }
+
+    private void consume() {
+        try {
+            Entry entry;
+            while ((entry = take()) != null) {
+                run(entry);
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        }
+    }
+
+    private void run(Entry entry) {
+        entry.runCount++;
+        Throwable error = null;
+        try {
+            entry.runJob.onRun();
+        } catch (Throwable throwable) {
+            error = throwable;
+        }
+        if (listener != null) {
+            listener.jobRun(entry.job, entry.runCount, error);
+        }
+
+        boolean again = false;
+        int cancelReason = -1;
+        if (error != null) {
+            synchronized (this) {
+                if (entry.cancelled) {
+                    cancelReason = CANCELLED_WHILE_RUNNING;
+                }
+            }
+            if (cancelReason < 0 && entry.runCount >= retryLimit(entry.runJob)) {
+                cancelReason = REACHED_RETRY_LIMIT;
+            } else if (cancelReason < 0) {
+                RetryConstraint constraint = shouldReRun(entry.runJob, error, entry.runCount);
+                // the JobManager treats null like RetryConstraint.RETRY
+                again = constraint == null || constraint.shouldRetry();
+                Long delay = constraint != null ? constraint.getNewDelayInMs() : null;
+                entry.readyAt = System.currentTimeMillis() + (delay != null ? delay : 0);
+                if (!again) {
+                    cancelReason = CANCELLED_VIA_SHOULD_RE_RUN;
+                }
+            }
+        }
+
+        synchronized (this) {
+            running--;
+            runningEntries.remove(entry);
+            runningGroups.remove(entry.group());
+            if (again) {
+                delayed.add(entry);
+            }
+            notifyAll();
+        }
+        if (!again) {
+            finish(entry, cancelReason, error);
+        }
+    }
+
+    private static boolean hasTag(Job job, String tag) {
+        return job.getTags() != null && job.getTags().contains(tag);
+    }
+
+    /**
+     * Calls onCancel() of the job if the cancelReason is not negative. The job only stops counting
+     * as pending after the listener has been told, so awaitIdle() does not return before the last
+     * jobFinished().
+     */
+    private void finish(Entry entry, int cancelReason, Throwable throwable) {
+        if (cancelReason >= 0) {
+            try {
+                ON_CANCEL.invoke(entry.runJob, cancelReason, throwable);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        if (listener != null) {
+            listener.jobFinished(entry.job, cancelReason >= 0);
+        }
+        synchronized (this) {
+            pending--;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Returns a deserialized copy of the persistent job, like the one the JobManager loads from its
+     * database. The fields the JobManager keeps itself, like the id, the priority and the tags, are
+     * transient in the Job and are copied.
+     */
+    private static Job store(Job job) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(job);
+            out.close();
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+            Job copy = (Job) in.readObject();
+            in.close();
+            for (Field field : Job.class.getDeclaredFields()) {
+                if (Modifier.isTransient(field.getModifiers()) && !Modifier.isStatic(field.getModifiers())) {
+                    field.setAccessible(true);
+                    field.set(copy, field.get(job));
+                }
+            }
+            return copy;
+        } catch (IOException | ClassNotFoundException | IllegalAccessException e) {
+            throw new IllegalStateException("persistent job " + job.getClass().getSimpleName() + " cannot be stored", e);
+        }
+    }
+
+    private static RetryConstraint shouldReRun(Job job, Throwable throwable, int runCount) {
+        try {
+            return (RetryConstraint) SHOULD_RE_RUN.invoke(job, throwable, runCount, retryLimit(job));
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int retryLimit(Job job) {
+        try {
+            return (Integer) RETRY_LIMIT.invoke(job);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
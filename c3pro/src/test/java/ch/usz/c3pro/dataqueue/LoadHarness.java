@@ -0,0 +1,433 @@
+package ch.usz.c3pro.dataqueue;
+
+import com.birbit.android.jobqueue.Job;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.StringType;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ca.uhn.fhir.rest.client.ServerValidationModeEnum;
+import ch.usz.c3pro.C3PRO;
+
+/**
+ * Drives a {@link DataQueue} with creates and reads at a fixed rate against a
+ * {@link FhirStandInServer} and measures how the queue copes: throughput, latency from submission
+ * to the end of the job including queue wait and retries, runs per job and the queue depth over
+ * time. The jobs are run by a {@link JobRunner}, so the harness runs on the JVM.
+ *
+ * <pre>
+ * LoadHarness.Report report = new LoadHarness(server, new LoadHarness.Config()
+ *         .createsPerSecond(200).readsPerSecond(20).duration(5000)).run();
+ * report.print(System.out);
+ * </pre>
+ */
+public class LoadHarness {
+    /**
+     * Receives read results and drops them.
+     */
+    static final DataQueue.BundleReceiver IGNORE_BUNDLE = new DataQueue.BundleReceiver() {
+        @Override
+        public void receiveBundle(String requestID, Bundle resource) {
+        }
+    };
+
+    private final FhirStandInServer server;
+    private final Config config;
+
+    /**
+     * The load to generate. Setters return the Config, so they can be chained.
+     */
+    public static class Config {
+        private double createsPerSecond = 50;
+        private double readsPerSecond = 10;
+        private long duration = 2000;
+        private int consumers = 5;
+        private int payloadBytes = 1024;
+        private long sampleInterval = 100;
+        private long drainTimeout = 60000;
+        private String readURL = "Questionnaire?_count=10";
+        private NetworkScheduler.NetworkState networkState = new NetworkScheduler.NetworkState(true, false, true);
+        private Workload workload;
+        private TrafficRecorder trafficRecorder;
+
+        public Config createsPerSecond(double rate) {
+            createsPerSecond = rate;
+            return this;
+        }
+
+        public Config readsPerSecond(double rate) {
+            readsPerSecond = rate;
+            return this;
+        }
+
+        /**
+         * How long load is generated, in milliseconds.
+         */
+        public Config duration(long ms) {
+            duration = ms;
+            return this;
+        }
+
+        /**
+         * Number of jobs that run at the same time, like the maxConsumerCount of the JobManager.
+         */
+        public Config consumers(int count) {
+            consumers = count;
+            return this;
+        }
+
+        /**
+         * Approximate size of the created resources.
+         */
+        public Config payloadBytes(int bytes) {
+            payloadBytes = bytes;
+            return this;
+        }
+
+        public Config sampleInterval(long ms) {
+            sampleInterval = ms;
+            return this;
+        }
+
+        /**
+         * How long to wait for the queue to drain after the load has stopped.
+         */
+        public Config drainTimeout(long ms) {
+            drainTimeout = ms;
+            return this;
+        }
+
+        public Config readURL(String searchURL) {
+            readURL = searchURL;
+            return this;
+        }
+
+        public Config networkState(NetworkScheduler.NetworkState state) {
+            networkState = state;
+            return this;
+        }
+
+        /**
+         * Submits the jobs of the workload instead of creates and reads at the configured rates.
+         */
+        public Config workload(Workload jobs) {
+            workload = jobs;
+            return this;
+        }
+
+        /**
+         * Records the submissions of the run, so it can be replayed with a {@link TrafficReplay}.
+         */
+        public Config trafficRecorder(TrafficRecorder recorder) {
+            trafficRecorder = recorder;
+            return this;
+        }
+    }
+
+    /**
+     * Decides what is submitted to the DataQueue when, e.g. a replayed {@link TrafficRecorder} trace.
+     */
+    public interface Workload {
+        /**
+         * Schedules the submissions on the executor and returns how long they take in milliseconds.
+         */
+        public long schedule(DataQueue dataQueue, ScheduledExecutorService executor);
+    }
+
+    /**
+     * Creates and reads at the rates of the Config.
+     */
+    private static class RateWorkload implements Workload {
+        private final Config config;
+
+        private RateWorkload(Config config) {
+            this.config = config;
+        }
+
+        @Override
+        public long schedule(final DataQueue dataQueue, ScheduledExecutorService executor) {
+            final AtomicInteger creates = new AtomicInteger();
+            final AtomicInteger reads = new AtomicInteger();
+            final String padding = padding(config.payloadBytes);
+            if (config.createsPerSecond > 0) {
+                executor.scheduleAtFixedRate(new Runnable() {
+                    @Override
+                    public void run() {
+                        Observation observation = new Observation();
+                        observation.getCode().setText("load " + creates.incrementAndGet());
+                        observation.setValue(new StringType(padding));
+                        dataQueue.create(observation);
+                    }
+                }, 0, (long) (1000000000 / config.createsPerSecond), TimeUnit.NANOSECONDS);
+            }
+            if (config.readsPerSecond > 0) {
+                executor.scheduleAtFixedRate(new Runnable() {
+                    @Override
+                    public void run() {
+                        dataQueue.read("load" + reads.incrementAndGet(), config.readURL, IGNORE_BUNDLE);
+                    }
+                }, 0, (long) (1000000000 / config.readsPerSecond), TimeUnit.NANOSECONDS);
+            }
+            return config.duration;
+        }
+    }
+
+    /**
+     * The queue depth and running jobs at a point in time, in milliseconds since the start.
+     */
+    public static class Sample {
+        public final long time;
+        public final int depth;
+        public final int running;
+
+        private Sample(long time, int depth, int running) {
+            this.time = time;
+            this.depth = depth;
+            this.running = running;
+        }
+    }
+
+    /**
+     * Measurements of one kind of job, e.g. creates.
+     */
+    public static class Stats {
+        private final List<Long> latencies = new ArrayList<>();
+        private int submitted;
+        private int succeeded;
+        private int failed;
+        private int runs;
+
+        public int getSubmitted() {
+            return submitted;
+        }
+
+        public int getSucceeded() {
+            return succeeded;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        /**
+         * Runs beyond the first one of each job.
+         */
+        public int getRetries() {
+            return runs - succeeded - failed;
+        }
+
+        /**
+         * Returns the latency in milliseconds below which the fraction of the finished jobs are.
+         */
+        public long getLatencyPercentile(double fraction) {
+            if (latencies.isEmpty()) {
+                return 0;
+            }
+            List<Long> sorted = new ArrayList<>(latencies);
+            Collections.sort(sorted);
+            return sorted.get(Math.min(sorted.size() - 1, (int) Math.floor(fraction * sorted.size())));
+        }
+    }
+
+    /**
+     * The results of a run.
+     */
+    public static class Report {
+        private final Map<String, Stats> stats = new TreeMap<>();
+        private final List<Sample> samples = new ArrayList<>();
+        private long elapsed;
+        private boolean drained;
+        private int serverRequests;
+        private int serverErrors;
+        private int serverThrottled;
+
+        public Stats getStats(String kind) {
+            return stats.containsKey(kind) ? stats.get(kind) : new Stats();
+        }
+
+        public List<Sample> getSamples() {
+            return samples;
+        }
+
+        /**
+         * Time from the first submission until the queue was empty, in milliseconds.
+         */
+        public long getElapsed() {
+            return elapsed;
+        }
+
+        public boolean isDrained() {
+            return drained;
+        }
+
+        public int getMaxQueueDepth() {
+            int max = 0;
+            for (Sample sample : samples) {
+                max = Math.max(max, sample.depth);
+            }
+            return max;
+        }
+
+        /**
+         * Successful jobs per second.
+         */
+        public double getThroughput() {
+            int succeeded = 0;
+            for (Stats kind : stats.values()) {
+                succeeded += kind.succeeded;
+            }
+            return elapsed > 0 ? succeeded * 1000.0 / elapsed : 0;
+        }
+
+        public void print(PrintStream out) {
+            out.println(String.format("%d ms, %.1f jobs/s, max queue depth %d, %s; server: %d requests, %d errors, %d throttled",
+                    elapsed, getThroughput(), getMaxQueueDepth(), drained ? "drained" : "NOT drained",
+                    serverRequests, serverErrors, serverThrottled));
+            for (Map.Entry<String, Stats> entry : stats.entrySet()) {
+                Stats kind = entry.getValue();
+                out.println(String.format("  %-8s %5d submitted %5d ok %4d failed %5d retries  latency p50 %5d ms p90 %5d ms p99 %5d ms max %5d ms",
+                        entry.getKey(), kind.submitted, kind.succeeded, kind.failed, kind.getRetries(),
+                        kind.getLatencyPercentile(0.5), kind.getLatencyPercentile(0.9), kind.getLatencyPercentile(0.99),
+                        kind.getLatencyPercentile(1)));
+            }
+            StringBuilder depth = new StringBuilder("  queue depth:");
+            int step = Math.max(1, samples.size() / 20);
+            for (int i = 0; i < samples.size(); i += step) {
+                depth.append(' ').append(samples.get(i).time).append("ms=").append(samples.get(i).depth);
+            }
+            out.println(depth);
+        }
+    }
+
+    public LoadHarness(FhirStandInServer standIn, Config loadConfig) {
+        server = standIn;
+        config = loadConfig;
+    }
+
+    /**
+     * Generates the load, waits for the queue to drain and returns the measurements. The DataQueue
+     * of the C3PRO is replaced for the run.
+     */
+    public Report run() throws InterruptedException {
+        C3PRO.initFhirContext();
+        C3PRO.getFhirContext().getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+
+        final Report report = new Report();
+        final Map<Job, Long> submitted = new ConcurrentHashMap<>();
+        final long start = System.currentTimeMillis();
+        final LoadTestDataQueue dataQueue = new LoadTestDataQueue(server.getBaseURL(), config.consumers, new JobRunner.Listener() {
+            @Override
+            public void jobAdded(Job job) {
+                submitted.put(job, System.currentTimeMillis());
+                synchronized (report) {
+                    stats(report, job).submitted++;
+                }
+            }
+
+            @Override
+            public void jobRun(Job job, int runCount, Throwable throwable) {
+                synchronized (report) {
+                    stats(report, job).runs++;
+                }
+            }
+
+            @Override
+            public void jobFinished(Job job, boolean cancelled) {
+                Long added = submitted.remove(job);
+                synchronized (report) {
+                    Stats kind = stats(report, job);
+                    if (cancelled) {
+                        kind.failed++;
+                    } else {
+                        kind.succeeded++;
+                        kind.latencies.add(System.currentTimeMillis() - (added != null ? added : start));
+                    }
+                }
+            }
+        });
+        final NetworkScheduler.NetworkState state = config.networkState;
+        dataQueue.setNetworkStateProvider(new NetworkScheduler.NetworkStateProvider() {
+            @Override
+            public NetworkScheduler.NetworkState getNetworkState() {
+                return state;
+            }
+        });
+        dataQueue.setTrafficRecorder(config.trafficRecorder);
+        DataQueue previous = C3PRO.getDataQueue();
+        C3PRO.setDataQueue(dataQueue);
+
+        ScheduledExecutorService load = Executors.newScheduledThreadPool(3);
+        try {
+            Workload workload = config.workload != null ? config.workload : new RateWorkload(config);
+            long duration = workload.schedule(dataQueue, load);
+            final JobRunner runner = dataQueue.getRunner();
+            load.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    Sample sample = new Sample(System.currentTimeMillis() - start, runner.getQueueDepth(), runner.getRunningCount());
+                    synchronized (report) {
+                        report.samples.add(sample);
+                    }
+                }
+            }, 0, config.sampleInterval, TimeUnit.MILLISECONDS);
+
+            Thread.sleep(duration);
+            load.shutdown();
+            load.awaitTermination(1, TimeUnit.SECONDS);
+            report.drained = runner.awaitIdle(config.drainTimeout);
+            report.elapsed = System.currentTimeMillis() - start;
+            report.samples.add(new Sample(report.elapsed, runner.getQueueDepth(), runner.getRunningCount()));
+            runner.stop();
+        } finally {
+            load.shutdownNow();
+            C3PRO.setDataQueue(previous);
+        }
+        report.serverRequests = server.getRequestCount();
+        report.serverErrors = server.getErrorCount();
+        report.serverThrottled = server.getThrottledCount();
+        return report;
+    }
+
+    /**
+     * Returns the kind of the job: create, read or the name of its class.
+     */
+    public static String kindOf(Job job) {
+        String name = job.getClass().getSimpleName();
+        if ("CreateResourceJob".equals(name)) {
+            return "create";
+        } else if ("ReadResourceJob".equals(name)) {
+            return "read";
+        }
+        return name;
+    }
+
+    private static Stats stats(Report report, Job job) {
+        String kind = kindOf(job);
+        Stats stats = report.stats.get(kind);
+        if (stats == null) {
+            stats = new Stats();
+            report.stats.put(kind, stats);
+        }
+        return stats;
+    }
+
+    static String padding(int bytes) {
+        StringBuilder padding = new StringBuilder(bytes);
+        for (int i = 0; i < bytes; i++) {
+            padding.append((char) ('a' + i % 26));
+        }
+        return padding.toString();
+    }
+}
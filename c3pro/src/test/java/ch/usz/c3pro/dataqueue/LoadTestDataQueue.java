@@ -0,0 +1,54 @@
+package ch.usz.c3pro.dataqueue;
+
+import com.birbit.android.jobqueue.Job;
+
+/**
+ * A DataQueue whose jobs are run by a {@link JobRunner} on the JVM instead of a JobManager.
+ */
+public class LoadTestDataQueue extends DataQueue {
+    private final JobRunner runner;
+
+    /**
+     * The listener, which can be null, is told about the jobs of the queue.
+     */
+    public LoadTestDataQueue(String FHIRServerURL, int consumers, final JobRunner.Listener listener) {
+        super(FHIRServerURL, null);
+        runner = new JobRunner(consumers, new JobRunner.Listener() {
+            @Override
+            public void jobAdded(Job job) {
+                if (listener != null) {
+                    listener.jobAdded(job);
+                }
+            }
+
+            @Override
+            public void jobRun(Job job, int runCount, Throwable throwable) {
+                if (listener != null) {
+                    listener.jobRun(job, runCount, throwable);
+                }
+            }
+
+            @Override
+            public void jobFinished(Job job, boolean cancelled) {
+                LoadTestDataQueue.this.jobFinished(job);
+                if (listener != null) {
+                    listener.jobFinished(job, cancelled);
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void submit(Job job) {
+        runner.add(job);
+    }
+
+    @Override
+    protected void cancelJobs(String tag) {
+        runner.cancel(tag);
+    }
+
+    public JobRunner getRunner() {
+        return runner;
+    }
+}
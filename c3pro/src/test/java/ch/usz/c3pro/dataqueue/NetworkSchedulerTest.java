@@ -0,0 +1,129 @@
+package ch.usz.c3pro.dataqueue;
+
+import com.birbit.android.jobqueue.RetryConstraint;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the {@link NetworkScheduler} with simulated network conditions and a simulated clock.
+ */
+public class NetworkSchedulerTest {
+    private static final NetworkScheduler.NetworkState WIFI = new NetworkScheduler.NetworkState(true, false, true);
+    private static final NetworkScheduler.NetworkState SLOW_MOBILE = new NetworkScheduler.NetworkState(true, true, false);
+    private static final NetworkScheduler.NetworkState FAST_MOBILE = new NetworkScheduler.NetworkState(true, true, true);
+
+    private NetworkScheduler.NetworkState state;
+    private long time;
+    private NetworkScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        state = WIFI;
+        time = 1000000;
+        scheduler = new NetworkScheduler(new NetworkScheduler.NetworkStateProvider() {
+            @Override
+            public NetworkScheduler.NetworkState getNetworkState() {
+                return state;
+            }
+        }) {
+            @Override
+            protected long now() {
+                return time;
+            }
+        };
+    }
+
+    @Test
+    public void payloadSize_classifiesBytes() {
+        assertTrue(NetworkScheduler.PayloadSize.of(1000) == NetworkScheduler.PayloadSize.SMALL);
+        assertTrue(NetworkScheduler.PayloadSize.of(NetworkScheduler.SMALL_PAYLOAD_LIMIT) == NetworkScheduler.PayloadSize.MEDIUM);
+        assertTrue(NetworkScheduler.PayloadSize.of(5 * 1024 * 1024) == NetworkScheduler.PayloadSize.LARGE);
+    }
+
+    @Test
+    public void nothingTransfersWhenDisconnected() {
+        state = NetworkScheduler.NetworkState.DISCONNECTED;
+        assertFalse(scheduler.mayTransfer(NetworkScheduler.PayloadSize.SMALL, false));
+    }
+
+    @Test
+    public void largeUpload_heldOnSlowMeteredConnection() {
+        state = SLOW_MOBILE;
+        assertFalse(scheduler.mayTransfer(NetworkScheduler.PayloadSize.LARGE, true));
+        assertTrue(scheduler.mayTransfer(NetworkScheduler.PayloadSize.SMALL, false));
+
+        state = FAST_MOBILE;
+        assertTrue(scheduler.mayTransfer(NetworkScheduler.PayloadSize.LARGE, false));
+
+        state = WIFI;
+        assertTrue(scheduler.mayTransfer(NetworkScheduler.PayloadSize.LARGE, true));
+    }
+
+    @Test
+    public void backgroundTransfers_batchedIntoRadioWindows() {
+        state = FAST_MOBILE;
+        // the first background transfer opens a window, others join it
+        assertTrue(scheduler.mayTransfer(NetworkScheduler.PayloadSize.SMALL, true));
+        time += 5000;
+        assertTrue(scheduler.mayTransfer(NetworkScheduler.PayloadSize.SMALL, true));
+
+        // after the window has closed, background transfers are held
+        time += NetworkScheduler.RADIO_WINDOW_MS + 1;
+        assertFalse(scheduler.mayTransfer(NetworkScheduler.PayloadSize.SMALL, true));
+
+        // until a foreground transfer opens the radio again
+        assertTrue(scheduler.mayTransfer(NetworkScheduler.PayloadSize.SMALL, false));
+        assertTrue(scheduler.mayTransfer(NetworkScheduler.PayloadSize.SMALL, true));
+
+        // or the batch interval has passed
+        time += NetworkScheduler.BATCH_INTERVAL_MS;
+        assertTrue(scheduler.mayTransfer(NetworkScheduler.PayloadSize.SMALL, true));
+    }
+
+    @Test
+    public void backgroundTransfers_notHeldOnUnmeteredConnection() {
+        assertTrue(scheduler.mayTransfer(NetworkScheduler.PayloadSize.SMALL, true));
+        time += NetworkScheduler.RADIO_WINDOW_MS + 1;
+        assertTrue(scheduler.mayTransfer(NetworkScheduler.PayloadSize.MEDIUM, true));
+    }
+
+    @Test
+    public void runCounter_holdsWithoutLimitAndBacksOffFailures() {
+        NetworkScheduler.RunCounter runs = new NetworkScheduler.RunCounter();
+        NetworkScheduler.ConditionsNotMetException held = new NetworkScheduler.ConditionsNotMetException("held", NetworkScheduler.RETRY_DELAY_MS);
+        for (int i = 0; i < 10000; i++) {
+            RetryConstraint constraint = runs.retryConstraintFor(held);
+            assertTrue(constraint.shouldRetry());
+            assertEquals(Long.valueOf(NetworkScheduler.RETRY_DELAY_MS), constraint.getNewDelayInMs());
+        }
+
+        IOException failure = new IOException("HTTP 500");
+        long lastDelay = 0;
+        for (int i = 1; i < NetworkScheduler.MAX_FAILED_RUNS; i++) {
+            RetryConstraint constraint = runs.retryConstraintFor(failure);
+            assertTrue(constraint.shouldRetry());
+            assertTrue(constraint.getNewDelayInMs() >= lastDelay);
+            assertTrue(constraint.getNewDelayInMs() <= NetworkScheduler.MAX_FAILURE_DELAY_MS);
+            lastDelay = constraint.getNewDelayInMs();
+        }
+        assertEquals(NetworkScheduler.FAILURE_DELAY_MS * 2, NetworkScheduler.failureDelay(2));
+        assertEquals(NetworkScheduler.MAX_FAILURE_DELAY_MS, lastDelay);
+        assertFalse(runs.retryConstraintFor(failure).shouldRetry());
+        assertEquals(10000, runs.getHeldRuns());
+        assertEquals(NetworkScheduler.MAX_FAILED_RUNS, runs.getFailedRuns());
+    }
+
+    @Test
+    public void retryConstraint_delaysFailedRuns() {
+        RetryConstraint constraint = NetworkScheduler.retryConstraintFor(new IOException("HTTP 404"), 3);
+        assertTrue(constraint.shouldRetry());
+        assertEquals(Long.valueOf(NetworkScheduler.FAILURE_DELAY_MS * 4), constraint.getNewDelayInMs());
+    }
+}
@@ -0,0 +1,89 @@
+package ch.usz.c3pro.dataqueue;
+
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.researchstack.backbone.answerformat.TextAnswerFormat;
+import org.researchstack.backbone.result.StepResult;
+import org.researchstack.backbone.result.TaskResult;
+import org.researchstack.backbone.step.QuestionStep;
+import org.researchstack.backbone.task.Task;
+
+import java.util.List;
+
+import ca.uhn.fhir.rest.client.ServerValidationModeEnum;
+import ch.usz.c3pro.C3PRO;
+import ch.usz.c3pro.questionnaire.QuestionnaireGenerator;
+import ch.usz.c3pro.questionnaire.logic.Questionnaire2Task;
+import ch.usz.c3pro.questionnaire.logic.QuestionnaireResponseValidator;
+import ch.usz.c3pro.questionnaire.logic.TaskResult2QuestionnaireResponse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the QuestionnaireResponses passed to the DataQueue in any form are validated against
+ * their Task and coalesced before they are uploaded to the {@link FhirStandInServer}.
+ */
+public class QuestionnaireResponseUploadTest {
+    private FhirStandInServer server;
+    private LoadTestDataQueue dataQueue;
+    private DataQueue previousQueue;
+    private Task task;
+
+    @Before
+    public void setUp() throws Exception {
+        C3PRO.initFhirContext();
+        C3PRO.getFhirContext().getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+        server = new FhirStandInServer();
+        server.start();
+        dataQueue = new LoadTestDataQueue(server.getBaseURL(), 1, null);
+        previousQueue = C3PRO.getDataQueue();
+        C3PRO.setDataQueue(dataQueue);
+        Questionnaire questionnaire = new QuestionnaireGenerator(3).generate("upload", 30);
+        task = Questionnaire2Task.questionnaire2Task(questionnaire);
+    }
+
+    @After
+    public void tearDown() {
+        dataQueue.getRunner().stop();
+        C3PRO.setDataQueue(previousQueue);
+        server.stop();
+    }
+
+    @Test
+    public void everyPath_validatesBeforeUploading() throws Exception {
+        TaskResult valid = new QuestionnaireGenerator(3).answer(task);
+        TaskResult other = new QuestionnaireGenerator(4).answer(task);
+        TaskResult invalid = new QuestionnaireGenerator(5).answer(task);
+        StepResult<Object> unknown = new StepResult<>(new QuestionStep("unknown", "Unknown", new TextAnswerFormat()));
+        unknown.setResult("answer");
+        invalid.setStepResultForStepIdentifier("unknown", unknown);
+
+        assertTrue(dataQueue.createQuestionnaireResponse(valid, task, null).isEmpty());
+        assertTrue(dataQueue.create(TaskResult2QuestionnaireResponse.taskResult2QuestionnaireResponse(other), task).isEmpty());
+        List<QuestionnaireResponseValidator.Issue> issues = dataQueue.createQuestionnaireResponse(invalid, task, null);
+        assertFalse(issues.isEmpty());
+        assertEquals(QuestionnaireResponseValidator.IssueType.UNKNOWN_ITEM, issues.get(0).getType());
+        assertFalse(dataQueue.create(TaskResult2QuestionnaireResponse.taskResult2QuestionnaireResponse(invalid), task).isEmpty());
+
+        assertTrue(dataQueue.getRunner().awaitIdle(10000));
+        assertEquals(2, server.getResourceCount("QuestionnaireResponse"));
+    }
+
+    @Test
+    public void identicalResponses_areUploadedOnce() throws Exception {
+        server.setLatency(200, 0);
+        TaskResult taskResult = new QuestionnaireGenerator(3).answer(task);
+
+        dataQueue.createQuestionnaireResponse(taskResult);
+        dataQueue.createQuestionnaireResponse(taskResult, null);
+        dataQueue.createQuestionnaireResponse(taskResult, task, null);
+
+        assertTrue(dataQueue.getRunner().awaitIdle(10000));
+        assertEquals(1, server.getResourceCount("QuestionnaireResponse"));
+        assertEquals(0, dataQueue.getUploadCoalescer().size());
+    }
+}
@@ -0,0 +1,232 @@
+package ch.usz.c3pro.dataqueue;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.hl7.fhir.dstu3.model.QuestionnaireResponse;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.SummaryEnum;
+import ca.uhn.fhir.rest.client.ServerValidationModeEnum;
+import ch.usz.c3pro.C3PRO;
+import ch.usz.c3pro.dataqueue.jobs.JobReceivers;
+import ch.usz.c3pro.questionnaire.QuestionnaireGenerator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the projections of the {@link SearchQuery} against a {@link FhirStandInServer}. A list of
+ * generated questionnaires is read once in full and once with the elements needed for
+ * {@link ResourceSummary}s, which is smaller and yields the same summaries. The reads of the
+ * DataQueue are run by a {@link LoadTestDataQueue}, their results are delivered right away. The
+ * parse times are measured by the ReadProjectionBenchmark in src/jmh.
+ */
+public class ReadProjectionTest {
+    private static final int QUESTIONNAIRES = 50;
+    private static final int ITEMS = 100;
+    private static final long TIMEOUT_MS = 10000;
+
+    private FhirStandInServer server;
+    private IParser parser;
+    private LoadTestDataQueue dataQueue;
+    private final List<Bundle> bundles = new ArrayList<>();
+    private final List<List<ResourceSummary>> summaries = new ArrayList<>();
+    private final List<String> requestIDs = new ArrayList<>();
+
+    private final DataQueue.BundleReceiver bundleReceiver = new DataQueue.BundleReceiver() {
+        @Override
+        public void receiveBundle(String requestID, Bundle resource) {
+            requestIDs.add(requestID);
+            bundles.add(resource);
+        }
+    };
+
+    private final DataQueue.SummaryReceiver summaryReceiver = new DataQueue.SummaryReceiver() {
+        @Override
+        public void receiveSummaries(String requestID, List<ResourceSummary> resourceSummaries) {
+            requestIDs.add(requestID);
+            summaries.add(resourceSummaries);
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        C3PRO.initFhirContext();
+        C3PRO.getFhirContext().getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+        JobReceivers.setDeliveryExecutor(new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                runnable.run();
+            }
+        });
+        server = new FhirStandInServer();
+        for (int i = 0; i < QUESTIONNAIRES; i++) {
+            Questionnaire questionnaire = new QuestionnaireGenerator(i).generate("q" + i, ITEMS);
+            questionnaire.setTitle("Questionnaire " + i);
+            questionnaire.setVersion(String.valueOf(i % 3 + 1));
+            questionnaire.setDate(new Date(0));
+            server.addResource(questionnaire);
+        }
+        server.start();
+        parser = FhirContext.forDstu3().newJsonParser();
+        dataQueue = new LoadTestDataQueue(server.getBaseURL(), 1, null);
+    }
+
+    @After
+    public void tearDown() {
+        dataQueue.getRunner().stop();
+        JobReceivers.setDeliveryExecutor(null);
+        server.stop();
+    }
+
+    @Test
+    public void projection_readsLessAndKeepsTheSummaries() throws Exception {
+        SearchQuery full = new SearchQuery("Questionnaire");
+        SearchQuery projected = new SearchQuery("Questionnaire").elements(ResourceSummary.ELEMENTS);
+
+        List<ResourceSummary> fullSummaries = ResourceSummary.of(read(full));
+        List<ResourceSummary> projectedSummaries = ResourceSummary.of(read(projected));
+        assertEquals(QUESTIONNAIRES, fullSummaries.size());
+        assertEquals(fullSummaries.size(), projectedSummaries.size());
+        for (int i = 0; i < fullSummaries.size(); i++) {
+            assertEquals(fullSummaries.get(i).getTitle(), projectedSummaries.get(i).getTitle());
+            assertEquals(fullSummaries.get(i).getVersion(), projectedSummaries.get(i).getVersion());
+        }
+
+        Bundle projectedBundle = read(projected);
+        for (Bundle.BundleEntryComponent entry : projectedBundle.getEntry()) {
+            assertTrue(((Questionnaire) entry.getResource()).getItem().isEmpty());
+        }
+        assertTrue(download(projected).length * 5 < download(full).length);
+    }
+
+    @Test
+    public void summaryCount_returnsOnlyTotal() throws Exception {
+        Bundle bundle = read(new SearchQuery("Questionnaire").summary(SummaryEnum.COUNT));
+        assertEquals(QUESTIONNAIRES, bundle.getTotal());
+        assertEquals(0, bundle.getEntry().size());
+    }
+
+    @Test
+    public void count_limitsPage() throws Exception {
+        Bundle bundle = read(new SearchQuery("Questionnaire").elements("title").count(10));
+        assertEquals(10, bundle.getEntry().size());
+    }
+
+    @Test
+    public void read_withQuery_passesBackTheProjectedBundle() throws Exception {
+        dataQueue.read("projected", new SearchQuery("Questionnaire").elements(ResourceSummary.ELEMENTS).count(10), bundleReceiver);
+        assertTrue(dataQueue.getRunner().awaitIdle(TIMEOUT_MS));
+
+        assertEquals("projected", requestIDs.get(0));
+        Bundle bundle = bundles.get(0);
+        assertEquals(10, bundle.getEntry().size());
+        Questionnaire first = (Questionnaire) bundle.getEntry().get(0).getResource();
+        assertEquals("Questionnaire 0", first.getTitle());
+        assertTrue(first.getItem().isEmpty());
+    }
+
+    @Test
+    public void readSummaries_withoutProjection_onlyDownloadsTheSummaryElements() throws Exception {
+        dataQueue.read("full", new SearchQuery("Questionnaire"), bundleReceiver);
+        assertTrue(dataQueue.getRunner().awaitIdle(TIMEOUT_MS));
+        long fullBytes = server.getBytesSent();
+
+        dataQueue.readSummaries("summaries", new SearchQuery("Questionnaire"), summaryReceiver);
+        assertTrue(dataQueue.getRunner().awaitIdle(TIMEOUT_MS));
+        long summaryBytes = server.getBytesSent() - fullBytes;
+
+        assertEquals("summaries", requestIDs.get(1));
+        List<ResourceSummary> fullSummaries = ResourceSummary.of(bundles.get(0));
+        List<ResourceSummary> readSummaries = summaries.get(0);
+        assertEquals(QUESTIONNAIRES, readSummaries.size());
+        for (int i = 0; i < readSummaries.size(); i++) {
+            assertEquals(fullSummaries.get(i).getTitle(), readSummaries.get(i).getTitle());
+            assertEquals(fullSummaries.get(i).getVersion(), readSummaries.get(i).getVersion());
+            assertEquals(fullSummaries.get(i).getUrl(), readSummaries.get(i).getUrl());
+        }
+        assertTrue(summaryBytes * 5 < fullBytes);
+    }
+
+    @Test
+    public void readSummaries_keepsTheProjectionOfTheQuery() throws Exception {
+        dataQueue.readSummaries("titles", new SearchQuery("Questionnaire").elements("title").count(5), summaryReceiver);
+        assertTrue(dataQueue.getRunner().awaitIdle(TIMEOUT_MS));
+
+        List<ResourceSummary> titles = summaries.get(0);
+        assertEquals(5, titles.size());
+        assertEquals("Questionnaire 0", titles.get(0).getTitle());
+        assertNull(titles.get(0).getVersion());
+    }
+
+    @Test
+    public void include_addsTheReferencedQuestionnairesButNotToTheSummaries() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            QuestionnaireResponse response = new QuestionnaireResponse();
+            response.setId("r" + i);
+            response.setQuestionnaire(new Reference("Questionnaire/q" + i % 2));
+            server.addResource(response);
+        }
+        SearchQuery query = new SearchQuery("QuestionnaireResponse").include("QuestionnaireResponse:questionnaire");
+
+        dataQueue.read("included", query, bundleReceiver);
+        dataQueue.readSummaries("summaries", query, summaryReceiver);
+        assertTrue(dataQueue.getRunner().awaitIdle(TIMEOUT_MS));
+
+        int matches = 0;
+        List<String> included = new ArrayList<>();
+        for (Bundle.BundleEntryComponent entry : bundles.get(0).getEntry()) {
+            if (entry.getSearch().getMode() == Bundle.SearchEntryMode.INCLUDE) {
+                included.add(entry.getResource().getIdElement().getIdPart());
+            } else {
+                matches++;
+            }
+        }
+        assertEquals(4, matches);
+        assertEquals(2, included.size());
+        assertTrue(included.contains("q0") && included.contains("q1"));
+
+        List<ResourceSummary> responses = summaries.get(0);
+        assertEquals(4, responses.size());
+        for (ResourceSummary summary : responses) {
+            assertEquals("QuestionnaireResponse", summary.getResourceType());
+        }
+    }
+
+    private Bundle read(SearchQuery query) throws IOException {
+        return parser.parseResource(Bundle.class, new String(download(query), "UTF-8"));
+    }
+
+    private byte[] download(SearchQuery query) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(server.getBaseURL() + query.toURL()).openConnection();
+        try {
+            InputStream in = connection.getInputStream();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+            in.close();
+            return out.toByteArray();
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package ch.usz.c3pro.dataqueue;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Quantity;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.math.BigDecimal;
+
+import ch.usz.c3pro.C3PRO;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that a {@link SpillableBundle} returns the same resources whether it is kept in memory or
+ * spilled to disk.
+ */
+public class SpillableBundleTest {
+    private static final int ENTRIES = 500;
+
+    private byte[] json;
+
+    @Before
+    public void setUp() {
+        C3PRO.initFhirContext();
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.SEARCHSET);
+        bundle.setTotal(ENTRIES);
+        for (int i = 0; i < ENTRIES; i++) {
+            Observation observation = new Observation();
+            observation.setId("obs" + i);
+            observation.getCode().setText("weight");
+            observation.setValue(new Quantity().setValue(new BigDecimal("70.50")).setUnit("kg"));
+            bundle.addEntry().setFullUrl("Observation/obs" + i).setResource(observation);
+        }
+        json = C3PRO.getFhirContext().newJsonParser().encodeResourceToString(bundle).getBytes();
+    }
+
+    @Test
+    public void smallResponse_staysInMemory() throws Exception {
+        SpillableBundle bundle = SpillableBundle.read(new ByteArrayInputStream(json), json.length, null);
+        assertFalse(bundle.isSpilled());
+        assertNotNull(bundle.getBundle());
+        assertEquals(ENTRIES, bundle.getTotal());
+        assertEntries(bundle);
+        bundle.close();
+    }
+
+    @Test
+    public void largeResponse_isSpilledAndStreamed() throws Exception {
+        File directory = new File(System.getProperty("java.io.tmpdir"));
+        SpillableBundle bundle = SpillableBundle.read(new ByteArrayInputStream(json), 16 * 1024, directory);
+        assertTrue(bundle.isSpilled());
+        assertNull(bundle.getBundle());
+        assertEquals(ENTRIES, bundle.getTotal());
+        assertEntries(bundle);
+        // every iterator starts over
+        assertEntries(bundle);
+        bundle.close();
+    }
+
+    private void assertEntries(SpillableBundle bundle) throws Exception {
+        int count = 0;
+        for (Resource resource : bundle) {
+            Observation observation = (Observation) resource;
+            assertEquals("obs" + count, observation.getIdElement().getIdPart());
+            assertEquals(new BigDecimal("70.50"), observation.getValueQuantity().getValue());
+            count++;
+        }
+        assertEquals(ENTRIES, count);
+    }
+}
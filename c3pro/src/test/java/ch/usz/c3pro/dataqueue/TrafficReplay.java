@@ -0,0 +1,149 @@
+package ch.usz.c3pro.dataqueue;
+
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Resource;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ca.uhn.fhir.parser.DataFormatException;
+import ch.usz.c3pro.C3PRO;
+
+/**
+ * Replays a trace written by a {@link TrafficRecorder} as the workload of a {@link LoadHarness},
+ * at the recorded pace or accelerated. Creates are replayed with resources of the recorded type
+ * and size, resources with the same recorded key get the same id and the same recorded content
+ * gets the same JSON, so the UploadCoalescer sees the same duplicates and replacements. Reads are
+ * replayed relative to the stand-in server. Other jobs cannot be rebuilt from a trace and are
+ * skipped.
+ *
+ * Run a recorded trace against a stand-in server with e.g. 20 ms latency at 10x speed:
+ * <pre>
+ * java ... ch.usz.c3pro.dataqueue.TrafficReplay trace.tsv 10 20
+ * </pre>
+ */
+public class TrafficReplay implements LoadHarness.Workload {
+    private static final String TAG_SYSTEM = "urn:c3pro:replay";
+
+    private final List<TrafficRecorder.Entry> trace;
+    private final double speed;
+    private final AtomicInteger skipped = new AtomicInteger();
+
+    /**
+     * @param speed 1 to replay at the recorded pace, 10 to replay ten times faster
+     */
+    public TrafficReplay(List<TrafficRecorder.Entry> trace, double speed) {
+        if (speed <= 0) {
+            throw new IllegalArgumentException("speed must be positive");
+        }
+        this.trace = trace;
+        this.speed = speed;
+    }
+
+    @Override
+    public long schedule(final DataQueue dataQueue, ScheduledExecutorService executor) {
+        long end = 0;
+        for (int i = 0; i < trace.size(); i++) {
+            final TrafficRecorder.Entry entry = trace.get(i);
+            final String requestID = "replay" + i;
+            long at = (long) (entry.getTime() / speed);
+            end = Math.max(end, at);
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    submit(dataQueue, entry, requestID);
+                }
+            }, at, TimeUnit.MILLISECONDS);
+        }
+        return end;
+    }
+
+    /**
+     * Returns the number of entries that could not be replayed.
+     */
+    public int getSkippedCount() {
+        return skipped.get();
+    }
+
+    private void submit(DataQueue dataQueue, TrafficRecorder.Entry entry, String requestID) {
+        if (TrafficRecorder.KIND_CREATE.equals(entry.getKind())) {
+            dataQueue.create(resourceFor(entry));
+        } else if (TrafficRecorder.KIND_READ.equals(entry.getKind()) && entry.getTarget() != null) {
+            dataQueue.read(requestID, relative(entry.getTarget()), LoadHarness.IGNORE_BUNDLE);
+        } else {
+            skipped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns a resource of the recorded type, whose JSON is about as long as the recorded payload
+     * and only depends on the recorded key and content.
+     */
+    static Resource resourceFor(TrafficRecorder.Entry entry) {
+        Resource resource = new Observation();
+        if (entry.getTarget() != null) {
+            try {
+                resource = (Resource) C3PRO.getFhirContext().getResourceDefinition(entry.getTarget()).newInstance();
+            } catch (DataFormatException e) {
+                // unknown resource type, the Observation stands in for it
+            }
+        }
+        if (entry.getKey() != null) {
+            resource.setId(entry.getKey());
+        }
+        String content = entry.getContent() != null ? entry.getContent() : "";
+        resource.getMeta().addTag().setSystem(TAG_SYSTEM).setCode(content);
+        int length = UploadCoalescer.encode(resource).length;
+        if (entry.getPayloadBytes() > length) {
+            resource.getMeta().getTag().get(0).setCode(content + LoadHarness.padding((int) (entry.getPayloadBytes() - length)));
+        }
+        return resource;
+    }
+
+    /**
+     * Search URLs recorded against the production server are replayed against the stand-in.
+     */
+    private static String relative(String searchURL) {
+        if (!searchURL.startsWith("http://") && !searchURL.startsWith("https://")) {
+            return searchURL;
+        }
+        URI uri = URI.create(searchURL);
+        String path = uri.getRawPath() != null ? uri.getRawPath() : "";
+        String[] segments = path.split("/");
+        // the search starts at the last path segment, e.g. Questionnaire in /fhir/Questionnaire
+        String type = segments.length > 0 ? segments[segments.length - 1] : "";
+        return uri.getRawQuery() != null ? type + "?" + uri.getRawQuery() : type;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: TrafficReplay trace [speed [latency ms]]");
+            System.exit(1);
+        }
+        List<TrafficRecorder.Entry> trace;
+        try (Reader reader = new InputStreamReader(new FileInputStream(new File(args[0])), "UTF-8")) {
+            trace = TrafficRecorder.readTrace(reader);
+        }
+        double speed = args.length > 1 ? Double.parseDouble(args[1]) : 1;
+        FhirStandInServer server = new FhirStandInServer();
+        if (args.length > 2) {
+            server.setLatency(Long.parseLong(args[2]), 0);
+        }
+        server.start();
+        try {
+            TrafficReplay replay = new TrafficReplay(trace, speed);
+            LoadHarness.Report report = new LoadHarness(server, new LoadHarness.Config().workload(replay)).run();
+            report.print(System.out);
+            System.out.println("  skipped " + replay.getSkippedCount() + " of " + trace.size() + " entries");
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package ch.usz.c3pro.dataqueue;
+
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.hl7.fhir.dstu3.model.StringType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.List;
+
+import ch.usz.c3pro.C3PRO;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records traffic with a {@link TrafficRecorder} and replays it with a {@link TrafficReplay}.
+ */
+public class TrafficReplayTest {
+    private FhirStandInServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        C3PRO.initFhirContext();
+        server = new FhirStandInServer();
+        Questionnaire questionnaire = new Questionnaire();
+        questionnaire.setId("q1");
+        server.addResource(questionnaire);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void trace_keepsShapeButNotContent() throws Exception {
+        StringWriter trace = new StringWriter();
+        TrafficRecorder recorder = new TrafficRecorder(trace);
+        LoadTestDataQueue dataQueue = new LoadTestDataQueue(server.getBaseURL(), 1, null);
+        dataQueue.getRunner().stop();
+        dataQueue.setTrafficRecorder(recorder);
+        DataQueue previous = C3PRO.getDataQueue();
+        C3PRO.setDataQueue(dataQueue);
+
+        Observation first = new Observation();
+        first.setId("o1");
+        first.setValue(new StringType("secret value " + LoadHarness.padding(500)));
+        dataQueue.create(first);
+        Observation identical = first.copy();
+        identical.setId("o1");
+        dataQueue.create(identical);
+        Observation second = first.copy();
+        second.setId("o1");
+        second.setValue(new StringType("another secret"));
+        dataQueue.create(second);
+        dataQueue.read("r1", "Questionnaire?_count=1", LoadHarness.IGNORE_BUNDLE);
+        dataQueue.setTrafficRecorder(null);
+        dataQueue.create(new Observation());
+        recorder.close();
+        C3PRO.setDataQueue(previous);
+
+        assertTrue(!trace.toString().contains("secret"));
+        List<TrafficRecorder.Entry> entries = TrafficRecorder.readTrace(new StringReader(trace.toString()));
+        assertEquals(4, entries.size());
+        assertEquals(TrafficRecorder.KIND_CREATE, entries.get(0).getKind());
+        assertEquals("Observation", entries.get(0).getTarget());
+        assertEquals(UploadCoalescer.encode(first).length, entries.get(0).getPayloadBytes());
+        // the identical upload and the new version of the same resource keep their relation
+        assertEquals(entries.get(0).getKey(), entries.get(2).getKey());
+        assertEquals(entries.get(0).getContent(), entries.get(1).getContent());
+        assertTrue(!entries.get(0).getContent().equals(entries.get(2).getContent()));
+        assertEquals(TrafficRecorder.KIND_READ, entries.get(3).getKind());
+        assertEquals("Questionnaire?_count=1", entries.get(3).getTarget());
+        assertNull(entries.get(3).getKey());
+
+        Observation replayed = (Observation) TrafficReplay.resourceFor(entries.get(0));
+        assertNotNull(replayed.getIdElement().getIdPart());
+        assertEquals(UploadCoalescer.hashOf(TrafficReplay.resourceFor(entries.get(1))), UploadCoalescer.hashOf(replayed));
+        long length = UploadCoalescer.encode(replayed).length;
+        assertTrue(Math.abs(length - entries.get(0).getPayloadBytes()) < 16);
+    }
+
+    @Test
+    public void replay_acceleratedRunsTheSameJobs() throws Exception {
+        server.setLatency(2, 4);
+        StringWriter trace = new StringWriter();
+        TrafficRecorder recorder = new TrafficRecorder(trace);
+        LoadHarness.Report recorded = new LoadHarness(server, new LoadHarness.Config()
+                .createsPerSecond(50).readsPerSecond(10).duration(1000).trafficRecorder(recorder)).run();
+        recorder.close();
+        int created = server.getResourceCount("Observation");
+
+        List<TrafficRecorder.Entry> entries = TrafficRecorder.readTrace(new StringReader(trace.toString()));
+        TrafficReplay replay = new TrafficReplay(entries, 4);
+        LoadHarness.Report replayed = new LoadHarness(server, new LoadHarness.Config().workload(replay)).run();
+        replayed.print(System.out);
+
+        assertTrue(replayed.isDrained());
+        assertEquals(0, replay.getSkippedCount());
+        assertEquals(recorded.getStats("create").getSubmitted(), replayed.getStats("create").getSubmitted());
+        assertEquals(recorded.getStats("read").getSubmitted(), replayed.getStats("read").getSubmitted());
+        assertEquals(2 * created, server.getResourceCount("Observation"));
+    }
+}
@@ -0,0 +1,88 @@
+package ch.usz.c3pro.dataqueue;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the decisions of the {@link UploadCoalescer} for uploads that wait, run and finish in
+ * different orders.
+ */
+public class UploadCoalescerTest {
+
+    @Test
+    public void offer_replacesWaitingVersionOfTheSameResource() {
+        UploadCoalescer coalescer = new UploadCoalescer();
+
+        assertEquals(UploadCoalescer.Decision.ENQUEUE, coalescer.offer("job1", "Observation/o1"));
+        assertEquals(UploadCoalescer.Decision.ENQUEUE, coalescer.offer("job2", "Observation/o2"));
+        assertEquals(UploadCoalescer.Decision.ENQUEUE, coalescer.offer("job3", null));
+        assertEquals(UploadCoalescer.Decision.REPLACE, coalescer.offer("job4", "Observation/o1"));
+
+        // the replaced job is superseded, even if it runs before it is cancelled
+        assertFalse(coalescer.shouldUpload("job1", "Observation/o1", "a"));
+        assertTrue(coalescer.shouldUpload("job4", "Observation/o1", "b"));
+    }
+
+    @Test
+    public void finished_endsTheWaitOfTheResource() {
+        UploadCoalescer coalescer = new UploadCoalescer();
+        coalescer.offer("job1", "Observation/o1");
+        assertTrue(coalescer.shouldUpload("job1", "Observation/o1", "a"));
+        coalescer.uploaded("a");
+        coalescer.finished("job1", "Observation/o1");
+
+        assertEquals(0, coalescer.size());
+        assertEquals(UploadCoalescer.Decision.ENQUEUE, coalescer.offer("job2", "Observation/o1"));
+        // uploaded before the new job was enqueued, so the same content is uploaded again
+        assertTrue(coalescer.shouldUpload("job2", "Observation/o1", "a"));
+    }
+
+    @Test
+    public void shouldUpload_dropsPayloadUploadedWhileWaiting() {
+        UploadCoalescer coalescer = new UploadCoalescer();
+        coalescer.offer("job1", null);
+        coalescer.offer("job2", null);
+        coalescer.offer("job3", null);
+
+        // nothing uploaded yet, the first job does not have to hash its payload before
+        assertFalse(coalescer.uploadedSince("job1"));
+        assertTrue(coalescer.shouldUpload("job1", null, null));
+        coalescer.uploaded("a");
+        coalescer.finished("job1", null);
+
+        assertTrue(coalescer.uploadedSince("job2"));
+        assertFalse(coalescer.shouldUpload("job2", null, "a"));
+        coalescer.finished("job2", null);
+        assertTrue(coalescer.shouldUpload("job3", null, "b"));
+    }
+
+    @Test
+    public void supersede_isDecidedByJobNotByContent() {
+        UploadCoalescer coalescer = new UploadCoalescer();
+        // version A, then B, then A again: only the last job uploads, although it has the content
+        // of the first one
+        coalescer.offer("job1", "Observation/o1");
+        coalescer.offer("job2", "Observation/o1");
+        coalescer.offer("job3", "Observation/o1");
+        coalescer.finished("job1", "Observation/o1");
+        coalescer.finished("job2", "Observation/o1");
+
+        assertEquals(1, coalescer.size());
+        assertTrue(coalescer.shouldUpload("job3", "Observation/o1", "a"));
+        coalescer.uploaded("a");
+        coalescer.finished("job3", "Observation/o1");
+        assertEquals(0, coalescer.size());
+    }
+
+    @Test
+    public void shouldUpload_allowsJobsItDoesNotKnow() {
+        UploadCoalescer coalescer = new UploadCoalescer();
+        coalescer.offer("job1", "Observation/o1");
+
+        // e.g. restored by the JobManager after a restart
+        assertTrue(coalescer.shouldUpload("restored", "Observation/o1", "a"));
+    }
+}
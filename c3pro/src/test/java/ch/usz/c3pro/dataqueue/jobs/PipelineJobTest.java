@@ -0,0 +1,171 @@
+package ch.usz.c3pro.dataqueue.jobs;
+
+import com.birbit.android.jobqueue.Job;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.researchstack.backbone.task.Task;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import ch.usz.c3pro.dataqueue.DataQueue;
+import ch.usz.c3pro.dataqueue.Pipeline;
+import ch.usz.c3pro.dataqueue.ResourceSummary;
+import ch.usz.c3pro.dataqueue.SearchQuery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests that a {@link PipelineJob} that is run again continues with the stage that failed, and
+ * that failures are passed to a {@link DataQueue.PipelineFailureReceiver}, also for the reads of
+ * the DataQueue that run a pipeline for a receiver of their own. The jobs are run by calling
+ * onRun() and onCancel() the way the JobManager does.
+ */
+public class PipelineJobTest {
+    /* the CancelReason of the JobManager when the retry limit is reached */
+    private static final int REACHED_RETRY_LIMIT = 1;
+
+    private static int firstRuns;
+    private static int failingRuns;
+
+    private final List<Object> received = new ArrayList<>();
+    private final List<Job> submitted = new ArrayList<>();
+    private DataQueue dataQueue;
+
+    private static class FirstStage implements DataQueue.Stage<String, String> {
+        @Override
+        public String run(String input) throws Exception {
+            firstRuns++;
+            return input + " first";
+        }
+    }
+
+    private static class FailingOnceStage implements DataQueue.Stage<String, String> {
+        @Override
+        public String run(String input) throws Exception {
+            failingRuns++;
+            if (failingRuns == 1) {
+                throw new IOException("first run fails");
+            }
+            return input + " second";
+        }
+    }
+
+    @Before
+    public void setUp() {
+        firstRuns = 0;
+        failingRuns = 0;
+        JobReceivers.setDeliveryExecutor(new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                runnable.run();
+            }
+        });
+        dataQueue = new DataQueue("http://localhost/fhir", null) {
+            @Override
+            protected void submit(Job job) {
+                submitted.add(job);
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        JobReceivers.setDeliveryExecutor(null);
+    }
+
+    @Test
+    public void failedStage_isRunAgainWithoutTheStagesBefore() throws Throwable {
+        Pipeline<String> pipeline = Pipeline.from("input").then(new FirstStage()).then(new FailingOnceStage());
+        PipelineJob<String> job = new PipelineJob<>(pipeline, new DataQueue.PipelineReceiver<String>() {
+            @Override
+            public void receiveResult(String result) {
+                received.add(result);
+            }
+        });
+
+        try {
+            job.onRun();
+            fail("the second stage fails in the first run");
+        } catch (IOException expected) {
+            assertTrue(received.isEmpty());
+        }
+        job.onRun();
+
+        assertEquals(1, firstRuns);
+        assertEquals(2, failingRuns);
+        assertEquals(1, received.size());
+        assertEquals("input first second", received.get(0));
+    }
+
+    @Test
+    public void givenUpPipeline_tellsTheFailureReceiver() {
+        PipelineJob<String> job = new PipelineJob<>(Pipeline.from("input").then(new FailingOnceStage()), new DataQueue.PipelineFailureReceiver<String>() {
+            @Override
+            public void receiveResult(String result) {
+                fail("no result after the job has been given up");
+            }
+
+            @Override
+            public void resultFailed(Throwable throwable) {
+                received.add(throwable);
+            }
+        });
+        IOException failure = new IOException("given up");
+
+        job.onCancel(REACHED_RETRY_LIMIT, failure);
+
+        assertEquals(1, received.size());
+        assertSame(failure, received.get(0));
+    }
+
+    @Test
+    public void readTask_tellsTheTaskFailureReceiver() {
+        dataQueue.readTask("Questionnaire?url=http://c3pro.usz.ch/fhir/Questionnaire/missing", new DataQueue.TaskFailureReceiver() {
+            @Override
+            public void receiveTask(Task task) {
+                fail("no Task after the job has been given up");
+            }
+
+            @Override
+            public void taskFailed(Throwable throwable) {
+                received.add(throwable);
+            }
+        });
+        IOException failure = new IOException("given up");
+
+        ((PipelineJob<?>) submitted.get(0)).onCancel(REACHED_RETRY_LIMIT, failure);
+
+        assertEquals(1, received.size());
+        assertSame(failure, received.get(0));
+    }
+
+    @Test
+    public void readSummaries_tellsTheSummaryFailureReceiverAndKeepsTheQuery() {
+        SearchQuery query = new SearchQuery("Questionnaire").where("status", "published");
+        String url = query.toURL();
+        dataQueue.readSummaries("summaries", query, new DataQueue.SummaryFailureReceiver() {
+            @Override
+            public void receiveSummaries(String requestID, List<ResourceSummary> summaries) {
+                fail("no summaries after the job has been given up");
+            }
+
+            @Override
+            public void summariesFailed(String requestID, Throwable throwable) {
+                received.add(requestID);
+            }
+        });
+
+        assertEquals(url, query.toURL());
+        ((PipelineJob<?>) submitted.get(0)).onCancel(REACHED_RETRY_LIMIT, new IOException("given up"));
+        assertEquals(1, received.size());
+        assertEquals("summaries", received.get(0));
+    }
+}
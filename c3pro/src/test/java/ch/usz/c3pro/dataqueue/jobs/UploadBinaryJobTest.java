@@ -0,0 +1,205 @@
+package ch.usz.c3pro.dataqueue.jobs;
+
+import org.hl7.fhir.dstu3.model.Binary;
+import org.hl7.fhir.dstu3.model.IdType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+import ch.usz.c3pro.dataqueue.DataQueue;
+import ch.usz.c3pro.dataqueue.FhirStandInServer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the resumable uploads of the {@link UploadBinaryJob} against the {@link FhirStandInServer}:
+ * chunks the server only keeps in part, sessions that expire and uploads that continue from the
+ * stored session after a restart. Like the JobManager, the tests run deserialized copies of the
+ * jobs, so the receivers have to be found without the fields of the job that was created.
+ */
+public class UploadBinaryJobTest {
+    private static final int LENGTH = UploadBinaryJob.CHUNK_SIZE * 2 + 1000;
+
+    private FhirStandInServer server;
+    private File directory;
+    private File content;
+    private byte[] bytes;
+    private final List<Object> received = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FhirStandInServer();
+        server.start();
+        directory = File.createTempFile("uploads", "");
+        directory.delete();
+        directory.mkdirs();
+        bytes = new byte[LENGTH];
+        new Random(1).nextBytes(bytes);
+        content = new File(directory, "content.bin");
+        FileOutputStream out = new FileOutputStream(content);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        JobReceivers.setDeliveryExecutor(new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                runnable.run();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        JobReceivers.setDeliveryExecutor(null);
+        server.stop();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void parseRange_returnsTheOffsetAfterTheRange() {
+        assertEquals(0, UploadBinaryJob.parseRange(null));
+        assertEquals(1, UploadBinaryJob.parseRange("bytes=0-0"));
+        assertEquals(UploadBinaryJob.CHUNK_SIZE, UploadBinaryJob.parseRange("bytes=0-" + (UploadBinaryJob.CHUNK_SIZE - 1)));
+        assertEquals(5000000000L, UploadBinaryJob.parseRange("bytes=0- 4999999999"));
+    }
+
+    @Test
+    public void resumableUpload_sendsEveryByteOnce() throws Throwable {
+        newJob().onRun();
+
+        assertUploaded();
+        assertEquals(LENGTH, server.getChunkBytes());
+    }
+
+    @Test
+    public void partialAcknowledgement_continuesAtTheAcknowledgedOffset() throws Throwable {
+        server.setChunkLimit(100000);
+        newJob().onRun();
+
+        assertUploaded();
+        // every chunk after the first starts where the server stopped keeping content
+        assertTrue(server.getChunkBytes() > LENGTH);
+    }
+
+    @Test
+    public void expiredSession_startsOver() throws Throwable {
+        UploadBinaryJob job = newJob();
+        server.interruptUploadAfter(1);
+        runAndExpectFailure(job);
+        server.expireUploadSessions();
+        runAndExpectFailure(job);
+
+        job.onRun();
+        assertUploaded();
+        assertEquals(UploadBinaryJob.CHUNK_SIZE + LENGTH, server.getChunkBytes());
+    }
+
+    @Test
+    public void restart_resumesFromTheSessionFile() throws Throwable {
+        UploadBinaryJob job = newJob();
+        // the JobManager stores the job when it is added, before it runs
+        byte[] stored = serialize(job);
+        server.interruptUploadAfter(1);
+        runAndExpectFailure(job);
+
+        UploadBinaryJob restored = deserialize(stored);
+        restored.onRun();
+        assertUploaded();
+        assertEquals(LENGTH, server.getChunkBytes());
+    }
+
+    @Test
+    public void storedJob_passesTheLocationToTheReceiver() throws Throwable {
+        newJob().onRun();
+
+        assertUploaded();
+        assertEquals(1, received.size());
+        assertEquals(server.getResources("Binary").get(0).getIdElement().getIdPart(), new IdType((String) received.get(0)).getIdPart());
+        assertEquals(0, JobReceivers.size());
+    }
+
+    @Test
+    public void storedJob_tellsTheFailureReceiverWhenGivenUp() throws Throwable {
+        UploadBinaryJob job = newJob();
+        IOException failure = new IOException("server down");
+        job.onCancel(1, failure);
+
+        assertEquals(1, received.size());
+        assertSame(failure, received.get(0));
+        assertEquals(0, JobReceivers.size());
+    }
+
+    /**
+     * Returns a deserialized copy of a new job, like the one the JobManager runs.
+     */
+    private UploadBinaryJob newJob() throws Exception {
+        UploadBinaryJob job = new UploadBinaryJob(content, "application/octet-stream", true, server.getBaseURL(), directory, new DataQueue.LocationFailureReceiver() {
+            @Override
+            public void locationFailed(Throwable throwable) {
+                received.add(throwable);
+            }
+
+            @Override
+            public void receiveLocation(String location) {
+                received.add(location);
+            }
+        });
+        return deserialize(serialize(job));
+    }
+
+    private void assertUploaded() {
+        assertEquals(1, server.getResourceCount("Binary"));
+        Binary binary = (Binary) server.getResources("Binary").get(0);
+        assertEquals("application/octet-stream", binary.getContentType());
+        assertArrayEquals(bytes, binary.getContent());
+        // only the content is left, the session file has been deleted
+        assertEquals(1, directory.listFiles().length);
+    }
+
+    private static void runAndExpectFailure(UploadBinaryJob job) throws Throwable {
+        try {
+            job.onRun();
+            fail("upload should have failed");
+        } catch (IOException e) {
+            // the JobManager runs the job again
+        }
+    }
+
+    private static byte[] serialize(UploadBinaryJob job) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(job);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static UploadBinaryJob deserialize(byte[] stored) throws Exception {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(stored));
+        try {
+            return (UploadBinaryJob) in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+}
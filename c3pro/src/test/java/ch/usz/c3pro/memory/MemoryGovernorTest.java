@@ -0,0 +1,245 @@
+package ch.usz.c3pro.memory;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.hl7.fhir.dstu3.model.ValueSet;
+import org.junit.After;
+import org.junit.Test;
+import org.researchstack.backbone.model.Choice;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import ca.uhn.fhir.rest.client.ServerValidationModeEnum;
+import ch.usz.c3pro.C3PRO;
+import ch.usz.c3pro.dataqueue.DataQueue;
+import ch.usz.c3pro.dataqueue.FhirStandInServer;
+import ch.usz.c3pro.dataqueue.SpillableBundle;
+import ch.usz.c3pro.questionnaire.QuestionnaireGenerator;
+import ch.usz.c3pro.questionnaire.TaskCache;
+import ch.usz.c3pro.questionnaire.logic.Questionnaire2Task;
+import ch.usz.c3pro.questionnaire.logic.ValueSetResolver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the {@link MemoryGovernor} keeps its consumers within the budget, trims them in the
+ * order of their priority and reacts to simulated trim signals.
+ */
+public class MemoryGovernorTest {
+    private static final long KB = 1024;
+    private static final String VALUESET_URL = "http://c3pro.usz.ch/fhir/ValueSet/trimmed";
+
+    /**
+     * A consumer made of entries of 1 KB that are released oldest first.
+     */
+    private static class Blocks implements MemoryGovernor.Consumer {
+        private int count;
+
+        private Blocks(int count) {
+            this.count = count;
+        }
+
+        @Override
+        public synchronized long getRetainedSize() {
+            return count * KB;
+        }
+
+        @Override
+        public synchronized void trim(long bytes) {
+            while (bytes > 0 && count > 0) {
+                count--;
+                bytes -= KB;
+            }
+        }
+    }
+
+    @After
+    public void removeGovernor() {
+        C3PRO.setMemoryGovernor(null);
+    }
+
+    @Test
+    public void overBudget_trimsLowPrioritiesFirst() {
+        MemoryGovernor governor = new MemoryGovernor(100 * KB);
+        Blocks downloaded = new Blocks(60);
+        Blocks converted = new Blocks(30);
+        Blocks rebuildable = new Blocks(20);
+        governor.register(downloaded, MemoryGovernor.PRIORITY_DOWNLOADED);
+        governor.register(converted, MemoryGovernor.PRIORITY_CONVERTED);
+        governor.register(rebuildable, MemoryGovernor.PRIORITY_REBUILDABLE);
+
+        assertEquals(100 * KB, governor.getRetainedSize());
+        assertEquals(10 * KB, rebuildable.getRetainedSize());
+        assertEquals(30 * KB, converted.getRetainedSize());
+        assertEquals(60 * KB, downloaded.getRetainedSize());
+
+        governor.setBudget(50 * KB);
+        assertEquals(0, rebuildable.getRetainedSize());
+        assertEquals(0, converted.getRetainedSize());
+        assertEquals(50 * KB, downloaded.getRetainedSize());
+    }
+
+    @Test
+    public void trimSignals_shrinkTheConsumers() {
+        MemoryGovernor governor = new MemoryGovernor(100 * KB);
+        Blocks blocks = new Blocks(100);
+        governor.register(blocks, MemoryGovernor.PRIORITY_CONVERTED);
+        MemoryTrimListener signals = governor;
+
+        signals.onTrimMemory(MemoryTrimListener.TRIM_MEMORY_RUNNING_MODERATE);
+        assertEquals(75 * KB, blocks.getRetainedSize());
+        signals.onTrimMemory(MemoryTrimListener.TRIM_MEMORY_UI_HIDDEN);
+        assertEquals(50 * KB, blocks.getRetainedSize());
+        signals.onTrimMemory(MemoryTrimListener.TRIM_MEMORY_RUNNING_CRITICAL);
+        assertEquals(25 * KB, blocks.getRetainedSize());
+        signals.onTrimMemory(MemoryTrimListener.TRIM_MEMORY_COMPLETE);
+        assertEquals(0, blocks.getRetainedSize());
+        // the budget itself is not changed
+        assertEquals(100 * KB, governor.getBudget());
+
+        Blocks other = new Blocks(10);
+        governor.register(other, MemoryGovernor.PRIORITY_DOWNLOADED);
+        signals.onLowMemory();
+        assertEquals(0, other.getRetainedSize());
+    }
+
+    @Test
+    public void reservations_makeRoomInTheCaches() {
+        MemoryGovernor governor = new MemoryGovernor(100 * KB);
+        Blocks blocks = new Blocks(80);
+        governor.register(blocks, MemoryGovernor.PRIORITY_CONVERTED);
+
+        governor.reserve(50 * KB);
+        assertEquals(50 * KB, blocks.getRetainedSize());
+        assertEquals(50 * KB, governor.getHeadroom());
+        governor.release(50 * KB);
+        assertEquals(0, governor.getReserved());
+        assertEquals(100 * KB, governor.getHeadroom());
+    }
+
+    @Test
+    public void taskCache_evictsLeastRecentlyUsedTasks() {
+        List<Questionnaire> questionnaires = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Questionnaire questionnaire = new QuestionnaireGenerator(i).generate("q" + i, 50);
+            questionnaire.setUrl(null);
+            questionnaires.add(questionnaire);
+        }
+        TaskCache cache = new TaskCache();
+        long total = 0;
+        for (Questionnaire questionnaire : questionnaires) {
+            cache.put(questionnaire, Questionnaire2Task.questionnaire2Task(questionnaire));
+            total += MemorySizes.questionnaire(questionnaire);
+        }
+        assertTrue(cache.getRetainedSize() > total);
+
+        // q0 becomes the most recently used entry
+        cache.get("q0");
+        MemoryGovernor governor = new MemoryGovernor(cache.getRetainedSize() / 2);
+        cache.setMemoryGovernor(governor);
+
+        assertTrue(cache.getRetainedSize() <= governor.getBudget());
+        assertTrue(cache.contains("q0"));
+        assertFalse(cache.contains("q1"));
+        assertFalse(cache.contains("q2"));
+
+        cache.remove("q0");
+        cache.clear();
+        assertEquals(0, cache.getRetainedSize());
+    }
+
+    @Test
+    public void spillableBundle_isKeptWithinTheHeadroom() throws Exception {
+        C3PRO.initFhirContext();
+        Bundle bundle = new Bundle();
+        for (int i = 0; i < 200; i++) {
+            Observation observation = new Observation();
+            observation.setId("obs" + i);
+            observation.getCode().setText("weight");
+            bundle.addEntry().setResource(observation);
+        }
+        byte[] json = C3PRO.getFhirContext().newJsonParser().encodeResourceToString(bundle).getBytes();
+        MemoryGovernor governor = new MemoryGovernor(MemorySizes.parsedJson(json.length) * 2);
+        C3PRO.setMemoryGovernor(governor);
+
+        SpillableBundle inMemory = SpillableBundle.read(new ByteArrayInputStream(json), json.length, null);
+        assertFalse(inMemory.isSpilled());
+        assertEquals(MemorySizes.parsedJson(json.length), governor.getReserved());
+
+        // the first Bundle leaves too little room for a second one
+        governor.reserve(KB);
+        SpillableBundle spilled = SpillableBundle.read(new ByteArrayInputStream(json), json.length, new File(System.getProperty("java.io.tmpdir")));
+        assertTrue(spilled.isSpilled());
+
+        inMemory.close();
+        spilled.close();
+        governor.release(KB);
+        assertEquals(0, governor.getReserved());
+    }
+
+    @Test
+    public void setMemoryGovernor_movesTheCachesToTheNewGovernor() {
+        C3PRO.initTaskCache();
+        Questionnaire questionnaire = new QuestionnaireGenerator(7).generate("moved", 20);
+        C3PRO.getTaskCache().put(questionnaire, Questionnaire2Task.questionnaire2Task(questionnaire));
+        MemoryGovernor first = new MemoryGovernor(Long.MAX_VALUE);
+        C3PRO.setMemoryGovernor(first);
+        assertTrue(first.getRetainedSize() > 0);
+
+        MemoryGovernor second = new MemoryGovernor(Long.MAX_VALUE);
+        C3PRO.setMemoryGovernor(second);
+        assertEquals(0, first.getRetainedSize());
+        assertTrue(second.getRetainedSize() > 0);
+
+        // the new governor trims the caches
+        second.onLowMemory();
+        assertEquals(0, C3PRO.getTaskCache().getRetainedSize());
+    }
+
+    @Test
+    public void trimmedValueSets_areExpandedAgain() throws Exception {
+        C3PRO.initFhirContext();
+        C3PRO.getFhirContext().getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+        FhirStandInServer server = new FhirStandInServer();
+        ValueSet valueSet = new ValueSet();
+        valueSet.setUrl(VALUESET_URL);
+        for (String code : new String[]{"a", "b", "c"}) {
+            valueSet.getExpansion().addContains().setCode(code).setDisplay(code.toUpperCase());
+        }
+        server.addResource(valueSet);
+        server.start();
+        DataQueue previousQueue = C3PRO.getDataQueue();
+        C3PRO.setDataQueue(new DataQueue(server.getBaseURL(), null));
+        try {
+            MemoryGovernor governor = new MemoryGovernor(Long.MAX_VALUE);
+            C3PRO.setMemoryGovernor(governor);
+            Questionnaire questionnaire = new Questionnaire();
+            questionnaire.addItem().setLinkId("remote").setType(Questionnaire.QuestionnaireItemType.CHOICE).setOptions(new Reference(VALUESET_URL));
+            ValueSetResolver.resolveValueSets(questionnaire);
+            assertEquals(1, server.getExpansionCount());
+
+            governor.onLowMemory();
+            // the conversion does not expand, only the next resolveValueSets
+            assertNull(ValueSetResolver.getChoices(new Reference(VALUESET_URL)));
+            assertEquals(1, server.getExpansionCount());
+            ValueSetResolver.resolveValueSets(questionnaire);
+            Choice[] choices = ValueSetResolver.getChoices(new Reference(VALUESET_URL));
+            assertNotNull(choices);
+            assertEquals(3, choices.length);
+            assertEquals(2, server.getExpansionCount());
+        } finally {
+            C3PRO.setDataQueue(previousQueue);
+            ValueSetResolver.clearCache();
+            server.stop();
+        }
+    }
+}
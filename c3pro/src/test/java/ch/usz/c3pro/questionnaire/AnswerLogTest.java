@@ -0,0 +1,192 @@
+package ch.usz.c3pro.questionnaire;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.researchstack.backbone.result.StepResult;
+import org.researchstack.backbone.result.TaskResult;
+import org.researchstack.backbone.step.Step;
+import org.researchstack.backbone.task.OrderedTask;
+import org.researchstack.backbone.ui.callbacks.StepCallbacks;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests reading an {@link AnswerLog} after a crash in the middle of a write, preloading and
+ * compaction.
+ */
+public class AnswerLogTest {
+    private static final String TASK = "task";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Step first = new Step("first");
+    private final Step second = new Step("second");
+    private final Step third = new Step("third");
+    private final OrderedTask task = new OrderedTask(TASK, first, second, third);
+
+    @Test
+    public void tornTail_isDroppedAndLaterAnswersAreKept() throws IOException {
+        File directory = folder.getRoot();
+        AnswerLog log = new AnswerLog(directory, TASK);
+        log.append(StepCallbacks.ACTION_NEXT, first, answer(first, "one"));
+        log.append(StepCallbacks.ACTION_NEXT, second, answer(second, "two"));
+        log.close();
+        File file = logFile(directory);
+        long goodLength = file.length();
+
+        // a record of 100 bytes of which only 3 made it to the file
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(new byte[]{0, 0, 0, 100, 1, 2, 3});
+        out.close();
+
+        log = new AnswerLog(directory, TASK);
+        assertEquals(goodLength, file.length());
+        log.append(StepCallbacks.ACTION_NEXT, third, answer(third, "three"));
+        log.close();
+
+        TaskResult result = new AnswerLog(directory, TASK).restoreResult(task);
+        assertEquals("one", result.getStepResult("first").getResult());
+        assertEquals("two", result.getStepResult("second").getResult());
+        assertEquals("three", result.getStepResult("third").getResult());
+    }
+
+    @Test
+    public void checksumMismatch_dropsRecordAndLaterAnswersAreKept() throws IOException {
+        File directory = folder.getRoot();
+        AnswerLog log = new AnswerLog(directory, TASK);
+        log.append(StepCallbacks.ACTION_NEXT, first, answer(first, "one"));
+        log.close();
+        File file = logFile(directory);
+        long goodLength = file.length();
+        log = new AnswerLog(directory, TASK);
+        log.append(StepCallbacks.ACTION_NEXT, second, answer(second, "two"));
+        log.close();
+
+        // flip a byte of the answer in the second record, in front of its checksum
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(file.length() - 9);
+        int value = raf.read();
+        raf.seek(file.length() - 9);
+        raf.write(value ^ 0xff);
+        raf.close();
+
+        log = new AnswerLog(directory, TASK);
+        assertEquals(goodLength, file.length());
+        TaskResult result = log.restoreResult(task);
+        assertEquals("one", result.getStepResult("first").getResult());
+        assertNull(result.getStepResult("second"));
+
+        log.append(StepCallbacks.ACTION_NEXT, third, answer(third, "three"));
+        log.close();
+        result = new AnswerLog(directory, TASK).restoreResult(task);
+        assertEquals("three", result.getStepResult("third").getResult());
+    }
+
+    @Test
+    public void undecodableTail_isDroppedAndLaterAnswersAreKept() throws IOException {
+        File directory = folder.getRoot();
+        AnswerLog log = new AnswerLog(directory, TASK);
+        log.append(StepCallbacks.ACTION_NEXT, first, answer(first, "one"));
+        log.close();
+        File file = logFile(directory);
+        long goodLength = file.length();
+
+        // a complete record with a matching checksum, whose answer cannot be decoded
+        byte[] bytes = new byte[]{0, 100, 1, 2, 3};
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file, true));
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.writeLong(crc.getValue());
+        out.close();
+
+        log = new AnswerLog(directory, TASK);
+        assertEquals(goodLength, file.length());
+        log.append(StepCallbacks.ACTION_NEXT, second, answer(second, "two"));
+        log.close();
+
+        TaskResult result = new AnswerLog(directory, TASK).restoreResult(task);
+        assertEquals("one", result.getStepResult("first").getResult());
+        assertEquals("two", result.getStepResult("second").getResult());
+    }
+
+    @Test
+    public void preloadedLog_isReturnedByOpen() {
+        File directory = folder.getRoot();
+        AnswerLog log = new AnswerLog(directory, TASK);
+        log.append(StepCallbacks.ACTION_NEXT, first, answer(first, "one"));
+        log.close();
+
+        AnswerLog.preload(directory, TASK);
+        log = AnswerLog.open(directory, TASK);
+
+        assertTrue(log.hasAnswers());
+        assertEquals("one", log.restoreResult(task).getStepResult("first").getResult());
+    }
+
+    @Test
+    public void compaction_keepsLatestAnswersAndStepToResumeAt() {
+        File directory = folder.getRoot();
+        AnswerLog log = new AnswerLog(directory, TASK);
+        File file = logFile(directory);
+        log.append(StepCallbacks.ACTION_NEXT, first, answer(first, "one00"));
+        log.close();
+        long recordLength = file.length();
+        for (int i = 1; i < 100; i++) {
+            log.append(StepCallbacks.ACTION_NEXT, first, answer(first, "one" + (i < 10 ? "0" : "") + i));
+            log.append(StepCallbacks.ACTION_PREV, second, answer(second, "two" + (i < 10 ? "0" : "") + i));
+        }
+        log.close();
+        // compacted on the way, instead of growing to 199 records
+        assertTrue(file.length() < 100 * recordLength);
+        log.compact();
+        log.close();
+        assertTrue(file.length() < 3 * recordLength);
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        log = new AnswerLog(directory, TASK);
+        TaskResult result = log.restoreResult(task);
+        assertEquals("one99", result.getStepResult("first").getResult());
+        assertEquals("two99", result.getStepResult("second").getResult());
+        // the last answer was given going back from the second step
+        assertEquals(first, log.restoreStep(task, result));
+    }
+
+    @Test
+    public void arrays_areRestoredWithTheirElementType() {
+        File directory = folder.getRoot();
+        AnswerLog log = new AnswerLog(directory, TASK);
+        StepResult<Object> result = new StepResult<>(first);
+        result.setResult(new String[]{"a", "b"});
+        log.append(StepCallbacks.ACTION_NEXT, first, result);
+        log.close();
+
+        Object restored = new AnswerLog(directory, TASK).restoreResult(task).getStepResult("first").getResult();
+        assertEquals(String[].class, restored.getClass());
+        assertArrayEquals(new String[]{"a", "b"}, (String[]) restored);
+    }
+
+    private static StepResult<Object> answer(Step step, String value) {
+        StepResult<Object> result = new StepResult<>(step);
+        result.setResult(value);
+        return result;
+    }
+
+    private static File logFile(File directory) {
+        return new File(directory, TASK + ".answers");
+    }
+}
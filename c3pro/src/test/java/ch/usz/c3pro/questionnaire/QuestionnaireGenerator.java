@@ -0,0 +1,268 @@
+package ch.usz.c3pro.questionnaire;
+
+import org.hl7.fhir.dstu3.model.BooleanType;
+import org.hl7.fhir.dstu3.model.Enumerations;
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.dstu3.model.StringType;
+import org.hl7.fhir.dstu3.model.Type;
+import org.hl7.fhir.dstu3.model.ValueSet;
+import org.researchstack.backbone.answerformat.AnswerFormat;
+import org.researchstack.backbone.answerformat.BooleanAnswerFormat;
+import org.researchstack.backbone.answerformat.ChoiceAnswerFormat;
+import org.researchstack.backbone.answerformat.DateAnswerFormat;
+import org.researchstack.backbone.answerformat.IntegerAnswerFormat;
+import org.researchstack.backbone.model.Choice;
+import org.researchstack.backbone.result.StepResult;
+import org.researchstack.backbone.result.TaskResult;
+import org.researchstack.backbone.step.QuestionStep;
+import org.researchstack.backbone.step.Step;
+import org.researchstack.backbone.task.Task;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates synthetic FHIR DSTU3 Questionnaires of any size, and TaskResults that answer them, to
+ * stress the questionnaire logic. The same seed always generates the same questionnaires and
+ * answers. The generated questionnaires have nested groups, questions of all types the converter
+ * supports, enableWhen conditions that refer to earlier boolean and choice questions, long inline
+ * option lists and large contained ValueSets.
+ * Conditions are only put on questions, not on groups, and refer to questions that appear earlier.
+ * Settings return the generator, so they can be chained:
+ *
+ * <pre>
+ * new QuestionnaireGenerator(42).maxDepth(6).enableWhenRate(0.5).generate("q", 5000)
+ * </pre>
+ */
+public class QuestionnaireGenerator {
+    private static final String SYSTEM = "http://c3pro.usz.ch/generated";
+
+    private final long seed;
+    private int maxDepth = 4;
+    private int groupSize = 8;
+    private double enableWhenRate = 0.3;
+    private int maxConditions = 3;
+    private int maxOptions = 50;
+    private int valueSetSize = 300;
+    private int itemsPerValueSet = 50;
+
+    /**
+     * A question that can be referred to by the conditions of later questions, and the answer that
+     * enables them.
+     */
+    private static class Dependency {
+        private final String linkId;
+        private final Type answer;
+
+        private Dependency(String linkId, Type answer) {
+            this.linkId = linkId;
+            this.answer = answer;
+        }
+    }
+
+    public QuestionnaireGenerator(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Maximum nesting of groups, 0 for a flat questionnaire.
+     */
+    public QuestionnaireGenerator maxDepth(int depth) {
+        maxDepth = depth;
+        return this;
+    }
+
+    /**
+     * Average number of items in a group.
+     */
+    public QuestionnaireGenerator groupSize(int size) {
+        groupSize = size;
+        return this;
+    }
+
+    /**
+     * Fraction of the questions that have enableWhen conditions.
+     */
+    public QuestionnaireGenerator enableWhenRate(double rate) {
+        enableWhenRate = rate;
+        return this;
+    }
+
+    /**
+     * Maximum number of conditions of a question.
+     */
+    public QuestionnaireGenerator maxConditions(int conditions) {
+        maxConditions = conditions;
+        return this;
+    }
+
+    /**
+     * Maximum number of inline options of a choice question.
+     */
+    public QuestionnaireGenerator maxOptions(int options) {
+        maxOptions = options;
+        return this;
+    }
+
+    /**
+     * Number of concepts of each contained ValueSet, and number of questions that share one. Use 0
+     * items per ValueSet for questionnaires without contained ValueSets.
+     */
+    public QuestionnaireGenerator valueSets(int size, int itemsPerValueSet) {
+        valueSetSize = size;
+        this.itemsPerValueSet = itemsPerValueSet;
+        return this;
+    }
+
+    /**
+     * Generates a questionnaire with the id and the given number of questions, not counting groups.
+     */
+    public Questionnaire generate(String id, int questions) {
+        Random random = new Random(seed);
+        Questionnaire questionnaire = new Questionnaire();
+        questionnaire.setId(id);
+        questionnaire.setUrl(SYSTEM + "/Questionnaire/" + id);
+        questionnaire.setStatus(Questionnaire.QuestionnaireStatus.PUBLISHED);
+
+        List<Dependency> dependencies = new ArrayList<>();
+        int[] remaining = {questions};
+        int group = 0;
+        while (remaining[0] > 0) {
+            Questionnaire.QuestionnaireItemComponent item = questionnaire.addItem();
+            addGroup(questionnaire, item, id + ".g" + group++, 1, random, dependencies, remaining);
+        }
+        return questionnaire;
+    }
+
+    private void addGroup(Questionnaire questionnaire, Questionnaire.QuestionnaireItemComponent group, String linkId,
+                          int depth, Random random, List<Dependency> dependencies, int[] remaining) {
+        group.setLinkId(linkId);
+        group.setType(Questionnaire.QuestionnaireItemType.GROUP);
+        group.setText("Group " + linkId);
+        int size = 1 + random.nextInt(2 * groupSize);
+        for (int i = 0; i < size && remaining[0] > 0; i++) {
+            Questionnaire.QuestionnaireItemComponent item = group.addItem();
+            String childId = linkId + "." + i;
+            if (depth < maxDepth && random.nextInt(4) == 0) {
+                addGroup(questionnaire, item, childId, depth + 1, random, dependencies, remaining);
+            } else {
+                addQuestion(questionnaire, item, childId, random, dependencies);
+                remaining[0]--;
+            }
+        }
+    }
+
+    private void addQuestion(Questionnaire questionnaire, Questionnaire.QuestionnaireItemComponent item, String linkId,
+                             Random random, List<Dependency> dependencies) {
+        item.setLinkId(linkId);
+        item.setText("Question " + linkId);
+        item.setRequired(random.nextInt(3) == 0);
+
+        if (!dependencies.isEmpty() && random.nextDouble() < enableWhenRate) {
+            int conditions = 1 + random.nextInt(maxConditions);
+            for (int c = 0; c < conditions; c++) {
+                // mostly recent questions, like real instruments
+                int range = Math.min(dependencies.size(), 50);
+                Dependency dependency = dependencies.get(dependencies.size() - 1 - random.nextInt(range));
+                item.addEnableWhen().setQuestion(dependency.linkId).setAnswer(dependency.answer.copy());
+            }
+        }
+
+        switch (random.nextInt(7)) {
+            case 0:
+            case 1:
+                item.setType(Questionnaire.QuestionnaireItemType.BOOLEAN);
+                dependencies.add(new Dependency(linkId, new BooleanType(random.nextInt(4) != 0)));
+                break;
+            case 2:
+                item.setType(Questionnaire.QuestionnaireItemType.INTEGER);
+                break;
+            case 3:
+                item.setType(Questionnaire.QuestionnaireItemType.STRING);
+                break;
+            case 4:
+                item.setType(Questionnaire.QuestionnaireItemType.DATE);
+                break;
+            case 5:
+                item.setType(Questionnaire.QuestionnaireItemType.CHOICE);
+                int options = 2 + random.nextInt(Math.max(1, maxOptions - 1));
+                for (int o = 0; o < options; o++) {
+                    item.addOption().setValue(new StringType("option " + o));
+                }
+                dependencies.add(new Dependency(linkId, new StringType("option " + random.nextInt(Math.min(options, 3)))));
+                break;
+            default:
+                item.setType(Questionnaire.QuestionnaireItemType.CHOICE);
+                if (itemsPerValueSet > 0) {
+                    item.setOptions(new Reference("#" + valueSetFor(questionnaire, random)));
+                } else {
+                    item.addOption().setValue(new StringType("option 0"));
+                }
+        }
+    }
+
+    /**
+     * Returns the id of the contained ValueSet for the next choice question, a new one is added for
+     * every itemsPerValueSet questions on average.
+     */
+    private String valueSetFor(Questionnaire questionnaire, Random random) {
+        List<Resource> contained = questionnaire.getContained();
+        if (contained.isEmpty() || random.nextInt(itemsPerValueSet) == 0) {
+            ValueSet valueSet = new ValueSet();
+            String id = "vs" + contained.size();
+            valueSet.setId(id);
+            valueSet.setStatus(Enumerations.ConformanceResourceStatus.ACTIVE);
+            ValueSet.ConceptSetComponent include = valueSet.getCompose().addInclude();
+            include.setSystem(SYSTEM + "/" + id);
+            for (int c = 0; c < valueSetSize; c++) {
+                include.addConcept().setCode("c" + c).setDisplay("Concept " + c + " of " + id);
+            }
+            contained.add(valueSet);
+            return id;
+        }
+        return contained.get(random.nextInt(contained.size())).getIdElement().getIdPart();
+    }
+
+    /**
+     * Walks through the task like a user would, and answers every step that is shown. Hidden steps
+     * are not answered. The answers are random but depend only on the seed and the task.
+     */
+    public TaskResult answer(Task task) {
+        Random random = new Random(seed ^ 0x5DEECE66DL);
+        TaskResult taskResult = new TaskResult(task.getIdentifier());
+        Step step = task.getStepAfterStep(null, taskResult);
+        while (step != null) {
+            if (step instanceof QuestionStep) {
+                StepResult<Object> stepResult = new StepResult<>(step);
+                stepResult.setResult(answerFor(((QuestionStep) step).getAnswerFormat(), random));
+                taskResult.setStepResultForStepIdentifier(step.getIdentifier(), stepResult);
+            }
+            step = task.getStepAfterStep(step, taskResult);
+        }
+        return taskResult;
+    }
+
+    /**
+     * Returns an answer of the type the questionnaire logic expects for the format. Choices are
+     * answered with their value: the code of ValueSet choices, the FHIR value of inline options.
+     */
+    private static Object answerFor(AnswerFormat format, Random random) {
+        if (format instanceof BooleanAnswerFormat) {
+            return random.nextInt(4) != 0;
+        } else if (format instanceof ChoiceAnswerFormat) {
+            Choice[] choices = ((ChoiceAnswerFormat) format).getChoices();
+            // prefer the first options, so conditions on them are met now and then
+            Choice choice = choices[random.nextInt(Math.min(choices.length, 4))];
+            return choice.getValue();
+        } else if (format instanceof IntegerAnswerFormat) {
+            IntegerAnswerFormat integerFormat = (IntegerAnswerFormat) format;
+            return integerFormat.getMinValue() + random.nextInt(integerFormat.getMaxValue() - integerFormat.getMinValue() + 1);
+        } else if (format instanceof DateAnswerFormat) {
+            return 946684800000L + random.nextInt(10000) * 86400000L;
+        }
+        return "answer " + random.nextInt(1000);
+    }
+}
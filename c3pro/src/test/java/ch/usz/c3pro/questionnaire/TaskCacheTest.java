@@ -0,0 +1,135 @@
+package ch.usz.c3pro.questionnaire;
+
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.junit.Before;
+import org.junit.Test;
+import org.researchstack.backbone.task.Task;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import ch.usz.c3pro.C3PRO;
+import ch.usz.c3pro.dataqueue.DataQueue;
+import ch.usz.c3pro.dataqueue.FhirStandInServer;
+import ch.usz.c3pro.dataqueue.SearchQuery;
+import ch.usz.c3pro.dataqueue.jobs.JobReceivers;
+import ch.usz.c3pro.questionnaire.logic.Questionnaire2Task;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that Tasks in the {@link TaskCache} are found by the canonical URL of their questionnaire,
+ * so searches for it do not have to be sent, and that expired or changed questionnaires are not.
+ */
+public class TaskCacheTest {
+    private static final String URL = "http://c3pro.usz.ch/fhir/Questionnaire/cached";
+
+    private TaskCache cache;
+    private Questionnaire questionnaire;
+    private Task task;
+
+    @Before
+    public void setUp() {
+        cache = new TaskCache();
+        questionnaire = new QuestionnaireGenerator(1).valueSets(0, 0).generate("cached", 20);
+        questionnaire.setUrl(URL);
+        questionnaire.setVersion("2");
+        task = Questionnaire2Task.questionnaire2Task(questionnaire);
+        cache.put(questionnaire, task);
+    }
+
+    @Test
+    public void keyForSearch_returnsTheCanonicalUrlAndVersion() {
+        assertEquals(URL + "|2", TaskCache.keyForSearch(new SearchQuery("Questionnaire").where("url", URL).where("version", "2").toURL()));
+        assertEquals(URL, TaskCache.keyForSearch("http://c3pro.usz.ch/fhir/Questionnaire?status=published&url=" + URL));
+        assertEquals(TaskCache.keyFor(questionnaire), TaskCache.keyForSearch("Questionnaire?url=" + URL + "&version=2"));
+
+        assertNull(TaskCache.keyForSearch("Questionnaire/cached"));
+        assertNull(TaskCache.keyForSearch("Questionnaire?title=cached"));
+        assertNull(TaskCache.keyForSearch("ValueSet?url=" + URL));
+        assertNull(TaskCache.keyForSearch(new SearchQuery("Questionnaire").where("url", URL).elements("title").toURL()));
+    }
+
+    @Test
+    public void getTask_findsTheCanonicalUrlWithAnyVersion() {
+        assertSame(task, cache.getTask(URL + "|2"));
+        assertSame(task, cache.getTask(URL));
+        assertNull(cache.getTask(URL + "|3"));
+        assertNull(cache.getTask(URL + "/other"));
+
+        Questionnaire newer = questionnaire.copy();
+        newer.setVersion("3");
+        Task newerTask = Questionnaire2Task.questionnaire2Task(newer);
+        cache.put(newer, newerTask);
+        assertSame(newerTask, cache.getTask(URL));
+        // the version cached last is returned, even if an older one has been used since
+        cache.getTask(URL + "|2");
+        assertSame(newerTask, cache.getTask(URL));
+    }
+
+    @Test
+    public void expiredEntries_areNotReturned() {
+        cache.setMaxAge(0);
+
+        assertNull(cache.getTask(questionnaire));
+        assertNull(cache.getTask(URL));
+        assertEquals(0, cache.getRetainedSize());
+    }
+
+    @Test
+    public void otherVersionId_doesNotFindTheCachedTask() {
+        questionnaire.getMeta().setVersionId("1");
+        cache.put(questionnaire, task);
+
+        Questionnaire changed = questionnaire.copy();
+        changed.getMeta().setVersionId("2");
+        assertNull(cache.getTask(changed));
+        assertSame(task, cache.getTask(questionnaire));
+        assertSame(task, cache.getTask(new Questionnaire().setUrl(URL).setVersion("2")));
+    }
+
+    @Test
+    public void readTask_ofACachedQuestionnaire_doesNotSearch() throws Exception {
+        FhirStandInServer server = new FhirStandInServer();
+        server.start();
+        DataQueue previousQueue = C3PRO.getDataQueue();
+        final List<Runnable> posted = new ArrayList<>();
+        JobReceivers.setDeliveryExecutor(new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                posted.add(runnable);
+            }
+        });
+        try {
+            C3PRO.initTaskCache();
+            C3PRO.getTaskCache().put(questionnaire, task);
+            DataQueue dataQueue = new DataQueue(server.getBaseURL(), null);
+            C3PRO.setDataQueue(dataQueue);
+
+            final List<Task> received = new ArrayList<>();
+            dataQueue.readTask("Questionnaire?url=" + URL, new DataQueue.TaskReceiver() {
+                @Override
+                public void receiveTask(Task task) {
+                    received.add(task);
+                }
+            });
+
+            // the Task is posted to the main thread, not passed back during readTask
+            assertTrue(received.isEmpty());
+            assertEquals(1, posted.size());
+            posted.get(0).run();
+            assertEquals(1, received.size());
+            assertSame(task, received.get(0));
+            assertEquals(0, server.getRequestCount());
+        } finally {
+            JobReceivers.setDeliveryExecutor(null);
+            C3PRO.getTaskCache().clear();
+            C3PRO.setDataQueue(previousQueue);
+            server.stop();
+        }
+    }
+}
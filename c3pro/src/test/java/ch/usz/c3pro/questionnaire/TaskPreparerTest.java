@@ -0,0 +1,187 @@
+package ch.usz.c3pro.questionnaire;
+
+import com.birbit.android.jobqueue.Job;
+
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.researchstack.backbone.task.Task;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import ch.usz.c3pro.dataqueue.DataQueue;
+import ch.usz.c3pro.dataqueue.jobs.JobReceivers;
+import ch.usz.c3pro.questionnaire.jobs.PrepareTaskJob;
+import ch.usz.c3pro.questionnaire.logic.ProgressiveOrderedTask;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the {@link TaskPreparer} runs one {@link PrepareTaskJob} for concurrent requests of a
+ * questionnaire, cancels it only when no request is left, tells the requests about failures and
+ * only caches complete Tasks. The jobs are run by calling onRun() and onCancel() the way the
+ * JobManager does, results are delivered right away.
+ */
+public class TaskPreparerTest {
+    private static final String URL = "http://c3pro.usz.ch/fhir/Questionnaire/prepared";
+    /* the CancelReason of the JobManager when a job is cancelled while running */
+    private static final int CANCELLED_WHILE_RUNNING = 3;
+
+    private final List<PrepareTaskJob> jobs = new ArrayList<>();
+    private final List<String> cancelledTags = new ArrayList<>();
+    private TaskCache cache;
+    private TaskPreparer preparer;
+    private Questionnaire questionnaire;
+
+    private static class Receiver implements DataQueue.TaskFailureReceiver {
+        private final List<Task> tasks = new ArrayList<>();
+        private final List<Throwable> failures = new ArrayList<>();
+
+        @Override
+        public void receiveTask(Task task) {
+            tasks.add(task);
+        }
+
+        @Override
+        public void taskFailed(Throwable throwable) {
+            failures.add(throwable);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        JobReceivers.setDeliveryExecutor(new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                runnable.run();
+            }
+        });
+        cache = new TaskCache();
+        preparer = new TaskPreparer(null, cache) {
+            @Override
+            protected void submit(Job job) {
+                jobs.add((PrepareTaskJob) job);
+            }
+
+            @Override
+            protected void cancelJobs(String tag) {
+                cancelledTags.add(tag);
+            }
+        };
+        questionnaire = new QuestionnaireGenerator(1).valueSets(0, 0).generate("prepared", 50);
+        questionnaire.setUrl(URL);
+        questionnaire.setVersion("1");
+    }
+
+    @After
+    public void tearDown() {
+        JobReceivers.setDeliveryExecutor(null);
+    }
+
+    @Test
+    public void concurrentRequests_shareOneConversion() throws Throwable {
+        Receiver first = new Receiver();
+        Receiver second = new Receiver();
+        assertNotNull(preparer.prepare(questionnaire, 0, first));
+        assertNotNull(preparer.prepare(questionnaire, 0, second));
+        assertEquals(1, jobs.size());
+
+        jobs.get(0).onRun();
+
+        assertEquals(1, first.tasks.size());
+        assertSame(first.tasks.get(0), second.tasks.get(0));
+        assertSame(first.tasks.get(0), cache.getTask(questionnaire));
+
+        Receiver later = new Receiver();
+        assertNull(preparer.prepare(questionnaire, 0, later));
+        assertSame(first.tasks.get(0), later.tasks.get(0));
+        assertEquals(1, jobs.size());
+    }
+
+    @Test
+    public void cancellingOneRequest_keepsTheConversionForTheOther() throws Throwable {
+        Receiver cancelled = new Receiver();
+        Receiver waiting = new Receiver();
+        TaskPreparer.Request request = preparer.prepare(questionnaire, 0, cancelled);
+        preparer.prepare(questionnaire, 0, waiting);
+
+        request.cancel();
+        assertTrue(cancelledTags.isEmpty());
+        jobs.get(0).onRun();
+
+        assertTrue(cancelled.tasks.isEmpty());
+        assertEquals(1, waiting.tasks.size());
+    }
+
+    @Test
+    public void cancellingEveryRequest_cancelsTheJobAndTheNextRequestStartsOver() {
+        TaskPreparer.Request first = preparer.prepare(questionnaire, 0, new Receiver());
+        TaskPreparer.Request second = preparer.prepare(questionnaire, 0, new Receiver());
+
+        first.cancel();
+        second.cancel();
+        assertEquals(1, cancelledTags.size());
+        assertTrue(jobs.get(0).getTags().contains(cancelledTags.get(0)));
+
+        preparer.prepare(questionnaire, 0, new Receiver());
+        assertEquals(2, jobs.size());
+    }
+
+    @Test
+    public void failedConversion_tellsEveryRequestAndTheNextRequestStartsOver() throws Exception {
+        Receiver first = new Receiver();
+        Receiver second = new Receiver();
+        preparer.prepare(questionnaire, 0, first);
+        preparer.prepare(questionnaire, 0, second);
+        IOException failure = new IOException("conversion failed");
+
+        cancel(jobs.get(0), failure);
+
+        assertSame(failure, first.failures.get(0));
+        assertSame(failure, second.failures.get(0));
+        assertNull(cache.getTask(questionnaire));
+        preparer.prepare(questionnaire, 0, new Receiver());
+        assertEquals(2, jobs.size());
+    }
+
+    @Test
+    public void progressiveTask_isSharedWhileConvertingAndOnlyCachedWhenComplete() throws Throwable {
+        final List<Task> cachedWhenReceived = new ArrayList<>();
+        final Receiver during = new Receiver();
+        preparer.prepare(questionnaire, 2, new DataQueue.TaskReceiver() {
+            @Override
+            public void receiveTask(Task task) {
+                // delivered before the rest of the questionnaire is converted
+                cachedWhenReceived.add(cache.getTask(questionnaire));
+                assertNull(preparer.prepare(questionnaire, 2, during));
+            }
+        });
+
+        jobs.get(0).onRun();
+
+        assertEquals(1, cachedWhenReceived.size());
+        assertNull(cachedWhenReceived.get(0));
+        assertEquals(1, jobs.size());
+        ProgressiveOrderedTask task = (ProgressiveOrderedTask) during.tasks.get(0);
+        assertTrue(task.isComplete());
+        assertSame(task, cache.getTask(questionnaire));
+    }
+
+    /**
+     * Calls the protected onCancel() like the JobManager does when it gives up the job.
+     */
+    private static void cancel(Job job, Throwable throwable) throws Exception {
+        Method onCancel = Job.class.getDeclaredMethod("onCancel", int.class, Throwable.class);
+        onCancel.setAccessible(true);
+        onCancel.invoke(job, CANCELLED_WHILE_RUNNING, throwable);
+    }
+}
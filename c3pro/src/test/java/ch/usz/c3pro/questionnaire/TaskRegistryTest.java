@@ -0,0 +1,79 @@
+package ch.usz.c3pro.questionnaire;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.researchstack.backbone.result.StepResult;
+import org.researchstack.backbone.result.TaskResult;
+import org.researchstack.backbone.step.Step;
+import org.researchstack.backbone.task.OrderedTask;
+import org.researchstack.backbone.task.Task;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests when the {@link TaskRegistry} writes its Tasks and how it cleans up abandoned sessions.
+ */
+public class TaskRegistryTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void register_writesTheTaskAndPersistResultASnapshot() throws InterruptedException {
+        File directory = folder.getRoot();
+        TaskRegistry registry = new TaskRegistry(directory);
+        Task task = new OrderedTask("task", new Step("first"));
+        String handle = registry.register(task);
+        TaskResult result = new TaskResult("task");
+        registry.putResult(handle, result);
+        registry.awaitWrites();
+        assertTrue(new File(directory, handle + ".task").exists());
+        assertFalse(new File(directory, handle + ".result").exists());
+
+        registry.persistResult(handle);
+        // changed after the snapshot was taken, e.g. by the next answer
+        result.setStepResultForStepIdentifier("first", new StepResult<Object>(new Step("first")));
+        registry.awaitWrites();
+
+        // read back as after the process has been killed
+        TaskRegistry restored = new TaskRegistry(directory);
+        assertEquals("task", restored.getTask(handle).getIdentifier());
+        assertNotNull(restored.getResult(handle));
+        assertTrue(restored.getResult(handle).getResults().isEmpty());
+        assertNull(restored.getTask("unknown"));
+    }
+
+    @Test
+    public void deleteExpired_removesAbandonedSessionsAndLeftovers() throws IOException {
+        File directory = folder.getRoot();
+        long now = System.currentTimeMillis();
+        File oldTask = touch(directory, "old.task", now - 2 * TaskRegistry.MAX_AGE_MS);
+        File oldResult = touch(directory, "old.result", now - 2 * TaskRegistry.MAX_AGE_MS);
+        // the Task was written long ago, but the result recently, the session is still in use
+        File activeTask = touch(directory, "active.task", now - 2 * TaskRegistry.MAX_AGE_MS);
+        File activeResult = touch(directory, "active.result", now);
+        File leftover = touch(directory, "interrupted.result.tmp", now);
+
+        new TaskRegistry(directory).deleteExpired(now - TaskRegistry.MAX_AGE_MS);
+
+        assertFalse(oldTask.exists());
+        assertFalse(oldResult.exists());
+        assertFalse(leftover.exists());
+        assertTrue(activeTask.exists());
+        assertTrue(activeResult.exists());
+    }
+
+    private static File touch(File directory, String name, long lastModified) throws IOException {
+        File file = new File(directory, name);
+        assertTrue(file.createNewFile());
+        assertTrue(file.setLastModified(lastModified));
+        return file;
+    }
+}
@@ -0,0 +1,135 @@
+package ch.usz.c3pro.questionnaire.jobs;
+
+import android.content.Context;
+
+import com.birbit.android.jobqueue.RetryConstraint;
+
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.researchstack.backbone.task.Task;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import ca.uhn.fhir.rest.client.ServerValidationModeEnum;
+import ch.usz.c3pro.C3PRO;
+import ch.usz.c3pro.dataqueue.FhirStandInServer;
+import ch.usz.c3pro.dataqueue.NetworkScheduler;
+import ch.usz.c3pro.questionnaire.QuestionnaireGenerator;
+import ch.usz.c3pro.questionnaire.TaskCache;
+import ch.usz.c3pro.questionnaire.logic.Questionnaire2Task;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests that the {@link PrefetchQuestionnairesJob} puts the Tasks of the questionnaires it finds
+ * into the {@link TaskCache}, converts a questionnaire again when the server has a new version of
+ * it, and is run again later when it is postponed or fails.
+ */
+public class PrefetchQuestionnairesJobTest {
+    private static final String URL = "http://c3pro.usz.ch/fhir/Questionnaire/prefetched";
+
+    private static final PrefetchQuestionnairesJob.Conditions ALWAYS = new PrefetchQuestionnairesJob.Conditions() {
+        @Override
+        public boolean allowPrefetch(Context context) {
+            return true;
+        }
+    };
+
+    private static final PrefetchQuestionnairesJob.Conditions NEVER = new PrefetchQuestionnairesJob.Conditions() {
+        @Override
+        public boolean allowPrefetch(Context context) {
+            return false;
+        }
+    };
+
+    private FhirStandInServer server;
+    private TaskCache cache;
+    private Questionnaire questionnaire;
+
+    @Before
+    public void setUp() throws Exception {
+        C3PRO.initFhirContext();
+        C3PRO.getFhirContext().getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+        C3PRO.initTaskCache();
+        cache = C3PRO.getTaskCache();
+        cache.clear();
+        questionnaire = new QuestionnaireGenerator(1).valueSets(0, 0).generate("prefetched", 20);
+        questionnaire.setUrl(URL);
+        questionnaire.setVersion("1");
+        questionnaire.getMeta().setVersionId("2");
+        server = new FhirStandInServer();
+        server.addResource(questionnaire);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        cache.clear();
+        server.stop();
+    }
+
+    @Test
+    public void prefetchedQuestionnaire_isNotSearchedAgain() throws Throwable {
+        String search = "Questionnaire?url=" + URL;
+        newJob(search, ALWAYS).onRun();
+
+        assertNotNull(cache.getTask(URL));
+        assertEquals(1, server.getRequestCount());
+
+        newJob(search, ALWAYS).onRun();
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void newVersionIdOnTheServer_isConvertedAgain() throws Throwable {
+        Questionnaire cached = questionnaire.copy();
+        cached.getMeta().setVersionId("1");
+        Task outdated = Questionnaire2Task.questionnaire2Task(cached);
+        cache.put(cached, outdated);
+
+        newJob("Questionnaire?status=active", ALWAYS).onRun();
+
+        assertEquals(1, server.getRequestCount());
+        assertNotNull(cache.getTask(questionnaire));
+        assertNotSame(outdated, cache.getTask(questionnaire));
+    }
+
+    @Test
+    public void postponedJob_isRunAgainAfterTheRetryDelay() throws Throwable {
+        PrefetchQuestionnairesJob job = newJob("Questionnaire?status=active", NEVER);
+        try {
+            job.onRun();
+            fail("the conditions do not allow prefetching");
+        } catch (Exception postponed) {
+            RetryConstraint constraint = job.shouldReRunOnThrowable(postponed, 1, PrefetchQuestionnairesJob.MAX_RUNS);
+            assertTrue(constraint.shouldRetry());
+            assertEquals(PrefetchQuestionnairesJob.RETRY_DELAY_MS, (long) constraint.getNewDelayInMs());
+        }
+        assertEquals(0, server.getRequestCount());
+    }
+
+    @Test
+    public void failedJob_isRunAgainWithAGrowingDelay() {
+        PrefetchQuestionnairesJob job = newJob("Questionnaire?status=active", ALWAYS);
+        IOException failure = new IOException("server not reachable");
+
+        RetryConstraint first = job.shouldReRunOnThrowable(failure, 1, PrefetchQuestionnairesJob.MAX_RUNS);
+        RetryConstraint third = job.shouldReRunOnThrowable(failure, 3, PrefetchQuestionnairesJob.MAX_RUNS);
+
+        assertTrue(first.shouldRetry());
+        assertTrue(third.shouldRetry());
+        assertEquals(NetworkScheduler.failureDelay(1), (long) first.getNewDelayInMs());
+        assertTrue(third.getNewDelayInMs() > first.getNewDelayInMs());
+    }
+
+    private PrefetchQuestionnairesJob newJob(String search, PrefetchQuestionnairesJob.Conditions conditions) {
+        return new PrefetchQuestionnairesJob(Collections.singletonList(search), server.getBaseURL(), conditions);
+    }
+}
@@ -0,0 +1,166 @@
+package ch.usz.c3pro.questionnaire.jobs;
+
+import org.hl7.fhir.dstu3.model.IdType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.researchstack.backbone.answerformat.TextAnswerFormat;
+import org.researchstack.backbone.result.StepResult;
+import org.researchstack.backbone.result.TaskResult;
+import org.researchstack.backbone.step.QuestionStep;
+import org.researchstack.backbone.task.Task;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import ca.uhn.fhir.rest.client.ServerValidationModeEnum;
+import ch.usz.c3pro.C3PRO;
+import ch.usz.c3pro.dataqueue.DataQueue;
+import ch.usz.c3pro.dataqueue.FhirStandInServer;
+import ch.usz.c3pro.dataqueue.LoadTestDataQueue;
+import ch.usz.c3pro.dataqueue.NetworkScheduler;
+import ch.usz.c3pro.dataqueue.jobs.JobReceivers;
+import ch.usz.c3pro.questionnaire.QuestionnaireGenerator;
+import ch.usz.c3pro.questionnaire.logic.Questionnaire2Task;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests that the receiver of an {@link UploadQuestionnaireResponseJob} is told the location of the
+ * upload by the deserialized copy of the job that the JobManager runs, and that a payload that
+ * grows beyond the size class allowed by the {@link NetworkScheduler} is held without completing
+ * the request.
+ */
+public class UploadQuestionnaireResponseJobTest {
+    private FhirStandInServer server;
+    private LoadTestDataQueue dataQueue;
+    private DataQueue previousQueue;
+    private TaskResult taskResult;
+    private final List<Object> received = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        C3PRO.initFhirContext();
+        C3PRO.getFhirContext().getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+        server = new FhirStandInServer();
+        server.start();
+        dataQueue = new LoadTestDataQueue(server.getBaseURL(), 1, null);
+        previousQueue = C3PRO.getDataQueue();
+        C3PRO.setDataQueue(dataQueue);
+        Task task = Questionnaire2Task.questionnaire2Task(new QuestionnaireGenerator(3).generate("upload", 30));
+        taskResult = new QuestionnaireGenerator(3).answer(task);
+        JobReceivers.setDeliveryExecutor(new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                runnable.run();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        JobReceivers.setDeliveryExecutor(null);
+        dataQueue.getRunner().stop();
+        C3PRO.setDataQueue(previousQueue);
+        server.stop();
+    }
+
+    @Test
+    public void storedJob_passesTheLocationToTheReceiver() throws Exception {
+        dataQueue.createQuestionnaireResponse(taskResult, new DataQueue.LocationReceiver() {
+            @Override
+            public void receiveLocation(String location) {
+                received.add(location);
+            }
+        });
+
+        assertTrue(dataQueue.getRunner().awaitIdle(10000));
+        assertEquals(1, received.size());
+        String id = server.getResources("QuestionnaireResponse").get(0).getIdElement().getIdPart();
+        assertEquals(id, new IdType((String) received.get(0)).getIdPart());
+        assertEquals(0, JobReceivers.size());
+    }
+
+    @Test
+    public void storedJob_tellsTheFailureReceiverWhenGivenUp() throws Exception {
+        UploadQuestionnaireResponseJob job = new UploadQuestionnaireResponseJob(taskResult, server.getBaseURL(), new DataQueue.LocationFailureReceiver() {
+            @Override
+            public void locationFailed(Throwable throwable) {
+                received.add(throwable);
+            }
+
+            @Override
+            public void receiveLocation(String location) {
+                received.add(location);
+            }
+        });
+        UploadQuestionnaireResponseJob stored = store(job);
+        IOException failure = new IOException("server down");
+        stored.onCancel(1, failure);
+
+        assertEquals(1, received.size());
+        assertSame(failure, received.get(0));
+        assertEquals(0, JobReceivers.size());
+    }
+
+    @Test
+    public void largePayloadOnASlowMeteredNetwork_isHeldWithoutCompletingTheRequest() throws Throwable {
+        dataQueue.setNetworkStateProvider(new NetworkScheduler.NetworkStateProvider() {
+            @Override
+            public NetworkScheduler.NetworkState getNetworkState() {
+                return new NetworkScheduler.NetworkState(true, true, false);
+            }
+        });
+        char[] text = new char[(int) NetworkScheduler.LARGE_PAYLOAD_LIMIT];
+        Arrays.fill(text, 'a');
+        StepResult<Object> answer = new StepResult<>(new QuestionStep("text", "Text", new TextAnswerFormat()));
+        answer.setResult(new String(text));
+        TaskResult large = new TaskResult("large");
+        large.setStepResultForStepIdentifier("text", answer);
+        UploadQuestionnaireResponseJob job = new UploadQuestionnaireResponseJob(large, server.getBaseURL(), null);
+
+        // the size is only known while the payload is streamed
+        assertHeld(job);
+        long end = System.currentTimeMillis() + 10000;
+        while (server.getRequestCount() == 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, server.getRequestCount());
+        // the next run checks the size before it sends anything
+        assertHeld(job);
+        assertEquals(1, server.getRequestCount());
+        assertEquals(0, server.getResourceCount("QuestionnaireResponse"));
+    }
+
+    private static void assertHeld(UploadQuestionnaireResponseJob job) throws Throwable {
+        try {
+            job.onRun();
+            fail("a large payload is not uploaded on a slow metered network");
+        } catch (NetworkScheduler.ConditionsNotMetException held) {
+            assertEquals(NetworkScheduler.RETRY_DELAY_MS, held.getRetryDelay());
+        }
+    }
+
+    private static UploadQuestionnaireResponseJob store(UploadQuestionnaireResponseJob job) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(job);
+        out.close();
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        try {
+            return (UploadQuestionnaireResponseJob) in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package ch.usz.c3pro.questionnaire.logic;
+
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.junit.Before;
+import org.junit.Test;
+import org.researchstack.backbone.answerformat.AnswerFormat;
+import org.researchstack.backbone.answerformat.BooleanAnswerFormat;
+import org.researchstack.backbone.answerformat.ChoiceAnswerFormat;
+import org.researchstack.backbone.answerformat.DateAnswerFormat;
+import org.researchstack.backbone.answerformat.IntegerAnswerFormat;
+import org.researchstack.backbone.answerformat.TextAnswerFormat;
+import org.researchstack.backbone.model.Choice;
+import org.researchstack.backbone.step.QuestionStep;
+import org.researchstack.backbone.step.Step;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ch.usz.c3pro.questionnaire.QuestionnaireGenerator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the {@link AnswerFormatPool} shares the AnswerFormats of generated questionnaires. They
+ * are converted once with the shared formats and once more with every AnswerFormat replaced by a
+ * copy of its own, as Items2Steps created them before the pool, and the number of distinct formats
+ * and the serialized size of the Tasks are compared.
+ */
+public class AnswerFormatPoolTest {
+    private static final int QUESTIONNAIRES = 20;
+    private static final int QUESTIONS = 500;
+
+    private List<Questionnaire> questionnaires;
+
+    @Before
+    public void setUp() {
+        AnswerFormatPool.clear();
+        questionnaires = new ArrayList<>();
+        for (int i = 0; i < QUESTIONNAIRES; i++) {
+            Questionnaire questionnaire = new QuestionnaireGenerator(i).maxOptions(6).generate("q" + i, QUESTIONS);
+            ValueSetResolver.resolveContainedValueSets(questionnaire, questionnaire.getItem());
+            questionnaires.add(questionnaire);
+        }
+    }
+
+    @Test
+    public void sharedFormats_areFewerAndSerializeSmaller() throws IOException {
+        List<List<Step>> shared = convert();
+        List<List<Step>> unshared = convert();
+        for (List<Step> steps : unshared) {
+            unshare(steps);
+        }
+
+        int sharedFormats = countFormats(shared);
+        assertEquals(QUESTIONNAIRES * QUESTIONS, countFormats(unshared));
+        assertTrue(sharedFormats * 10 < QUESTIONNAIRES * QUESTIONS);
+        assertTrue(serializedSize(shared) < serializedSize(unshared));
+    }
+
+    @Test
+    public void conversionsOfTheSameQuestionnaire_shareEveryFormat() {
+        List<Step> first = Items2Steps.items2Steps(questionnaires.get(0).getItem());
+        List<Step> second = Items2Steps.items2Steps(questionnaires.get(0).getItem());
+
+        assertEquals(first.size(), second.size());
+        for (int i = 0; i < first.size(); i++) {
+            if (first.get(i) instanceof QuestionStep) {
+                assertSame(((QuestionStep) first.get(i)).getAnswerFormat(), ((QuestionStep) second.get(i)).getAnswerFormat());
+            }
+        }
+    }
+
+    private List<List<Step>> convert() {
+        List<List<Step>> tasks = new ArrayList<>();
+        for (Questionnaire questionnaire : questionnaires) {
+            tasks.add(Items2Steps.items2Steps(questionnaire.getItem()));
+        }
+        return tasks;
+    }
+
+    /**
+     * Gives every step a new format with new Choices, like Items2Steps created them before the
+     * pool. The values of the Choices stay the ones of the questionnaire.
+     */
+    private static void unshare(List<Step> steps) {
+        for (Step step : steps) {
+            if (step instanceof QuestionStep) {
+                QuestionStep question = (QuestionStep) step;
+                question.setAnswerFormat(newFormat(question.getAnswerFormat()));
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static AnswerFormat newFormat(AnswerFormat format) {
+        if (format instanceof BooleanAnswerFormat) {
+            return new BooleanAnswerFormat("Yes", "No");
+        } else if (format instanceof ChoiceAnswerFormat) {
+            ChoiceAnswerFormat choiceFormat = (ChoiceAnswerFormat) format;
+            Choice[] choices = choiceFormat.getChoices();
+            for (int i = 0; i < choices.length; i++) {
+                choices[i] = new Choice<>(choices[i].getText(), choices[i].getValue());
+            }
+            return new ChoiceAnswerFormat(choiceFormat.getAnswerStyle(), choices);
+        } else if (format instanceof IntegerAnswerFormat) {
+            IntegerAnswerFormat integerFormat = (IntegerAnswerFormat) format;
+            return new IntegerAnswerFormat(integerFormat.getMinValue(), integerFormat.getMaxValue());
+        } else if (format instanceof TextAnswerFormat) {
+            return new TextAnswerFormat(((TextAnswerFormat) format).getMaximumLength());
+        } else if (format instanceof DateAnswerFormat) {
+            return new DateAnswerFormat(((DateAnswerFormat) format).getStyle());
+        }
+        return format;
+    }
+
+    private static int countFormats(List<List<Step>> tasks) {
+        Map<AnswerFormat, Boolean> formats = new IdentityHashMap<>();
+        for (List<Step> steps : tasks) {
+            for (Step step : steps) {
+                if (step instanceof QuestionStep) {
+                    formats.put(((QuestionStep) step).getAnswerFormat(), Boolean.TRUE);
+                }
+            }
+        }
+        return formats.size();
+    }
+
+    private static long serializedSize(List<List<Step>> tasks) throws IOException {
+        long size = 0;
+        for (List<Step> steps : tasks) {
+            size += serialize(new ArrayList<>(steps)).length;
+        }
+        return size;
+    }
+
+    private static byte[] serialize(Serializable object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(object);
+        out.close();
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,59 @@
+package ch.usz.c3pro.questionnaire.logic;
+
+import org.hl7.fhir.dstu3.model.BooleanType;
+import org.junit.Test;
+import org.researchstack.backbone.answerformat.BooleanAnswerFormat;
+import org.researchstack.backbone.result.StepResult;
+import org.researchstack.backbone.result.TaskResult;
+import org.researchstack.backbone.step.QuestionStep;
+import org.researchstack.backbone.step.Step;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests the navigation of a {@link ConditionalOrderedTask} over steps whose requirements are not
+ * met, and {@link ResultRequirement}s of questions that have not been answered.
+ */
+public class ConditionalOrderedTaskTest {
+    private static final int HIDDEN_STEPS = 50000;
+
+    @Test
+    public void isSatisfiedBy_isFalseWithoutAnswer() {
+        ResultRequirement requirement = new ResultRequirement("q1", new BooleanType(true));
+        TaskResult result = new TaskResult("task");
+
+        assertFalse(requirement.isSatisfiedBy(result));
+
+        result.setStepResultForStepIdentifier("q1", new StepResult(new Step("q1")));
+        assertFalse(requirement.isSatisfiedBy(result));
+    }
+
+    @Test
+    public void navigation_skipsLongRunsOfHiddenSteps() {
+        List<Step> steps = new ArrayList<>();
+        QuestionStep first = new QuestionStep("first", "First", new BooleanAnswerFormat("Yes", "No"));
+        steps.add(first);
+        for (int i = 0; i < HIDDEN_STEPS; i++) {
+            ConditionalQuestionStep hidden = new ConditionalQuestionStep("hidden" + i, "Hidden", new BooleanAnswerFormat("Yes", "No"));
+            hidden.addRequirement(new ResultRequirement("first", new BooleanType(true)));
+            steps.add(hidden);
+        }
+        QuestionStep last = new QuestionStep("last", "Last", new BooleanAnswerFormat("Yes", "No"));
+        steps.add(last);
+        ConditionalOrderedTask task = new ConditionalOrderedTask("task", steps);
+        TaskResult result = new TaskResult("task");
+        StepResult<Boolean> answer = new StepResult<>(first);
+        answer.setResult(false);
+        result.setStepResultForStepIdentifier("first", answer);
+
+        assertEquals(first, task.getStepAfterStep(null, result));
+        assertEquals(last, task.getStepAfterStep(first, result));
+        assertEquals(first, task.getStepBeforeStep(last, result));
+        assertNull(task.getStepAfterStep(last, result));
+    }
+}
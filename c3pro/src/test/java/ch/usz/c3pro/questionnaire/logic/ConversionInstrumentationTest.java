@@ -0,0 +1,164 @@
+package ch.usz.c3pro.questionnaire.logic;
+
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.junit.After;
+import org.junit.Test;
+import org.researchstack.backbone.result.TaskResult;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import ch.usz.c3pro.questionnaire.QuestionnaireGenerator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the profiles reported by the {@link ConversionInstrumentation} for generated
+ * questionnaires. Allocations are counted in bytes with the thread allocation counter of the JVM.
+ */
+public class ConversionInstrumentationTest {
+    private static final long SEED = 20161018L;
+    private static final int QUESTIONS = 300;
+
+    private static class CollectingInstrument implements ConversionInstrument {
+        private final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        private final List<ConversionProfile> profiles = Collections.synchronizedList(new ArrayList<ConversionProfile>());
+
+        @Override
+        public long allocations() {
+            return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+
+        @Override
+        public void report(ConversionProfile profile) {
+            profiles.add(profile);
+        }
+    }
+
+    @After
+    public void removeInstrument() {
+        ConversionInstrumentation.setInstrument(null);
+    }
+
+    @Test
+    public void questionnaire2Task_reportsOneProfilePerQuestionnaire() {
+        Questionnaire questionnaire = generate();
+        CollectingInstrument instrument = install();
+
+        Questionnaire2Task.questionnaire2Task(questionnaire);
+
+        assertEquals(1, instrument.profiles.size());
+        ConversionProfile profile = instrument.profiles.get(0);
+        assertEquals(questionnaire.getId(), profile.getSubject());
+        assertEquals(countQuestions(questionnaire.getItem()), profile.getStage(ConversionInstrumentation.Stage.ANSWER_FORMAT).getCount());
+        assertTrue(profile.getStage(ConversionInstrumentation.Stage.CHOICES).getCount() > 0);
+        assertTrue(profile.getStage(ConversionInstrumentation.Stage.REQUIREMENTS).getCount() > 0);
+        assertFalse(profile.getGroups().isEmpty());
+        assertTrue(profile.getNanos() > 0);
+        assertTrue(profile.getAllocations() > 0);
+        assertTrue(profile.getAllocations() >= profile.getStage(ConversionInstrumentation.Stage.ANSWER_FORMAT).getAllocations());
+        assertEquals(3, profile.getSlowestGroups(3).size());
+    }
+
+    @Test
+    public void parallelConversion_countsTheWorkers() {
+        Questionnaire questionnaire = generate();
+        CollectingInstrument instrument = install();
+        Questionnaire2Task.questionnaire2Task(questionnaire);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            ParallelConversion.questionnaire2Task(questionnaire, executor);
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(2, instrument.profiles.size());
+        ConversionProfile sequential = instrument.profiles.get(0);
+        ConversionProfile parallel = instrument.profiles.get(1);
+        for (ConversionInstrumentation.Stage stage : ConversionInstrumentation.Stage.values()) {
+            assertEquals(stage.name(), sequential.getStage(stage).getCount(), parallel.getStage(stage).getCount());
+        }
+        assertEquals(sequential.getGroups().keySet(), parallel.getGroups().keySet());
+    }
+
+    @Test
+    public void responseEncoding_isProfiled() throws IOException {
+        Questionnaire questionnaire = generate();
+        TaskResult taskResult = new QuestionnaireGenerator(SEED).answer(Questionnaire2Task.questionnaire2Task(questionnaire));
+        CollectingInstrument instrument = install();
+
+        TaskResult2QuestionnaireResponse.taskResult2QuestionnaireResponse(taskResult);
+        QuestionnaireResponseJsonEncoder.write(taskResult, new ByteArrayOutputStream());
+
+        assertEquals(2, instrument.profiles.size());
+        for (ConversionProfile profile : instrument.profiles) {
+            assertEquals(taskResult.getIdentifier(), profile.getSubject());
+            assertEquals(1, profile.getStage(ConversionInstrumentation.Stage.RESPONSE_ENCODING).getCount());
+        }
+    }
+
+    @Test
+    public void withoutInstrument_nothingIsProfiled() {
+        Questionnaire questionnaire = generate();
+        assertNull(ConversionInstrumentation.begin("q"));
+        assertEquals(-1, ConversionInstrumentation.enter());
+        Questionnaire2Task.questionnaire2Task(questionnaire);
+        assertNull(ConversionInstrumentation.current());
+    }
+
+    @Test
+    public void failedConversion_leavesNoProfileBehind() {
+        CollectingInstrument instrument = install();
+        Questionnaire broken = new Questionnaire();
+        broken.setId("broken");
+        broken.addItem().setLinkId("null").setType(null);
+        try {
+            Questionnaire2Task.questionnaire2Task(broken);
+        } catch (RuntimeException expected) {
+            // the profile has to be reported anyway
+        }
+        assertNull(ConversionInstrumentation.current());
+
+        Questionnaire2Task.questionnaire2Task(generate());
+        assertNotNull(instrument.profiles.get(instrument.profiles.size() - 1));
+        assertEquals("q", instrument.profiles.get(instrument.profiles.size() - 1).getSubject());
+    }
+
+    private static CollectingInstrument install() {
+        if (!ConversionInstrumentation.ENABLED) {
+            fail("the unit tests run with the debug build type");
+        }
+        CollectingInstrument instrument = new CollectingInstrument();
+        ConversionInstrumentation.setInstrument(instrument);
+        return instrument;
+    }
+
+    private static Questionnaire generate() {
+        Questionnaire questionnaire = new QuestionnaireGenerator(SEED).enableWhenRate(0.3).valueSets(5, 20).generate("q", QUESTIONS);
+        ValueSetResolver.resolveContainedValueSets(questionnaire, questionnaire.getItem());
+        return questionnaire;
+    }
+
+    private static int countQuestions(List<Questionnaire.QuestionnaireItemComponent> items) {
+        int count = 0;
+        for (Questionnaire.QuestionnaireItemComponent item : items) {
+            if (item.getType() == Questionnaire.QuestionnaireItemType.GROUP) {
+                count += countQuestions(item.getItem());
+            } else if (item.getType() != Questionnaire.QuestionnaireItemType.DISPLAY) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,203 @@
+package ch.usz.c3pro.questionnaire.logic;
+
+import org.hl7.fhir.dstu3.model.Coding;
+import org.hl7.fhir.dstu3.model.DateType;
+import org.hl7.fhir.dstu3.model.IntegerType;
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.hl7.fhir.dstu3.model.StringType;
+import org.hl7.fhir.dstu3.model.TimeType;
+import org.hl7.fhir.dstu3.model.Type;
+import org.junit.Before;
+import org.junit.Test;
+import org.researchstack.backbone.answerformat.AnswerFormat;
+import org.researchstack.backbone.answerformat.ChoiceAnswerFormat;
+import org.researchstack.backbone.model.Choice;
+import org.researchstack.backbone.step.QuestionStep;
+import org.researchstack.backbone.step.Step;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the {@link ChoiceIndex} and the {@link LargeChoiceAnswerFormat} that Items2Steps uses for
+ * items with many options. The serialized size of a step with a large list of options is compared
+ * with a flat ChoiceAnswerFormat.
+ */
+public class LargeChoiceAnswerFormatTest {
+    private static final int OPTIONS = 10000;
+    private static final String[] WORDS = {"acid", "tablet", "forte", "retard", "spray", "cream", "drops", "syrup"};
+
+    @Before
+    public void setUp() {
+        AnswerFormatPool.clear();
+    }
+
+    @Test
+    public void filter_matchesPrefixesOfWords() {
+        ChoiceIndex index = new ChoiceIndex(new Choice[]{
+                new Choice<>("Acetylsalicylic acid (Aspirin)", "1"),
+                new Choice<>("Paracetamol", "2"),
+                new Choice<>("Ibuprofen 400 mg", "3"),
+                new Choice<>("Zürich", "4"),
+                new Choice<>("aspirin complex", "5")});
+
+        assertArrayEquals(new int[]{0, 4}, index.filter("asp"));
+        assertArrayEquals(new int[]{0, 4}, index.filter(" ASPIRIN "));
+        assertArrayEquals(new int[]{3}, index.filter("zur"));
+        assertArrayEquals(new int[]{2}, index.filter("mg ibu"));
+        assertArrayEquals(new int[]{2}, index.filter("ibuprofen 40"));
+        assertArrayEquals(new int[0], index.filter("cid"));
+        assertArrayEquals(new int[0], index.filter("aspirin paracetamol"));
+        assertArrayEquals(new int[]{0, 1, 2, 3, 4}, index.filter(""));
+        assertEquals("5", index.get(index.filter("complex"), 0, 10)[0].getValue());
+    }
+
+    @Test
+    public void getPage_returnsChoicesInPages() {
+        ChoiceIndex index = new ChoiceIndex(createOptions(120));
+
+        assertEquals(50, index.getPage(0, 50).length);
+        assertEquals("Medication 50 forte", index.getPage(1, 50)[0].getText());
+        assertEquals(20, index.getPage(2, 50).length);
+        assertEquals(0, index.getPage(3, 50).length);
+    }
+
+    @Test
+    public void items2Steps_usesLargeFormatForManyOptions() throws IOException, ClassNotFoundException {
+        Questionnaire questionnaire = createQuestionnaire(OPTIONS);
+
+        List<Step> steps = Items2Steps.items2Steps(questionnaire.getItem());
+        LargeChoiceAnswerFormat format = (LargeChoiceAnswerFormat) ((QuestionStep) steps.get(0)).getAnswerFormat();
+
+        assertEquals(OPTIONS, format.getChoiceCount());
+        assertEquals(LargeChoiceAnswerFormat.PAGE_SIZE, format.getPage(0).length);
+        int[] matches = format.filter("medication 4711");
+        assertEquals(1, matches.length);
+        assertEquals("Medication 4711 syrup", format.getPage(matches, 0)[0].getText());
+
+        // the format is shared by Tasks converted from the same questionnaire
+        assertTrue(format == ((QuestionStep) Items2Steps.items2Steps(questionnaire.getItem()).get(0)).getAnswerFormat());
+
+        // restored without the registered index, as after a restart of the app
+        byte[] serialized = serialize((Serializable) steps);
+        LargeChoiceAnswerFormat.clearIndexes();
+        LargeChoiceAnswerFormat restored = (LargeChoiceAnswerFormat) deserialize(serialized);
+        assertEquals(OPTIONS, restored.getChoiceCount());
+        assertEquals("Medication 4711 syrup", ((StringType) restored.getPage(matches, 0)[0].getValue()).getValue());
+
+        ChoiceAnswerFormat flat = AnswerFormatPool.choice(AnswerFormat.ChoiceAnswerStyle.SingleChoice, values(questionnaire));
+        List<Step> flatSteps = new ArrayList<>();
+        flatSteps.add(new QuestionStep("medication", "Medication", flat));
+
+        int largeSize = serialize((Serializable) steps).length;
+        int flatSize = serialize((Serializable) flatSteps).length;
+        assertTrue("large format: " + largeSize + " bytes, flat: " + flatSize + " bytes", largeSize < flatSize);
+    }
+
+    @Test
+    public void serialization_restoresOptionsOfEveryType() throws IOException, ClassNotFoundException {
+        List<Type> values = new ArrayList<>();
+        values.add(new Coding("http://snomed.info/sct", "387458008", "Aspirin"));
+        values.add(new Coding("http://snomed.info/sct", "387517004", null));
+        values.add(new StringType("Paracetamol"));
+        values.add(new IntegerType(400));
+        values.add(new DateType("2016-10-18"));
+        values.add(new TimeType("08:00:00"));
+        List<Step> steps = new ArrayList<>();
+        steps.add(new QuestionStep("medication", "Medication", new LargeChoiceAnswerFormat(AnswerFormat.ChoiceAnswerStyle.SingleChoice, new ChoiceIndex(values), null)));
+
+        byte[] serialized = serialize((Serializable) steps);
+        LargeChoiceAnswerFormat.clearIndexes();
+        Choice[] restored = ((LargeChoiceAnswerFormat) deserialize(serialized)).getChoices();
+
+        assertEquals(values.size(), restored.length);
+        for (int i = 0; i < values.size(); i++) {
+            assertTrue(values.get(i).equalsDeep((Type) restored[i].getValue()));
+        }
+        // the same texts as the Choices of a flat format
+        Choice[] flat = AnswerFormatPool.choice(AnswerFormat.ChoiceAnswerStyle.SingleChoice, values).getChoices();
+        for (int i = 0; i < values.size(); i++) {
+            assertEquals(flat[i].getText(), restored[i].getText());
+        }
+        assertEquals("Aspirin", restored[0].getText());
+        assertEquals("387517004", restored[1].getText());
+        assertEquals("400", restored[3].getText());
+    }
+
+    @Test
+    public void serialization_restoresContainedValueSetChoices() throws IOException, ClassNotFoundException {
+        List<Step> steps = new ArrayList<>();
+        steps.add(new QuestionStep("medication", "Medication", AnswerFormatPool.largeChoice(AnswerFormat.ChoiceAnswerStyle.SingleChoice, createOptions(300), null)));
+
+        byte[] serialized = serialize((Serializable) steps);
+        LargeChoiceAnswerFormat.clearIndexes();
+        LargeChoiceAnswerFormat restored = (LargeChoiceAnswerFormat) deserialize(serialized);
+
+        assertEquals(300, restored.getChoiceCount());
+        Choice choice = restored.getPage(restored.filter("medication 211"), 0)[0];
+        assertEquals("Medication 211 retard", choice.getText());
+        assertEquals("211", choice.getValue());
+    }
+
+    @Test
+    public void items2Steps_keepsFlatFormatForFewOptions() {
+        Questionnaire questionnaire = createQuestionnaire(LargeChoiceAnswerFormat.THRESHOLD);
+        AnswerFormat format = ((QuestionStep) Items2Steps.items2Steps(questionnaire.getItem()).get(0)).getAnswerFormat();
+
+        assertTrue(format instanceof ChoiceAnswerFormat);
+        assertTrue(!(format instanceof LargeChoiceAnswerFormat));
+    }
+
+    private static Questionnaire createQuestionnaire(int options) {
+        Questionnaire questionnaire = new Questionnaire();
+        questionnaire.setId("medications");
+        Questionnaire.QuestionnaireItemComponent item = questionnaire.addItem()
+                .setLinkId("medication")
+                .setText("Which medication do you take?")
+                .setType(Questionnaire.QuestionnaireItemType.CHOICE);
+        for (int i = 0; i < options; i++) {
+            item.addOption().setValue(new StringType("Medication " + i + " " + WORDS[i % WORDS.length]));
+        }
+        return questionnaire;
+    }
+
+    private static List<Type> values(Questionnaire questionnaire) {
+        List<Type> values = new ArrayList<>();
+        for (Questionnaire.QuestionnaireItemOptionComponent option : questionnaire.getItem().get(0).getOption()) {
+            values.add(option.getValue());
+        }
+        return values;
+    }
+
+    private static Choice[] createOptions(int count) {
+        Choice[] choices = new Choice[count];
+        for (int i = 0; i < count; i++) {
+            choices[i] = new Choice<>("Medication " + i + " " + WORDS[i % WORDS.length], String.valueOf(i));
+        }
+        return choices;
+    }
+
+    private static byte[] serialize(Serializable object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(object);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+        @SuppressWarnings("unchecked")
+        List<Step> steps = (List<Step>) new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+        return ((QuestionStep) steps.get(0)).getAnswerFormat();
+    }
+}
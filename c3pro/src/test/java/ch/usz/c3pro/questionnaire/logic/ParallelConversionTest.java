@@ -0,0 +1,85 @@
+package ch.usz.c3pro.questionnaire.logic;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.researchstack.backbone.step.QuestionStep;
+import org.researchstack.backbone.step.Step;
+import org.researchstack.backbone.task.OrderedTask;
+import org.researchstack.backbone.task.Task;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import ch.usz.c3pro.questionnaire.QuestionnaireGenerator;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests that the {@link ParallelConversion} creates the same steps as {@link Items2Steps} and keeps
+ * the order of the items and of the questionnaires in a Bundle. The speedup is measured by the
+ * ParallelConversionBenchmark in src/jmh.
+ */
+public class ParallelConversionTest {
+    private static final int BUNDLE_SIZE = 8;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void items2Steps_keepsOrder() {
+        Questionnaire questionnaire = generate("order", 1);
+        List<Step> serial = Items2Steps.items2Steps(questionnaire.getItem());
+        List<Step> parallel = ParallelConversion.items2Steps(questionnaire.getItem(), executor);
+
+        assertSameSteps(serial, parallel);
+    }
+
+    @Test
+    public void bundle2Tasks_keepsOrderAndIgnoresOtherResources() {
+        Bundle bundle = new Bundle();
+        for (int i = 0; i < BUNDLE_SIZE; i++) {
+            bundle.addEntry().setResource(generate("q" + i, i));
+            if (i == 2) {
+                bundle.addEntry().setResource(new Patient());
+            }
+        }
+
+        List<Task> tasks = ParallelConversion.bundle2Tasks(bundle, executor);
+        assertEquals(BUNDLE_SIZE, tasks.size());
+        for (int i = 0; i < BUNDLE_SIZE; i++) {
+            assertEquals("q" + i, tasks.get(i).getIdentifier());
+            Questionnaire questionnaire = generate("q" + i, i);
+            assertSameSteps(Items2Steps.items2Steps(questionnaire.getItem()), ((OrderedTask) tasks.get(i)).getSteps());
+        }
+    }
+
+    private static Questionnaire generate(String id, long seed) {
+        return new QuestionnaireGenerator(seed).valueSets(0, 0).generate(id, 300);
+    }
+
+    private static void assertSameSteps(List<Step> expected, List<Step> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getIdentifier(), actual.get(i).getIdentifier());
+            assertEquals(expected.get(i).getClass(), actual.get(i).getClass());
+            if (expected.get(i) instanceof QuestionStep) {
+                assertEquals(((QuestionStep) expected.get(i)).getAnswerFormat().getClass(),
+                        ((QuestionStep) actual.get(i)).getAnswerFormat().getClass());
+            }
+        }
+    }
+}
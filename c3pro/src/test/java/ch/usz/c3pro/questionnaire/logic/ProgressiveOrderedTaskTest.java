@@ -0,0 +1,139 @@
+package ch.usz.c3pro.questionnaire.logic;
+
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.hl7.fhir.dstu3.model.ValueSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.researchstack.backbone.answerformat.ChoiceAnswerFormat;
+import org.researchstack.backbone.result.TaskResult;
+import org.researchstack.backbone.step.QuestionStep;
+import org.researchstack.backbone.step.Step;
+import org.researchstack.backbone.task.OrderedTask;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import ca.uhn.fhir.rest.client.ServerValidationModeEnum;
+import ch.usz.c3pro.C3PRO;
+import ch.usz.c3pro.dataqueue.DataQueue;
+import ch.usz.c3pro.dataqueue.FhirStandInServer;
+import ch.usz.c3pro.questionnaire.QuestionnaireGenerator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that a {@link ProgressiveOrderedTask} converts its remaining items without network calls,
+ * that the navigation gets the same steps while they are converted in the background, and that it
+ * is serialized as a complete task.
+ */
+public class ProgressiveOrderedTaskTest {
+    private static final String VALUESET_URL = "http://c3pro.usz.ch/fhir/ValueSet/progressive";
+    private static final int ITEMS = 4;
+
+    private FhirStandInServer server;
+    private DataQueue previousQueue;
+
+    @Before
+    public void startServer() throws Exception {
+        C3PRO.initFhirContext();
+        C3PRO.getFhirContext().getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+        server = new FhirStandInServer();
+        for (int i = 0; i < ITEMS; i++) {
+            ValueSet valueSet = new ValueSet();
+            valueSet.setUrl(VALUESET_URL + i);
+            valueSet.getExpansion().addContains().setCode("yes").setDisplay("Yes " + i);
+            valueSet.getExpansion().addContains().setCode("no").setDisplay("No " + i);
+            server.addResource(valueSet);
+        }
+        server.start();
+        previousQueue = C3PRO.getDataQueue();
+        C3PRO.setDataQueue(new DataQueue(server.getBaseURL(), null));
+        ValueSetResolver.clearCache();
+    }
+
+    @After
+    public void stopServer() {
+        C3PRO.setDataQueue(previousQueue);
+        ValueSetResolver.clearCache();
+        server.stop();
+    }
+
+    @Test
+    public void materializing_makesNoNetworkCalls() {
+        Questionnaire questionnaire = new Questionnaire();
+        questionnaire.setId("progressive");
+        for (int i = 0; i < ITEMS; i++) {
+            questionnaire.addItem().setLinkId("q" + i).setText("Question " + i)
+                    .setType(Questionnaire.QuestionnaireItemType.CHOICE)
+                    .setOptions(new Reference(VALUESET_URL + i));
+        }
+
+        ValueSetResolver.resolveValueSets(questionnaire);
+        int requests = server.getRequestCount();
+        assertEquals(ITEMS, server.getExpansionCount());
+
+        ProgressiveOrderedTask task = Questionnaire2Task.questionnaire2Task(questionnaire, 1);
+        assertFalse(task.isComplete());
+        task.materializeNext();
+        task.materializeAll();
+        assertTrue(task.isComplete());
+        assertEquals(requests, server.getRequestCount());
+
+        QuestionStep last = (QuestionStep) task.getStepWithIdentifier("q" + (ITEMS - 1));
+        assertEquals("Yes " + (ITEMS - 1), ((ChoiceAnswerFormat) last.getAnswerFormat()).getChoices()[0].getText());
+    }
+
+    @Test
+    public void navigation_whileConvertingInTheBackground_getsEveryStepOnce() throws Exception {
+        Questionnaire questionnaire = new QuestionnaireGenerator(1).valueSets(0, 0).generate("background", 500);
+        List<Step> expected = Items2Steps.items2Steps(questionnaire.getItem());
+        final ProgressiveOrderedTask task = Questionnaire2Task.questionnaire2Task(questionnaire, 1);
+
+        Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                task.materializeAll();
+            }
+        });
+        worker.start();
+        List<String> navigated = new ArrayList<>();
+        TaskResult result = new TaskResult(task.getIdentifier());
+        for (Step step = task.getStepAfterStep(null, result); step != null; step = task.getStepAfterStep(step, result)) {
+            navigated.add(step.getIdentifier());
+        }
+        worker.join();
+
+        assertTrue(task.isComplete());
+        assertEquals(expected.size(), task.getSteps().size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getIdentifier(), task.getSteps().get(i).getIdentifier());
+        }
+        assertEquals(expected.get(0).getIdentifier(), navigated.get(0));
+        assertSame(task.getSteps().get(expected.size() - 1), task.getStepWithIdentifier(expected.get(expected.size() - 1).getIdentifier()));
+    }
+
+    @Test
+    public void serializing_writesTheCompleteTaskWithoutTheQuestionnaire() throws Exception {
+        Questionnaire questionnaire = new QuestionnaireGenerator(2).valueSets(0, 0).generate("serialized", 50);
+        int expected = Items2Steps.items2Steps(questionnaire.getItem()).size();
+        ProgressiveOrderedTask task = Questionnaire2Task.questionnaire2Task(questionnaire, 1);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(task);
+        out.close();
+        Object copy = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+        assertEquals(ConditionalOrderedTask.class, copy.getClass());
+        assertEquals(expected, ((OrderedTask) copy).getSteps().size());
+    }
+}
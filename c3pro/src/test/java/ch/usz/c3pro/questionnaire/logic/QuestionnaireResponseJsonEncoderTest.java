@@ -0,0 +1,126 @@
+package ch.usz.c3pro.questionnaire.logic;
+
+import org.hl7.fhir.dstu3.model.Coding;
+import org.hl7.fhir.dstu3.model.DateType;
+import org.hl7.fhir.dstu3.model.IntegerType;
+import org.hl7.fhir.dstu3.model.QuestionnaireResponse;
+import org.hl7.fhir.dstu3.model.StringType;
+import org.hl7.fhir.dstu3.model.TimeType;
+import org.hl7.fhir.dstu3.model.Type;
+import org.junit.Before;
+import org.junit.Test;
+import org.researchstack.backbone.answerformat.AnswerFormat;
+import org.researchstack.backbone.answerformat.BooleanAnswerFormat;
+import org.researchstack.backbone.answerformat.ChoiceAnswerFormat;
+import org.researchstack.backbone.answerformat.DateAnswerFormat;
+import org.researchstack.backbone.answerformat.IntegerAnswerFormat;
+import org.researchstack.backbone.answerformat.TextAnswerFormat;
+import org.researchstack.backbone.model.Choice;
+import org.researchstack.backbone.result.StepResult;
+import org.researchstack.backbone.result.TaskResult;
+import org.researchstack.backbone.step.QuestionStep;
+import org.researchstack.backbone.task.Task;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.util.Collections;
+
+import ca.uhn.fhir.parser.IParser;
+import ch.usz.c3pro.C3PRO;
+import ch.usz.c3pro.questionnaire.QuestionnaireGenerator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the JSON written by the {@link QuestionnaireResponseJsonEncoder} is parsed by HAPI to
+ * the same QuestionnaireResponse that {@link TaskResult2QuestionnaireResponse} creates, for every
+ * answer type both support, including the values of inline options.
+ */
+public class QuestionnaireResponseJsonEncoderTest {
+    private IParser parser;
+
+    @Before
+    public void setUp() {
+        C3PRO.initFhirContext();
+        parser = C3PRO.getFhirContext().newJsonParser();
+    }
+
+    @Test
+    public void everyAnswerType_matchesTheHapiConversion() throws Exception {
+        TaskResult taskResult = new TaskResult("Questionnaire/types");
+        answer(taskResult, "boolean", new BooleanAnswerFormat("yes", "no"), false);
+        answer(taskResult, "choice", new ChoiceAnswerFormat(AnswerFormat.ChoiceAnswerStyle.SingleChoice,
+                new Choice<>("Red", "red"), new Choice<>("Blue", "blue")), "blue");
+        answer(taskResult, "integer", new IntegerAnswerFormat(-100, 100), -42);
+        answer(taskResult, "text", new TextAnswerFormat(), "line \"one\"\nline\ttwo \\ ä€ \u0001");
+        answer(taskResult, "date", new DateAnswerFormat(AnswerFormat.DateAnswerStyle.Date), 1476741600000L);
+        answer(taskResult, "unsupported", new AnswerFormat() {
+            @Override
+            public QuestionType getQuestionType() {
+                return null;
+            }
+        }, "ignored");
+        answer(taskResult, "unanswered", new TextAnswerFormat(), null);
+
+        assertSameResponse(taskResult);
+    }
+
+    @Test
+    public void inlineOptions_answerWithTheirValue() throws Exception {
+        Coding coding = new Coding("http://c3pro.usz.ch/codes", "red", "Red \"dark\"");
+        coding.setVersion("1").setUserSelected(true);
+        TaskResult taskResult = new TaskResult("Questionnaire/options");
+        answer(taskResult, "coding", optionFormat(coding), coding);
+        answer(taskResult, "code", optionFormat(new Coding().setCode("blue")), new Coding().setCode("blue"));
+        answer(taskResult, "string", optionFormat(new StringType("option")), new StringType("option"));
+        answer(taskResult, "integer", optionFormat(new IntegerType(7)), new IntegerType(7));
+        answer(taskResult, "date", optionFormat(new DateType("2016-10-18")), new DateType("2016-10-18"));
+        answer(taskResult, "time", optionFormat(new TimeType("12:30:00")), new TimeType("12:30:00"));
+
+        QuestionnaireResponse streamed = assertSameResponse(taskResult);
+        assertEquals(6, streamed.getItem().size());
+        for (QuestionnaireResponse.QuestionnaireResponseItemComponent item : streamed.getItem()) {
+            Type expected = (Type) taskResult.getStepResult(item.getLinkId()).getResult();
+            assertTrue(item.getLinkId(), expected.equalsDeep(item.getAnswer().get(0).getValue()));
+        }
+    }
+
+    @Test
+    public void generatedAnswers_matchTheHapiConversion() throws Exception {
+        for (long seed = 0; seed < 5; seed++) {
+            QuestionnaireGenerator generator = new QuestionnaireGenerator(seed);
+            Task task = Questionnaire2Task.questionnaire2Task(generator.generate("generated" + seed, 100));
+            assertSameResponse(generator.answer(task));
+        }
+    }
+
+    @Test
+    public void emptyResult_hasNoItems() throws Exception {
+        QuestionnaireResponse streamed = assertSameResponse(new TaskResult("empty"));
+        assertTrue(streamed.getItem().isEmpty());
+    }
+
+    private static void answer(TaskResult taskResult, String identifier, AnswerFormat format, Object answer) {
+        StepResult<Object> stepResult = new StepResult<>(new QuestionStep(identifier, identifier, format));
+        stepResult.setResult(answer);
+        taskResult.setStepResultForStepIdentifier(identifier, stepResult);
+    }
+
+    private static ChoiceAnswerFormat optionFormat(Type value) {
+        return AnswerFormatPool.choice(AnswerFormat.ChoiceAnswerStyle.SingleChoice, Collections.singletonList(value));
+    }
+
+    /**
+     * Parses the streamed JSON and compares it with the converted response, both encoded by HAPI.
+     */
+    private QuestionnaireResponse assertSameResponse(TaskResult taskResult) throws Exception {
+        byte[] json = QuestionnaireResponseJsonEncoder.encode(taskResult);
+        QuestionnaireResponse streamed = parser.parseResource(QuestionnaireResponse.class, new InputStreamReader(new ByteArrayInputStream(json), "UTF-8"));
+        QuestionnaireResponse converted = TaskResult2QuestionnaireResponse.taskResult2QuestionnaireResponse(taskResult);
+
+        assertEquals(parser.encodeResourceToString(converted), parser.encodeResourceToString(streamed));
+        assertEquals(converted.getItem().size(), streamed.getItem().size());
+        return streamed;
+    }
+}
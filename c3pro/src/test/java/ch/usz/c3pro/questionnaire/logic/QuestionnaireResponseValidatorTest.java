@@ -0,0 +1,147 @@
+package ch.usz.c3pro.questionnaire.logic;
+
+import org.hl7.fhir.dstu3.model.BooleanType;
+import org.hl7.fhir.dstu3.model.Coding;
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.hl7.fhir.dstu3.model.QuestionnaireResponse;
+import org.hl7.fhir.dstu3.model.StringType;
+import org.hl7.fhir.dstu3.model.Type;
+import org.junit.Before;
+import org.junit.Test;
+import org.researchstack.backbone.result.StepResult;
+import org.researchstack.backbone.result.TaskResult;
+import org.researchstack.backbone.task.Task;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the {@link QuestionnaireResponseValidator} on a Task converted from a questionnaire with
+ * required items, inline options and enableWhen conditions, including conditions that are met by
+ * any answer.
+ */
+public class QuestionnaireResponseValidatorTest {
+    private Task task;
+
+    @Before
+    public void setUp() {
+        Questionnaire questionnaire = new Questionnaire();
+        questionnaire.setId("validated");
+        questionnaire.addItem().setLinkId("smoker").setText("Do you smoke?")
+                .setType(Questionnaire.QuestionnaireItemType.BOOLEAN).setRequired(true);
+        Questionnaire.QuestionnaireItemComponent cigarettes = questionnaire.addItem().setLinkId("cigarettes")
+                .setText("How many per day?").setType(Questionnaire.QuestionnaireItemType.INTEGER).setRequired(true);
+        cigarettes.addEnableWhen().setQuestion("smoker").setAnswer(new BooleanType(true));
+        Questionnaire.QuestionnaireItemComponent color = questionnaire.addItem().setLinkId("color")
+                .setText("Favorite color").setType(Questionnaire.QuestionnaireItemType.CHOICE);
+        color.addOption().setValue(new Coding("http://c3pro.usz.ch/colors", "red", "Red"));
+        color.addOption().setValue(new Coding("http://c3pro.usz.ch/colors", "blue", "Blue"));
+        Questionnaire.QuestionnaireItemComponent mixed = questionnaire.addItem().setLinkId("mixed")
+                .setText("Anything").setType(Questionnaire.QuestionnaireItemType.CHOICE);
+        mixed.addOption().setValue(new Coding("http://c3pro.usz.ch/colors", "red", "Red"));
+        mixed.addOption().setValue(new StringType("other"));
+        Questionnaire.QuestionnaireItemComponent why = questionnaire.addItem().setLinkId("why")
+                .setText("Why?").setType(Questionnaire.QuestionnaireItemType.STRING).setRequired(true);
+        why.addEnableWhen().setQuestion("color").setAnswered(true);
+        task = Questionnaire2Task.questionnaire2Task(questionnaire);
+    }
+
+    @Test
+    public void completeResult_isValid() {
+        TaskResult result = new TaskResult("validated");
+        answer(result, "smoker", true);
+        answer(result, "cigarettes", 5);
+        answer(result, "color", new Coding("http://c3pro.usz.ch/colors", "blue", "Blue"));
+        answer(result, "why", "calm");
+
+        assertTrue(QuestionnaireResponseValidator.validate(result, task).isEmpty());
+    }
+
+    @Test
+    public void wrongType_isFound() {
+        QuestionnaireResponse response = new QuestionnaireResponse();
+        response.addItem().setLinkId("smoker").addAnswer().setValue(new StringType("yes"));
+        response.addItem().setLinkId("cigarettes").addAnswer().setValue(new BooleanType(true));
+        response.addItem().setLinkId("color").addAnswer().setValue(new StringType("red"));
+        response.addItem().setLinkId("mixed").addAnswer().setValue(new StringType("other"));
+
+        List<QuestionnaireResponseValidator.Issue> issues = QuestionnaireResponseValidator.validate(response, task);
+        assertEquals(3, count(issues, QuestionnaireResponseValidator.IssueType.WRONG_TYPE));
+        assertTrue(contains(issues, QuestionnaireResponseValidator.IssueType.WRONG_TYPE, "smoker"));
+        assertTrue(contains(issues, QuestionnaireResponseValidator.IssueType.WRONG_TYPE, "cigarettes"));
+        assertTrue(contains(issues, QuestionnaireResponseValidator.IssueType.WRONG_TYPE, "color"));
+    }
+
+    @Test
+    public void answerToHiddenItem_isFound() {
+        TaskResult result = new TaskResult("validated");
+        answer(result, "smoker", false);
+        answer(result, "cigarettes", 5);
+
+        List<QuestionnaireResponseValidator.Issue> issues = QuestionnaireResponseValidator.validate(result, task);
+        assertEquals(1, issues.size());
+        assertTrue(contains(issues, QuestionnaireResponseValidator.IssueType.ANSWER_TO_HIDDEN_ITEM, "cigarettes"));
+    }
+
+    @Test
+    public void missingRequiredItem_isFoundOnlyIfEnabled() {
+        TaskResult result = new TaskResult("validated");
+        answer(result, "smoker", true);
+
+        List<QuestionnaireResponseValidator.Issue> issues = QuestionnaireResponseValidator.validate(result, task);
+        assertEquals(1, issues.size());
+        assertTrue(contains(issues, QuestionnaireResponseValidator.IssueType.MISSING_REQUIRED_ITEM, "cigarettes"));
+
+        answer(result, "smoker", false);
+        assertTrue(QuestionnaireResponseValidator.validate(result, task).isEmpty());
+    }
+
+    @Test
+    public void answeredCondition_isMetByAnyAnswer() {
+        TaskResult result = new TaskResult("validated");
+        answer(result, "smoker", false);
+        answer(result, "why", "hidden");
+
+        List<QuestionnaireResponseValidator.Issue> issues = QuestionnaireResponseValidator.validate(result, task);
+        assertEquals(1, issues.size());
+        assertTrue(contains(issues, QuestionnaireResponseValidator.IssueType.ANSWER_TO_HIDDEN_ITEM, "why"));
+
+        answer(result, "color", new Coding("http://c3pro.usz.ch/colors", "red", "Red"));
+        assertTrue(QuestionnaireResponseValidator.validate(result, task).isEmpty());
+        result.getResults().remove("why");
+        issues = QuestionnaireResponseValidator.validate(result, task);
+        assertTrue(contains(issues, QuestionnaireResponseValidator.IssueType.MISSING_REQUIRED_ITEM, "why"));
+
+        ResultRequirement answered = new ResultRequirement("color", null);
+        assertTrue(answered.isSatisfiedBy(result));
+        assertFalse(answered.isSatisfiedBy(new TaskResult("validated")));
+    }
+
+    private void answer(TaskResult result, String linkId, Object answer) {
+        StepResult<Object> stepResult = new StepResult<>(task.getStepWithIdentifier(linkId));
+        stepResult.setResult(answer);
+        result.setStepResultForStepIdentifier(linkId, stepResult);
+    }
+
+    private static boolean contains(List<QuestionnaireResponseValidator.Issue> issues, QuestionnaireResponseValidator.IssueType type, String linkId) {
+        for (QuestionnaireResponseValidator.Issue issue : issues) {
+            if (issue.getType() == type && issue.getLinkId().equals(linkId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int count(List<QuestionnaireResponseValidator.Issue> issues, QuestionnaireResponseValidator.IssueType type) {
+        int count = 0;
+        for (QuestionnaireResponseValidator.Issue issue : issues) {
+            if (issue.getType() == type) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,131 @@
+package ch.usz.c3pro.questionnaire.logic;
+
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.hl7.fhir.dstu3.model.QuestionnaireResponse;
+import org.junit.Test;
+import org.researchstack.backbone.result.StepResult;
+import org.researchstack.backbone.result.TaskResult;
+import org.researchstack.backbone.step.Step;
+
+import java.util.AbstractList;
+import java.util.List;
+
+import ca.uhn.fhir.context.FhirContext;
+import ch.usz.c3pro.questionnaire.QuestionnaireGenerator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the navigation through the Tasks converted from questionnaires of the
+ * {@link QuestionnaireGenerator} grows linearly with the size of the instrument, by counting how
+ * often the steps and the answers are looked at instead of measuring time. A quadratic algorithm
+ * looks at them once per step. The time of the conversions for different sizes is measured by the
+ * ScalingBenchmark in src/jmh/java.
+ */
+public class ScalingTest {
+    private static final long SEED = 20161018L;
+    private static final int SMALL = 1000;
+    private static final int LARGE = 8000;
+
+    @Test
+    public void generator_isDeterministic() {
+        FhirContext context = FhirContext.forDstu3();
+        Questionnaire first = new QuestionnaireGenerator(SEED).generate("q", 500);
+        Questionnaire second = new QuestionnaireGenerator(SEED).generate("q", 500);
+        assertEquals(context.newJsonParser().encodeResourceToString(first), context.newJsonParser().encodeResourceToString(second));
+
+        ConditionalOrderedTask task = new ConditionalOrderedTask("q", Items2Steps.items2Steps(resolved(first).getItem()));
+        QuestionnaireResponse firstResponse = TaskResult2QuestionnaireResponse.taskResult2QuestionnaireResponse(new QuestionnaireGenerator(SEED).answer(task));
+        QuestionnaireResponse secondResponse = TaskResult2QuestionnaireResponse.taskResult2QuestionnaireResponse(new QuestionnaireGenerator(SEED).answer(task));
+        assertEquals(context.newJsonParser().encodeResourceToString(firstResponse), context.newJsonParser().encodeResourceToString(secondResponse));
+    }
+
+    @Test
+    public void navigation_looksAtEveryStepAndAnswerAConstantNumberOfTimes() {
+        assertLinearNavigation(SMALL);
+        assertLinearNavigation(LARGE);
+    }
+
+    /**
+     * Walks forward to the last step and back to the first one. Every step may be looked at once to
+     * index it and once in each direction, every requirement once in each direction.
+     */
+    private static void assertLinearNavigation(int questions) {
+        List<Step> steps = Items2Steps.items2Steps(resolved(new QuestionnaireGenerator(SEED).generate("scaling", questions)).getItem());
+        CountingTask task = new CountingTask(steps);
+        CountingTaskResult taskResult = new CountingTaskResult(new QuestionnaireGenerator(SEED).answer(new ConditionalOrderedTask("scaling", steps)));
+        int requirements = 0;
+        for (Step step : steps) {
+            if (step instanceof ConditionalStep) {
+                requirements += ((ConditionalStep) step).getRequirements().size();
+            }
+        }
+        task.stepAccesses = 0;
+
+        int shown = 0;
+        Step last = null;
+        Step step = task.getStepAfterStep(null, taskResult);
+        while (step != null) {
+            shown++;
+            last = step;
+            step = task.getStepAfterStep(step, taskResult);
+        }
+        while (last != null) {
+            last = task.getStepBeforeStep(last, taskResult);
+        }
+
+        assertTrue(questions + " questions: no step shown", shown > 0);
+        assertTrue(questions + " questions: " + task.stepAccesses + " step accesses for " + steps.size() + " steps",
+                task.stepAccesses <= 3 * steps.size());
+        assertTrue(questions + " questions: " + taskResult.lookups + " answer lookups for " + requirements + " requirements",
+                taskResult.lookups <= 2 * requirements);
+    }
+
+    /**
+     * A ConditionalOrderedTask that counts how often its steps are accessed.
+     */
+    private static class CountingTask extends ConditionalOrderedTask {
+        private int stepAccesses;
+
+        private CountingTask(List<Step> steps) {
+            super("scaling", steps);
+            final List<Step> counted = this.steps;
+            this.steps = new AbstractList<Step>() {
+                @Override
+                public Step get(int index) {
+                    stepAccesses++;
+                    return counted.get(index);
+                }
+
+                @Override
+                public int size() {
+                    return counted.size();
+                }
+            };
+        }
+    }
+
+    /**
+     * A TaskResult with the answers of another one that counts how often they are looked up.
+     */
+    private static class CountingTaskResult extends TaskResult {
+        private int lookups;
+
+        private CountingTaskResult(TaskResult answers) {
+            super(answers.getIdentifier());
+            getResults().putAll(answers.getResults());
+        }
+
+        @Override
+        public StepResult getStepResult(String identifier) {
+            lookups++;
+            return super.getStepResult(identifier);
+        }
+    }
+
+    private static Questionnaire resolved(Questionnaire questionnaire) {
+        ValueSetResolver.resolveContainedValueSets(questionnaire, questionnaire.getItem());
+        return questionnaire;
+    }
+}
@@ -0,0 +1,173 @@
+package ch.usz.c3pro.questionnaire.logic;
+
+import org.hl7.fhir.dstu3.model.CodeType;
+import org.hl7.fhir.dstu3.model.Extension;
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.hl7.fhir.dstu3.model.StringType;
+import org.hl7.fhir.dstu3.model.ValueSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.researchstack.backbone.answerformat.ChoiceAnswerFormat;
+import org.researchstack.backbone.model.Choice;
+import org.researchstack.backbone.step.QuestionStep;
+import org.researchstack.backbone.task.Task;
+
+import java.util.Locale;
+
+import ca.uhn.fhir.context.FhirContext;
+import ch.usz.c3pro.questionnaire.TaskCache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that questionnaires with translation extensions are localized to the active language before
+ * they are converted, and that the other languages can be dropped.
+ */
+public class TranslationsTest {
+
+    @Before
+    public void setUp() {
+        ValueSetResolver.clearCache();
+        AnswerFormatPool.clear();
+    }
+
+    @After
+    public void resetLocale() {
+        Translations.setLocale(null);
+        Translations.setDropOtherLanguages(false);
+    }
+
+    @Test
+    public void localize_picksTheLanguageAndKeepsTheOthers() {
+        Questionnaire questionnaire = createQuestionnaire();
+
+        assertEquals(5, Translations.localize(questionnaire, "de-CH", false));
+        assertEquals("de-CH", questionnaire.getLanguage());
+        assertEquals("Befinden", questionnaire.getTitle());
+        Questionnaire.QuestionnaireItemComponent item = questionnaire.getItem().get(0);
+        assertEquals("Wie geht es Ihnen?", item.getText());
+        assertEquals("gut", ((StringType) item.getOption().get(0).getValue()).getValue());
+
+        // the original texts are kept as translations for an undetermined language
+        assertEquals("How are you?", Translations.translation(item.getTextElement(), Translations.UNDETERMINED));
+        Translations.localize(questionnaire, "fr", false);
+        assertEquals("Comment allez-vous?", item.getText());
+        Translations.localize(questionnaire, "en", false);
+        assertEquals("How are you?", item.getText());
+    }
+
+    @Test
+    public void localize_savesTextOfARegionalPreviousLanguage() {
+        Questionnaire questionnaire = createQuestionnaire();
+        questionnaire.setLanguage("de-CH");
+        Questionnaire.QuestionnaireItemComponent item = questionnaire.getItem().get(0);
+        item.setText("Wie gaht's?");
+
+        Translations.localize(questionnaire, "fr", false);
+
+        // the "de" translation is not an exact match for "de-CH", the original text is saved
+        assertEquals("Wie gaht's?", Translations.translation(item.getTextElement(), "de-CH"));
+        assertEquals("Wie geht es Ihnen?", Translations.translation(item.getTextElement(), "de"));
+        Translations.localize(questionnaire, "de-CH", false);
+        assertEquals("Wie gaht's?", item.getText());
+    }
+
+    @Test
+    public void translation_prefersThePrimaryLanguageOverASibling() {
+        StringType text = new StringType("Hello");
+        translate(text, "de-AT", "Servus", "de", "Hallo", "de-CH", "Grüezi");
+
+        assertEquals("Grüezi", Translations.translation(text, "de-CH"));
+        assertEquals("Hallo", Translations.translation(text, "de-DE"));
+        assertEquals("Hallo", Translations.translation(text, "de"));
+        assertNull(Translations.translation(text, "fr"));
+    }
+
+    @Test
+    public void localize_dropsOtherLanguages() {
+        Questionnaire questionnaire = createQuestionnaire();
+        String before = FhirContext.forDstu3().newJsonParser().encodeResourceToString(questionnaire);
+
+        Translations.localize(questionnaire, "fr-CH", true);
+        String after = FhirContext.forDstu3().newJsonParser().encodeResourceToString(questionnaire);
+
+        assertEquals("Comment allez-vous?", questionnaire.getItem().get(0).getText());
+        assertFalse(after.contains(Translations.EXTENSION_URL));
+        assertFalse(after.contains("Wie geht es Ihnen?"));
+        assertTrue(after.length() < before.length() / 2);
+    }
+
+    @Test
+    public void questionnaire2Task_usesTheActiveLocale() {
+        Translations.setLocale(Locale.GERMANY);
+        Questionnaire questionnaire = createQuestionnaire();
+        ValueSetResolver.resolveValueSets(questionnaire);
+        Task task = Questionnaire2Task.questionnaire2Task(questionnaire);
+
+        QuestionStep options = (QuestionStep) task.getStepWithIdentifier("mood");
+        assertEquals("Wie geht es Ihnen?", options.getTitle());
+        assertEquals("gut", ((ChoiceAnswerFormat) options.getAnswerFormat()).getChoices()[0].getText());
+
+        QuestionStep valueSet = (QuestionStep) task.getStepWithIdentifier("sleep");
+        Choice[] choices = ((ChoiceAnswerFormat) valueSet.getAnswerFormat()).getChoices();
+        assertEquals("schlecht", choices[0].getText());
+    }
+
+    @Test
+    public void taskCache_onlyReturnsTasksOfTheActiveLanguage() {
+        Translations.setLocale(Locale.GERMAN);
+        Questionnaire questionnaire = createQuestionnaire();
+        TaskCache cache = new TaskCache();
+        cache.put(questionnaire, Questionnaire2Task.questionnaire2Task(questionnaire));
+        assertNotNull(cache.getTask(questionnaire));
+
+        Translations.setLocale(Locale.FRENCH);
+        assertNull(cache.getTask(questionnaire));
+    }
+
+    private static Questionnaire createQuestionnaire() {
+        Questionnaire questionnaire = new Questionnaire();
+        questionnaire.setId("translated");
+        questionnaire.setTitle("Wellbeing");
+        translate(questionnaire.getTitleElement(), "de", "Befinden", "fr", "Bien-être");
+
+        ValueSet valueSet = new ValueSet();
+        valueSet.setId("quality");
+        ValueSet.ConceptSetComponent include = valueSet.getCompose().addInclude().setSystem("http://c3pro.usz.ch/quality");
+        ValueSet.ConceptReferenceComponent concept = include.addConcept().setCode("bad").setDisplay("bad");
+        translate(concept.getDisplayElement(), "de", "schlecht", "fr", "mauvais");
+        questionnaire.addContained(valueSet);
+
+        Questionnaire.QuestionnaireItemComponent mood = questionnaire.addItem()
+                .setLinkId("mood")
+                .setText("How are you?")
+                .setType(Questionnaire.QuestionnaireItemType.CHOICE);
+        translate(mood.getTextElement(), "de", "Wie geht es Ihnen?", "fr", "Comment allez-vous?");
+        StringType good = new StringType("good");
+        translate(good, "de", "gut", "fr", "bien");
+        mood.addOption().setValue(good);
+
+        Questionnaire.QuestionnaireItemComponent sleep = questionnaire.addItem()
+                .setLinkId("sleep")
+                .setText("How did you sleep?")
+                .setType(Questionnaire.QuestionnaireItemType.CHOICE);
+        translate(sleep.getTextElement(), "de", "Wie haben Sie geschlafen?", "fr", "Comment avez-vous dormi?");
+        sleep.setOptions(new Reference("#quality"));
+        return questionnaire;
+    }
+
+    private static void translate(StringType text, String... translations) {
+        for (int i = 0; i < translations.length; i += 2) {
+            Extension translation = text.addExtension();
+            translation.setUrl(Translations.EXTENSION_URL);
+            translation.addExtension().setUrl("lang").setValue(new CodeType(translations[i]));
+            translation.addExtension().setUrl("content").setValue(new StringType(translations[i + 1]));
+        }
+    }
+}
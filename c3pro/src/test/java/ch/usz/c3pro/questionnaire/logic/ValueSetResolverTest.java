@@ -0,0 +1,171 @@
+package ch.usz.c3pro.questionnaire.logic;
+
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.hl7.fhir.dstu3.model.ValueSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.researchstack.backbone.model.Choice;
+
+import ca.uhn.fhir.rest.client.ServerValidationModeEnum;
+import ch.usz.c3pro.C3PRO;
+import ch.usz.c3pro.dataqueue.DataQueue;
+import ch.usz.c3pro.dataqueue.FhirStandInServer;
+import ch.usz.c3pro.memory.MemoryGovernor;
+import ch.usz.c3pro.memory.MemorySizes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the caches of the {@link ValueSetResolver}: contained ValueSets are cached per instance,
+ * canonical ValueSets by URL and version across questionnaires, all ValueSets of a questionnaire
+ * are expanded in one pass, a cache miss never makes a network call, and trimming counts arrays
+ * that are cached under several keys once.
+ */
+public class ValueSetResolverTest {
+    private static final String URL = "http://c3pro.usz.ch/fhir/ValueSet/resolver";
+    private static final int VALUESETS = 5;
+
+    private FhirStandInServer server;
+    private DataQueue previousQueue;
+
+    @Before
+    public void setUp() throws Exception {
+        C3PRO.initFhirContext();
+        C3PRO.getFhirContext().getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+        server = new FhirStandInServer();
+        for (int i = 0; i < VALUESETS; i++) {
+            ValueSet valueSet = new ValueSet();
+            valueSet.setUrl(URL + i);
+            valueSet.setVersion("1");
+            valueSet.getExpansion().addContains().setCode("yes").setDisplay("Yes " + i);
+            valueSet.getExpansion().addContains().setCode("no").setDisplay("No " + i);
+            server.addResource(valueSet);
+        }
+        server.start();
+        previousQueue = C3PRO.getDataQueue();
+        C3PRO.setDataQueue(new DataQueue(server.getBaseURL(), null));
+        ValueSetResolver.clearCache();
+    }
+
+    @After
+    public void tearDown() {
+        ValueSetResolver.setMemoryGovernor(null);
+        ValueSetResolver.clearCache();
+        C3PRO.setDataQueue(previousQueue);
+        server.stop();
+    }
+
+    @Test
+    public void containedValueSets_areCachedPerInstance() {
+        Questionnaire first = containedQuestionnaire();
+        Questionnaire second = containedQuestionnaire();
+        ValueSetResolver.resolveValueSets(first);
+        ValueSetResolver.resolveValueSets(second);
+
+        Choice[] a = ValueSetResolver.getChoices(first.getItem().get(0).getOptions());
+        assertNotNull(a);
+        assertSame(a, ValueSetResolver.getChoices(first.getItem().get(1).getOptions()));
+        assertNotSame(a, ValueSetResolver.getChoices(second.getItem().get(0).getOptions()));
+        assertEquals(0, server.getRequestCount());
+    }
+
+    @Test
+    public void canonicalValueSets_areSharedAcrossQuestionnaires() {
+        Questionnaire first = canonicalQuestionnaire("first", 2);
+        Questionnaire second = canonicalQuestionnaire("second", 2);
+        ValueSetResolver.resolveValueSets(first);
+        ValueSetResolver.resolveValueSets(second);
+
+        assertEquals(2, server.getExpansionCount());
+        Choice[] choices = ValueSetResolver.getChoices(first.getItem().get(0).getOptions());
+        assertSame(choices, ValueSetResolver.getChoices(second.getItem().get(0).getOptions()));
+        // also cached under the version the server returned
+        assertSame(choices, ValueSetResolver.getChoices(new Reference(URL + "0|1")));
+        assertEquals("Yes 0", choices[0].getText());
+    }
+
+    @Test
+    public void resolveValueSets_expandsEveryValueSetOnce() {
+        Questionnaire questionnaire = canonicalQuestionnaire("batch", VALUESETS * 4);
+        assertTrue(ValueSetResolver.needsExpansion(questionnaire));
+
+        ValueSetResolver.resolveValueSets(questionnaire);
+        assertEquals(VALUESETS, server.getExpansionCount());
+        assertFalse(ValueSetResolver.needsExpansion(questionnaire));
+
+        int requests = server.getRequestCount();
+        ValueSetResolver.resolveValueSets(questionnaire);
+        assertEquals(requests, server.getRequestCount());
+    }
+
+    @Test
+    public void cacheMiss_makesNoNetworkCall() {
+        assertNull(ValueSetResolver.getChoices(new Reference(URL + "0")));
+        assertEquals(0, server.getRequestCount());
+    }
+
+    @Test
+    public void trim_countsSharedArraysOnce() {
+        MemoryGovernor governor = new MemoryGovernor(Long.MAX_VALUE);
+        ValueSetResolver.setMemoryGovernor(governor);
+        ValueSetResolver.resolveValueSets(canonicalQuestionnaire("trimmed", 1));
+        Choice[] choices = ValueSetResolver.getChoices(new Reference(URL + "0"));
+        assertSame(choices, ValueSetResolver.getChoices(new Reference(URL + "0|1")));
+        long size = MemorySizes.choices(choices);
+        assertEquals(size, governor.getRetainedSize());
+
+        // both keys have to be removed to release the array
+        governor.setBudget(size - 1);
+        assertEquals(0, governor.getRetainedSize());
+        assertNull(ValueSetResolver.getChoices(new Reference(URL + "0")));
+        assertNull(ValueSetResolver.getChoices(new Reference(URL + "0|1")));
+    }
+
+    @Test
+    public void trim_dropsTheLeastRecentlyUsedFirst() {
+        MemoryGovernor governor = new MemoryGovernor(Long.MAX_VALUE);
+        ValueSetResolver.setMemoryGovernor(governor);
+        ValueSetResolver.resolveValueSets(canonicalQuestionnaire("old", 1));
+        Questionnaire recent = new Questionnaire();
+        recent.addItem().setLinkId("q").setType(Questionnaire.QuestionnaireItemType.CHOICE).setOptions(new Reference(URL + "1"));
+        ValueSetResolver.resolveValueSets(recent);
+        long size = governor.getRetainedSize();
+
+        governor.setBudget(size - 1);
+        assertNull(ValueSetResolver.getChoices(new Reference(URL + "0")));
+        assertNotNull(ValueSetResolver.getChoices(new Reference(URL + "1")));
+    }
+
+    private static Questionnaire containedQuestionnaire() {
+        ValueSet valueSet = new ValueSet();
+        valueSet.setId("colors");
+        valueSet.getCompose().addInclude().setSystem("http://c3pro.usz.ch/colors").addConcept().setCode("red").setDisplay("Red");
+        Questionnaire questionnaire = new Questionnaire();
+        questionnaire.addContained(valueSet);
+        for (int i = 0; i < 2; i++) {
+            questionnaire.addItem().setLinkId("q" + i).setType(Questionnaire.QuestionnaireItemType.CHOICE).setOptions(new Reference("#colors"));
+        }
+        return questionnaire;
+    }
+
+    /**
+     * Returns a questionnaire whose items reference the ValueSets in turn.
+     */
+    private static Questionnaire canonicalQuestionnaire(String id, int items) {
+        Questionnaire questionnaire = new Questionnaire();
+        questionnaire.setId(id);
+        for (int i = 0; i < items; i++) {
+            questionnaire.addItem().setLinkId("q" + i).setType(Questionnaire.QuestionnaireItemType.CHOICE)
+                    .setOptions(new Reference(URL + (i % VALUESETS)));
+        }
+        return questionnaire;
+    }
+}
@@ -0,0 +1,140 @@
+package ch.usz.c3pro.tracing;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+
+import ca.uhn.fhir.rest.client.ServerValidationModeEnum;
+import ch.usz.c3pro.C3PRO;
+import ch.usz.c3pro.dataqueue.DataQueue;
+import ch.usz.c3pro.dataqueue.FhirStandInServer;
+import ch.usz.c3pro.dataqueue.LoadTestDataQueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TracingTest {
+    private static final DataQueue.BundleReceiver IGNORE_BUNDLE = new DataQueue.BundleReceiver() {
+        @Override
+        public void receiveBundle(String requestID, Bundle resource) {
+        }
+    };
+
+    private FhirStandInServer server;
+    private DataQueue previous;
+
+    @Before
+    public void setUp() throws Exception {
+        C3PRO.initFhirContext();
+        C3PRO.getFhirContext().getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+        server = new FhirStandInServer();
+        Questionnaire questionnaire = new Questionnaire();
+        questionnaire.setId("q1");
+        server.addResource(questionnaire);
+        server.start();
+        previous = C3PRO.getDataQueue();
+    }
+
+    @After
+    public void tearDown() {
+        Tracing.setRecorder(null);
+        C3PRO.setDataQueue(previous);
+        server.stop();
+    }
+
+    @Test
+    public void read_isTracedAcrossQueueHttpAndParsing() throws Exception {
+        ChromeTraceRecorder recorder = new ChromeTraceRecorder(1, 1000);
+        Tracing.setRecorder(recorder);
+        LoadTestDataQueue dataQueue = new LoadTestDataQueue(server.getBaseURL(), 1, null);
+        C3PRO.setDataQueue(dataQueue);
+
+        dataQueue.read("r1", "Questionnaire", IGNORE_BUNDLE);
+        assertTrue(dataQueue.getRunner().awaitIdle(10000));
+        dataQueue.getRunner().stop();
+
+        List<String> sent = server.getCorrelationIDs();
+        assertEquals(1, sent.size());
+        Set<String> categories = new HashSet<>();
+        for (Span span : recorder.getSpans()) {
+            assertEquals(sent.get(0), span.getCorrelationID());
+            assertTrue(span.getEnd() >= span.getStart());
+            categories.add(span.getCategory());
+        }
+        assertTrue(categories.contains(Tracing.CATEGORY_QUEUE));
+        assertTrue(categories.contains(Tracing.CATEGORY_JOB));
+        assertTrue(categories.contains(Tracing.CATEGORY_HTTP));
+        assertTrue(categories.contains(Tracing.CATEGORY_PARSE));
+
+        StringWriter json = new StringWriter();
+        recorder.writeTo(json);
+        JsonObject trace = Json.createReader(new StringReader(json.toString())).readObject();
+        int complete = 0;
+        for (JsonValue value : trace.getJsonArray("traceEvents")) {
+            JsonObject event = (JsonObject) value;
+            if ("X".equals(event.getString("ph"))) {
+                complete++;
+                assertEquals(sent.get(0), event.getJsonObject("args").getString("correlationId"));
+            }
+        }
+        assertEquals(recorder.getSpans().size(), complete);
+    }
+
+    @Test
+    public void correlationID_isSentWithoutRecorder() throws Exception {
+        LoadTestDataQueue dataQueue = new LoadTestDataQueue(server.getBaseURL(), 1, null);
+        C3PRO.setDataQueue(dataQueue);
+        dataQueue.read("r1", "Questionnaire", IGNORE_BUNDLE);
+        dataQueue.read("r2", "Questionnaire", IGNORE_BUNDLE);
+        assertTrue(dataQueue.getRunner().awaitIdle(10000));
+        dataQueue.getRunner().stop();
+
+        List<String> sent = server.getCorrelationIDs();
+        assertEquals(2, sent.size());
+        assertFalse(sent.get(0).equals(sent.get(1)));
+        assertEquals(null, Tracing.getCorrelationID());
+    }
+
+    @Test
+    public void sampling_isConsistentPerOperation() {
+        ChromeTraceRecorder none = new ChromeTraceRecorder(0, 100);
+        ChromeTraceRecorder half = new ChromeTraceRecorder(0.5, 100);
+        int sampled = 0;
+        for (int i = 0; i < 10000; i++) {
+            String id = Tracing.newCorrelationID();
+            assertFalse(none.isSampled(id));
+            assertEquals(half.isSampled(id), half.isSampled(id));
+            if (half.isSampled(id)) {
+                sampled++;
+            }
+        }
+        assertTrue(sampled > 4500 && sampled < 5500);
+    }
+
+    @Test
+    public void recorder_dropsOldestSpans() {
+        ChromeTraceRecorder recorder = new ChromeTraceRecorder(1, 2);
+        Tracing.setRecorder(recorder);
+        String id = Tracing.newCorrelationID();
+        Tracing.start("a", Tracing.CATEGORY_STAGE, id).end();
+        Tracing.start("b", Tracing.CATEGORY_STAGE, id).end();
+        Tracing.start("c", Tracing.CATEGORY_STAGE, id).end();
+
+        assertEquals(1, recorder.getDroppedCount());
+        assertEquals("b", recorder.getSpans().get(0).getName());
+        assertEquals("c", recorder.getSpans().get(1).getName());
+    }
+}